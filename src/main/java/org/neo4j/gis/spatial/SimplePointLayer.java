@@ -58,13 +58,13 @@ public class SimplePointLayer extends EditableLayerImpl {
 
 	public List<GeoPipeFlow> findClosestPointsTo(Coordinate coordinate, int numberOfItemsToFind) {
 		return GeoPipeline
-			.startNearestNeighborLatLonSearch(this, coordinate, 2 * numberOfItemsToFind)
+			.startNearestNeighborLatLonSearch(this, coordinate, numberOfItemsToFind)
 			.sort("OrthodromicDistance").next(numberOfItemsToFind);
 	}
 
 	public List<GeoPipeFlow> findClosestPointsTo(Coordinate coordinate) {
 		return GeoPipeline
-			.startNearestNeighborLatLonSearch(this, coordinate, 2 * LIMIT_RESULTS)
+			.startNearestNeighborLatLonSearch(this, coordinate, LIMIT_RESULTS)
 			.sort("OrthodromicDistance").next(LIMIT_RESULTS);
 	}
 }
@@ -26,6 +26,7 @@ import org.neo4j.gis.spatial.attributes.PropertyMapper;
 import org.neo4j.graphdb.Node;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 
@@ -73,6 +74,16 @@ public class SpatialDatabaseRecord implements Constants, SpatialRecord {
 		return geometry;
 	}
 	
+	/**
+	 * The envelope of the geometry. If the geometry has not been decoded yet, only the envelope is decoded, which is
+	 * much cheaper for complex geometries.
+	 */
+	public Envelope getGeometryEnvelope() {
+		if (geometry != null)
+			return geometry.getEnvelopeInternal();
+		return Utilities.fromNeo4jToJts(layer.getGeometryEncoder().decodeEnvelope(geomNode));
+	}
+
 	public CoordinateReferenceSystem getCoordinateReferenceSystem() {
 		return layer.getCoordinateReferenceSystem();
 	}
@@ -199,6 +199,8 @@ public class SpatialDatabaseService implements Constants {
 				return LayerZOrderPointIndex.class;
 			case "hilbert":
 				return LayerHilbertPointIndex.class;
+			case "auto":
+				return LayerAutoPointIndex.class;
 		}
 		throw new IllegalArgumentException("Unknown index: " + index);
 	}
@@ -325,6 +327,12 @@ public class SpatialDatabaseService implements Constants {
     public Layer createLayer(String name, Class<? extends GeometryEncoder> geometryEncoderClass,
                              Class<? extends Layer> layerClass, Class<? extends LayerIndexReader> indexClass,
                              String encoderConfig, CoordinateReferenceSystem crs) {
+        return createLayer(name, geometryEncoderClass, layerClass, indexClass, encoderConfig, null, crs);
+    }
+
+    public Layer createLayer(String name, Class<? extends GeometryEncoder> geometryEncoderClass,
+                             Class<? extends Layer> layerClass, Class<? extends LayerIndexReader> indexClass,
+                             String encoderConfig, String indexConfig, CoordinateReferenceSystem crs) {
 		try (Transaction tx = database.beginTx()) {
 			if (containsLayer(name))
 				throw new SpatialDatabaseException("Layer " + name + " already exists");
@@ -337,10 +345,20 @@ public class SpatialDatabaseService implements Constants {
 					((Configurable) encoder).setConfiguration(encoderConfig);
 					layer.getLayerNode().setProperty(PROP_GEOMENCODER_CONFIG, encoderConfig);
 				} else {
-					System.out.println("Warning: encoder configuration '" + encoderConfig
+					throw new SpatialDatabaseException("Encoder configuration '" + encoderConfig
 							+ "' passed to non-configurable encoder: " + geometryEncoderClass);
 				}
 			}
+			if (indexConfig != null && indexConfig.length() > 0) {
+				LayerIndexReader index = layer.getIndex();
+				if (index instanceof Configurable) {
+					((Configurable) index).setConfiguration(indexConfig);
+					layer.getLayerNode().setProperty(PROP_INDEX_CONFIG, indexConfig);
+				} else {
+					throw new SpatialDatabaseException("Index configuration '" + indexConfig
+							+ "' passed to non-configurable index: " + index.getClass());
+				}
+			}
 			if (crs != null && layer instanceof EditableLayer) {
 				((EditableLayer) layer).setCoordinateReferenceSystem(crs);
 			}
@@ -354,10 +372,12 @@ public class SpatialDatabaseService implements Constants {
         if (layer == null)
             throw new SpatialDatabaseException("Layer " + name + " does not exist");
 
+        long layerNodeId = layer.getLayerNode().getId();
         try (Transaction tx = database.beginTx()) {
             layer.delete(monitor);
             tx.success();
         }
+        IndexQueryStatistics.removeLayer(database, layerNodeId);
     }
 	
 	public GraphDatabaseService getDatabase() {
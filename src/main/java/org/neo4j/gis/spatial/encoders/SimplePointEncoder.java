@@ -28,7 +28,8 @@ import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 
 /**
- * Simple encoder that stores point geometries as two x/y properties.
+ * Simple encoder that stores point geometries as two x/y properties. If a z property is configured, as the fourth
+ * field of the configuration 'x:y:bbox:z', the z coordinate of the point is also stored and decoded.
  * 
  * @author craig
  */
@@ -37,9 +38,11 @@ public class SimplePointEncoder extends AbstractGeometryEncoder implements
 {
     public static final String DEFAULT_X = "longitude";
     public static final String DEFAULT_Y = "latitude";
+    public static final String DEFAULT_Z = "altitude";
     protected GeometryFactory geometryFactory;
     protected String xProperty = DEFAULT_X;
     protected String yProperty = DEFAULT_Y;
+    protected String zProperty = null;
 
     protected GeometryFactory getGeometryFactory()
     {
@@ -57,6 +60,10 @@ public class SimplePointEncoder extends AbstractGeometryEncoder implements
         Coordinate[] coords = geometry.getCoordinates();
         container.setProperty( xProperty, coords[0].x );
         container.setProperty( yProperty, coords[0].y );
+        if ( zProperty != null && !Double.isNaN( coords[0].z ) )
+        {
+            container.setProperty( zProperty, coords[0].z );
+        }
     }
 
     @Override
@@ -65,13 +72,18 @@ public class SimplePointEncoder extends AbstractGeometryEncoder implements
         double x = ( (Number) container.getProperty( xProperty ) ).doubleValue();
         double y = ( (Number) container.getProperty( yProperty ) ).doubleValue();
         Coordinate coordinate = new Coordinate( x, y );
+        if ( zProperty != null && container.hasProperty( zProperty ) )
+        {
+            coordinate.z = ( (Number) container.getProperty( zProperty ) ).doubleValue();
+        }
         return getGeometryFactory().createPoint( coordinate );
     }
     
     @Override
     public String getConfiguration()
     {
-        return xProperty + ":" + yProperty + ":" + bboxProperty;
+        String configuration = xProperty + ":" + yProperty + ":" + bboxProperty;
+        return zProperty == null ? configuration : configuration + ":" + zProperty;
     }
 
     @Override    
@@ -83,11 +95,13 @@ public class SimplePointEncoder extends AbstractGeometryEncoder implements
             if ( fields.length > 0 ) xProperty = fields[0];
             if ( fields.length > 1 ) yProperty = fields[1];
             if ( fields.length > 2 ) bboxProperty = fields[2];
+            if ( fields.length > 3 ) zProperty = fields[3];
         }
     }
 
     @Override
     public String getSignature() {
-        return "SimplePointEncoder(x='" + xProperty + "', y='" + yProperty + "', bbox='" + bboxProperty + "')";
+        String z = zProperty == null ? "" : ", z='" + zProperty + "'";
+        return "SimplePointEncoder(x='" + xProperty + "', y='" + yProperty + "'" + z + ", bbox='" + bboxProperty + "')";
     }
 }
@@ -25,6 +25,8 @@ import org.neo4j.gis.spatial.Utilities;
 import org.neo4j.graphdb.Node;
 
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 /**
  * @author Craig Taverner
@@ -32,11 +34,14 @@ import com.vividsolutions.jts.geom.Geometry;
 public abstract class AbstractSearchIntersection extends AbstractSearchEnvelopeIntersection {
 	
 	protected Geometry referenceGeometry;
+	// prepared once, so that complex reference geometries are indexed for all the candidates of a search
+	protected PreparedGeometry preparedReferenceGeometry;
 	protected Layer layer;
 
 	public AbstractSearchIntersection(Layer layer, Geometry referenceGeometry) {
 		super(layer.getGeometryEncoder(), Utilities.fromJtsToNeo4j(referenceGeometry.getEnvelopeInternal()));
 		this.referenceGeometry = referenceGeometry;
+		this.preparedReferenceGeometry = PreparedGeometryFactory.prepare(referenceGeometry);
 		this.layer = layer;
 	}
 
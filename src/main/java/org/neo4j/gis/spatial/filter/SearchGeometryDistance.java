@@ -0,0 +1,54 @@
+/**
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.filter;
+
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.Utilities;
+import org.neo4j.gis.spatial.rtree.filter.SearchEnvelopeDistance;
+import org.neo4j.graphdb.Node;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Measure the planar distance, in layer coordinates, between the reference geometry and the
+ * geometries in the layer. The envelope distance is used as the lower bound while traversing the
+ * index, and the real geometry is only decoded when deciding the final distance of a candidate.
+ */
+public class SearchGeometryDistance extends SearchEnvelopeDistance {
+
+	private Layer layer;
+	private Geometry referenceGeometry;
+
+	public SearchGeometryDistance(Layer layer, Geometry referenceGeometry) {
+		super(layer.getGeometryEncoder(), Utilities.fromJtsToNeo4j(referenceGeometry.getEnvelopeInternal()));
+		this.layer = layer;
+		this.referenceGeometry = referenceGeometry;
+	}
+
+	@Override
+	public double distance(Node geomNode) {
+		Geometry geometry = layer.getGeometryEncoder().decodeGeometry(geomNode);
+		return geometry.distance(referenceGeometry);
+	}
+
+	public Geometry getReferenceGeometry() {
+		return referenceGeometry;
+	}
+}
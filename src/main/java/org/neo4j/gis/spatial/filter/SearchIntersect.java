@@ -40,7 +40,7 @@ public class SearchIntersect extends AbstractSearchIntersection {
 
 	protected boolean onEnvelopeIntersection(Node geomNode, Envelope geomEnvelope) {
 		Geometry geometry = decode(geomNode);
-		return geometry.intersects(referenceGeometry);
+		return preparedReferenceGeometry.intersects(geometry);
 	}
 
 }
\ No newline at end of file
@@ -26,6 +26,8 @@ import org.neo4j.graphdb.Node;
 
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 /**
  * Find geometries that intersect with the specified search window.
@@ -35,21 +37,25 @@ import com.vividsolutions.jts.geom.Geometry;
 public class SearchIntersectWindow extends AbstractSearchEnvelopeIntersection {
 
 	private Layer layer;
-	private Geometry windowGeom;
+	private PreparedGeometry windowGeom;
 
 	public SearchIntersectWindow(Layer layer, Envelope other) {
 		super(layer.getGeometryEncoder(), Utilities.fromJtsToNeo4j(other));
 		this.layer = layer;
-		this.windowGeom = layer.getGeometryFactory().toGeometry(other);
+		this.windowGeom = PreparedGeometryFactory.prepare(layer.getGeometryFactory().toGeometry(other));
 	}
 
 	@Override
 	protected boolean onEnvelopeIntersection(Node geomNode, org.neo4j.gis.spatial.rtree.Envelope geomEnvelope) {
+		if (referenceEnvelope.contains(geomEnvelope)) {
+			// every geometry inside the window intersects it, so there is no need to decode it
+			return true;
+		}
 		Geometry geometry = layer.getGeometryEncoder().decodeGeometry(geomNode);
 		// The next line just calls the method that is causing exceptions on OSM data for testing
 		// TODO: Remove when OSM is working properly
 		geometry.getEnvelopeInternal();
-		return geometry.intersects(windowGeom);
+		return windowGeom.intersects(geometry);
 	}
 
 }
\ No newline at end of file
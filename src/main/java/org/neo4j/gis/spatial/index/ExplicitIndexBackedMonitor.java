@@ -38,4 +38,9 @@ public class ExplicitIndexBackedMonitor {
     public long getMisses() {
         return misses;
     }
+
+    public void reset() {
+        hits = 0;
+        misses = 0;
+    }
 }
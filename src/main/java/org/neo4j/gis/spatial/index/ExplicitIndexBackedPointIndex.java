@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial.index;
 
 import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.filter.SearchGeometryDistance;
 import org.neo4j.gis.spatial.filter.SearchRecords;
 import org.neo4j.gis.spatial.rtree.Envelope;
 import org.neo4j.gis.spatial.rtree.EnvelopeDecoder;
@@ -27,32 +28,56 @@ import org.neo4j.gis.spatial.rtree.Listener;
 import org.neo4j.gis.spatial.rtree.TreeMonitor;
 import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
 import org.neo4j.gis.spatial.rtree.filter.SearchResults;
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.helpers.collection.Iterables;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.cs.CoordinateSystemAxis;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public abstract class ExplicitIndexBackedPointIndex<E extends Comparable<E>> implements LayerIndexReader, SpatialIndexWriter {
 
-public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexReader, SpatialIndexWriter {
+    // lists of at least this many nodes have their index values calculated in parallel
+    private static final int PARALLEL_THRESHOLD = 1000;
+
+    enum ExplicitIndexRelationshipTypes implements RelationshipType {
+        INDEX_METADATA
+    }
 
     protected Layer layer;
     private Index<Node> index;
+    private String indexName;
     private GraphDatabaseService graph;
     private ExplicitIndexBackedMonitor monitor = new ExplicitIndexBackedMonitor();
+    private boolean maintainStatistics = true;
 
     protected abstract String indexTypeName();
 
     @Override
     public void init(Layer layer) {
         this.layer = layer;
-        String indexName = "_Spatial_" + indexTypeName() + "_Index_" + layer.getName();
+        indexName = "_Spatial_" + indexTypeName() + "_Index_" + layer.getName();
         graph = layer.getSpatialDatabase().getDatabase();
         try (Transaction tx = graph.beginTx()) {
             index = graph.index().forNodes(indexName);
@@ -70,17 +95,201 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
         return new SearchRecords(layer, searchIndex(filter));
     }
 
+    /**
+     * The explicit index has no knowledge of the spatial distribution of the points, so this default implementation
+     * simply measures the distance to every indexed point and keeps the k closest.
+     */
+    @Override
+    public SearchRecords searchNearest(Coordinate point, int k) {
+        SearchGeometryDistance distance = new SearchGeometryDistance(layer, layer.getGeometryFactory().createPoint(point));
+        PriorityQueue<NodeWithDistance> nearest = new PriorityQueue<>(Math.max(k, 1), (a, b) -> Double.compare(b.distance, a.distance));
+        IndexQueryStatistics.Query query = getQueryStatistics().startQuery();
+        long examined = 0;
+        if (k > 0) {
+            for (Node node : getAllIndexedNodes()) {
+                examined++;
+                double nodeDistance = distance.distance(node);
+                if (nearest.size() < k) {
+                    nearest.add(new NodeWithDistance(node, nodeDistance));
+                } else if (nodeDistance < nearest.peek().distance) {
+                    nearest.poll();
+                    nearest.add(new NodeWithDistance(node, nodeDistance));
+                }
+            }
+        }
+        List<NodeWithDistance> sorted = new ArrayList<>(nearest);
+        sorted.sort((a, b) -> Double.compare(a.distance, b.distance));
+        query.candidates(examined, sorted.size());
+        query.finish();
+        return new SearchRecords(layer, new SearchResults(sorted.stream().map(n -> n.node).collect(Collectors.toList())));
+    }
+
+    static class NodeWithDistance {
+        final Node node;
+        final double distance;
+
+        NodeWithDistance(Node node, double distance) {
+            this.node = node;
+            this.distance = distance;
+        }
+    }
+
     @Override
     public void add(Node geomNode) {
-        index.add(geomNode, indexTypeName(), getIndexValueFor(geomNode));
+        Geometry geometry = layer.getGeometryEncoder().decodeGeometry(geomNode);
+        E value = getIndexValueFor(geometry);
+        PointIndexStatistics statistics = maintainStatistics ? getStatistics(true) : null;
+        index.add(geomNode, indexTypeName(), value);
+        if (statistics != null) {
+            Point point = geometry.getCentroid();
+            statistics.added(point.getX(), point.getY());
+        }
+        onAdd(geomNode, value);
+    }
+
+    private Point pointFor(Node geomNode) {
+        // Other code is ensuring only point layers use this, but just in case we use the centroid
+        return layer.getGeometryEncoder().decodeGeometry(geomNode).getCentroid();
+    }
+
+    /**
+     * The statistics of the index, kept on a metadata node attached to the layer node. The metadata node is
+     * created on the first write, from the points already in the index, holding the write lock on the layer node so
+     * that concurrent first writes do not both create one.
+     *
+     * @return the statistics, or null if there is no metadata node and it should not be created
+     */
+    private PointIndexStatistics getStatistics(boolean create) {
+        Node layerNode = layer.getLayerNode();
+        Relationship metadataRel = layerNode.getSingleRelationship(ExplicitIndexRelationshipTypes.INDEX_METADATA, Direction.OUTGOING);
+        if (metadataRel != null) {
+            return PointIndexStatistics.forMetadataNode(graph, metadataRel.getEndNode());
+        }
+        if (!create) {
+            return null;
+        }
+        try (Transaction tx = graph.beginTx()) {
+            tx.acquireWriteLock(layerNode);
+            PointIndexStatistics statistics;
+            metadataRel = layerNode.getSingleRelationship(ExplicitIndexRelationshipTypes.INDEX_METADATA, Direction.OUTGOING);
+            if (metadataRel != null) {
+                // created by another transaction while waiting for the lock
+                statistics = PointIndexStatistics.forMetadataNode(graph, metadataRel.getEndNode());
+            } else {
+                Node metadataNode = graph.createNode();
+                layerNode.createRelationshipTo(metadataNode, ExplicitIndexRelationshipTypes.INDEX_METADATA);
+                statistics = PointIndexStatistics.createOnMetadataNode(graph, metadataNode, getHistogramExtent());
+                for (Node node : getAllIndexedNodes()) {
+                    Point point = pointFor(node);
+                    statistics.added(point.getX(), point.getY());
+                }
+            }
+            tx.success();
+            return statistics;
+        }
+    }
+
+    /**
+     * The density histogram covers the extent of the layer CRS, if it has one
+     */
+    private Envelope getHistogramExtent() {
+        CoordinateReferenceSystem crs = layer.getCoordinateReferenceSystem();
+        if (crs == null || crs.getCoordinateSystem().getDimension() < 2) {
+            return null;
+        }
+        CoordinateSystemAxis xAxis = crs.getCoordinateSystem().getAxis(0);
+        CoordinateSystemAxis yAxis = crs.getCoordinateSystem().getAxis(1);
+        if (Double.isInfinite(xAxis.getMinimumValue()) || Double.isInfinite(xAxis.getMaximumValue())
+                || Double.isInfinite(yAxis.getMinimumValue()) || Double.isInfinite(yAxis.getMaximumValue())) {
+            return null;
+        }
+        return new Envelope(xAxis.getMinimumValue(), xAxis.getMaximumValue(), yAxis.getMinimumValue(), yAxis.getMaximumValue());
+    }
+
+    protected E getIndexValueFor(Node geomNode) {
+        return getIndexValueFor(layer.getGeometryEncoder().decodeGeometry(geomNode));
+    }
+
+    /**
+     * Calculate the index value of a geometry. This is called from several threads at once when adding a large list
+     * of nodes, so it must only depend on state that is already initialized by an earlier call.
+     */
+    protected abstract E getIndexValueFor(Geometry geometry);
+
+    /**
+     * Called after the node was added to the explicit index, in the same transaction.
+     */
+    protected void onAdd(Node geomNode, E value) {
+    }
+
+    /**
+     * Called after the node was removed from the explicit index, in the same transaction.
+     */
+    protected void onRemove(long geomNodeId) {
+    }
+
+    /**
+     * Called after the explicit index was deleted, in the same transaction.
+     */
+    protected void onRemoveAll() {
+    }
+
+    /**
+     * Whether writes through this instance update the statistics on the metadata node, and removeAll deletes it. All
+     * explicit index backends of a layer share the metadata node, since they describe the same points, so the auto
+     * index turns this off while it moves the points from one of them to another.
+     */
+    void setMaintainStatistics(boolean maintainStatistics) {
+        this.maintainStatistics = maintainStatistics;
+    }
+
+    protected GraphDatabaseService getDatabase() {
+        return graph;
     }
 
-    protected abstract E getIndexValueFor(Node geomNode);
+    protected String getIndexName() {
+        return indexName;
+    }
 
+    /**
+     * Add the nodes in bulk. The geometries are decoded in the calling thread, which can see the uncommitted nodes
+     * of its transaction, but the index values of large lists are calculated in parallel. The nodes are then added
+     * to the explicit index in the order of their index values, which groups the writes to the same terms, and the
+     * statistics are only looked up once.
+     */
     @Override
     public void add(List<Node> geomNodes) {
-        for (Node node : geomNodes) {
-            add(node);
+        if (geomNodes.size() < PARALLEL_THRESHOLD) {
+            for (Node node : geomNodes) {
+                add(node);
+            }
+            return;
+        }
+        Geometry[] geometries = new Geometry[geomNodes.size()];
+        for (int i = 0; i < geometries.length; i++) {
+            geometries[i] = layer.getGeometryEncoder().decodeGeometry(geomNodes.get(i));
+        }
+        List<E> values = new ArrayList<>(geometries.length);
+        Point[] points = new Point[geometries.length];
+        // the first value is calculated in the calling thread, to initialize state that depends on the transaction
+        values.add(getIndexValueFor(geometries[0]));
+        values.addAll(IntStream.range(1, geometries.length).parallel().mapToObj(i -> getIndexValueFor(geometries[i])).collect(Collectors.toList()));
+        IntStream.range(0, geometries.length).parallel().forEach(i -> points[i] = geometries[i].getCentroid());
+
+        Integer[] order = new Integer[geometries.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(values::get));
+
+        PointIndexStatistics statistics = maintainStatistics ? getStatistics(true) : null;
+        for (int i : order) {
+            Node node = geomNodes.get(i);
+            index.add(node, indexTypeName(), values.get(i));
+            if (statistics != null) {
+                statistics.added(points[i].getX(), points[i].getY());
+            }
+            onAdd(node, values.get(i));
         }
     }
 
@@ -90,7 +299,12 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
             try {
                 Node geomNode = graph.getNodeById(geomNodeId);
                 if (geomNode != null) {
+                    if (maintainStatistics && isNodeIndexed(geomNodeId)) {
+                        Point point = pointFor(geomNode);
+                        getStatistics(true).removed(point.getX(), point.getY());
+                    }
                     index.remove(geomNode);
+                    onRemove(geomNodeId);
                     if (deleteGeomNode) {
                         geomNode.delete();
                     }
@@ -116,6 +330,14 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
                 }
             }
             index.delete();
+            Relationship metadataRel = layer.getLayerNode().getSingleRelationship(ExplicitIndexRelationshipTypes.INDEX_METADATA, Direction.OUTGOING);
+            if (metadataRel != null && maintainStatistics) {
+                Node metadataNode = metadataRel.getEndNode();
+                PointIndexStatistics.forget(graph, metadataNode);
+                metadataRel.delete();
+                metadataNode.delete();
+            }
+            onRemoveAll();
             tx.success();
         }
     }
@@ -132,22 +354,63 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
 
     @Override
     public boolean isEmpty() {
-        return true;
+        return count() == 0;
     }
 
     @Override
     public int count() {
-        return 0;
+        PointIndexStatistics statistics = getStatistics(false);
+        if (statistics == null) {
+            return (int) Iterables.count(getAllIndexedNodes());
+        }
+        return (int) statistics.count();
     }
 
+    /**
+     * The bounding box of the indexed points. Removing points does not shrink it, so it may be larger than needed.
+     */
     @Override
     public Envelope getBoundingBox() {
-        return null;
+        PointIndexStatistics statistics = getStatistics(false);
+        if (statistics == null) {
+            Envelope bbox = new Envelope();
+            for (Node node : getAllIndexedNodes()) {
+                Point point = pointFor(node);
+                bbox.expandToInclude(point.getX(), point.getY());
+            }
+            return bbox.isValid() ? bbox : null;
+        }
+        return statistics.boundingBox();
+    }
+
+    /**
+     * Estimate the number of indexed points in the envelope, from a coarse density histogram over the extent of
+     * the layer CRS, without searching the index.
+     */
+    public double estimateCount(Envelope envelope) {
+        PointIndexStatistics statistics = getStatistics(false);
+        if (statistics == null) {
+            Envelope bbox = getBoundingBox();
+            return bbox == null ? 0.0 : count() * PointIndexStatistics.overlapFraction(bbox, envelope);
+        }
+        return statistics.estimateCount(envelope);
     }
 
     @Override
     public boolean isNodeIndexed(Long nodeId) {
-        return false;
+        try {
+            Node geomNode = graph.getNodeById(nodeId);
+            try (IndexHits<Node> hits = index.get(indexTypeName(), getIndexValueFor(geomNode))) {
+                for (Node node : hits) {
+                    if (node.getId() == nodeId) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } catch (NotFoundException e) {
+            return false;
+        }
     }
 
     @Override
@@ -157,18 +420,40 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
 
     @Override
     public SearchResults searchIndex(SearchFilter filter) {
-        IndexHits<Node> indexHits = index.query(indexTypeName(), queryStringFor(filter));
-        return new SearchResults(() -> new FilteredIndexIterator(indexHits, filter));
+        IndexQueryStatistics.Query query = getQueryStatistics().startQuery();
+        Iterable<Node> candidates = candidatesFor(filter, query);
+        return new SearchResults(query.track(() -> new FilteredIndexIterator(candidates.iterator(), filter, query)));
+    }
+
+    /**
+     * The indexed nodes that might match the filter, which is then applied to each of them.
+     */
+    protected Iterable<Node> candidatesFor(SearchFilter filter, IndexQueryStatistics.Query query) {
+        return queryIndex(queryStringFor(filter), query);
+    }
+
+    /**
+     * Query the explicit index with the given Lucene query on the index values.
+     */
+    protected Iterable<Node> queryIndex(String queryString, IndexQueryStatistics.Query query) {
+        query.rangesIssued(queryString.split(" OR ").length);
+        return index.query(indexTypeName(), queryString);
+    }
+
+    public IndexQueryStatistics getQueryStatistics() {
+        return IndexQueryStatistics.forLayer(getDatabase(), layer.getLayerNode());
     }
 
     private class FilteredIndexIterator implements Iterator<Node> {
         private Iterator<Node> inner;
         private SearchFilter filter;
+        private IndexQueryStatistics.Query query;
         private Node next = null;
 
-        private FilteredIndexIterator(Iterator<Node> inner, SearchFilter filter) {
+        private FilteredIndexIterator(Iterator<Node> inner, SearchFilter filter, IndexQueryStatistics.Query query) {
             this.inner = inner;
             this.filter = filter;
+            this.query = query;
             prefetch();
         }
 
@@ -176,7 +461,9 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
             next = null;
             while (inner.hasNext()) {
                 Node node = inner.next();
-                if (filter.geometryMatches(node)) {
+                boolean matches = filter.geometryMatches(node);
+                query.candidate(matches);
+                if (matches) {
                     next = node;
                     monitor.hit();
                     break;
@@ -214,6 +501,13 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
         return this.monitor;
     }
 
+    /**
+     * Share a monitor between indexes, so that the auto index can collect the hits and misses of all its backends
+     */
+    void setMonitor(ExplicitIndexBackedMonitor monitor) {
+        this.monitor = monitor;
+    }
+
     @Override
     public void configure(Map<String, Object> config) {
 
@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.index;
+
+import org.neo4j.gis.spatial.Constants;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of the queries of the index of one layer: a latency histogram, the number of candidates examined and
+ * returned, the number of ranges or clauses sent to the underlying index and the number of index nodes visited.
+ * The statistics are shared by all index instances of the layer, since layers and their indexes are re-created on
+ * every lookup, and are registered over JMX as org.neo4j.gis.spatial:type=IndexQueryStatistics.
+ * <p>
+ * The latency of a search is the time spent in the index, which excludes the time the caller spends between
+ * consuming the results. It is only recorded once all results have been consumed, so searches that are abandoned
+ * early count towards the candidates and results but not the latency.
+ */
+public class IndexQueryStatistics implements IndexQueryStatisticsMBean {
+
+    // bucket i counts the queries that took less than 2^i microseconds, the last bucket counts the rest
+    static final int HISTOGRAM_BUCKETS = 32;
+
+    private static final Map<GraphDatabaseService, StatisticsRegistry> registries = new WeakHashMap<>();
+
+    private final String layerName;
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder candidates = new LongAdder();
+    private final LongAdder results = new LongAdder();
+    private final LongAdder ranges = new LongAdder();
+    private final LongAdder indexNodesVisited = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0L);
+    private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+    private IndexQueryStatistics(String layerName) {
+        this.layerName = layerName;
+    }
+
+    /**
+     * The statistics of the index of the layer with the given layer node, which requires a transaction the first
+     * time to read the layer name
+     */
+    public static IndexQueryStatistics forLayer(GraphDatabaseService database, Node layerNode) {
+        StatisticsRegistry registry;
+        synchronized (registries) {
+            registry = registries.get(database);
+            if (registry == null) {
+                registry = new StatisticsRegistry(database);
+                database.registerKernelEventHandler(registry);
+                registries.put(database, registry);
+            }
+        }
+        return registry.forLayer(layerNode);
+    }
+
+    /**
+     * Drop the statistics of a deleted layer and unregister them from JMX, so that they are not handed to a layer
+     * that is later created with the same node id
+     */
+    public static void removeLayer(GraphDatabaseService database, long layerNodeId) {
+        StatisticsRegistry registry;
+        synchronized (registries) {
+            registry = registries.get(database);
+        }
+        if (registry != null) {
+            registry.removeLayer(layerNodeId);
+        }
+    }
+
+    public Query startQuery() {
+        return new Query();
+    }
+
+    @Override
+    public String getLayerName() {
+        return layerName;
+    }
+
+    @Override
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    @Override
+    public long getCandidates() {
+        return candidates.sum();
+    }
+
+    @Override
+    public long getResults() {
+        return results.sum();
+    }
+
+    /**
+     * The fraction of the candidates examined that did not match the search
+     */
+    @Override
+    public double getFalsePositiveRatio() {
+        long examined = candidates.sum();
+        return examined == 0 ? 0.0 : 1.0 - (double) results.sum() / examined;
+    }
+
+    @Override
+    public long getRanges() {
+        return ranges.sum();
+    }
+
+    @Override
+    public long getIndexNodesVisited() {
+        return indexNodesVisited.sum();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        long count = queries.sum();
+        return count == 0 ? 0.0 : totalNanos.sum() / 1e6 / count;
+    }
+
+    /**
+     * The latency below which the given fraction of the queries completed, which is the upper bound of the
+     * histogram bucket holding that query
+     */
+    @Override
+    public double getLatencyMillis(double percentile) {
+        long[] counts = getLatencyHistogram();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0.0;
+        }
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length - 1; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min((1L << bucket) / 1000.0, getMaxLatencyMillis());
+            }
+        }
+        return getMaxLatencyMillis();
+    }
+
+    @Override
+    public double getP50LatencyMillis() {
+        return getLatencyMillis(0.5);
+    }
+
+    @Override
+    public double getP99LatencyMillis() {
+        return getLatencyMillis(0.99);
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+        long[] counts = new long[HISTOGRAM_BUCKETS];
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            counts[bucket] = histogram.get(bucket);
+        }
+        return counts;
+    }
+
+    @Override
+    public void reset() {
+        queries.reset();
+        candidates.reset();
+        results.reset();
+        ranges.reset();
+        indexNodesVisited.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+        for (int bucket = 0; bucket < HISTOGRAM_BUCKETS; bucket++) {
+            histogram.set(bucket, 0);
+        }
+    }
+
+    private void record(long nanos) {
+        queries.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        histogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+    }
+
+    /**
+     * The statistics of one search while it runs. Parallel searches report to it from several threads.
+     */
+    public class Query {
+        private final long start = System.nanoTime();
+        private final LongAdder elapsed = new LongAdder();
+
+        private Query() {
+        }
+
+        public void candidate(boolean matched) {
+            candidates.increment();
+            if (matched) {
+                results.increment();
+            }
+        }
+
+        public void candidates(long examined, long matched) {
+            candidates.add(examined);
+            results.add(matched);
+        }
+
+        public void rangesIssued(int count) {
+            ranges.add(count);
+        }
+
+        public void indexNodeVisited() {
+            indexNodesVisited.increment();
+        }
+
+        /**
+         * Record a search that has already completed
+         */
+        public void finish() {
+            record(System.nanoTime() - start);
+        }
+
+        /**
+         * Measure the time spent iterating over the results, on top of the time spent preparing the search, and
+         * record the search once all results have been consumed
+         */
+        public Iterable<Node> track(Iterable<Node> results) {
+            elapsed.add(System.nanoTime() - start);
+            return () -> new TrackingIterator(results.iterator());
+        }
+
+        private class TrackingIterator implements Iterator<Node> {
+            private final Iterator<Node> inner;
+            private boolean recorded = false;
+
+            private TrackingIterator(Iterator<Node> inner) {
+                this.inner = inner;
+            }
+
+            @Override
+            public boolean hasNext() {
+                long begin = System.nanoTime();
+                boolean hasNext = inner.hasNext();
+                elapsed.add(System.nanoTime() - begin);
+                if (!hasNext) {
+                    finished();
+                }
+                return hasNext;
+            }
+
+            @Override
+            public Node next() {
+                long begin = System.nanoTime();
+                Node node;
+                try {
+                    node = inner.next();
+                } catch (NoSuchElementException e) {
+                    // GeoPipes iterates until next() fails instead of calling hasNext()
+                    elapsed.add(System.nanoTime() - begin);
+                    finished();
+                    throw e;
+                }
+                elapsed.add(System.nanoTime() - begin);
+                return node;
+            }
+
+            private void finished() {
+                if (!recorded) {
+                    recorded = true;
+                    record(elapsed.sumThenReset());
+                }
+            }
+        }
+    }
+
+    /**
+     * The statistics of the layers of one database, which are unregistered from JMX when it shuts down
+     */
+    private static class StatisticsRegistry implements KernelEventHandler {
+        private final String databaseId;
+        private final Map<Long, IndexQueryStatistics> layers = new HashMap<>();
+
+        private StatisticsRegistry(GraphDatabaseService database) {
+            this.databaseId = Integer.toHexString(System.identityHashCode(database));
+        }
+
+        private synchronized IndexQueryStatistics forLayer(Node layerNode) {
+            IndexQueryStatistics statistics = layers.get(layerNode.getId());
+            if (statistics == null) {
+                statistics = new IndexQueryStatistics((String) layerNode.getProperty(Constants.PROP_LAYER, String.valueOf(layerNode.getId())));
+                layers.put(layerNode.getId(), statistics);
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, objectName(layerNode.getId()));
+                } catch (JMException e) {
+                    // the statistics are still available from the spatial.indexStats procedure
+                }
+            }
+            return statistics;
+        }
+
+        private synchronized void removeLayer(long layerNodeId) {
+            if (layers.remove(layerNodeId) != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(layerNodeId));
+                } catch (JMException e) {
+                    // never registered
+                }
+            }
+        }
+
+        private ObjectName objectName(long layerNodeId) throws JMException {
+            return new ObjectName("org.neo4j.gis.spatial:type=IndexQueryStatistics,database=" + databaseId + ",layer=" + layerNodeId);
+        }
+
+        @Override
+        public synchronized void beforeShutdown() {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (Long layerNodeId : layers.keySet()) {
+                try {
+                    server.unregisterMBean(objectName(layerNodeId));
+                } catch (JMException e) {
+                    // never registered
+                }
+            }
+            layers.clear();
+        }
+
+        @Override
+        public void kernelPanic(ErrorState error) {
+        }
+
+        @Override
+        public Object getResource() {
+            return null;
+        }
+
+        @Override
+        public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+            return ExecutionOrder.DOESNT_MATTER;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.index;
+
+/**
+ * The query statistics of the index of one layer, as exposed over JMX
+ */
+public interface IndexQueryStatisticsMBean {
+
+    String getLayerName();
+
+    long getQueries();
+
+    long getCandidates();
+
+    long getResults();
+
+    double getFalsePositiveRatio();
+
+    long getRanges();
+
+    long getIndexNodesVisited();
+
+    double getMeanLatencyMillis();
+
+    double getLatencyMillis(double percentile);
+
+    double getP50LatencyMillis();
+
+    double getP99LatencyMillis();
+
+    double getMaxLatencyMillis();
+
+    long[] getLatencyHistogram();
+
+    void reset();
+}
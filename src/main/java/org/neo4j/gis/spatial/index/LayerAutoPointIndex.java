@@ -0,0 +1,648 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.index;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import org.geotools.util.logging.Logging;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.neo4j.gis.spatial.Constants;
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SpatialDatabaseException;
+import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.gis.spatial.encoders.Configurable;
+import org.neo4j.gis.spatial.filter.SearchRecords;
+import org.neo4j.gis.spatial.rtree.Envelope;
+import org.neo4j.gis.spatial.rtree.EnvelopeDecoder;
+import org.neo4j.gis.spatial.rtree.Listener;
+import org.neo4j.gis.spatial.rtree.NullListener;
+import org.neo4j.gis.spatial.rtree.TreeMonitor;
+import org.neo4j.gis.spatial.rtree.filter.AbstractSearchEnvelopeIntersection;
+import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
+import org.neo4j.gis.spatial.rtree.filter.SearchResults;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A point index that chooses its own backend from the workload of the layer. It delegates to one of the rtree,
+ * geohash, zorder or hilbert indexes, and records the shape of the queries, the number of writes and the hits and
+ * misses of the explicit index backends. Every evaluationInterval operations the workload is compared with the
+ * strengths of the backends:
+ * <ul>
+ * <li>k-nearest-neighbour searches favour the rtree, whose best-first search only reads the index nodes and points
+ * closest to the query point, while geohash measures every point, and the curves look up growing squares of curve
+ * ranges in the explicit index, reading every point in each square</li>
+ * <li>many more writes than queries favour the hilbert curve, which writes one index term per point</li>
+ * <li>window searches with many misses favour the hilbert curve over geohash and z-order, and small windows with
+ * many misses on the hilbert curve favour the rtree</li>
+ * </ul>
+ * When the workload favours a different backend, the index is rebuilt into it by a background thread, in batches
+ * while the old backend stays in use. A rebuild that fails is logged, and the workload has to grow twice as large for
+ * every failure in a row before the next one is tried.
+ * <p>
+ * The workload is kept in memory, shared by all instances of the index for the same layer, and starts again after
+ * every rebuild and every restart.
+ */
+public class LayerAutoPointIndex implements LayerIndexReader, SpatialIndexWriter, Configurable {
+
+    /**
+     * The backend currently in use, one of the index names of SpatialDatabaseService.resolveIndexClass
+     */
+    public static final String KEY_BACKEND = "backend";
+    /**
+     * The number of queries and writes between evaluations of the workload
+     */
+    public static final String KEY_EVALUATION_INTERVAL = "evaluationInterval";
+
+    static final String RTREE = SpatialDatabaseService.RTREE_INDEX_NAME;
+    static final String GEOHASH = SpatialDatabaseService.GEOHASH_INDEX_NAME;
+    static final String ZORDER = "zorder";
+    static final String HILBERT = "hilbert";
+
+    static final int REBUILD_BATCH_SIZE = 10000;
+    private static final int MAX_BACKOFF = 6;
+    private static final Logger LOGGER = Logging.getLogger("org.neo4j.gis.spatial");
+
+    private static final Map<GraphDatabaseService, Map<Long, Workload>> workloads = new WeakHashMap<>();
+    private static ExecutorService executor;
+
+    private Layer layer;
+    private String backendName = RTREE;
+    private long evaluationInterval = 10000;
+    // the configuration of each backend, by backend name, which is only passed to that backend
+    private Map<String, Map<String, Object>> backendConfigs = new HashMap<>();
+    private String appliedConfig;
+    private LayerIndexReader backend;
+
+    @Override
+    public void init(Layer layer) {
+        this.layer = layer;
+        this.appliedConfig = (String) layer.getLayerNode().getProperty(Constants.PROP_INDEX_CONFIG, null);
+        this.backend = null;
+    }
+
+    @Override
+    public Layer getLayer() {
+        return layer;
+    }
+
+    /**
+     * The current backend, which is re-created when a rebuild has changed the configuration on the layer node
+     */
+    LayerIndexReader getBackend() {
+        String config = (String) layer.getLayerNode().getProperty(Constants.PROP_INDEX_CONFIG, null);
+        if (config != null && !config.equals(appliedConfig)) {
+            appliedConfig = config;
+            setConfiguration(config);
+        }
+        if (backend == null) {
+            backend = makeBackend(backendName);
+        }
+        return backend;
+    }
+
+    private LayerIndexReader makeBackend(String name) {
+        Class<? extends LayerIndexReader> backendClass = layer.getSpatialDatabase().resolveIndexClass(name);
+        if (backendClass == LayerAutoPointIndex.class) {
+            throw new IllegalArgumentException("The auto index cannot use itself as backend");
+        }
+        LayerIndexReader index;
+        try {
+            index = backendClass.newInstance();
+        } catch (Exception e) {
+            throw new SpatialDatabaseException(e);
+        }
+        index.init(layer);
+        Map<String, Object> config = backendConfigs.get(name);
+        if (config != null && !config.isEmpty()) {
+            index.configure(config);
+        }
+        if (index instanceof ExplicitIndexBackedPointIndex) {
+            ((ExplicitIndexBackedPointIndex<?>) index).setMonitor(getWorkload().monitor);
+        }
+        return index;
+    }
+
+    private SpatialIndexWriter getWriter() {
+        return (SpatialIndexWriter) getBackend();
+    }
+
+    public String getBackendName() {
+        getBackend();
+        return backendName;
+    }
+
+    Workload getWorkload() {
+        GraphDatabaseService database = layer.getSpatialDatabase().getDatabase();
+        synchronized (workloads) {
+            return workloads.computeIfAbsent(database, db -> new HashMap<>())
+                    .computeIfAbsent(layer.getLayerNode().getId(), id -> new Workload());
+        }
+    }
+
+    @Override
+    public SearchRecords search(SearchFilter filter) {
+        recordSearch(filter);
+        return getBackend().search(filter);
+    }
+
+    @Override
+    public SearchResults searchIndex(SearchFilter filter) {
+        recordSearch(filter);
+        return getBackend().searchIndex(filter);
+    }
+
+    @Override
+    public SearchRecords searchNearest(Coordinate point, int k) {
+        Workload workload = getWorkload();
+        workload.nearestQueries.increment();
+        workload.operations.increment();
+        SearchRecords results = getBackend().searchNearest(point, k);
+        evaluate(workload);
+        return results;
+    }
+
+    private void recordSearch(SearchFilter filter) {
+        Workload workload = getWorkload();
+        if (filter instanceof AbstractSearchEnvelopeIntersection) {
+            workload.windowQueries.increment();
+            Envelope window = ((AbstractSearchEnvelopeIntersection) filter).getReferenceEnvelope();
+            // the area of the bounding box is only looked up once per evaluation interval
+            double area = workload.boundingBoxArea;
+            if (Double.isNaN(area)) {
+                Envelope bbox = getBackend().getBoundingBox();
+                area = bbox == null ? 0.0 : bbox.getArea();
+                workload.boundingBoxArea = area;
+            }
+            if (area > 0) {
+                workload.windowFractions.add(Math.min(1.0, window.getArea() / area));
+            }
+        } else {
+            workload.otherQueries.increment();
+        }
+        workload.operations.increment();
+        evaluate(workload);
+    }
+
+    @Override
+    public void add(Node geomNode) {
+        try (Transaction tx = layer.getSpatialDatabase().getDatabase().beginTx()) {
+            tx.acquireWriteLock(layer.getLayerNode());
+            getWriter().add(geomNode);
+            recordRebuildWrite(geomNode.getId());
+            tx.success();
+        }
+        recordWrites(1);
+    }
+
+    @Override
+    public void add(List<Node> geomNodes) {
+        try (Transaction tx = layer.getSpatialDatabase().getDatabase().beginTx()) {
+            tx.acquireWriteLock(layer.getLayerNode());
+            getWriter().add(geomNodes);
+            for (Node geomNode : geomNodes) {
+                recordRebuildWrite(geomNode.getId());
+            }
+            tx.success();
+        }
+        recordWrites(geomNodes.size());
+    }
+
+    @Override
+    public void remove(long geomNodeId, boolean deleteGeomNode, boolean throwExceptionIfNotFound) {
+        try (Transaction tx = layer.getSpatialDatabase().getDatabase().beginTx()) {
+            tx.acquireWriteLock(layer.getLayerNode());
+            getWriter().remove(geomNodeId, deleteGeomNode, throwExceptionIfNotFound);
+            recordRebuildWrite(geomNodeId);
+            tx.success();
+        }
+        recordWrites(1);
+    }
+
+    /**
+     * Remember the node for the rebuild in progress, if any, which moves it again when it switches backends
+     */
+    private void recordRebuildWrite(long geomNodeId) {
+        Set<Long> rebuildWrites = getWorkload().rebuildWrites;
+        if (rebuildWrites != null) {
+            rebuildWrites.add(geomNodeId);
+        }
+    }
+
+    private void recordWrites(int count) {
+        Workload workload = getWorkload();
+        workload.writes.add(count);
+        workload.operations.add(count);
+        evaluate(workload);
+    }
+
+    @Override
+    public void removeAll(boolean deleteGeomNodes, Listener monitor) {
+        try (Transaction tx = layer.getSpatialDatabase().getDatabase().beginTx()) {
+            tx.acquireWriteLock(layer.getLayerNode());
+            getWriter().removeAll(deleteGeomNodes, monitor);
+            getWorkload().rebuildCleared = true;
+            tx.success();
+        }
+    }
+
+    @Override
+    public void clear(Listener monitor) {
+        try (Transaction tx = layer.getSpatialDatabase().getDatabase().beginTx()) {
+            tx.acquireWriteLock(layer.getLayerNode());
+            getWriter().clear(monitor);
+            getWorkload().rebuildCleared = true;
+            tx.success();
+        }
+    }
+
+    /**
+     * Once enough operations have been recorded, compare the workload with the current backend, and schedule a
+     * rebuild if it favours a different one.
+     */
+    private void evaluate(Workload workload) {
+        long interval = evaluationInterval << Math.min(workload.failures.get(), MAX_BACKOFF);
+        if (workload.operations.sum() < interval || workload.rebuilding.get()) {
+            return;
+        }
+        String current = getBackendName();
+        String recommended = workload.recommend(current);
+        if (recommended.equals(current)) {
+            workload.reset();
+        } else if (workload.rebuilding.compareAndSet(false, true)) {
+            GraphDatabaseService database = layer.getSpatialDatabase().getDatabase();
+            String layerName = layer.getName();
+            getExecutor().execute(() -> {
+                try {
+                    LayerAutoPointIndex index = null;
+                    try (Transaction tx = database.beginTx()) {
+                        Layer rebuildLayer = new SpatialDatabaseService(database).getLayer(layerName);
+                        if (rebuildLayer != null && rebuildLayer.getIndex() instanceof LayerAutoPointIndex) {
+                            index = (LayerAutoPointIndex) rebuildLayer.getIndex();
+                        }
+                        tx.success();
+                    }
+                    if (index != null) {
+                        index.rebuild(recommended);
+                    }
+                    workload.failures.set(0);
+                } catch (RuntimeException e) {
+                    int failures = workload.failures.incrementAndGet();
+                    LOGGER.log(Level.WARNING, "Failed to rebuild the index of layer '" + layerName + "' into " + recommended
+                            + ", waiting for " + (1 << Math.min(failures, MAX_BACKOFF)) + " evaluation intervals before trying again", e);
+                } finally {
+                    workload.reset();
+                    workload.rebuilding.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Move all indexed nodes into a new backend and make it the current one. The rebuild runs its own transactions,
+     * so it must not be called inside one:
+     * <ul>
+     * <li>the ids of the indexed nodes are read holding the write lock on the layer node, which every write to this
+     * index takes up front too, so that writes that started before the rebuild are included (two transactions that
+     * held a read lock and then wrote the layer node would deadlock upgrading it)</li>
+     * <li>the nodes are added to the new backend in batches of REBUILD_BATCH_SIZE, while the old backend stays in use
+     * and the nodes written in the meantime are recorded in the workload</li>
+     * <li>holding the write lock again, the recorded nodes are moved again and the new backend is stored in the layer
+     * configuration, so other instances of the index switch to it when this commits</li>
+     * <li>the old backend is removed</li>
+     * </ul>
+     * If the rebuild fails before the switch, the partly built new backend is removed and the old one stays in use.
+     */
+    public void rebuild(String newBackendName) {
+        GraphDatabaseService database = layer.getSpatialDatabase().getDatabase();
+        Workload workload = getWorkload();
+        LayerIndexReader oldBackend;
+        LayerIndexReader newBackend;
+        try (Transaction tx = database.beginTx()) {
+            if (newBackendName.equals(getBackendName())) {
+                tx.success();
+                return;
+            }
+            oldBackend = getBackend();
+            newBackend = makeRebuildBackend(newBackendName);
+            tx.success();
+        }
+        String config;
+        try {
+            if (hasIndexedNodes(newBackend)) {
+                // left behind by a rebuild that was interrupted
+                removeBackend(newBackend);
+                try (Transaction tx = database.beginTx()) {
+                    newBackend = makeRebuildBackend(newBackendName);
+                    tx.success();
+                }
+            }
+            workload.rebuildCleared = false;
+            workload.rebuildWrites = ConcurrentHashMap.newKeySet();
+            long[] nodeIds = readIndexedNodeIds(oldBackend);
+            SpatialIndexWriter newWriter = (SpatialIndexWriter) newBackend;
+            for (int start = 0; start < nodeIds.length; start += REBUILD_BATCH_SIZE) {
+                try (Transaction tx = database.beginTx()) {
+                    List<Node> batch = new ArrayList<>(REBUILD_BATCH_SIZE);
+                    for (int i = start; i < Math.min(start + REBUILD_BATCH_SIZE, nodeIds.length); i++) {
+                        try {
+                            batch.add(database.getNodeById(nodeIds[i]));
+                        } catch (NotFoundException e) {
+                            // deleted since, which was recorded if it was removed from this index
+                        }
+                    }
+                    newWriter.add(batch);
+                    tx.success();
+                }
+            }
+            try (Transaction tx = database.beginTx()) {
+                tx.acquireWriteLock(layer.getLayerNode());
+                if (workload.rebuildCleared) {
+                    throw new IllegalStateException("The index of layer '" + layer.getName() + "' was cleared during the rebuild");
+                }
+                for (long nodeId : workload.rebuildWrites) {
+                    if (newBackend.isNodeIndexed(nodeId)) {
+                        newWriter.remove(nodeId, false, false);
+                    }
+                    if (oldBackend.isNodeIndexed(nodeId)) {
+                        newWriter.add(database.getNodeById(nodeId));
+                    }
+                }
+                config = getConfiguration(newBackendName);
+                layer.getLayerNode().setProperty(Constants.PROP_INDEX_CONFIG, config);
+                tx.success();
+            }
+        } catch (RuntimeException e) {
+            try {
+                removeBackend(newBackend);
+            } catch (RuntimeException removeFailure) {
+                e.addSuppressed(removeFailure);
+            }
+            throw e;
+        } finally {
+            workload.rebuildWrites = null;
+        }
+        String oldBackendName = backendName;
+        backendName = newBackendName;
+        backend = null;
+        appliedConfig = config;
+        if (oldBackend instanceof ExplicitIndexBackedPointIndex && newBackend instanceof ExplicitIndexBackedPointIndex) {
+            // the statistics on the shared metadata node still describe the points, now in the new backend
+            ((ExplicitIndexBackedPointIndex<?>) oldBackend).setMaintainStatistics(false);
+        }
+        try {
+            removeBackend(oldBackend);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to remove the old " + oldBackendName + " index of layer '" + layer.getName() + "'", e);
+        }
+    }
+
+    /**
+     * A backend to move the nodes into, which leaves the statistics shared by the explicit index backends alone
+     */
+    private LayerIndexReader makeRebuildBackend(String name) {
+        LayerIndexReader index = makeBackend(name);
+        if (index instanceof ExplicitIndexBackedPointIndex) {
+            ((ExplicitIndexBackedPointIndex<?>) index).setMaintainStatistics(false);
+        }
+        return index;
+    }
+
+    private boolean hasIndexedNodes(LayerIndexReader index) {
+        try (Transaction tx = layer.getSpatialDatabase().getDatabase().beginTx()) {
+            boolean hasIndexedNodes = index.getAllIndexedNodes().iterator().hasNext();
+            tx.success();
+            return hasIndexedNodes;
+        }
+    }
+
+    private long[] readIndexedNodeIds(LayerIndexReader index) {
+        long[] nodeIds = new long[1024];
+        int count = 0;
+        try (Transaction tx = layer.getSpatialDatabase().getDatabase().beginTx()) {
+            tx.acquireWriteLock(layer.getLayerNode());
+            for (Node node : index.getAllIndexedNodes()) {
+                if (count == nodeIds.length) {
+                    nodeIds = Arrays.copyOf(nodeIds, count * 2);
+                }
+                nodeIds[count++] = node.getId();
+            }
+            tx.success();
+        }
+        return Arrays.copyOf(nodeIds, count);
+    }
+
+    private void removeBackend(LayerIndexReader index) {
+        try (Transaction tx = layer.getSpatialDatabase().getDatabase().beginTx()) {
+            ((SpatialIndexWriter) index).removeAll(false, new NullListener());
+            tx.success();
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "LayerAutoPointIndex-rebuild");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    @Override
+    public EnvelopeDecoder getEnvelopeDecoder() {
+        return getBackend().getEnvelopeDecoder();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return getBackend().isEmpty();
+    }
+
+    @Override
+    public int count() {
+        return getBackend().count();
+    }
+
+    @Override
+    public Envelope getBoundingBox() {
+        return getBackend().getBoundingBox();
+    }
+
+    @Override
+    public boolean isNodeIndexed(Long nodeId) {
+        return getBackend().isNodeIndexed(nodeId);
+    }
+
+    @Override
+    public Iterable<Node> getAllIndexedNodes() {
+        return getBackend().getAllIndexedNodes();
+    }
+
+    @Override
+    public void addMonitor(TreeMonitor monitor) {
+        getBackend().addMonitor(monitor);
+    }
+
+    @Override
+    public void setConfiguration(String jsonConfig) {
+        JSONObject jsonObject = (JSONObject) JSONValue.parse(jsonConfig);
+        HashMap<String, Object> config = new HashMap<>();
+        for (Object key : jsonObject.keySet()) {
+            config.put(key.toString(), jsonObject.get(key));
+        }
+        configure(config);
+    }
+
+    @Override
+    public String getConfiguration() {
+        return getConfiguration(backendName);
+    }
+
+    private String getConfiguration(String backendName) {
+        HashMap<String, Object> config = new HashMap<>(backendConfigs);
+        config.put(KEY_BACKEND, backendName);
+        config.put(KEY_EVALUATION_INTERVAL, evaluationInterval);
+        return JSONObject.toJSONString(config);
+    }
+
+    /**
+     * Configure the auto index. Any other key names a backend, and its value is the configuration of that backend
+     * only, for example {"rtree":{"split":"rstar"},"hilbert":{"maxRanges":100}}, since the backends reject the keys
+     * of each other.
+     */
+    @Override
+    public void configure(Map<String, Object> config) {
+        Map<String, Object> currentChanges = null;
+        for (String key : config.keySet()) {
+            switch (key) {
+                case KEY_BACKEND:
+                    String name = config.get(key).toString().toLowerCase();
+                    if (!name.equals(backendName)) {
+                        backendName = name;
+                        backend = null;
+                    }
+                    break;
+                case KEY_EVALUATION_INTERVAL:
+                    this.evaluationInterval = Long.parseLong(config.get(key).toString());
+                    break;
+                default:
+                    Object value = config.get(key);
+                    if (!(value instanceof Map)) {
+                        throw new IllegalArgumentException("LayerAutoPointIndex expects the configuration of the '"
+                                + key + "' backend as an object, not: " + value);
+                    }
+                    String backendKey = key.toLowerCase();
+                    Map<String, Object> changes = new HashMap<>();
+                    for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                        changes.put(entry.getKey().toString(), entry.getValue());
+                    }
+                    backendConfigs.computeIfAbsent(backendKey, k -> new HashMap<>()).putAll(changes);
+                    if (backendKey.equals(backendName)) {
+                        currentChanges = changes;
+                    }
+            }
+        }
+        if (currentChanges != null && backend != null) {
+            backend.configure(currentChanges);
+        }
+    }
+
+    /**
+     * The workload of one layer since the last evaluation
+     */
+    static class Workload {
+        final LongAdder operations = new LongAdder();
+        final LongAdder windowQueries = new LongAdder();
+        final LongAdder nearestQueries = new LongAdder();
+        final LongAdder otherQueries = new LongAdder();
+        final LongAdder writes = new LongAdder();
+        final DoubleAdder windowFractions = new DoubleAdder();
+        final ExplicitIndexBackedMonitor monitor = new ExplicitIndexBackedMonitor();
+        final AtomicBoolean rebuilding = new AtomicBoolean();
+        // the number of rebuilds in a row that failed
+        final AtomicInteger failures = new AtomicInteger();
+        // the nodes written while a rebuild copies the nodes, or null if there is no rebuild
+        volatile Set<Long> rebuildWrites;
+        volatile boolean rebuildCleared;
+        volatile double boundingBoxArea = Double.NaN;
+
+        /**
+         * The backend favoured by the workload, given the current backend. The current backend is kept unless the
+         * workload clearly favours another, so that the index does not flip between backends.
+         */
+        String recommend(String current) {
+            long windows = windowQueries.sum();
+            long nearest = nearestQueries.sum();
+            long queries = windows + nearest + otherQueries.sum();
+            long writeCount = writes.sum();
+            double meanWindowFraction = windows == 0 ? 0.0 : windowFractions.sum() / windows;
+            long checked = monitor.getHits() + monitor.getMisses();
+            double missRatio = checked == 0 ? 0.0 : (double) monitor.getMisses() / checked;
+
+            if (nearest * 4 >= queries && queries > 0) {
+                return RTREE;
+            }
+            if (writeCount >= queries * 10) {
+                return current.equals(RTREE) ? HILBERT : current;
+            }
+            if (windows * 2 >= queries && missRatio >= 0.5) {
+                if (current.equals(GEOHASH) || current.equals(ZORDER)) {
+                    return HILBERT;
+                }
+                if (current.equals(HILBERT) && meanWindowFraction < 0.01 && writeCount <= queries) {
+                    return RTREE;
+                }
+            }
+            return current;
+        }
+
+        void reset() {
+            operations.reset();
+            windowQueries.reset();
+            nearestQueries.reset();
+            otherQueries.reset();
+            writes.reset();
+            windowFractions.reset();
+            monitor.reset();
+            boundingBoxArea = Double.NaN;
+        }
+    }
+}
@@ -22,12 +22,29 @@ package org.neo4j.gis.spatial.index;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Point;
 import org.apache.lucene.spatial.util.GeoHashUtils;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.neo4j.gis.spatial.encoders.Configurable;
 import org.neo4j.gis.spatial.rtree.Envelope;
 import org.neo4j.gis.spatial.rtree.filter.AbstractSearchEnvelopeIntersection;
 import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
-import org.neo4j.graphdb.Node;
 
-public class LayerGeohashPointIndex extends ExplicitIndexBackedPointIndex<String> {
+import java.util.HashMap;
+import java.util.Map;
+
+public class LayerGeohashPointIndex extends ExplicitIndexBackedPointIndex<String> implements Configurable {
+
+    /**
+     * The most geohash cells searched for a bounding box. Larger numbers of cells at a finer precision find fewer
+     * points outside the bounding box, at the cost of a larger query.
+     */
+    public static final String KEY_MAX_CELLS = "maxCells";
+
+    // the length of the geohashes that are indexed
+    private static final int MAX_PRECISION = 12;
+    private static final char[] BASE_32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private int maxCells = 32;
 
     @Override
     protected String indexTypeName() {
@@ -35,31 +52,117 @@ public class LayerGeohashPointIndex extends ExplicitIndexBackedPointIndex<String
     }
 
     @Override
-    protected String getIndexValueFor(Node geomNode) {
+    protected String getIndexValueFor(Geometry geom) {
         //TODO: Make this code projection aware - currently it assumes lat/lon
-        Geometry geom = layer.getGeometryEncoder().decodeGeometry(geomNode);
         Point point = geom.getCentroid();   // Other code is ensuring only point layers use this, but just in case we encode the centroid
         return GeoHashUtils.stringEncode(point.getX(), point.getY());
     }
 
-    private String greatestCommonPrefix(String a, String b) {
-        int minLength = Math.min(a.length(), b.length());
-        for (int i = 0; i < minLength; i++) {
-            if (a.charAt(i) != b.charAt(i)) {
-                return a.substring(0, i);
+    /**
+     * Cover the envelope with the geohash cells of the finest precision that needs at most this many cells, and
+     * query the prefixes of those cells.
+     */
+    private String queryStringFor(Envelope envelope) {
+        int precision = 0;
+        while (precision < MAX_PRECISION && countCells(envelope, precision + 1) <= maxCells) {
+            precision++;
+        }
+        if (precision == 0) {
+            return indexTypeName() + ":*";
+        }
+        int lonBits = (5 * precision + 1) / 2;
+        int latBits = 5 * precision / 2;
+        int minLon = cellIndex(envelope.getMinX(), -180.0, 360.0, lonBits);
+        int maxLon = cellIndex(envelope.getMaxX(), -180.0, 360.0, lonBits);
+        int minLat = cellIndex(envelope.getMinY(), -90.0, 180.0, latBits);
+        int maxLat = cellIndex(envelope.getMaxY(), -90.0, 180.0, latBits);
+        StringBuilder sb = new StringBuilder();
+        for (int lon = minLon; lon <= maxLon; lon++) {
+            for (int lat = minLat; lat <= maxLat; lat++) {
+                if (sb.length() > 0) {
+                    sb.append(" OR ");
+                }
+                sb.append(indexTypeName()).append(":").append(geohash(lon, lat, precision)).append("*");
             }
         }
-        return a.substring(0, minLength);
+        return sb.toString();
+    }
+
+    private static long countCells(Envelope envelope, int precision) {
+        int lonBits = (5 * precision + 1) / 2;
+        int latBits = 5 * precision / 2;
+        long lonCells = cellIndex(envelope.getMaxX(), -180.0, 360.0, lonBits) - cellIndex(envelope.getMinX(), -180.0, 360.0, lonBits) + 1;
+        long latCells = cellIndex(envelope.getMaxY(), -90.0, 180.0, latBits) - cellIndex(envelope.getMinY(), -90.0, 180.0, latBits) + 1;
+        return lonCells * latCells;
+    }
+
+    private static int cellIndex(double value, double min, double width, int bits) {
+        int cells = 1 << bits;
+        int index = (int) Math.floor((value - min) / width * cells);
+        return Math.max(0, Math.min(cells - 1, index));
+    }
+
+    /**
+     * The geohash of a cell, interleaving the bits of its longitude and latitude index, starting with longitude
+     */
+    private static String geohash(int lon, int lat, int precision) {
+        int lonBits = (5 * precision + 1) / 2;
+        int latBits = 5 * precision / 2;
+        char[] hash = new char[precision];
+        int value = 0;
+        for (int bit = 0; bit < 5 * precision; bit++) {
+            if (bit % 2 == 0) {
+                value = value << 1 | (lon >> --lonBits & 1);
+            } else {
+                value = value << 1 | (lat >> --latBits & 1);
+            }
+            if (bit % 5 == 4) {
+                hash[bit / 5] = BASE_32[value];
+                value = 0;
+            }
+        }
+        return new String(hash);
     }
 
     protected String queryStringFor(SearchFilter filter) {
         if (filter instanceof AbstractSearchEnvelopeIntersection) {
             Envelope referenceEnvelope = ((AbstractSearchEnvelopeIntersection) filter).getReferenceEnvelope();
-            String maxHash = GeoHashUtils.stringEncode(referenceEnvelope.getMaxX(), referenceEnvelope.getMaxY());
-            String minHash = GeoHashUtils.stringEncode(referenceEnvelope.getMinX(), referenceEnvelope.getMinY());
-            return greatestCommonPrefix(minHash, maxHash) + "*";
+            return queryStringFor(referenceEnvelope);
         } else {
             throw new UnsupportedOperationException("Geohash Index only supports searches based on AbstractSearchEnvelopeIntersection, not " + filter.getClass().getCanonicalName());
         }
     }
+
+    @Override
+    public void setConfiguration(String jsonConfig) {
+        JSONObject jsonObject = (JSONObject) JSONValue.parse(jsonConfig);
+        HashMap<String, Object> config = new HashMap<>();
+        for (Object key : jsonObject.keySet()) {
+            config.put(key.toString(), jsonObject.get(key));
+        }
+        configure(config);
+    }
+
+    @Override
+    public String getConfiguration() {
+        HashMap<String, Object> config = new HashMap<>();
+        config.put(KEY_MAX_CELLS, maxCells);
+        return JSONObject.toJSONString(config);
+    }
+
+    @Override
+    public void configure(Map<String, Object> config) {
+        for (String key : config.keySet()) {
+            switch (key) {
+                case KEY_MAX_CELLS:
+                    this.maxCells = Integer.parseInt(config.get(key).toString());
+                    if (maxCells < 1) {
+                        throw new IllegalArgumentException("Geohash index needs at least one cell per search, not " + maxCells);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("No such " + getClass().getSimpleName() + " configuration key: " + key);
+            }
+        }
+    }
 }
@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial.index;
 
 import org.neo4j.gis.spatial.index.curves.HilbertSpaceFillingCurve2D;
+import org.neo4j.gis.spatial.index.curves.HilbertSpaceFillingCurve3D;
 import org.neo4j.gis.spatial.index.curves.SpaceFillingCurve;
 import org.neo4j.gis.spatial.rtree.Envelope;
 
@@ -31,6 +32,13 @@ public class LayerHilbertPointIndex extends LayerSpaceFillingCurvePointIndex {
     }
 
     protected SpaceFillingCurve makeCurve(Envelope envelope, int maxLevels) {
+        int maxLevel = envelope.getDimension() == 3 ? HilbertSpaceFillingCurve3D.MAX_LEVEL : HilbertSpaceFillingCurve2D.MAX_LEVEL;
+        if (maxLevels > maxLevel) {
+            throw new IllegalArgumentException(envelope.getDimension() + "D Hilbert index supports at most " + maxLevel + " levels, not " + maxLevels);
+        }
+        if (envelope.getDimension() == 3) {
+            return new HilbertSpaceFillingCurve3D(envelope, maxLevels);
+        }
         return new HilbertSpaceFillingCurve2D(envelope, maxLevels);
     }
 }
@@ -23,6 +23,8 @@ import org.neo4j.gis.spatial.Layer;
 import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
 import org.neo4j.gis.spatial.filter.SearchRecords;
 
+import com.vividsolutions.jts.geom.Coordinate;
+
 
 /**
  * @author Davide Savazzi
@@ -40,5 +42,14 @@ public interface LayerIndexReader extends SpatialIndexReader {
 	Layer getLayer();
 
 	SearchRecords search(SearchFilter filter);
+
+	/**
+	 * Find the k geometries closest to the given point, ordered by increasing planar distance in the coordinates of the
+	 * layer. Fewer than k records are returned only if the index contains fewer than k geometries.
+	 *
+	 * @param point the reference point to measure distances from
+	 * @param k the number of geometries to find
+	 */
+	SearchRecords searchNearest(Coordinate point, int k);
 	
 }
\ No newline at end of file
@@ -23,8 +23,11 @@ import org.neo4j.gis.spatial.Constants;
 import org.neo4j.gis.spatial.Layer;
 import org.neo4j.gis.spatial.rtree.RTreeIndex;
 import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
+import org.neo4j.gis.spatial.filter.SearchGeometryDistance;
 import org.neo4j.gis.spatial.filter.SearchRecords;
 
+import com.vividsolutions.jts.geom.Coordinate;
+
 /**
  * The RTreeIndex is the first and still standard index for Neo4j Spatial. It
  * implements both SpatialIndexReader and SpatialIndexWriter for read and write
@@ -55,4 +58,9 @@ public class LayerRTreeIndex extends RTreeIndex implements LayerTreeIndexReader,
         return new SearchRecords(layer, searchIndex(filter));
     }
 
+    @Override
+    public SearchRecords searchNearest(Coordinate point, int k) {
+        return new SearchRecords(layer, searchNearest(new SearchGeometryDistance(layer, layer.getGeometryFactory().createPoint(point)), k));
+    }
+
 }
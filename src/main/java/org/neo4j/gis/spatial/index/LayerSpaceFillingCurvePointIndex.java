@@ -19,21 +19,70 @@
  */
 package org.neo4j.gis.spatial.index;
 
+import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Point;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.neo4j.gis.spatial.encoders.Configurable;
+import org.neo4j.gis.spatial.filter.SearchGeometryDistance;
+import org.neo4j.gis.spatial.filter.SearchRecords;
 import org.neo4j.gis.spatial.index.curves.SpaceFillingCurve;
 import org.neo4j.gis.spatial.rtree.Envelope;
 import org.neo4j.gis.spatial.rtree.filter.AbstractSearchEnvelopeIntersection;
 import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
+import org.neo4j.gis.spatial.rtree.filter.SearchResults;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.cs.CoordinateSystem;
 import org.opengis.referencing.cs.CoordinateSystemAxis;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
 
-public abstract class LayerSpaceFillingCurvePointIndex extends ExplicitIndexBackedPointIndex<Long> {
+public abstract class LayerSpaceFillingCurvePointIndex extends ExplicitIndexBackedPointIndex<Long> implements Configurable {
+
+    /**
+     * Keep the curve values of all indexed points in memory, in a SortedCurveStore shared by all instances of the
+     * index, and scan the curve ranges of searches directly instead of querying the explicit index.
+     */
+    public static final String KEY_SORTED_STORE = "sortedStore";
+    /**
+     * The limits on the curve ranges searched for a bounding box, see SpaceFillingCurve.TraversalConfiguration. The
+     * extra points found in the coarser ranges are removed by the search filter.
+     */
+    public static final String KEY_MAX_DEPTH = "maxDepth";
+    public static final String KEY_MAX_RANGES = "maxRanges";
+    public static final String KEY_FALSE_POSITIVE_RATIO = "falsePositiveRatio";
+    /**
+     * The resolution and dimensionality of the curve. The dimensions default to those of the layer CRS, and a 3D curve
+     * indexes the z coordinates of the points within the range given by minZ and maxZ, or else by the third axis of
+     * the CRS. The index values depend on all of these, so they must not be changed once the layer has points.
+     */
+    public static final String KEY_MAX_LEVEL = "maxLevel";
+    public static final String KEY_DIMENSIONS = "dimensions";
+    public static final String KEY_MIN_Z = "minZ";
+    public static final String KEY_MAX_Z = "maxZ";
 
     private SpaceFillingCurve curve = null;
+    private int maxLevel = 12;
+    private int dimensions = 0;
+    private Double minZ = null;
+    private Double maxZ = null;
+    private boolean useSortedStore = false;
+    private int maxDepth = Integer.MAX_VALUE;
+    // Lucene allows at most 1024 clauses in a boolean query
+    private int maxRanges = 500;
+    private double falsePositiveRatio = 0.1;
+    private SpaceFillingCurve.TraversalConfiguration traversal = new SpaceFillingCurve.TraversalConfiguration(maxDepth, maxRanges, falsePositiveRatio);
 
     @Override
     protected String indexTypeName() {
@@ -44,22 +93,37 @@ public abstract class LayerSpaceFillingCurvePointIndex extends ExplicitIndexBack
         if (this.curve == null) {
             CoordinateReferenceSystem crs = layer.getCoordinateReferenceSystem();
             if (crs == null) {
-                throw new IllegalArgumentException("HilbertPointIndex cannot support layers without CRS");
+                throw new IllegalArgumentException(getClass().getSimpleName() + " cannot support layers without CRS");
+            }
+            CoordinateSystem cs = crs.getCoordinateSystem();
+            int dimension = dimensions > 0 ? dimensions : cs.getDimension();
+            if (cs.getDimension() < 2 || dimension < 2 || dimension > 3) {
+                throw new IllegalArgumentException(getClass().getSimpleName() + " cannot support " + dimension + "D curves for CRS: " + crs.getName());
+            }
+            double[] min = new double[dimension];
+            double[] max = new double[dimension];
+            for (int i = 0; i < dimension; i++) {
+                if (i < cs.getDimension()) {
+                    min[i] = getMin(cs.getAxis(i));
+                    max[i] = getMax(cs.getAxis(i));
+                } else if (minZ == null || maxZ == null) {
+                    throw new IllegalArgumentException(getClass().getSimpleName() + " needs '" + KEY_MIN_Z + "' and '" + KEY_MAX_Z + "' for a 3D curve over the 2D CRS: " + crs.getName());
+                }
             }
-            if (crs.getCoordinateSystem().getDimension() != 2) {
-                throw new IllegalArgumentException("HilbertPointIndex cannot support CRS that is not 2D: " + crs.getName());
+            if (dimension == 3) {
+                if (minZ != null) min[2] = minZ;
+                if (maxZ != null) max[2] = maxZ;
             }
-            Envelope envelope = new Envelope(
-                    getMin(crs.getCoordinateSystem().getAxis(0)),
-                    getMax(crs.getCoordinateSystem().getAxis(0)),
-                    getMin(crs.getCoordinateSystem().getAxis(1)),
-                    getMax(crs.getCoordinateSystem().getAxis(1))
-            );
-            this.curve = makeCurve(envelope, 12);//new HilbertSpaceFillingCurve2D(envelope, 12);
+            this.curve = makeCurve(new Envelope(min, max), maxLevel);
         }
         return this.curve;
     }
 
+    /**
+     * Make the curve over the given envelope, which has the dimensions of the curve.
+     *
+     * @throws IllegalArgumentException if the curve does not support the dimensions or level
+     */
     protected abstract SpaceFillingCurve makeCurve(Envelope envelope, int maxLevels);
 
     private double getMin(CoordinateSystemAxis axis) {
@@ -75,11 +139,16 @@ public abstract class LayerSpaceFillingCurvePointIndex extends ExplicitIndexBack
     }
 
     @Override
-    protected Long getIndexValueFor(Node geomNode) {
+    protected Long getIndexValueFor(Geometry geom) {
         //TODO: Make this code projection aware - currently it assumes lat/lon
-        Geometry geom = layer.getGeometryEncoder().decodeGeometry(geomNode);
         Point point = geom.getCentroid();   // Other code is ensuring only point layers use this, but just in case we encode the centroid
-        return getCurve().derivedValueFor(new double[]{point.getX(), point.getY()});
+        SpaceFillingCurve curve = getCurve();
+        if (curve.getRange().getDimension() == 3) {
+            // the centroid drops the z coordinate, and points without one are placed at the bottom of the range
+            double z = geom.getCoordinate().z;
+            return curve.derivedValueFor(new double[]{point.getX(), point.getY(), Double.isNaN(z) ? curve.getRange().getMin(2) : z});
+        }
+        return curve.derivedValueFor(new double[]{point.getX(), point.getY()});
     }
 
     private void appendRange(StringBuilder sb, SpaceFillingCurve.LongRange range) {
@@ -90,20 +159,321 @@ public abstract class LayerSpaceFillingCurvePointIndex extends ExplicitIndexBack
         }
     }
 
-    protected String queryStringFor(SearchFilter filter) {
+    @Override
+    protected void onAdd(Node geomNode, Long value) {
+        SortedCurveStore.added(getDatabase(), getIndexName(), geomNode.getId(), value, useSortedStore);
+    }
+
+    @Override
+    protected void onRemove(long geomNodeId) {
+        SortedCurveStore.removed(getDatabase(), getIndexName(), geomNodeId, useSortedStore);
+    }
+
+    @Override
+    protected void onRemoveAll() {
+        SortedCurveStore.cleared(getDatabase(), getIndexName(), useSortedStore);
+    }
+
+    @Override
+    protected Iterable<Node> candidatesFor(SearchFilter filter, IndexQueryStatistics.Query query) {
+        SortedCurveStore store = getSortedStore();
+        if (store != null) {
+            return candidatesFromStore(store, tilesFor(filter), query);
+        }
+        return super.candidatesFor(filter, query);
+    }
+
+    /**
+     * The indexed nodes with curve values in any of the ranges. The explicit index is queried with at most maxRanges
+     * ranges at a time, since Lucene limits the number of clauses in a query.
+     */
+    private List<Node> candidatesFor(List<SpaceFillingCurve.LongRange> ranges, IndexQueryStatistics.Query query) {
+        if (ranges.isEmpty()) {
+            return new ArrayList<>();
+        }
+        SortedCurveStore store = getSortedStore();
+        if (store != null) {
+            return candidatesFromStore(store, ranges, query);
+        }
+        List<Node> nodes = new ArrayList<>();
+        for (int from = 0; from < ranges.size(); from += maxRanges) {
+            for (Node node : queryIndex(queryStringFor(ranges.subList(from, Math.min(from + maxRanges, ranges.size()))), query)) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    private SortedCurveStore getSortedStore() {
+        return useSortedStore ? SortedCurveStore.getOrBuild(getDatabase(), getIndexName(), this::loadCurveValues) : null;
+    }
+
+    private List<Node> candidatesFromStore(SortedCurveStore store, List<SpaceFillingCurve.LongRange> ranges, IndexQueryStatistics.Query query) {
+        query.rangesIssued(ranges.size());
+        long[] nodeIds = store.search(ranges);
+        List<Node> nodes = new ArrayList<>(nodeIds.length);
+        for (long nodeId : nodeIds) {
+            try {
+                nodes.add(getDatabase().getNodeById(nodeId));
+            } catch (NotFoundException e) {
+                // deleted by a transaction that did not remove it from the index
+            }
+        }
+        return nodes;
+    }
+
+    private long[][] loadCurveValues() {
+        long[] values = new long[1024];
+        long[] nodeIds = new long[1024];
+        int count = 0;
+        for (Node node : getAllIndexedNodes()) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+                nodeIds = Arrays.copyOf(nodeIds, count * 2);
+            }
+            values[count] = getIndexValueFor(node);
+            nodeIds[count] = node.getId();
+            count++;
+        }
+        return new long[][]{Arrays.copyOf(values, count), Arrays.copyOf(nodeIds, count)};
+    }
+
+    private List<SpaceFillingCurve.LongRange> tilesFor(SearchFilter filter) {
         if (filter instanceof AbstractSearchEnvelopeIntersection) {
             Envelope referenceEnvelope = ((AbstractSearchEnvelopeIntersection) filter).getReferenceEnvelope();
-            List<SpaceFillingCurve.LongRange> tiles = getCurve().getTilesIntersectingEnvelope(referenceEnvelope);
-            StringBuilder sb = new StringBuilder();
-            for (SpaceFillingCurve.LongRange range : tiles) {
-                if (sb.length() > 0) {
-                    sb.append(" OR ");
-                }
-                appendRange(sb, range);
+            Envelope curveRange = getCurve().getRange();
+            if (referenceEnvelope.getDimension() < curveRange.getDimension()) {
+                // searches are 2D, so they cover the whole z range of a 3D curve
+                referenceEnvelope = new Envelope(
+                        new double[]{referenceEnvelope.getMinX(), referenceEnvelope.getMinY(), curveRange.getMin(2)},
+                        new double[]{referenceEnvelope.getMaxX(), referenceEnvelope.getMaxY(), curveRange.getMax(2)});
             }
-            return sb.toString();
+            return getCurve().getTilesIntersectingEnvelope(referenceEnvelope, traversal);
         } else {
             throw new UnsupportedOperationException("Hilbert Index only supports searches based on AbstractSearchEnvelopeIntersection, not " + filter.getClass().getCanonicalName());
         }
     }
+
+    protected String queryStringFor(SearchFilter filter) {
+        return queryStringFor(tilesFor(filter));
+    }
+
+    private String queryStringFor(List<SpaceFillingCurve.LongRange> tiles) {
+        StringBuilder sb = new StringBuilder();
+        for (SpaceFillingCurve.LongRange range : tiles) {
+            if (sb.length() > 0) {
+                sb.append(" OR ");
+            }
+            appendRange(sb, range);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Find the k points nearest to the given point, lazily in order of increasing distance. The tiles of the curve
+     * are scanned in growing squares around the point, starting with a square expected to hold k points and doubling
+     * its size each time, and skipping the curve ranges already scanned. A point found at a distance no greater than
+     * half the width of the scanned square cannot be beaten by any point outside it, so it can be returned before
+     * the next square is scanned. Callers that stop early only scan the squares they need.
+     */
+    @Override
+    public SearchRecords searchNearest(Coordinate point, int k) {
+        if (k < 1) {
+            return new SearchRecords(layer, new SearchResults(new ArrayList<>()));
+        }
+        IndexQueryStatistics.Query query = getQueryStatistics().startQuery();
+        SearchGeometryDistance distance = new SearchGeometryDistance(layer, layer.getGeometryFactory().createPoint(point));
+        double initialRadius = initialNearestRadius(k);
+        return new SearchRecords(layer, new SearchResults(query.track(() -> new NearestIterator(point, distance, k, initialRadius, query))));
+    }
+
+    /**
+     * Half the width of the square expected to hold k points, assuming the points are spread evenly over their
+     * bounding box, but at least the width of the finest tiles of the curve.
+     */
+    private double initialNearestRadius(int k) {
+        SpaceFillingCurve curve = getCurve();
+        double minRadius = Math.max(curve.getTileWidth(0, curve.getMaxLevel()), curve.getTileWidth(1, curve.getMaxLevel()));
+        Envelope bbox = getBoundingBox();
+        int count = count();
+        if (bbox == null || count == 0) {
+            return minRadius;
+        }
+        double area = bbox.getWidth(0) * bbox.getWidth(1);
+        return Math.max(minRadius, Math.sqrt(k * area / count) / 2.0);
+    }
+
+    private class NearestIterator implements Iterator<Node> {
+        private final Coordinate point;
+        private final SearchGeometryDistance distance;
+        private final int k;
+        private final IndexQueryStatistics.Query query;
+        private final PriorityQueue<NodeWithDistance> candidates = new PriorityQueue<>((a, b) -> Double.compare(a.distance, b.distance));
+        // the curve ranges scanned so far, by their minimum value
+        private final TreeMap<Long, Long> scanned = new TreeMap<>();
+        private double radius;
+        private double scannedRadius = -1.0;
+        private boolean scannedAll = false;
+        private int returned = 0;
+        private Node next = null;
+
+        private NearestIterator(Coordinate point, SearchGeometryDistance distance, int k, double initialRadius, IndexQueryStatistics.Query query) {
+            this.point = point;
+            this.distance = distance;
+            this.k = k;
+            this.radius = initialRadius;
+            this.query = query;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && returned < k) {
+                next = findNext();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Node next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Node node = next;
+            next = null;
+            returned++;
+            return node;
+        }
+
+        private Node findNext() {
+            while (true) {
+                NodeWithDistance nearest = candidates.peek();
+                if (nearest != null && (scannedAll || nearest.distance <= scannedRadius)) {
+                    candidates.poll();
+                    query.candidates(0, 1);
+                    return nearest.node;
+                }
+                if (scannedAll) {
+                    return null;
+                }
+                scanSquare(radius);
+                scannedRadius = radius;
+                radius *= 2;
+            }
+        }
+
+        private void scanSquare(double halfWidth) {
+            Envelope range = getCurve().getRange();
+            double minX = Math.max(range.getMin(0), point.x - halfWidth);
+            double maxX = Math.min(range.getMax(0), point.x + halfWidth);
+            double minY = Math.max(range.getMin(1), point.y - halfWidth);
+            double maxY = Math.min(range.getMax(1), point.y + halfWidth);
+            scannedAll = minX <= range.getMin(0) && maxX >= range.getMax(0) && minY <= range.getMin(1) && maxY >= range.getMax(1);
+            if (minX > maxX || minY > maxY) {
+                // the point is outside the curve, and the square does not reach it yet
+                return;
+            }
+            Envelope square;
+            if (range.getDimension() == 3) {
+                square = new Envelope(new double[]{minX, minY, range.getMin(2)}, new double[]{maxX, maxY, range.getMax(2)});
+            } else {
+                square = new Envelope(minX, maxX, minY, maxY);
+            }
+            for (Node node : candidatesFor(unscanned(getCurve().getTilesIntersectingEnvelope(square, traversal)), query)) {
+                query.candidates(1, 0);
+                candidates.add(new NodeWithDistance(node, distance.distance(node)));
+            }
+        }
+
+        /**
+         * The parts of the tiles that have not been scanned yet, which are then marked as scanned
+         */
+        private List<SpaceFillingCurve.LongRange> unscanned(List<SpaceFillingCurve.LongRange> tiles) {
+            List<SpaceFillingCurve.LongRange> ranges = new ArrayList<>();
+            for (SpaceFillingCurve.LongRange tile : tiles) {
+                long from = tile.min;
+                Map.Entry<Long, Long> before = scanned.floorEntry(from);
+                if (before != null && before.getValue() >= from) {
+                    from = before.getValue() + 1;
+                }
+                while (from <= tile.max) {
+                    Map.Entry<Long, Long> after = scanned.ceilingEntry(from);
+                    long to = after == null ? tile.max : Math.min(tile.max, after.getKey() - 1);
+                    if (to >= from) {
+                        ranges.add(new SpaceFillingCurve.LongRange(from, to));
+                    }
+                    if (after == null) {
+                        break;
+                    }
+                    from = after.getValue() + 1;
+                }
+            }
+            for (SpaceFillingCurve.LongRange range : ranges) {
+                scanned.put(range.min, range.max);
+            }
+            return ranges;
+        }
+    }
+
+    @Override
+    public void setConfiguration(String jsonConfig) {
+        JSONObject jsonObject = (JSONObject) JSONValue.parse(jsonConfig);
+        HashMap<String, Object> config = new HashMap<>();
+        for (Object key : jsonObject.keySet()) {
+            config.put(key.toString(), jsonObject.get(key));
+        }
+        configure(config);
+    }
+
+    @Override
+    public String getConfiguration() {
+        HashMap<String, Object> config = new HashMap<>();
+        config.put(KEY_SORTED_STORE, useSortedStore);
+        config.put(KEY_MAX_DEPTH, maxDepth);
+        config.put(KEY_MAX_RANGES, maxRanges);
+        config.put(KEY_FALSE_POSITIVE_RATIO, falsePositiveRatio);
+        config.put(KEY_MAX_LEVEL, maxLevel);
+        if (dimensions > 0) config.put(KEY_DIMENSIONS, dimensions);
+        if (minZ != null) config.put(KEY_MIN_Z, minZ);
+        if (maxZ != null) config.put(KEY_MAX_Z, maxZ);
+        return JSONObject.toJSONString(config);
+    }
+
+    @Override
+    public void configure(Map<String, Object> config) {
+        for (String key : config.keySet()) {
+            switch (key) {
+                case KEY_SORTED_STORE:
+                    this.useSortedStore = Boolean.parseBoolean(config.get(key).toString());
+                    break;
+                case KEY_MAX_DEPTH:
+                    this.maxDepth = Integer.parseInt(config.get(key).toString());
+                    break;
+                case KEY_MAX_RANGES:
+                    this.maxRanges = Integer.parseInt(config.get(key).toString());
+                    break;
+                case KEY_FALSE_POSITIVE_RATIO:
+                    this.falsePositiveRatio = Double.parseDouble(config.get(key).toString());
+                    break;
+                case KEY_MAX_LEVEL:
+                    this.maxLevel = Integer.parseInt(config.get(key).toString());
+                    break;
+                case KEY_DIMENSIONS:
+                    this.dimensions = Integer.parseInt(config.get(key).toString());
+                    if (dimensions < 2 || dimensions > 3) {
+                        throw new IllegalArgumentException(getClass().getSimpleName() + " only supports 2D and 3D curves, not " + dimensions + "D");
+                    }
+                    break;
+                case KEY_MIN_Z:
+                    this.minZ = Double.parseDouble(config.get(key).toString());
+                    break;
+                case KEY_MAX_Z:
+                    this.maxZ = Double.parseDouble(config.get(key).toString());
+                    break;
+                default:
+                    throw new IllegalArgumentException("No such " + getClass().getSimpleName() + " configuration key: " + key);
+            }
+        }
+        this.traversal = new SpaceFillingCurve.TraversalConfiguration(maxDepth, maxRanges, falsePositiveRatio);
+        this.curve = null;
+    }
 }
@@ -31,6 +31,12 @@ public class LayerZOrderPointIndex extends LayerSpaceFillingCurvePointIndex {
     }
 
     protected SpaceFillingCurve makeCurve(Envelope envelope, int maxLevels) {
+        if (envelope.getDimension() != 2) {
+            throw new IllegalArgumentException("Z-order index only supports 2D curves, not " + envelope.getDimension() + "D");
+        }
+        if (maxLevels > ZOrderSpaceFillingCurve2D.MAX_LEVEL) {
+            throw new IllegalArgumentException("Z-order index supports at most " + ZOrderSpaceFillingCurve2D.MAX_LEVEL + " levels, not " + maxLevels);
+        }
         return new ZOrderSpaceFillingCurve2D(envelope, maxLevels);
     }
 }
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.index;
+
+import org.neo4j.gis.spatial.rtree.Envelope;
+import org.neo4j.gis.spatial.utilities.TransactionLocal;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The count, bounding box and a coarse density histogram of the points in an ExplicitIndexBackedPointIndex,
+ * persisted as properties of a metadata node of the index.
+ * <p>
+ * Every add and remove in a transaction is collected in a delta for the metadata node, which is only written when
+ * the transaction commits, so concurrent writers to the same layer only hold the lock on the metadata node while
+ * committing. The statistics seen by a transaction include its own uncommitted delta, and the delta of a transaction
+ * that does not commit is dropped with it. The bounding box only ever grows, since removing a point on its edge would
+ * require a scan of the index to shrink it.
+ */
+class PointIndexStatistics {
+
+    static final String PROP_COUNT = "count";
+    static final String PROP_BBOX = "bbox";
+    static final String PROP_HISTOGRAM = "histogram";
+    static final String PROP_HISTOGRAM_EXTENT = "histogramExtent";
+
+    // the histogram divides the extent of the layer CRS into this many cells along each axis
+    static final int HISTOGRAM_SIZE = 16;
+
+    private static final Map<GraphDatabaseService, StatisticsRegistry> registries = new WeakHashMap<>();
+
+    private final Node metadataNode;
+    private final Delta delta;
+
+    private PointIndexStatistics(Node metadataNode, Delta delta) {
+        this.metadataNode = metadataNode;
+        this.delta = delta;
+    }
+
+    /**
+     * Start the statistics on a new metadata node, with a histogram over the given extent, or without a histogram if
+     * it is null.
+     */
+    static PointIndexStatistics createOnMetadataNode(GraphDatabaseService database, Node metadataNode, Envelope histogramExtent) {
+        if (histogramExtent != null && histogramExtent.isValid()) {
+            metadataNode.setProperty(PROP_HISTOGRAM_EXTENT, new double[]{histogramExtent.getMinX(), histogramExtent.getMinY(), histogramExtent.getMaxX(), histogramExtent.getMaxY()});
+        }
+        return forMetadataNode(database, metadataNode);
+    }
+
+    /**
+     * The statistics stored on the metadata node, together with the uncommitted changes of the current transaction.
+     * Reading the statistics does not write to the metadata node.
+     */
+    static PointIndexStatistics forMetadataNode(GraphDatabaseService database, Node metadataNode) {
+        StatisticsRegistry registry;
+        synchronized (registries) {
+            registry = registries.get(database);
+            if (registry == null) {
+                registry = new StatisticsRegistry(database);
+                database.registerTransactionEventHandler(registry);
+                database.registerKernelEventHandler(registry);
+                registries.put(database, registry);
+            }
+        }
+        Delta delta = registry.deltas.get().computeIfAbsent(metadataNode.getId(), id -> new Delta(metadataNode));
+        if (delta.histogram == null) {
+            delta.extent = storedHistogramExtent(metadataNode);
+            delta.histogram = new int[HISTOGRAM_SIZE * HISTOGRAM_SIZE];
+        }
+        return new PointIndexStatistics(metadataNode, delta);
+    }
+
+    /**
+     * Forget the uncommitted changes of the current transaction, for a metadata node that is being deleted.
+     */
+    static void forget(GraphDatabaseService database, Node metadataNode) {
+        StatisticsRegistry registry;
+        synchronized (registries) {
+            registry = registries.get(database);
+        }
+        if (registry != null) {
+            registry.deltas.get().remove(metadataNode.getId());
+        }
+    }
+
+    void added(double x, double y) {
+        delta.count++;
+        if (delta.bbox.isValid()) {
+            delta.bbox.expandToInclude(x, y);
+        } else {
+            delta.bbox = new Envelope(x, x, y, y);
+        }
+        int cell = histogramCell(delta.extent, x, y);
+        if (cell >= 0) {
+            delta.histogram[cell]++;
+        }
+    }
+
+    void removed(double x, double y) {
+        delta.count--;
+        int cell = histogramCell(delta.extent, x, y);
+        if (cell >= 0) {
+            delta.histogram[cell]--;
+        }
+    }
+
+    long count() {
+        return (long) metadataNode.getProperty(PROP_COUNT, 0L) + delta.count;
+    }
+
+    Envelope boundingBox() {
+        Envelope bbox = storedBoundingBox(metadataNode);
+        if (bbox == null) {
+            return delta.bbox.isValid() ? new Envelope(delta.bbox) : null;
+        }
+        if (delta.bbox.isValid()) {
+            bbox.expandToInclude(delta.bbox);
+        }
+        return bbox;
+    }
+
+    /**
+     * Estimate the number of points in the envelope from the histogram, assuming the points are spread evenly
+     * within each cell. Without a histogram the points are assumed to be spread evenly within the bounding box.
+     */
+    double estimateCount(Envelope envelope) {
+        long count = count();
+        Envelope bbox = boundingBox();
+        if (count <= 0 || bbox == null) {
+            return 0.0;
+        }
+        if (delta.extent == null) {
+            return count * overlapFraction(bbox, envelope);
+        }
+        int[] stored = (int[]) metadataNode.getProperty(PROP_HISTOGRAM, new int[HISTOGRAM_SIZE * HISTOGRAM_SIZE]);
+        double cellWidth = delta.extent.getWidth(0) / HISTOGRAM_SIZE;
+        double cellHeight = delta.extent.getWidth(1) / HISTOGRAM_SIZE;
+        double estimate = 0.0;
+        for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+            for (int j = 0; j < HISTOGRAM_SIZE; j++) {
+                int cellCount = stored[i * HISTOGRAM_SIZE + j] + delta.histogram[i * HISTOGRAM_SIZE + j];
+                if (cellCount > 0) {
+                    double minX = delta.extent.getMinX() + i * cellWidth;
+                    double minY = delta.extent.getMinY() + j * cellHeight;
+                    estimate += cellCount * overlapFraction(new Envelope(minX, minX + cellWidth, minY, minY + cellHeight), envelope);
+                }
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * The fraction of the cell covered by the envelope
+     */
+    static double overlapFraction(Envelope cell, Envelope envelope) {
+        Envelope intersection = cell.intersects(envelope) ? cell.intersection(envelope) : null;
+        if (intersection == null) {
+            return 0.0;
+        }
+        double fraction = 1.0;
+        for (int dim = 0; dim < 2; dim++) {
+            if (cell.getWidth(dim) > 0) {
+                fraction *= intersection.getWidth(dim) / cell.getWidth(dim);
+            }
+        }
+        return fraction;
+    }
+
+    private static int histogramCell(Envelope extent, double x, double y) {
+        if (extent == null) {
+            return -1;
+        }
+        int i = (int) ((x - extent.getMinX()) / extent.getWidth(0) * HISTOGRAM_SIZE);
+        int j = (int) ((y - extent.getMinY()) / extent.getWidth(1) * HISTOGRAM_SIZE);
+        i = Math.max(0, Math.min(HISTOGRAM_SIZE - 1, i));
+        j = Math.max(0, Math.min(HISTOGRAM_SIZE - 1, j));
+        return i * HISTOGRAM_SIZE + j;
+    }
+
+    private static Envelope storedBoundingBox(Node metadataNode) {
+        double[] bbox = (double[]) metadataNode.getProperty(PROP_BBOX, null);
+        return bbox == null ? null : new Envelope(bbox[0], bbox[2], bbox[1], bbox[3]);
+    }
+
+    private static Envelope storedHistogramExtent(Node metadataNode) {
+        double[] extent = (double[]) metadataNode.getProperty(PROP_HISTOGRAM_EXTENT, null);
+        return extent == null ? null : new Envelope(extent[0], extent[2], extent[1], extent[3]);
+    }
+
+    private static class Delta {
+        private final Node metadataNode;
+        private long count = 0;
+        private Envelope bbox = new Envelope();
+        private Envelope extent;
+        private int[] histogram;
+
+        private Delta(Node metadataNode) {
+            this.metadataNode = metadataNode;
+        }
+
+        private boolean isEmpty() {
+            if (count != 0 || bbox.isValid()) {
+                return false;
+            }
+            for (int cell : histogram) {
+                if (cell != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Add the delta to the stored statistics, holding the lock on the metadata node so that the stored values
+         * cannot change between reading and writing them.
+         */
+        private void apply(GraphDatabaseService database) {
+            if (histogram == null || isEmpty()) {
+                return;
+            }
+            try (Transaction tx = database.beginTx()) {
+                tx.acquireWriteLock(metadataNode);
+                metadataNode.setProperty(PROP_COUNT, (long) metadataNode.getProperty(PROP_COUNT, 0L) + count);
+                if (bbox.isValid()) {
+                    Envelope stored = storedBoundingBox(metadataNode);
+                    if (stored != null) {
+                        bbox.expandToInclude(stored);
+                    }
+                    metadataNode.setProperty(PROP_BBOX, new double[]{bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(), bbox.getMaxY()});
+                }
+                int[] stored = (int[]) metadataNode.getProperty(PROP_HISTOGRAM, new int[HISTOGRAM_SIZE * HISTOGRAM_SIZE]);
+                for (int cell = 0; cell < stored.length; cell++) {
+                    stored[cell] += histogram[cell];
+                }
+                metadataNode.setProperty(PROP_HISTOGRAM, stored);
+                tx.success();
+            }
+        }
+    }
+
+    private static class StatisticsRegistry implements TransactionEventHandler<Object>, KernelEventHandler {
+        private final GraphDatabaseService database;
+        private final TransactionLocal<Map<Long, Delta>> deltas;
+
+        private StatisticsRegistry(GraphDatabaseService database) {
+            this.database = database;
+            this.deltas = new TransactionLocal<>(database, HashMap::new);
+        }
+
+        @Override
+        public Object beforeCommit(TransactionData data) throws Exception {
+            Map<Long, Delta> pending = deltas.get();
+            for (Delta delta : pending.values()) {
+                delta.apply(delta.metadataNode.getGraphDatabase());
+            }
+            pending.clear();
+            return null;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Object state) {
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, Object state) {
+            deltas.get().clear();
+        }
+
+        /**
+         * The registry refers to the database, so it has to leave the weak map of registries when the database shuts
+         * down, or the database is never collected
+         */
+        @Override
+        public void beforeShutdown() {
+            synchronized (registries) {
+                registries.remove(database);
+            }
+            database.unregisterTransactionEventHandler(this);
+        }
+
+        @Override
+        public void kernelPanic(ErrorState error) {
+        }
+
+        @Override
+        public Object getResource() {
+            return null;
+        }
+
+        @Override
+        public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+            return ExecutionOrder.DOESNT_MATTER;
+        }
+    }
+}
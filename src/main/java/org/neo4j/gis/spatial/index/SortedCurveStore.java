@@ -0,0 +1,410 @@
+/**
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.index;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.neo4j.gis.spatial.index.curves.SpaceFillingCurve;
+import org.neo4j.gis.spatial.utilities.TransactionLocal;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * An in-memory copy of the (curve value, node id) pairs of a space filling curve point index, so that searches can
+ * scan the curve ranges directly instead of sending them through a Lucene query. The pairs are kept in a few runs of
+ * sorted primitive arrays. Every commit that writes to the index appends a new run, and runs of similar size are
+ * merged, so there are only logarithmically many runs to scan. Removals are kept as tombstones, which hide the entries
+ * of the node in all runs from before the removal, until the run holding them is merged.
+ * <p>
+ * Layers, and therefore their indexes, are re-created on every lookup, so stores are shared by all index instances for
+ * the same explicit index in the same database. A store is immutable, and the commit of a transaction that wrote to
+ * the index replaces it. A thread with uncommitted writes to the index does not use the store, since it does not yet
+ * contain those writes.
+ */
+class SortedCurveStore {
+
+	private static final Map<GraphDatabaseService, StoreRegistry> registries = new WeakHashMap<>();
+
+	private static final SortedCurveStore EMPTY = new SortedCurveStore(new Run[0], Collections.emptyMap());
+
+	// oldest first
+	private final Run[] runs;
+	// node id -> generation of the last write to the node
+	private final Map<Long, Long> tombstones;
+
+	private SortedCurveStore(Run[] runs, Map<Long, Long> tombstones) {
+		this.runs = runs;
+		this.tombstones = tombstones;
+	}
+
+	/**
+	 * Return the shared store of the given explicit index, building it with the loader if necessary. The loader is
+	 * called with an open transaction, and returns the values and node ids of all indexed nodes in two arrays of the
+	 * same length. Returns null if the current thread has uncommitted writes to the index.
+	 */
+	static SortedCurveStore getOrBuild(GraphDatabaseService database, String indexName, Supplier<long[][]> loader) {
+		StoreRegistry registry = registryFor(database);
+		if (registry.pendingWrites.get().containsKey(indexName)) {
+			return null;
+		}
+		SortedCurveStore store = registry.stores.get(indexName);
+		if (store == null) {
+			long version;
+			long generation;
+			synchronized (registry) {
+				version = registry.versions.getOrDefault(indexName, 0L);
+				generation = registry.generation;
+			}
+			long[][] entries = loader.get();
+			store = EMPTY.append(Run.sorted(entries[0], entries[1], generation));
+			synchronized (registry) {
+				// only share the store if no commit to the index happened while it was loaded
+				if (registry.versions.getOrDefault(indexName, 0L) == version) {
+					registry.stores.putIfAbsent(indexName, store);
+				}
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * Remember the value the node was indexed with, for when the current transaction commits. When the writing index
+	 * does not use the store itself, this only does any work if some other index in the same database does, so that
+	 * databases that never use the store do not pay for the transaction event handler.
+	 */
+	static void added(GraphDatabaseService database, String indexName, long nodeId, long value, boolean useStore) {
+		PendingWrites pending = pendingWrites(database, indexName, useStore);
+		if (pending != null) {
+			pending.writes.put(nodeId, value);
+		}
+	}
+
+	static void removed(GraphDatabaseService database, String indexName, long nodeId, boolean useStore) {
+		PendingWrites pending = pendingWrites(database, indexName, useStore);
+		if (pending != null) {
+			pending.writes.put(nodeId, null);
+		}
+	}
+
+	static void cleared(GraphDatabaseService database, String indexName, boolean useStore) {
+		PendingWrites pending = pendingWrites(database, indexName, useStore);
+		if (pending != null) {
+			pending.cleared = true;
+			pending.writes.clear();
+		}
+	}
+
+	private static PendingWrites pendingWrites(GraphDatabaseService database, String indexName, boolean useStore) {
+		StoreRegistry registry;
+		if (useStore) {
+			registry = registryFor(database);
+		} else {
+			synchronized (registries) {
+				registry = registries.get(database);
+			}
+			if (registry == null) {
+				return null;
+			}
+		}
+		return registry.pendingWrites.get().computeIfAbsent(indexName, name -> new PendingWrites());
+	}
+
+	private static StoreRegistry registryFor(GraphDatabaseService database) {
+		synchronized (registries) {
+			StoreRegistry registry = registries.get(database);
+			if (registry == null) {
+				registry = new StoreRegistry(database);
+				database.registerTransactionEventHandler(registry);
+				database.registerKernelEventHandler(registry);
+				registries.put(database, registry);
+			}
+			return registry;
+		}
+	}
+
+	int size() {
+		int size = 0;
+		for (Run run : runs) {
+			size += run.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Return the ids of the nodes with curve values in any of the ranges.
+	 */
+	long[] search(List<SpaceFillingCurve.LongRange> ranges) {
+		long[] nodeIds = new long[16];
+		int count = 0;
+		for (Run run : runs) {
+			for (SpaceFillingCurve.LongRange range : ranges) {
+				for (int i = run.lowerBound(range.min); i < run.size() && run.values[i] <= range.max; i++) {
+					if (run.isVisible(i, tombstones)) {
+						if (count == nodeIds.length) {
+							nodeIds = Arrays.copyOf(nodeIds, count * 2);
+						}
+						nodeIds[count++] = run.nodeIds[i];
+					}
+				}
+			}
+		}
+		return Arrays.copyOf(nodeIds, count);
+	}
+
+	/**
+	 * Return a new store with the committed writes, where a null value is a removal.
+	 */
+	private SortedCurveStore apply(Map<Long, Long> writes, long generation) {
+		Map<Long, Long> tombstones = new HashMap<>(this.tombstones);
+		long[] values = new long[writes.size()];
+		long[] nodeIds = new long[writes.size()];
+		int count = 0;
+		for (Map.Entry<Long, Long> write : writes.entrySet()) {
+			// every write hides the previous entry of the node, if any
+			tombstones.put(write.getKey(), generation);
+			if (write.getValue() != null) {
+				values[count] = write.getValue();
+				nodeIds[count] = write.getKey();
+				count++;
+			}
+		}
+		Run run = Run.sorted(Arrays.copyOf(values, count), Arrays.copyOf(nodeIds, count), generation);
+		return new SortedCurveStore(runs, tombstones).append(run);
+	}
+
+	/**
+	 * Append the run, and merge the newest runs for as long as the newer one is at least half the size of the older.
+	 */
+	private SortedCurveStore append(Run run) {
+		if (run.size() == 0) {
+			// a commit with only removals just adds tombstones
+			return this;
+		}
+		Run[] runs = Arrays.copyOf(this.runs, this.runs.length + 1);
+		runs[runs.length - 1] = run;
+		int length = runs.length;
+		while (length > 1 && runs[length - 2].size() <= 2 * runs[length - 1].size()) {
+			runs[length - 2] = Run.merge(runs[length - 2], runs[length - 1], tombstones);
+			length--;
+		}
+		// once everything has been merged into one run, no entries remain for the tombstones to hide
+		boolean mergedAll = length == 1 && runs.length > 1;
+		return new SortedCurveStore(Arrays.copyOf(runs, length), mergedAll ? Collections.emptyMap() : tombstones);
+	}
+
+	/**
+	 * Curve values and node ids sorted by value, then by node id, all written by commits up to the generation.
+	 */
+	private static class Run {
+		private final long[] values;
+		private final long[] nodeIds;
+		private final long generation;
+
+		private Run(long[] values, long[] nodeIds, long generation) {
+			this.values = values;
+			this.nodeIds = nodeIds;
+			this.generation = generation;
+		}
+
+		private static Run sorted(long[] values, long[] nodeIds, long generation) {
+			Run run = new Run(values, nodeIds, generation);
+			run.sort(0, values.length - 1);
+			return run;
+		}
+
+		private int size() {
+			return values.length;
+		}
+
+		private boolean isVisible(int index, Map<Long, Long> tombstones) {
+			Long removed = tombstones.get(nodeIds[index]);
+			return removed == null || removed <= generation;
+		}
+
+		private int lowerBound(long value) {
+			int low = 0;
+			int high = values.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (values[mid] < value) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Merge two runs into one with the generation of the newer, dropping the entries hidden by the tombstones.
+		 */
+		private static Run merge(Run older, Run newer, Map<Long, Long> tombstones) {
+			long[] values = new long[older.size() + newer.size()];
+			long[] nodeIds = new long[values.length];
+			int i = 0, j = 0, count = 0;
+			while (i < older.size() || j < newer.size()) {
+				boolean takeOlder = j == newer.size() || (i < older.size() && compare(older, i, newer, j) <= 0);
+				Run run = takeOlder ? older : newer;
+				int index = takeOlder ? i++ : j++;
+				if (run.isVisible(index, tombstones)) {
+					values[count] = run.values[index];
+					nodeIds[count] = run.nodeIds[index];
+					count++;
+				}
+			}
+			return new Run(Arrays.copyOf(values, count), Arrays.copyOf(nodeIds, count), newer.generation);
+		}
+
+		private static int compare(Run a, int i, Run b, int j) {
+			int compare = Long.compare(a.values[i], b.values[j]);
+			return compare != 0 ? compare : Long.compare(a.nodeIds[i], b.nodeIds[j]);
+		}
+
+		private void sort(int low, int high) {
+			while (high - low > 16) {
+				int mid = (low + high) >>> 1;
+				long pivotValue = values[mid];
+				long pivotId = nodeIds[mid];
+				int i = low;
+				int j = high;
+				while (i <= j) {
+					while (compareTo(i, pivotValue, pivotId) < 0) i++;
+					while (compareTo(j, pivotValue, pivotId) > 0) j--;
+					if (i <= j) {
+						swap(i++, j--);
+					}
+				}
+				// recurse into the smaller part, so the stack depth stays logarithmic
+				if (j - low < high - i) {
+					sort(low, j);
+					low = i;
+				} else {
+					sort(i, high);
+					high = j;
+				}
+			}
+			for (int i = low + 1; i <= high; i++) {
+				for (int j = i; j > low && compareTo(j - 1, values[j], nodeIds[j]) > 0; j--) {
+					swap(j - 1, j);
+				}
+			}
+		}
+
+		private int compareTo(int index, long value, long nodeId) {
+			int compare = Long.compare(values[index], value);
+			return compare != 0 ? compare : Long.compare(nodeIds[index], nodeId);
+		}
+
+		private void swap(int i, int j) {
+			long value = values[i];
+			values[i] = values[j];
+			values[j] = value;
+			long nodeId = nodeIds[i];
+			nodeIds[i] = nodeIds[j];
+			nodeIds[j] = nodeId;
+		}
+	}
+
+	private static class PendingWrites {
+		private final Map<Long, Long> writes = new HashMap<>();
+		private boolean cleared = false;
+	}
+
+	private static class StoreRegistry implements TransactionEventHandler<Object>, KernelEventHandler {
+		private final GraphDatabaseService database;
+		private final Map<String, SortedCurveStore> stores = new ConcurrentHashMap<>();
+		// the number of commits to each index, to detect stores that were loaded while another thread committed
+		private final Map<String, Long> versions = new ConcurrentHashMap<>();
+		private final TransactionLocal<Map<String, PendingWrites>> pendingWrites;
+		private long generation = 0;
+
+		private StoreRegistry(GraphDatabaseService database) {
+			this.database = database;
+			this.pendingWrites = new TransactionLocal<>(database, HashMap::new);
+		}
+
+		@Override
+		public Object beforeCommit(TransactionData data) throws Exception {
+			return null;
+		}
+
+		@Override
+		public void afterCommit(TransactionData data, Object state) {
+			Map<String, PendingWrites> pending = pendingWrites.get();
+			if (pending.isEmpty()) {
+				return;
+			}
+			synchronized (this) {
+				generation++;
+				for (Map.Entry<String, PendingWrites> entry : pending.entrySet()) {
+					String indexName = entry.getKey();
+					versions.merge(indexName, 1L, Long::sum);
+					SortedCurveStore store = stores.get(indexName);
+					if (entry.getValue().cleared) {
+						stores.remove(indexName);
+					} else if (store != null) {
+						stores.put(indexName, store.apply(entry.getValue().writes, generation));
+					}
+				}
+			}
+			pending.clear();
+		}
+
+		@Override
+		public void afterRollback(TransactionData data, Object state) {
+			pendingWrites.get().clear();
+		}
+
+		/**
+		 * Drop the stores of a database that shuts down, and stop listening to its transactions
+		 */
+		@Override
+		public void beforeShutdown() {
+			synchronized (registries) {
+				registries.remove(database);
+			}
+			database.unregisterTransactionEventHandler(this);
+		}
+
+		@Override
+		public void kernelPanic(ErrorState error) {
+		}
+
+		@Override
+		public Object getResource() {
+			return null;
+		}
+
+		@Override
+		public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+			return ExecutionOrder.DOESNT_MATTER;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.index.curves;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The CurveRule structure of a space filling curve compiled into a state machine, which converts between the
+ * interleaved bits of a normalized coordinate and the derived value of the curve several levels at a time.
+ * <p>
+ * Each CurveRule reachable from the root curve is a state. For every state and every combination of npoints on
+ * the next few levels, the tables hold the derived indexes of those levels together with the state that follows,
+ * so a step is a single array lookup. The levels that do not fill a whole step use the single level tables.
+ */
+class CurveStateTable
+{
+    private static final Map<SpaceFillingCurve.CurveRule,CurveStateTable> tables = new IdentityHashMap<>();
+
+    private final int nbrDim;
+    private final int levelsPerStep;
+    private final int stepBits;
+    private final int stepMask;
+    private final int[] encodeStep;
+    private final int[] decodeStep;
+    private final int[] encodeLevel;
+    private final int[] decodeLevel;
+
+    /**
+     * The tables are shared by all curves with the same root curve, since they only depend on its structure.
+     */
+    static synchronized CurveStateTable forRootCurve( SpaceFillingCurve.CurveRule rootCurve )
+    {
+        return tables.computeIfAbsent( rootCurve, CurveStateTable::new );
+    }
+
+    private CurveStateTable( SpaceFillingCurve.CurveRule rootCurve )
+    {
+        this.nbrDim = rootCurve.dimension;
+        // keep the tables of each state to at most 512 entries
+        this.levelsPerStep = Math.max( 1, 9 / nbrDim );
+        this.stepBits = levelsPerStep * nbrDim;
+        this.stepMask = (1 << stepBits) - 1;
+
+        List<SpaceFillingCurve.CurveRule> states = new ArrayList<>();
+        Map<SpaceFillingCurve.CurveRule,Integer> stateIds = new IdentityHashMap<>();
+        stateIds.put( rootCurve, 0 );
+        states.add( rootCurve );
+        for ( int state = 0; state < states.size(); state++ )
+        {
+            SpaceFillingCurve.CurveRule curve = states.get( state );
+            for ( int index = 0; index < curve.length(); index++ )
+            {
+                SpaceFillingCurve.CurveRule child = curve.childAt( index );
+                if ( !stateIds.containsKey( child ) )
+                {
+                    stateIds.put( child, states.size() );
+                    states.add( child );
+                }
+            }
+        }
+
+        int levelSize = 1 << nbrDim;
+        this.encodeLevel = new int[states.size() * levelSize];
+        this.decodeLevel = new int[states.size() * levelSize];
+        for ( int state = 0; state < states.size(); state++ )
+        {
+            SpaceFillingCurve.CurveRule curve = states.get( state );
+            for ( int npoint = 0; npoint < levelSize; npoint++ )
+            {
+                int index = curve.indexForNPoint( npoint );
+                int next = stateIds.get( curve.childAt( index ) );
+                encodeLevel[state * levelSize + npoint] = next << nbrDim | index;
+                decodeLevel[state * levelSize + index] = next << nbrDim | npoint;
+            }
+        }
+
+        int stepSize = 1 << stepBits;
+        this.encodeStep = new int[states.size() * stepSize];
+        this.decodeStep = new int[states.size() * stepSize];
+        for ( int state = 0; state < states.size(); state++ )
+        {
+            for ( int bits = 0; bits < stepSize; bits++ )
+            {
+                encodeStep[state * stepSize + bits] = walk( encodeLevel, state, bits );
+                decodeStep[state * stepSize + bits] = walk( decodeLevel, state, bits );
+            }
+        }
+    }
+
+    private int walk( int[] levelTable, int state, int bits )
+    {
+        int levelMask = (1 << nbrDim) - 1;
+        int result = 0;
+        for ( int level = levelsPerStep - 1; level >= 0; level-- )
+        {
+            int entry = levelTable[state << nbrDim | (bits >>> level * nbrDim) & levelMask];
+            result = result << nbrDim | entry & levelMask;
+            state = entry >>> nbrDim;
+        }
+        return state << stepBits | result;
+    }
+
+    /**
+     * Convert the top levels of the interleaved coordinate bits to the derived value of those levels
+     */
+    long encode( long interleaved, int levels )
+    {
+        return convert( encodeStep, encodeLevel, interleaved, levels );
+    }
+
+    /**
+     * Convert the top levels of the derived value to the interleaved coordinate bits of those levels
+     */
+    long decode( long derivedValue, int levels )
+    {
+        return convert( decodeStep, decodeLevel, derivedValue, levels );
+    }
+
+    private long convert( int[] stepTable, int[] levelTable, long value, int levels )
+    {
+        long result = 0;
+        int state = 0;
+        int shift = levels * nbrDim;
+        int level = 0;
+        for ( ; level + levelsPerStep <= levels; level += levelsPerStep )
+        {
+            shift -= stepBits;
+            int entry = stepTable[state << stepBits | (int) (value >>> shift) & stepMask];
+            result = result << stepBits | entry & stepMask;
+            state = entry >>> stepBits;
+        }
+        int levelMask = (1 << nbrDim) - 1;
+        for ( ; level < levels; level++ )
+        {
+            shift -= nbrDim;
+            int entry = levelTable[state << nbrDim | (int) (value >>> shift) & levelMask];
+            result = result << nbrDim | entry & levelMask;
+            state = entry >>> nbrDim;
+        }
+        return result;
+    }
+}
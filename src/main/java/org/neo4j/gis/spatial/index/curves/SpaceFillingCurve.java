@@ -22,6 +22,8 @@ package org.neo4j.gis.spatial.index.curves;
 import org.neo4j.gis.spatial.rtree.Envelope;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 public abstract class SpaceFillingCurve
@@ -80,9 +82,9 @@ public abstract class SpaceFillingCurve
     private final long width;
     private final long valueWidth;
     private final int quadFactor;
-    private final long initialNormMask;
 
     private double[] scalingFactor;
+    private final CurveStateTable stateTable;
 
     SpaceFillingCurve( Envelope range, int maxLevel )
     {
@@ -104,8 +106,8 @@ public abstract class SpaceFillingCurve
             scalingFactor[dim] = this.width / range.getWidth( dim );
         }
         this.valueWidth = (long) Math.pow( 2, maxLevel * nbrDim );
-        this.initialNormMask = (long) (Math.pow( 2, nbrDim ) - 1) << (maxLevel - 1) * nbrDim;
         this.quadFactor = (int) Math.pow( 2, nbrDim );
+        this.stateTable = CurveStateTable.forRootCurve( rootCurve() );
     }
 
     public int getMaxLevel()
@@ -149,28 +151,13 @@ public abstract class SpaceFillingCurve
     private Long derivedValueFor( double[] coord, int level )
     {
         assertValidLevel( level );
-        long[] normalizedValues = getNormalizedCoord( coord );
-        long derivedValue = 0;
-        long mask = 1L << (maxLevel - 1);
-
-        // The starting curve depends on the dimensions
-        CurveRule currentCurve = rootCurve();
-
-        for ( int i = 1; i <= maxLevel; i++ )
+        long interleaved = 0;
+        for ( int dim = 0; dim < nbrDim; dim++ )
         {
-            int bitIndex = maxLevel - i;
-            int npoint = 0;
-
-            for ( long val : normalizedValues )
-            {
-                npoint = npoint << 1 | (int) ((val & mask) >> bitIndex);
-            }
-
-            int derivedIndex = currentCurve.indexForNPoint( npoint );
-            derivedValue = (derivedValue << nbrDim) | derivedIndex;
-            mask = mask >> 1;
-            currentCurve = currentCurve.childAt( derivedIndex );
+            // the first dimension is the most significant bit of each npoint
+            interleaved |= spread( getNormalizedCoord( coord[dim], dim ) & (width - 1), nbrDim ) << (nbrDim - dim - 1);
         }
+        long derivedValue = encode( interleaved, maxLevel );
 
         if ( level < maxLevel )
         {
@@ -202,84 +189,223 @@ public abstract class SpaceFillingCurve
     long[] normalizedCoordinateFor( long derivedValue, int level )
     {
         assertValidLevel( level );
-        long mask = initialNormMask;
+        long interleaved = decode( derivedValue >>> (maxLevel - level) * nbrDim, level );
         long[] coordinate = new long[nbrDim];
 
-        // First level is a single curveUp
-        CurveRule currentCurve = rootCurve();
-
-        for ( int i = 1; i <= level; i++ )
+        for ( int dim = 0; dim < nbrDim; dim++ )
         {
+            coordinate[dim] = compact( interleaved >>> (nbrDim - dim - 1), nbrDim ) << maxLevel - level;
+        }
 
-            int bitIndex = maxLevel - i;
+        return coordinate;
+    }
 
-            int derivedIndex = (int) ((derivedValue & mask) >> bitIndex * nbrDim);
-            int npoint = currentCurve.npointForIndex( derivedIndex );
-            int[] bitValues = bitValues( npoint );
+    /**
+     * Convert the interleaved bits of the top levels of a normalized coordinate to the derived value of those
+     * levels. Each level is one npoint, with the first dimension in its most significant bit.
+     */
+    protected long encode( long interleaved, int levels )
+    {
+        return stateTable.encode( interleaved, levels );
+    }
 
-            for ( int dim = 0; dim < nbrDim; dim++ )
-            {
-                coordinate[dim] = coordinate[dim] << 1 | bitValues[dim];
-            }
+    /**
+     * Convert the derived value of the top levels to the interleaved bits of the normalized coordinate
+     */
+    protected long decode( long derivedValue, int levels )
+    {
+        return stateTable.decode( derivedValue, levels );
+    }
 
-            mask = mask >> nbrDim;
-            currentCurve = currentCurve.childAt( derivedIndex );
+    /**
+     * Spread the bits of the value apart, leaving nbrDim - 1 zero bits between each of them
+     */
+    static long spread( long value, int nbrDim )
+    {
+        switch ( nbrDim )
+        {
+        case 1:
+            return value;
+        case 2:
+            value &= 0x00000000FFFFFFFFL;
+            value = (value | value << 16) & 0x0000FFFF0000FFFFL;
+            value = (value | value << 8) & 0x00FF00FF00FF00FFL;
+            value = (value | value << 4) & 0x0F0F0F0F0F0F0F0FL;
+            value = (value | value << 2) & 0x3333333333333333L;
+            return (value | value << 1) & 0x5555555555555555L;
+        case 3:
+            value &= 0x00000000001FFFFFL;
+            value = (value | value << 32) & 0x001F00000000FFFFL;
+            value = (value | value << 16) & 0x001F0000FF0000FFL;
+            value = (value | value << 8) & 0x100F00F00F00F00FL;
+            value = (value | value << 4) & 0x10C30C30C30C30C3L;
+            return (value | value << 2) & 0x1249249249249249L;
+        default:
+            throw new IllegalArgumentException( "Cannot interleave " + nbrDim + " dimensions" );
         }
+    }
 
-        if ( level < maxLevel )
-        {
-            for ( int dim = 0; dim < nbrDim; dim++ )
-            {
-                coordinate[dim] = coordinate[dim] << maxLevel - level;
-            }
+    /**
+     * Gather every nbrDim'th bit of the value, starting with the least significant, the inverse of spread
+     */
+    static long compact( long value, int nbrDim )
+    {
+        switch ( nbrDim )
+        {
+        case 1:
+            return value;
+        case 2:
+            value &= 0x5555555555555555L;
+            value = (value | value >>> 1) & 0x3333333333333333L;
+            value = (value | value >>> 2) & 0x0F0F0F0F0F0F0F0FL;
+            value = (value | value >>> 4) & 0x00FF00FF00FF00FFL;
+            value = (value | value >>> 8) & 0x0000FFFF0000FFFFL;
+            return (value | value >>> 16) & 0x00000000FFFFFFFFL;
+        case 3:
+            value &= 0x1249249249249249L;
+            value = (value | value >>> 2) & 0x10C30C30C30C30C3L;
+            value = (value | value >>> 4) & 0x100F00F00F00F00FL;
+            value = (value | value >>> 8) & 0x001F0000FF0000FFL;
+            value = (value | value >>> 16) & 0x001F00000000FFFFL;
+            return (value | value >>> 32) & 0x00000000001FFFFFL;
+        default:
+            throw new IllegalArgumentException( "Cannot interleave " + nbrDim + " dimensions" );
         }
-
-        return coordinate;
     }
 
     /**
      * Given an envelope, find a collection of LongRange of tiles intersecting it on maxLevel and merge adjacent ones
      */
     public List<LongRange> getTilesIntersectingEnvelope( Envelope referenceEnvelope )
+    {
+        return getTilesIntersectingEnvelope( referenceEnvelope, TraversalConfiguration.EXACT );
+    }
+
+    /**
+     * Given an envelope, find a collection of LongRange of tiles intersecting it, within the limits of the
+     * configuration. The ranges may then include tiles outside the envelope, so the results of searching them need to
+     * be filtered by the envelope afterwards.
+     */
+    public List<LongRange> getTilesIntersectingEnvelope( Envelope referenceEnvelope, TraversalConfiguration config )
     {
         SearchEnvelope search = new SearchEnvelope( referenceEnvelope );
         ArrayList<LongRange> results = new ArrayList<>();
 
-        addTilesIntersectingEnvelopeAt( search, new SearchEnvelope( 0, this.getWidth(), nbrDim ), rootCurve(), 0, this.getValueWidth(), results );
-        return results;
+        addTilesIntersectingEnvelopeAt( config, 0, search, new SearchEnvelope( 0, this.getWidth(), nbrDim ), rootCurve(), 0, this.getValueWidth(),
+                results );
+        return coalesce( results, config );
     }
 
-    private void addTilesIntersectingEnvelopeAt( SearchEnvelope search, SearchEnvelope currentExtent, CurveRule curve, long left, long right,
-            ArrayList<LongRange> results )
+    private void addTilesIntersectingEnvelopeAt( TraversalConfiguration config, int depth, SearchEnvelope search, SearchEnvelope currentExtent,
+            CurveRule curve, long left, long right, ArrayList<LongRange> results )
     {
         if ( right - left == 1 )
         {
             long[] coord = normalizedCoordinateFor( left, maxLevel );
             if ( search.contains( coord ) )
             {
-                LongRange current = (results.size() > 0) ? results.get( results.size() - 1 ) : null;
-                if ( current != null && current.max == left - 1 )
-                {
-                    current.expandToMax( left );
-                }
-                else
-                {
-                    current = new LongRange( left );
-                    results.add( current );
-                }
+                addRange( left, left, results );
             }
         }
+        else if ( search.covers( currentExtent ) )
+        {
+            // all tiles below are inside the search, so there is no need to look at them one by one
+            addRange( left, right - 1, results );
+        }
         else if ( search.intersects( currentExtent ) )
         {
+            if ( depth >= config.maxDepth )
+            {
+                addRange( left, right - 1, results );
+                return;
+            }
             long width = (right - left) / quadFactor;
             for ( int i = 0; i < quadFactor; i++ )
             {
                 int npoint = curve.npointForIndex( i );
 
                 SearchEnvelope quadrant = currentExtent.quadrant( bitValues( npoint ) );
-                addTilesIntersectingEnvelopeAt( search, quadrant, curve.childAt( i ), left + i * width, left + (i + 1) * width, results );
+                addTilesIntersectingEnvelopeAt( config, depth + 1, search, quadrant, curve.childAt( i ), left + i * width, left + (i + 1) * width,
+                        results );
+            }
+        }
+    }
+
+    /**
+     * Tiles are found in curve order, so a new range either continues the last one or starts after it
+     */
+    private static void addRange( long min, long max, ArrayList<LongRange> results )
+    {
+        LongRange current = (results.size() > 0) ? results.get( results.size() - 1 ) : null;
+        if ( current != null && current.max == min - 1 )
+        {
+            current.expandToMax( max );
+        }
+        else
+        {
+            results.add( new LongRange( min, max ) );
+        }
+    }
+
+    /**
+     * Merge ranges across the smallest gaps between them, for as long as there are more than maxRanges ranges, or the
+     * tiles in the merged gaps stay within the allowed ratio of false positives to tiles that were found.
+     */
+    private static List<LongRange> coalesce( List<LongRange> ranges, TraversalConfiguration config )
+    {
+        if ( ranges.size() < 2 || (ranges.size() <= config.maxRanges && config.falsePositiveRatio <= 0.0) )
+        {
+            return ranges;
+        }
+        long found = 0;
+        Integer[] gaps = new Integer[ranges.size() - 1];
+        for ( int i = 0; i < ranges.size(); i++ )
+        {
+            found += ranges.get( i ).max - ranges.get( i ).min + 1;
+            if ( i < gaps.length )
+            {
+                gaps[i] = i;
+            }
+        }
+        Comparator<Integer> byGapSize = Comparator.comparingLong( i -> ranges.get( i + 1 ).min - ranges.get( i ).max - 1 );
+        Arrays.sort( gaps, byGapSize );
+
+        double allowed = found * config.falsePositiveRatio;
+        long added = 0;
+        int count = ranges.size();
+        boolean[] merge = new boolean[gaps.length];
+        for ( Integer gap : gaps )
+        {
+            long size = ranges.get( gap + 1 ).min - ranges.get( gap ).max - 1;
+            if ( count <= config.maxRanges && added + size > allowed )
+            {
+                break;
             }
+            merge[gap] = true;
+            added += size;
+            count--;
         }
+
+        List<LongRange> merged = new ArrayList<>( count );
+        LongRange current = null;
+        for ( int i = 0; i < ranges.size(); i++ )
+        {
+            LongRange range = ranges.get( i );
+            if ( current == null )
+            {
+                current = new LongRange( range.min, range.max );
+            }
+            else
+            {
+                current.expandToMax( range.max );
+            }
+            if ( i == gaps.length || !merge[i] )
+            {
+                merged.add( current );
+                current = null;
+            }
+        }
+        return merged;
     }
 
     /**
@@ -306,19 +432,24 @@ public abstract class SpaceFillingCurve
 
         for ( int dim = 0; dim < nbrDim; dim++ )
         {
-            double value = clamp( coord[dim], range.getMin( dim ), range.getMax( dim ) );
-            if ( value == range.getMax( dim ) )
-            {
-                normalizedCoord[dim] = valueWidth - 1;
-            }
-            else
-            {
-                normalizedCoord[dim] = (long) ((value - range.getMin( dim )) * scalingFactor[dim]);
-            }
+            normalizedCoord[dim] = getNormalizedCoord( coord[dim], dim );
         }
         return normalizedCoord;
     }
 
+    private long getNormalizedCoord( double coord, int dim )
+    {
+        double value = clamp( coord, range.getMin( dim ), range.getMax( dim ) );
+        if ( value == range.getMax( dim ) )
+        {
+            return valueWidth - 1;
+        }
+        else
+        {
+            return (long) ((value - range.getMin( dim )) * scalingFactor[dim]);
+        }
+    }
+
     /**
      * Given a normalized coordinate, find the center coordinate of that tile  on the given level
      */
@@ -358,6 +489,35 @@ public abstract class SpaceFillingCurve
         }
     }
 
+    /**
+     * Limits on the tiles found for a search envelope, trading precision for fewer ranges to search
+     */
+    public static class TraversalConfiguration
+    {
+        public static final TraversalConfiguration EXACT = new TraversalConfiguration( Integer.MAX_VALUE, Integer.MAX_VALUE, 0.0 );
+
+        public final int maxDepth;
+        public final int maxRanges;
+        public final double falsePositiveRatio;
+
+        /**
+         * @param maxDepth the number of levels to descend before taking whole tiles that intersect the envelope
+         * @param maxRanges the maximum number of ranges, after which ranges are merged across the smallest gaps
+         * @param falsePositiveRatio the number of tiles in gaps that may be merged, relative to the tiles found
+         */
+        public TraversalConfiguration( int maxDepth, int maxRanges, double falsePositiveRatio )
+        {
+            if ( maxDepth < 1 || maxRanges < 1 || falsePositiveRatio < 0.0 )
+            {
+                throw new IllegalArgumentException( "Invalid traversal configuration: maxDepth=" + maxDepth + ", maxRanges=" + maxRanges +
+                        ", falsePositiveRatio=" + falsePositiveRatio );
+            }
+            this.maxDepth = maxDepth;
+            this.maxRanges = maxRanges;
+            this.falsePositiveRatio = falsePositiveRatio;
+        }
+    }
+
     /**
      * Class for ranges of tiles
      */
@@ -371,7 +531,7 @@ public abstract class SpaceFillingCurve
             this( value, value );
         }
 
-        LongRange( long min, long max )
+        public LongRange( long min, long max )
         {
             this.min = min;
             this.max = max;
@@ -468,6 +628,22 @@ public abstract class SpaceFillingCurve
             return true;
         }
 
+        /**
+         * Whether all of the other envelope is inside this one. The maximum of this envelope is inclusive, while the
+         * maximum of the tile extents in the other is exclusive.
+         */
+        private boolean covers( SearchEnvelope other )
+        {
+            for ( int dim = 0; dim < nbrDim; dim++ )
+            {
+                if ( other.min[dim] < min[dim] || other.max[dim] - 1 > max[dim] )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         private boolean intersects( SearchEnvelope other )
         {
             for ( int dim = 0; dim < nbrDim; dim++ )
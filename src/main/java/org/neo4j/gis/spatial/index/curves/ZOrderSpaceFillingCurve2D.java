@@ -53,6 +53,10 @@ public class ZOrderSpaceFillingCurve2D extends SpaceFillingCurve
 
     private static final ZOrderCurve2D rootCurve = new ZOrderCurve2D( 1, 3, 0, 2 );
 
+    // the x and y bits of each level of the interleaved coordinate or derived value
+    private static final long X_BITS = 0xAAAAAAAAAAAAAAAAL;
+    private static final long Y_BITS = 0x5555555555555555L;
+
     public static final int MAX_LEVEL = 63 / 2 - 1;
 
     public ZOrderSpaceFillingCurve2D( Envelope range )
@@ -67,6 +71,23 @@ public class ZOrderSpaceFillingCurve2D extends SpaceFillingCurve
         assert range.getDimension() == 2;
     }
 
+    /**
+     * The curve rule maps each npoint xy to the index (not y)x, so the whole value is computed with bit masks
+     */
+    @Override
+    protected long encode( long interleaved, int levels )
+    {
+        long levelMask = (1L << levels * 2) - 1;
+        return ((~interleaved & Y_BITS) << 1 | (interleaved & X_BITS) >>> 1) & levelMask;
+    }
+
+    @Override
+    protected long decode( long derivedValue, int levels )
+    {
+        long levelMask = (1L << levels * 2) - 1;
+        return ((derivedValue & Y_BITS) << 1 | (~derivedValue & X_BITS) >>> 1) & levelMask;
+    }
+
     @Override
     protected CurveRule rootCurve()
     {
@@ -32,6 +32,8 @@ import org.neo4j.gis.spatial.index.LayerTreeIndexReader;
 import org.neo4j.gis.spatial.filter.SearchRecords;
 import org.neo4j.graphdb.Node;
 
+import com.vividsolutions.jts.geom.Coordinate;
+
 
 /**
  * This class wraps a SpatialIndexReader instance, passing through all calls
@@ -109,4 +111,9 @@ public class LayerIndexReaderWrapper implements LayerIndexReader {
 	public SearchRecords search(SearchFilter filter) {
 		return index.search(filter);
 	}
+
+	@Override
+	public SearchRecords searchNearest(Coordinate point, int k) {
+		return index.searchNearest(point, k);
+	}
 }
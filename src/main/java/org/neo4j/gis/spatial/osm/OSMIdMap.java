@@ -0,0 +1,332 @@
+/**
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Maps OSM ids to the ids of the nodes created for them during an import, outside of the Java heap. The pairs are
+ * kept as a sorted array in a memory mapped temporary file, so that an import of a whole planet does not need a
+ * heap the size of its nodes, and the operating system pages in only the parts of the array being used.
+ * <p>
+ * OSM files are sorted by id, so the pairs are appended in order, and a lookup is a binary search. Ids that arrive
+ * out of order are kept in a small overflow map on the heap, which lookups check first, and which is merged into the
+ * array once it is full. This keeps lookups cheap between out of order puts, as when applying a change file, instead
+ * of sorting the whole array again before the next lookup. The last put of an id always wins.
+ */
+class OSMIdMap implements AutoCloseable
+{
+    // every page holds 1M pairs of 16 bytes, and is mapped when the first pair is written to it
+    private static final int PAGE_BITS = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    // the number of out of order pairs kept on the heap before they are merged into the array
+    static final int OVERFLOW_SIZE = 1 << 16;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final ArrayList<MappedByteBuffer> mapped = new ArrayList<>();
+    private final ArrayList<LongBuffer> pages = new ArrayList<>();
+    private final HashMap<Long,Long> overflow = new HashMap<>();
+    private long size = 0;
+    private long lastKey = Long.MIN_VALUE;
+    // the position of the last lookup, since the ids of one way are usually near each other
+    private long cursor = 0;
+
+    OSMIdMap( String name )
+    {
+        try
+        {
+            this.file = File.createTempFile( "osm-" + name + "-ids", ".map" );
+            this.file.deleteOnExit();
+            this.raf = new RandomAccessFile( file, "rw" );
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( "Failed to create OSM id map", e );
+        }
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    long size()
+    {
+        return size + overflow.size();
+    }
+
+    void put( long osmId, long nodeId )
+    {
+        if ( size > 0 && osmId == lastKey )
+        {
+            setValue( size - 1, nodeId );
+            return;
+        }
+        if ( osmId < lastKey )
+        {
+            long index = find( osmId );
+            if ( index >= 0 )
+            {
+                setValue( index, nodeId );
+            }
+            else if ( overflow.put( osmId, nodeId ) == null && overflow.size() >= OVERFLOW_SIZE )
+            {
+                mergeOverflow();
+            }
+            return;
+        }
+        setPair( size, osmId, nodeId );
+        lastKey = osmId;
+        size++;
+    }
+
+    /**
+     * The node id for the given OSM id, or -1 if it was never put
+     */
+    long get( long osmId )
+    {
+        if ( !overflow.isEmpty() )
+        {
+            Long nodeId = overflow.get( osmId );
+            if ( nodeId != null )
+            {
+                return nodeId;
+            }
+        }
+        long index = find( osmId );
+        return index < 0 ? -1 : value( index );
+    }
+
+    @Override
+    public void close()
+    {
+        pages.clear();
+        overflow.clear();
+        size = 0;
+        // the mapped pages would otherwise keep the file open until they are garbage collected
+        for ( MappedByteBuffer buffer : mapped )
+        {
+            unmap( buffer );
+        }
+        mapped.clear();
+        try
+        {
+            raf.close();
+        }
+        catch ( IOException e )
+        {
+            // the file is deleted anyway
+        }
+        // a temporary file that could not be deleted now, for example on a platform that keeps a file open while it is
+        // still mapped, is deleted by deleteOnExit instead, so the result is ignored
+        file.delete();
+    }
+
+    /**
+     * The position of the given OSM id in the array, or -1 if it is not there
+     */
+    private long find( long osmId )
+    {
+        if ( size == 0 )
+        {
+            return -1;
+        }
+        long low = 0;
+        long high = size - 1;
+        // most lookups are close to the previous one, so try to narrow the search around it first
+        long near = Math.min( cursor, high );
+        long nearKey = key( near );
+        if ( nearKey == osmId )
+        {
+            return near;
+        }
+        else if ( nearKey < osmId )
+        {
+            low = near + 1;
+            high = Math.min( high, near + 64 );
+            if ( key( high ) < osmId )
+            {
+                low = high + 1;
+                high = size - 1;
+            }
+        }
+        else
+        {
+            high = near - 1;
+            low = Math.max( 0, near - 64 );
+            if ( key( low ) > osmId )
+            {
+                high = low - 1;
+                low = 0;
+            }
+        }
+        while ( low <= high )
+        {
+            long mid = ( low + high ) >>> 1;
+            long key = key( mid );
+            if ( key < osmId )
+            {
+                low = mid + 1;
+            }
+            else if ( key > osmId )
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                cursor = mid;
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Merge the overflow into the array in place, from the back, so that it needs no more memory than the overflow
+     * itself. The overflow only holds ids that are not in the array yet.
+     */
+    private void mergeOverflow()
+    {
+        int count = overflow.size();
+        if ( count > 0 )
+        {
+            long[] keys = new long[count];
+            int i = 0;
+            for ( long key : overflow.keySet() )
+            {
+                keys[i++] = key;
+            }
+            Arrays.sort( keys );
+            long from = size - 1;
+            long to = size + count - 1;
+            page( to );
+            for ( int next = count - 1; next >= 0; to-- )
+            {
+                if ( from >= 0 && key( from ) > keys[next] )
+                {
+                    setPair( to, key( from ), value( from ) );
+                    from--;
+                }
+                else
+                {
+                    setPair( to, keys[next], overflow.get( keys[next] ) );
+                    next--;
+                }
+            }
+            size += count;
+        }
+        overflow.clear();
+        cursor = 0;
+    }
+
+    private LongBuffer page( long index )
+    {
+        int page = (int) ( index >>> PAGE_BITS );
+        while ( pages.size() <= page )
+        {
+            try
+            {
+                long position = (long) pages.size() * PAGE_SIZE * 16;
+                MappedByteBuffer buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, position, PAGE_SIZE * 16L );
+                mapped.add( buffer );
+                pages.add( buffer.asLongBuffer() );
+            }
+            catch ( IOException e )
+            {
+                throw new UncheckedIOException( "Failed to extend OSM id map " + file, e );
+            }
+        }
+        return pages.get( page );
+    }
+
+    private long key( long index )
+    {
+        return pages.get( (int) ( index >>> PAGE_BITS ) ).get( (int) ( index & PAGE_MASK ) * 2 );
+    }
+
+    private long value( long index )
+    {
+        return pages.get( (int) ( index >>> PAGE_BITS ) ).get( (int) ( index & PAGE_MASK ) * 2 + 1 );
+    }
+
+    private void setValue( long index, long value )
+    {
+        pages.get( (int) ( index >>> PAGE_BITS ) ).put( (int) ( index & PAGE_MASK ) * 2 + 1, value );
+    }
+
+    private void setPair( long index, long key, long value )
+    {
+        LongBuffer page = page( index );
+        int offset = (int) ( index & PAGE_MASK ) * 2;
+        page.put( offset, key );
+        page.put( offset + 1, value );
+    }
+
+    /**
+     * Release a mapped page right away. There is no public API for this, so use the cleaner of the buffer on Java 8
+     * and Unsafe.invokeCleaner on later versions, and leave the page to the garbage collector if neither works.
+     */
+    private static void unmap( MappedByteBuffer buffer )
+    {
+        try
+        {
+            Class<?> unsafeClass = Class.forName( "sun.misc.Unsafe" );
+            Method invokeCleaner = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class );
+            Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+            theUnsafe.setAccessible( true );
+            invokeCleaner.invoke( theUnsafe.get( null ), buffer );
+        }
+        catch ( NoSuchMethodException e )
+        {
+            try
+            {
+                Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+                cleanerMethod.setAccessible( true );
+                Object cleaner = cleanerMethod.invoke( buffer );
+                if ( cleaner != null )
+                {
+                    cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+                }
+            }
+            catch ( Exception | LinkageError ignored )
+            {
+                // left to the garbage collector
+            }
+        }
+        catch ( Exception | LinkageError ignored )
+        {
+            // left to the garbage collector
+        }
+    }
+}
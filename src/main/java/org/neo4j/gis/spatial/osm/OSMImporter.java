@@ -32,30 +32,47 @@ import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
 import org.apache.commons.collections.MapUtils;
 import org.geotools.referencing.datum.DefaultEllipsoid;
 import org.neo4j.gis.spatial.utilities.ReferenceNodes;
+import org.neo4j.gis.spatial.utilities.TransactionLocal;
 import org.neo4j.gis.spatial.rtree.Envelope;
 import org.neo4j.gis.spatial.rtree.Listener;
 import org.neo4j.gis.spatial.rtree.NullListener;
 import org.neo4j.gis.spatial.Constants;
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SpatialDatabaseException;
 import org.neo4j.gis.spatial.SpatialDatabaseService;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
-import org.neo4j.graphdb.traversal.Evaluators;
 import org.neo4j.helpers.collection.MapUtil;
 import org.neo4j.index.impl.lucene.explicit.LuceneBatchInserterIndexProviderNewImpl;
 import org.neo4j.unsafe.batchinsert.*;
@@ -67,6 +84,8 @@ public class OSMImporter implements Constants
     public static String INDEX_NAME_USER = "user";
     public static String INDEX_NAME_NODE = "node";
     public static String INDEX_NAME_WAY = "node";
+    // the id of the last changeset node indexed by a re-index that has not completed yet
+    static final String PROP_REINDEX_CHECKPOINT = "reIndexCheckpoint";
 
     protected boolean nodesProcessingFinished = false;
     private String layerName;
@@ -231,6 +250,25 @@ public class OSMImporter implements Constants
         return reIndex( database, commitInterval, true, false );
     }
 
+    /**
+     * Rebuild the index of the layer from the geometries of the dataset. The changesets are read in batches of
+     * commitInterval, each by parallel readers that collect and verify the geometries of the ways and nodes of the
+     * changesets, and each batch is then added to the index at once, so that the index can bulk load it.
+     * <p>
+     * After every batch the last changeset indexed is recorded on the dataset node, in the same transaction as the
+     * index changes, so a re-index that fails resumes from there when run again, instead of starting over. The
+     * readers only see committed data, so when called within an open transaction the changesets are read in the
+     * calling thread instead, and nothing is committed until the caller commits.
+     * <p>
+     * Every way and point of interest with a geometry is indexed through its changeset, including the geometries of
+     * relations, while the points of ways are never indexed on their own. So includePoints and includeRelations
+     * have no effect, as they had none before the re-index was done by changeset, and are only kept for the
+     * callers of this method.
+     *
+     * @param includePoints ignored
+     * @param includeRelations ignored
+     * @return the number of changesets indexed, including any indexed by an earlier attempt
+     */
     public long reIndex( GraphDatabaseService database, int commitInterval,
             boolean includePoints, boolean includeRelations )
     {
@@ -249,70 +287,56 @@ public class OSMImporter implements Constants
         // layer, but this seems more like a side-effect and should be done
         // explicitly
         OSMDataset dataset = layer.getDataset( osm_dataset );
-        layer.clear(); // clear the index without destroying underlying data
 
         long startTime = System.currentTimeMillis();
-        org.neo4j.graphdb.traversal.TraversalDescription findWays = database.traversalDescription().depthFirst()
-                .evaluator(Evaluators.excludeStartPosition())
-                .relationships(OSMRelation.WAYS, Direction.OUTGOING)
-                .relationships(OSMRelation.NEXT, Direction.OUTGOING);
-        org.neo4j.graphdb.traversal.TraversalDescription findNodes = database.traversalDescription().depthFirst()
-                .evaluator(Evaluators.excludeStartPosition())
-                .relationships(OSMRelation.FIRST_NODE, Direction.OUTGOING)
-                .relationships(OSMRelation.NEXT, Direction.OUTGOING);
-
+        boolean parallel = !TransactionLocal.hasTransaction( database );
         Transaction tx = database.beginTx();
-        boolean useWays = false;
         int count = 0;
         try
         {
             layer.setExtraPropertyNames( stats.getTagStats( "all" ).getTags() );
-            if ( useWays )
+            Node datasetNode = database.getNodeById( osm_dataset );
+            long checkpoint = (Long) datasetNode.getProperty( PROP_REINDEX_CHECKPOINT, -1L );
+            if ( checkpoint < 0 )
             {
-                beginProgressMonitor( dataset.getWayCount() );
-                for ( Node way : findWays.traverse(database.getNodeById( osm_dataset )).nodes() )
-                {
-                    updateProgressMonitor( count );
-                    incrLogContext();
-                    stats.addGeomStats( layer.addWay( way, true ) );
-                    if ( includePoints )
-                    {
-                        for ( Node proxy : findNodes.traverse( way ).nodes() )
-                        {
-                            Node node = proxy.getSingleRelationship(
-                                    OSMRelation.NODE, Direction.OUTGOING ).getEndNode();
-                            stats.addGeomStats( layer.addWay( node, true ) );
-                        }
-                    }
-                    if ( ++count % commitInterval == 0 )
-                    {
-                        tx.success();
-                        tx.close();
-                        tx = database.beginTx();
-                    }
-                } // TODO ask charset to user?
+                layer.clear(); // clear the index without destroying underlying data
             }
             else
             {
-                beginProgressMonitor( dataset.getChangesetCount() );
-                for ( Node changeset : dataset.getAllChangesetNodes() )
+                log( "Resuming re-indexing after changeset node " + checkpoint );
+            }
+            // the traversal order is not guaranteed, so the changesets are indexed in the order of their node ids
+            ArrayList<Long> changesets = new ArrayList<Long>();
+            for ( Node changeset : dataset.getAllChangesetNodes() )
+            {
+                changesets.add( changeset.getId() );
+            }
+            Collections.sort( changesets );
+            beginProgressMonitor( changesets.size() );
+            for ( int from = 0; from < changesets.size(); from += commitInterval )
+            {
+                List<Long> batch = changesets.subList( from, Math.min( from + commitInterval, changesets.size() ) );
+                long last = batch.get( batch.size() - 1 );
+                count += batch.size();
+                if ( last <= checkpoint )
                 {
-                    updateProgressMonitor( count );
-                    incrLogContext();
-                    for ( Relationship rel : changeset.getRelationships(
-                            OSMRelation.CHANGESET, Direction.INCOMING ) )
-                    {
-                        stats.addGeomStats( layer.addWay( rel.getStartNode(),
-                                true ) );
-                    }
-                    if ( ++count % commitInterval == 0 )
-                    {
-                        tx.success();
-                        tx.close();
-                        tx = database.beginTx();
-                    }
-                } // TODO ask charset to user?
+                    continue;
+                }
+                List<Node> geomNodes = new ArrayList<Node>();
+                for ( Node geomNode : readGeometries( database, layer, batch, checkpoint, parallel ) )
+                {
+                    stats.addGeomStats( geomNode );
+                    geomNodes.add( geomNode );
+                }
+                layer.addGeometries( geomNodes );
+                datasetNode.setProperty( PROP_REINDEX_CHECKPOINT, last );
+                updateProgressMonitor( count );
+                incrLogContext();
+                tx.success();
+                tx.close();
+                tx = database.beginTx();
             }
+            datasetNode.removeProperty( PROP_REINDEX_CHECKPOINT );
             tx.success();
         }
         finally
@@ -330,6 +354,92 @@ public class OSMImporter implements Constants
         return count;
     }
 
+    /**
+     * Find the geometries of the ways and nodes of the given changesets that were not indexed before the
+     * checkpoint, leaving out those that fail to decode. The changesets are divided between the worker threads,
+     * which each read in their own transaction with their own geometry encoder.
+     */
+    private List<Node> readGeometries( GraphDatabaseService database, OSMLayer layer, List<Long> changesets,
+            long checkpoint, boolean parallel )
+    {
+        if ( !parallel )
+        {
+            OSMGeometryEncoder encoder = new OSMGeometryEncoder();
+            encoder.init( layer );
+            return readGeometries( database, encoder, changesets, checkpoint );
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        int sliceSize = ( changesets.size() + threads - 1 ) / threads;
+        List<Future<List<Node>>> slices = new ArrayList<Future<List<Node>>>();
+        for ( int from = 0; from < changesets.size(); from += sliceSize )
+        {
+            List<Long> slice = changesets.subList( from, Math.min( from + sliceSize, changesets.size() ) );
+            slices.add( getExecutor().submit( () -> {
+                OSMGeometryEncoder encoder = new OSMGeometryEncoder();
+                encoder.init( layer );
+                try ( Transaction tx = database.beginTx() )
+                {
+                    List<Node> geomNodes = readGeometries( database, encoder, slice, checkpoint );
+                    tx.success();
+                    return geomNodes;
+                }
+            } ) );
+        }
+        List<Node> geomNodes = new ArrayList<Node>();
+        try
+        {
+            for ( Future<List<Node>> slice : slices )
+            {
+                geomNodes.addAll( slice.get() );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new SpatialDatabaseException( "Interrupted while re-indexing", e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof RuntimeException )
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new SpatialDatabaseException( "Failed to read geometries for re-indexing", e.getCause() );
+        }
+        finally
+        {
+            for ( Future<List<Node>> slice : slices )
+            {
+                slice.cancel( true );
+            }
+        }
+        return geomNodes;
+    }
+
+    private static List<Node> readGeometries( GraphDatabaseService database, OSMGeometryEncoder encoder,
+            List<Long> changesets, long checkpoint )
+    {
+        List<Node> geomNodes = new ArrayList<Node>();
+        for ( long changesetId : changesets )
+        {
+            if ( changesetId <= checkpoint )
+            {
+                continue;
+            }
+            for ( Relationship rel : database.getNodeById( changesetId ).getRelationships(
+                    OSMRelation.CHANGESET, Direction.INCOMING ) )
+            {
+                Node way = rel.getStartNode();
+                Relationship geomRel = way.getSingleRelationship( OSMRelation.GEOM, Direction.OUTGOING );
+                if ( geomRel != null && OSMLayer.isValidGeometry( encoder, way, geomRel.getEndNode() ) )
+                {
+                    geomNodes.add( geomRel.getEndNode() );
+                }
+            }
+        }
+        return geomNodes;
+    }
+
     private static class GeometryMetaData
     {
         private Envelope bbox = new Envelope();
@@ -609,6 +719,8 @@ public class OSMImporter implements Constants
         int relationCount = 0;
         int userCount = 0;
         int changesetCount = 0;
+        private OSMIdMap nodeIds;
+        private OSMIdMap wayIds;
 
         /**
          * Add the BBox metadata to the dataset
@@ -631,6 +743,11 @@ public class OSMImporter implements Constants
         {
             T changesetNode = getChangesetNode( nodeProps );
             currentNode = addNode( "node", nodeProps, "node_osm_id" );
+            if ( nodeIds == null )
+            {
+                nodeIds = new OSMIdMap( "node" );
+            }
+            nodeIds.put( Long.parseLong( nodeProps.get( "node_osm_id" ).toString() ), getNodeId( currentNode ) );
             createRelationship( currentNode, changesetNode,
                     OSMRelation.CHANGESET );
             nodeCount++;
@@ -671,26 +788,16 @@ public class OSMImporter implements Constants
         protected void createOSMWay( Map<String, Object> wayProperties,
                 ArrayList<Long> wayNodes, LinkedHashMap<String, Object> wayTags )
         {
-            RoadDirection direction = getRoadDirection( wayTags );
-            String name = (String) wayTags.get( "name" );
-            int geometry = GTYPE_LINESTRING;
-            boolean isRoad = wayTags.containsKey( "highway" );
-            if ( isRoad )
-            {
-                wayProperties.put( "oneway", direction.toString() );
-                wayProperties.put( "highway", wayTags.get( "highway" ) );
-            }
-            if ( name != null )
-            {
-                // Copy name tag to way because this seems like a valuable
-                // location for
-                // such a property
-                wayProperties.put( "name", name );
-            }
+            RoadDirection direction = addWayProperties( wayProperties, wayTags );
             String way_osm_id = (String) wayProperties.get( "way_osm_id" );
             T changesetNode = getChangesetNode( wayProperties );
             T way = addNode( INDEX_NAME_WAY, wayProperties, "way_osm_id" );
             createRelationship( way, changesetNode, OSMRelation.CHANGESET );
+            if ( wayIds == null )
+            {
+                wayIds = new OSMIdMap( "way" );
+            }
+            wayIds.put( Long.parseLong( way_osm_id ), getNodeId( way ) );
             if ( prev_way == null )
             {
                 createRelationship( osm_dataset, way, OSMRelation.WAYS );
@@ -702,6 +809,45 @@ public class OSMImporter implements Constants
             prev_way = way;
             addNodeTags( way, wayTags, "way" );
             Envelope bbox = new Envelope();
+            int geometry = addOSMWayNodes( way, wayNodes, direction, bbox );
+            addNodeGeometry( way, geometry, bbox, wayNodes.size() );
+            this.wayCount++;
+        }
+
+        /**
+         * Copy the tags of a way that are used for routing and labelling to the properties of the way node
+         *
+         * @return the direction of the way
+         */
+        RoadDirection addWayProperties( Map<String, Object> wayProperties,
+                Map<String, Object> wayTags )
+        {
+            RoadDirection direction = getRoadDirection( wayTags );
+            String name = (String) wayTags.get( "name" );
+            boolean isRoad = wayTags.containsKey( "highway" );
+            if ( isRoad )
+            {
+                wayProperties.put( "oneway", direction.toString() );
+                wayProperties.put( "highway", wayTags.get( "highway" ) );
+            }
+            if ( name != null )
+            {
+                // Copy name tag to way because this seems like a valuable
+                // location for
+                // such a property
+                wayProperties.put( "name", name );
+            }
+            return direction;
+        }
+
+        /**
+         * Link the way to a chain of proxies for its nodes, expanding the bounding box to include the nodes
+         *
+         * @return the geometry type of the way
+         */
+        int addOSMWayNodes( T way, List<Long> wayNodes, RoadDirection direction, Envelope bbox )
+        {
+            int geometry = GTYPE_LINESTRING;
             T firstNode = null;
             T prevNode = null;
             T prevProxy = null;
@@ -713,7 +859,7 @@ public class OSMImporter implements Constants
             {
                 // long pointNode =
                 // batchIndexService.getSingleNode("node_osm_id", nd_ref);
-                T pointNode = getOSMNode( nd_ref, changesetNode );
+                T pointNode = getOSMNode( nd_ref );
                 if ( pointNode == null )
                 {
                     /*
@@ -786,8 +932,7 @@ public class OSMImporter implements Constants
             {
                 geometry = GTYPE_POINT;
             }
-            addNodeGeometry( way, geometry, bbox, wayNodes.size() );
-            this.wayCount++;
+            return geometry;
         }
 
         private void createOSMRelation( Map<String, Object> relationProperties,
@@ -815,6 +960,21 @@ public class OSMImporter implements Constants
             }
             prev_relation = relation;
             addNodeTags( relation, relationTags, "relation" );
+            GeometryMetaData metaGeom = addOSMRelationMembers( relation, relationMembers );
+            if ( metaGeom.isValid() )
+            {
+                addNodeGeometry( relation, metaGeom.getGeometryType(),
+                        metaGeom.getBBox(), metaGeom.getVertices() );
+            }
+            this.relationCount++;
+        }
+
+        /**
+         * Link the relation to its members, collecting the geometry of the members on the way
+         */
+        private GeometryMetaData addOSMRelationMembers( T relation,
+                List<Map<String, Object>> relationMembers )
+        {
             // We will test for cases that invalidate multilinestring further
             // down
             GeometryMetaData metaGeom = new GeometryMetaData(
@@ -827,9 +987,7 @@ public class OSMImporter implements Constants
                 long member_ref = Long.parseLong( memberProps.get( "ref" ).toString() );
                 if ( memberType != null )
                 {
-                    T member = getSingleNode( memberType, memberType
-                                                          + "_osm_id",
-                            member_ref );
+                    T member = getOSMMember( memberType, member_ref );
                     if ( null == member || prevMember == member )
                     {
                         /*
@@ -842,7 +1000,7 @@ public class OSMImporter implements Constants
                     if ( member == relation )
                     {
                         osmImporter.error( "Cannot add relation to same member: relation["
-                                           + relationTags
+                                           + relation
                                            + "] - member["
                                            + memberProps + "]" );
                         continue;
@@ -894,12 +1052,7 @@ public class OSMImporter implements Constants
                                         + memberProps.toString() );
                 }
             }
-            if ( metaGeom.isValid() )
-            {
-                addNodeGeometry( relation, metaGeom.getGeometryType(),
-                        metaGeom.getBBox(), metaGeom.getVertices() );
-            }
-            this.relationCount++;
+            return metaGeom;
         }
 
         /**
@@ -916,7 +1069,58 @@ public class OSMImporter implements Constants
 
         protected abstract Map<String, Object> getNodeProperties( T member );
 
-        protected abstract T getOSMNode( long osmId, T changesetNode );
+        /**
+         * Find the node of an OSM node in the id map of the nodes imported so far, or in the index for nodes
+         * imported into the database before. The map replaces an index lookup for each node of each way.
+         */
+        protected T getOSMNode( long osmId )
+        {
+            long nodeId = nodeIds == null ? -1 : nodeIds.get( osmId );
+            if ( nodeId < 0 )
+            {
+                logNodeFoundFrom( "node-index" );
+                return getSingleNode( INDEX_NAME_NODE, "node_osm_id", osmId );
+            }
+            else
+            {
+                logNodeFoundFrom( "id-map" );
+                return getNodeById( nodeId );
+            }
+        }
+
+        private T getOSMMember( String memberType, long osmId )
+        {
+            OSMIdMap ids = memberType.equals( "node" ) ? nodeIds : memberType.equals( "way" ) ? wayIds : null;
+            long nodeId = ids == null ? -1 : ids.get( osmId );
+            if ( nodeId < 0 )
+            {
+                // the ways share the index of the nodes
+                String indexName = memberType.equals( "way" ) ? INDEX_NAME_WAY : memberType;
+                return getSingleNode( indexName, memberType + "_osm_id", osmId );
+            }
+            return getNodeById( nodeId );
+        }
+
+        /**
+         * Release the id maps, which only live as long as one import
+         */
+        void closeIdMaps()
+        {
+            if ( nodeIds != null )
+            {
+                nodeIds.close();
+                nodeIds = null;
+            }
+            if ( wayIds != null )
+            {
+                wayIds.close();
+                wayIds = null;
+            }
+        }
+
+        protected abstract long getNodeId( T node );
+
+        protected abstract T getNodeById( long nodeId );
 
         protected abstract void updateGeometryMetaDataFromMember( T member,
                 GeometryMetaData metaGeom, Map<String, Object> nodeProps );
@@ -940,7 +1144,6 @@ public class OSMImporter implements Constants
         private long currentUserId = -1;
         private Node currentUserNode;
         private Node usersNode;
-        private HashMap<Long, Node> changesetNodes = new HashMap<Long, Node>();
         private Transaction tx;
         private int checkCount = 0;
         private int txInterval;
@@ -1165,36 +1368,15 @@ public class OSMImporter implements Constants
         }
 
         @Override
-        protected Node getOSMNode( long osmId, Node changesetNode )
+        protected long getNodeId( Node node )
         {
-            if ( currentChangesetNode != changesetNode
-                 || changesetNodes.isEmpty() )
-            {
-                currentChangesetNode = changesetNode;
-                changesetNodes.clear();
-                for ( Relationship rel : changesetNode.getRelationships(
-                        OSMRelation.CHANGESET, Direction.INCOMING ) )
-                {
-                    Node node = rel.getStartNode();
-                    Long nodeOsmId = (Long) node.getProperty( "node_osm_id",
-                            null );
-                    if ( nodeOsmId != null )
-                    {
-                        changesetNodes.put( nodeOsmId, node );
-                    }
-                }
-            }
-            Node node = changesetNodes.get( osmId );
-            if ( node == null )
-            {
-                logNodeFoundFrom( "node-index" );
-                return indexFor( "node" ).get( "node_osm_id", osmId ).getSingle();
-            }
-            else
-            {
-                logNodeFoundFrom( "changeset" );
-                return node;
-            }
+            return node.getId();
+        }
+
+        @Override
+        protected Node getNodeById( long nodeId )
+        {
+            return graphDb.getNodeById( nodeId );
         }
 
         @Override
@@ -1346,7 +1528,6 @@ public class OSMImporter implements Constants
         private long currentUserId = -1;
         private long currentUserNode = -1;
         private long usersNode = -1;
-        private HashMap<Long, Long> changesetNodes = new HashMap<Long, Long>();
 
         private OSMBatchWriter( BatchInserter batchGraphDb,
                 StatsManager statsManager, OSMImporter osmImporter )
@@ -1561,39 +1742,15 @@ public class OSMImporter implements Constants
         }
 
         @Override
-        protected Long getOSMNode( long osmId, Long changesetNode )
+        protected long getNodeId( Long node )
         {
-            if ( currentChangesetNode != changesetNode
-                 || changesetNodes.isEmpty() )
-            {
-                currentChangesetNode = changesetNode;
-                changesetNodes.clear();
-                for ( BatchRelationship rel : batchInserter.getRelationships( changesetNode ) )
-                {
-                    if ( rel.getType().name().equals(
-                            OSMRelation.CHANGESET.name() ) )
-                    {
-                        Long node = rel.getStartNode();
-                        Map<String, Object> props = batchInserter.getNodeProperties( node );
-                        Long nodeOsmId = (Long) props.get( "node_osm_id" );
-                        if ( nodeOsmId != null )
-                        {
-                            changesetNodes.put( nodeOsmId, node );
-                        }
-                    }
-                }
-            }
-            Long node = changesetNodes.get( osmId );
-            if ( node == null )
-            {
-                logNodeFoundFrom( "node-index" );
-                return indexFor( INDEX_NAME_NODE ).get( "node_osm_id", osmId ).getSingle();
-            }
-            else
-            {
-                logNodeFoundFrom( "changeset" );
-                return node;
-            }
+            return node;
+        }
+
+        @Override
+        protected Long getNodeById( long nodeId )
+        {
+            return nodeId;
         }
 
         @Override
@@ -1648,7 +1805,6 @@ public class OSMImporter implements Constants
             if ( changeset != currentChangesetId )
             {
                 currentChangesetId = changeset;
-                changesetNodes.clear();
                 IndexHits<Long> results = indexFor( "changeset" ).get(
                         "changeset", currentChangesetId );
                 if ( results.size() > 0 )
@@ -1757,6 +1913,72 @@ public class OSMImporter implements Constants
                 dataset, allPoints, charset );
     }
 
+    public long applyChanges( GraphDatabaseService database, String changeFile )
+            throws IOException, XMLStreamException
+    {
+        return applyChanges( database, changeFile, false );
+    }
+
+    /**
+     * Apply an osmChange file, like the minutely, hourly and daily diffs published for the planet, to the dataset
+     * of the layer. The nodes, ways and relations created, modified and deleted by the file are changed in the
+     * graph, and only the geometries that depend on them are re-encoded, from the ways whose nodes moved to the
+     * relations that have those ways as members. Their index entries are patched in place, so the layer does not
+     * need to be re-indexed.
+     * <p>
+     * The whole file is applied in one transaction, so a diff is either applied completely or not at all, and can
+     * simply be applied again after a failure. The layer must have been indexed with reIndex before.
+     *
+     * @param allPoints whether the dataset was imported with all nodes as points, so that modified nodes keep or
+     *            lose their point geometry like an import would give them
+     * @return the number of nodes, ways and relations in the change file
+     */
+    public long applyChanges( GraphDatabaseService database, String changeFile,
+            boolean allPoints ) throws IOException, XMLStreamException
+    {
+        log( "Applying changes from " + changeFile );
+        long startTime = System.currentTimeMillis();
+        long count;
+        beginProgressMonitor( 100 );
+        setLogContext( changeFile );
+        try ( Transaction tx = database.beginTx() )
+        {
+            Layer layer = new SpatialDatabaseService( database ).getLayer( layerName );
+            if ( !( layer instanceof OSMLayer ) )
+            {
+                throw new SpatialDatabaseException( "No OSM layer '" + layerName + "' to apply changes to" );
+            }
+            OSMWriter<Node> osmWriter = OSMWriter.fromGraphDatabase( database, stats, this, 10000, false );
+            try
+            {
+                osmWriter.getOrCreateOSMDataset( layerName );
+                osm_dataset = osmWriter.getDatasetId();
+                ChangeApplier changes = new ChangeApplier( database, (OSMLayer) layer, osmWriter, allPoints );
+                CountedFileReader reader = new CountedFileReader( changeFile, charset );
+                XMLStreamReader parser = XMLInputFactory.newInstance().createXMLStreamReader( reader );
+                parseChanges( parser, reader, changes );
+                changes.reencode();
+                osmWriter.finish();
+                count = changes.count;
+            }
+            finally
+            {
+                osmWriter.closeIdMaps();
+            }
+            tx.success();
+        }
+        finally
+        {
+            endProgressMonitor();
+        }
+        if ( verboseLog )
+        {
+            log( "info | Applied " + count + " changes in seconds: "
+                 + ( 1.0 * ( System.currentTimeMillis() - startTime ) / 1000.0 ) );
+        }
+        return count;
+    }
+
     public static class CountedFileReader extends InputStreamReader
     {
         private long length = 0;
@@ -1851,44 +2073,66 @@ public class OSMImporter implements Constants
 
         long startTime = System.currentTimeMillis();
         long[] times = new long[] { 0L, 0L, 0L, 0L };
-        javax.xml.stream.XMLInputFactory factory = javax.xml.stream.XMLInputFactory.newInstance();
-        CountedFileReader reader = new CountedFileReader( dataset, charset );
-        javax.xml.stream.XMLStreamReader parser = factory.createXMLStreamReader( reader );
-        int countXMLTags = 0;
         beginProgressMonitor( 100 );
         setLogContext( dataset );
-        boolean startedWays = false;
-        boolean startedRelations = false;
+        ImportPipeline pipeline = new ImportPipeline();
+        try
+        {
+            if ( dataset.toLowerCase().endsWith( ".pbf" ) )
+            {
+                OSMPBFReader reader = new OSMPBFReader( new File( dataset ) );
+                pipeline.start( () -> reader.read( pipeline ) );
+            }
+            else
+            {
+                CountedFileReader reader = new CountedFileReader( dataset, charset );
+                XMLStreamReader parser = XMLInputFactory.newInstance().createXMLStreamReader( reader );
+                pipeline.start( () -> parseXML( parser, reader, pipeline ) );
+            }
+            pipeline.write( osmWriter, allPoints, times );
+        }
+        finally
+        {
+            pipeline.stop();
+            endProgressMonitor();
+            osmWriter.finish();
+            osmWriter.closeIdMaps();
+            this.osm_dataset = osmWriter.getDatasetId();
+        }
+        describeImport( osmWriter, startTime, times );
+    }
+
+    /**
+     * Parse an OSM XML file into entities with the raw attributes of their elements, which are converted into
+     * properties by the pipeline. This runs in the parser thread of the pipeline.
+     */
+    private void parseXML( XMLStreamReader parser, CountedFileReader reader, ImportPipeline pipeline )
+            throws XMLStreamException, InterruptedException
+    {
         try
         {
             ArrayList<String> currentXMLTags = new ArrayList<String>();
             int depth = 0;
-            Map<String, Object> wayProperties = null;
-            ArrayList<Long> wayNodes = new ArrayList<Long>();
-            Map<String, Object> relationProperties = null;
-            ArrayList<Map<String, Object>> relationMembers = new ArrayList<Map<String, Object>>();
-            LinkedHashMap<String, Object> currentNodeTags = new LinkedHashMap<String, Object>();
+            OSMEntity entity = null;
             while ( true )
             {
-                updateProgressMonitor( reader.getPercentRead() );
-                incrLogContext();
                 int event = parser.next();
-                if ( event == javax.xml.stream.XMLStreamConstants.END_DOCUMENT )
+                if ( event == XMLStreamConstants.END_DOCUMENT )
                 {
                     break;
                 }
                 switch ( event )
                 {
-                case javax.xml.stream.XMLStreamConstants.START_ELEMENT:
+                case XMLStreamConstants.START_ELEMENT:
                     currentXMLTags.add( depth, parser.getLocalName() );
                     String tagPath = currentXMLTags.toString();
                     if ( tagPath.equals( "[osm]" ) )
                     {
-                        osmWriter.setDatasetProperties( extractProperties( parser ) );
+                        pipeline.add( new OSMEntity( OSMEntity.DATASET, extractProperties( parser ) ) );
                     }
                     else if ( tagPath.equals( "[osm, bounds]" ) )
                     {
-                        osmWriter.addOSMBBox( extractProperties( PROP_BBOX, parser ) );
+                        pipeline.add( new OSMEntity( OSMEntity.BOUNDS, extractProperties( PROP_BBOX, parser ) ) );
                     }
                     else if ( tagPath.equals( "[osm, node]" ) )
                     {
@@ -1896,101 +2140,433 @@ public class OSMImporter implements Constants
                         // lon="12.9693483" user="sanna" uid="31450"
                         // visible="true" version="1" changeset="133823"
                         // timestamp="2008-06-11T12:36:28Z"/>
-                    	boolean includeNode = true;
-                    	Map<String, Object> nodeProperties = extractProperties( "node", parser );
-                    	if(filterEnvelope!=null) {
-                    		includeNode = filterEnvelope.contains((Double)nodeProperties.get("lon"), (Double)nodeProperties.get("lat"));
-                    	}
-                    	if (includeNode) {
-                    		osmWriter.createOSMNode( nodeProperties );
-                    	}
+                        entity = new OSMEntity( OSMEntity.NODE, attributes( parser ) );
                     }
                     else if ( tagPath.equals( "[osm, way]" ) )
                     {
                         // <way id="27359054" user="spull" uid="61533"
                         // visible="true" version="8" changeset="4707351"
                         // timestamp="2010-05-15T15:39:57Z">
-                        if ( !startedWays )
-                        {
-                            startedWays = true;
-                            times[0] = System.currentTimeMillis();
-                            osmWriter.optimize();
-                            times[1] = System.currentTimeMillis();
-                        }
-                        wayProperties = extractProperties( "way", parser );
-                        wayNodes.clear();
+                        entity = new OSMEntity( OSMEntity.WAY, attributes( parser ) );
+                        entity.wayNodes = new ArrayList<Long>();
                     }
-                    else if ( tagPath.equals( "[osm, way, nd]" ) )
+                    else if ( tagPath.equals( "[osm, way, nd]" ) && entity != null )
                     {
-                        Map<String, Object> properties = extractProperties( parser );
-                        wayNodes.add( Long.parseLong( properties.get( "ref" ).toString() ) );
+                        entity.wayNodes.add( Long.parseLong( parser.getAttributeValue( null, "ref" ) ) );
                     }
-                    else if ( tagPath.endsWith( "tag]" ) )
+                    else if ( tagPath.endsWith( "tag]" ) && entity != null )
                     {
-                        Map<String, Object> properties = extractProperties( parser );
-                        currentNodeTags.put( properties.get( "k" ).toString(),
-                                properties.get( "v" ).toString() );
+                        entity.tags.put( parser.getAttributeValue( null, "k" ), parser.getAttributeValue( null, "v" ) );
                     }
                     else if ( tagPath.equals( "[osm, relation]" ) )
                     {
                         // <relation id="77965" user="Grillo" uid="13957"
                         // visible="true" version="24" changeset="5465617"
                         // timestamp="2010-08-11T19:25:46Z">
-                        if ( !startedRelations )
-                        {
-                            startedRelations = true;
-                            times[2] = System.currentTimeMillis();
-                            osmWriter.optimize();
-                            times[3] = System.currentTimeMillis();
-                        }
-                        relationProperties = extractProperties( "relation",
-                                parser );
-                        relationMembers.clear();
+                        entity = new OSMEntity( OSMEntity.RELATION, attributes( parser ) );
+                        entity.members = new ArrayList<Map<String, Object>>();
+                    }
+                    else if ( tagPath.equals( "[osm, relation, member]" ) && entity != null )
+                    {
+                        entity.members.add( extractProperties( parser ) );
                     }
-                    else if ( tagPath.equals( "[osm, relation, member]" ) )
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if ( depth == 2 && entity != null )
                     {
-                        relationMembers.add( extractProperties( parser ) );
+                        pipeline.add( entity );
+                        entity = null;
                     }
-                    if ( startedRelations )
+                    depth--;
+                    currentXMLTags.remove( depth );
+                    pipeline.progress( reader.getPercentRead() );
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            parser.close();
+        }
+    }
+
+    private static ArrayList<String> attributes( XMLStreamReader parser )
+    {
+        ArrayList<String> attributes = new ArrayList<String>( parser.getAttributeCount() * 2 );
+        for ( int i = 0; i < parser.getAttributeCount(); i++ )
+        {
+            attributes.add( parser.getAttributeLocalName( i ) );
+            attributes.add( parser.getAttributeValue( i ) );
+        }
+        return attributes;
+    }
+
+    /**
+     * A node, way or relation on its way through the import pipeline. Entities parsed from XML carry the raw
+     * attributes of their element until they are prepared, while entities read from PBF already have properties.
+     */
+    private static class OSMEntity
+    {
+        private static final int DATASET = 0;
+        private static final int BOUNDS = 1;
+        private static final int NODE = 2;
+        private static final int WAY = 3;
+        private static final int RELATION = 4;
+
+        private final int type;
+        private Map<String, Object> properties;
+        private ArrayList<String> attributes;
+        private LinkedHashMap<String, Object> tags = new LinkedHashMap<String, Object>();
+        private ArrayList<Long> wayNodes;
+        private ArrayList<Map<String, Object>> members;
+        private boolean excluded = false;
+
+        private OSMEntity( int type, Map<String, Object> properties )
+        {
+            this.type = type;
+            this.properties = properties;
+        }
+
+        private OSMEntity( int type, ArrayList<String> attributes )
+        {
+            this.type = type;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * The import runs as a pipeline of three stages. The parser thread reads the file and groups the entities in
+     * batches, which are queued for the shared pool of worker threads to convert the attributes into properties,
+     * filter the nodes and clean up the tags. The calling thread writes the prepared batches to the graph in the
+     * order of the file, since transactions and the batch inserter are bound to one thread.
+     * <p>
+     * The queue of batches is bounded, so the parser waits for the writer once it is a few batches ahead of it.
+     * The geometry of the ways and relations is still built by the writer, from the point nodes in the graph.
+     */
+    private class ImportPipeline implements OSMPBFReader.Handler
+    {
+        private static final int BATCH_SIZE = 1000;
+
+        private final BlockingQueue<Future<List<OSMEntity>>> batches =
+                new ArrayBlockingQueue<>( 2 * Runtime.getRuntime().availableProcessors() );
+        private final Future<List<OSMEntity>> end = CompletableFuture.completedFuture( null );
+        private List<OSMEntity> batch = new ArrayList<>( BATCH_SIZE );
+        private volatile int percent = 0;
+        private Thread parser;
+
+        private void start( ImportSource source )
+        {
+            parser = new Thread( () -> {
+                try
+                {
+                    source.read();
+                    flush();
+                    batches.put( end );
+                }
+                catch ( InterruptedException e )
+                {
+                    // the writer stopped the pipeline
+                }
+                catch ( Exception e )
+                {
+                    CompletableFuture<List<OSMEntity>> failed = new CompletableFuture<>();
+                    failed.completeExceptionally( e );
+                    try
+                    {
+                        batches.put( failed );
+                    }
+                    catch ( InterruptedException stopped )
+                    {
+                        // the writer has already stopped
+                    }
+                }
+            }, "OSMImporter-parser" );
+            parser.setDaemon( true );
+            parser.start();
+        }
+
+        private void stop()
+        {
+            if ( parser != null )
+            {
+                parser.interrupt();
+                batches.clear();
+            }
+        }
+
+        private void add( OSMEntity entity ) throws InterruptedException
+        {
+            batch.add( entity );
+            if ( batch.size() >= BATCH_SIZE )
+            {
+                flush();
+            }
+        }
+
+        @Override
+        public void progress( int percent )
+        {
+            this.percent = percent;
+        }
+
+        private void flush() throws InterruptedException
+        {
+            if ( !batch.isEmpty() )
+            {
+                List<OSMEntity> entities = batch;
+                batch = new ArrayList<>( BATCH_SIZE );
+                batches.put( getExecutor().submit( () -> prepare( entities ) ) );
+            }
+        }
+
+        private List<OSMEntity> prepare( List<OSMEntity> entities )
+        {
+            for ( OSMEntity entity : entities )
+            {
+                switch ( entity.type )
+                {
+                case OSMEntity.NODE:
+                    if ( entity.attributes != null )
+                    {
+                        entity.properties = extractProperties( "node", entity.attributes );
+                    }
+                    entity.tags.remove( "created_by" ); // redundant information
+                    if ( filterEnvelope != null )
+                    {
+                        entity.excluded = !filterEnvelope.contains( (Double) entity.properties.get( "lon" ),
+                                (Double) entity.properties.get( "lat" ) );
+                    }
+                    break;
+                case OSMEntity.WAY:
+                    if ( entity.attributes != null )
+                    {
+                        entity.properties = extractProperties( "way", entity.attributes );
+                    }
+                    break;
+                case OSMEntity.RELATION:
+                    if ( entity.attributes != null )
+                    {
+                        entity.properties = extractProperties( "relation", entity.attributes );
+                    }
+                    break;
+                default:
+                    break;
+                }
+                entity.attributes = null;
+            }
+            return entities;
+        }
+
+        /**
+         * Write the batches to the graph in the calling thread until the parser has read the whole file
+         */
+        private void write( OSMWriter<?> osmWriter, boolean allPoints, long[] times ) throws IOException, XMLStreamException
+        {
+            boolean startedWays = false;
+            boolean startedRelations = false;
+            while ( true )
+            {
+                List<OSMEntity> entities;
+                try
+                {
+                    entities = batches.take().get();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException( "Interrupted while importing", e );
+                }
+                catch ( ExecutionException e )
+                {
+                    Throwable cause = e.getCause();
+                    if ( cause instanceof IOException )
+                    {
+                        throw (IOException) cause;
+                    }
+                    if ( cause instanceof XMLStreamException )
+                    {
+                        throw (XMLStreamException) cause;
+                    }
+                    if ( cause instanceof RuntimeException )
+                    {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IOException( "Failed to import", cause );
+                }
+                if ( entities == null )
+                {
+                    break;
+                }
+                for ( OSMEntity entity : entities )
+                {
+                    incrLogContext();
+                    switch ( entity.type )
                     {
-                        if ( countXMLTags < 10 )
+                    case OSMEntity.DATASET:
+                        osmWriter.setDatasetProperties( entity.properties );
+                        break;
+                    case OSMEntity.BOUNDS:
+                        osmWriter.addOSMBBox( entity.properties );
+                        break;
+                    case OSMEntity.NODE:
+                        if ( !entity.excluded )
+                        {
+                            osmWriter.createOSMNode( entity.properties );
+                            osmWriter.addOSMNodeTags( allPoints, entity.tags );
+                        }
+                        break;
+                    case OSMEntity.WAY:
+                        if ( !startedWays )
                         {
-                            debug( "Starting tag at depth " + depth + ": "
-                                 + currentXMLTags.get( depth ) + " - "
-                                 + currentXMLTags.toString() );
-                            for ( int i = 0; i < parser.getAttributeCount(); i++ )
-                            {
-                                debug( "\t" + currentXMLTags.toString() + ": "
-                                     + parser.getAttributeLocalName( i ) + "["
-                                     + parser.getAttributeNamespace( i ) + ","
-                                     + parser.getAttributePrefix( i ) + ","
-                                     + parser.getAttributeType( i ) + ","
-                                     + "] = " + parser.getAttributeValue( i ) );
-                            }
+                            startedWays = true;
+                            times[0] = System.currentTimeMillis();
+                            osmWriter.optimize();
+                            times[1] = System.currentTimeMillis();
+                        }
+                        osmWriter.createOSMWay( entity.properties, entity.wayNodes, entity.tags );
+                        break;
+                    default:
+                        if ( !startedRelations )
+                        {
+                            startedRelations = true;
+                            times[2] = System.currentTimeMillis();
+                            osmWriter.optimize();
+                            times[3] = System.currentTimeMillis();
                         }
-                        countXMLTags++;
+                        osmWriter.createOSMRelation( entity.properties, entity.members, entity.tags );
                     }
-                    depth++;
-                    break;
-                case javax.xml.stream.XMLStreamConstants.END_ELEMENT:
-                    if ( currentXMLTags.toString().equals( "[osm, node]" ) )
+                }
+                updateProgressMonitor( percent );
+            }
+        }
+
+        @Override
+        public void dataset( Map<String, Object> datasetProperties, Map<String, Object> bboxProperties )
+        {
+            addUninterruptibly( new OSMEntity( OSMEntity.DATASET, datasetProperties ) );
+            if ( bboxProperties != null )
+            {
+                addUninterruptibly( new OSMEntity( OSMEntity.BOUNDS, bboxProperties ) );
+            }
+        }
+
+        @Override
+        public void node( Map<String, Object> nodeProperties, LinkedHashMap<String, Object> tags )
+        {
+            OSMEntity entity = new OSMEntity( OSMEntity.NODE, nodeProperties );
+            entity.tags = tags;
+            addUninterruptibly( entity );
+        }
+
+        @Override
+        public void way( Map<String, Object> wayProperties, ArrayList<Long> wayNodes, LinkedHashMap<String, Object> tags )
+        {
+            OSMEntity entity = new OSMEntity( OSMEntity.WAY, wayProperties );
+            entity.wayNodes = wayNodes;
+            entity.tags = tags;
+            addUninterruptibly( entity );
+        }
+
+        @Override
+        public void relation( Map<String, Object> relationProperties, ArrayList<Map<String, Object>> members,
+                LinkedHashMap<String, Object> tags )
+        {
+            OSMEntity entity = new OSMEntity( OSMEntity.RELATION, relationProperties );
+            entity.members = members;
+            entity.tags = tags;
+            addUninterruptibly( entity );
+        }
+
+        /**
+         * The PBF reader calls the handler without expecting interruptions, so they stop it with an exception
+         */
+        private void addUninterruptibly( OSMEntity entity )
+        {
+            try
+            {
+                add( entity );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException( "Import stopped", e );
+            }
+        }
+    }
+
+    private interface ImportSource
+    {
+        void read() throws Exception;
+    }
+
+    /**
+     * Parse an osmChange file, which has the nodes, ways and relations of the osm format grouped in create, modify
+     * and delete elements, and apply each change as soon as its element has been read.
+     */
+    private void parseChanges( XMLStreamReader parser, CountedFileReader reader, ChangeApplier changes )
+            throws XMLStreamException
+    {
+        try
+        {
+            String action = null;
+            OSMEntity entity = null;
+            int depth = 0;
+            while ( parser.hasNext() )
+            {
+                switch ( parser.next() )
+                {
+                case XMLStreamConstants.START_ELEMENT:
+                    String element = parser.getLocalName();
+                    if ( depth == 1 )
                     {
-                    	osmWriter.addOSMNodeTags( allPoints, currentNodeTags );
+                        action = element;
                     }
-                    else if ( currentXMLTags.toString().equals( "[osm, way]" ) )
+                    else if ( depth == 2 )
                     {
-                        osmWriter.createOSMWay( wayProperties, wayNodes,
-                                currentNodeTags );
+                        if ( element.equals( "node" ) )
+                        {
+                            entity = new OSMEntity( OSMEntity.NODE, attributes( parser ) );
+                        }
+                        else if ( element.equals( "way" ) )
+                        {
+                            entity = new OSMEntity( OSMEntity.WAY, attributes( parser ) );
+                            entity.wayNodes = new ArrayList<Long>();
+                        }
+                        else if ( element.equals( "relation" ) )
+                        {
+                            entity = new OSMEntity( OSMEntity.RELATION, attributes( parser ) );
+                            entity.members = new ArrayList<Map<String, Object>>();
+                        }
                     }
-                    else if ( currentXMLTags.toString().equals(
-                            "[osm, relation]" ) )
+                    else if ( depth == 3 && entity != null )
                     {
-                        osmWriter.createOSMRelation( relationProperties,
-                                relationMembers, currentNodeTags );
+                        if ( element.equals( "tag" ) )
+                        {
+                            entity.tags.put( parser.getAttributeValue( null, "k" ), parser.getAttributeValue( null, "v" ) );
+                        }
+                        else if ( element.equals( "nd" ) && entity.wayNodes != null )
+                        {
+                            entity.wayNodes.add( Long.parseLong( parser.getAttributeValue( null, "ref" ) ) );
+                        }
+                        else if ( element.equals( "member" ) && entity.members != null )
+                        {
+                            entity.members.add( extractProperties( parser ) );
+                        }
                     }
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
                     depth--;
-                    currentXMLTags.remove( depth );
-                    // log("Ending tag at depth "+depth+": "+currentTags.get(depth));
+                    if ( depth == 2 && entity != null )
+                    {
+                        incrLogContext();
+                        changes.apply( action, entity );
+                        entity = null;
+                    }
+                    updateProgressMonitor( reader.getPercentRead() );
                     break;
                 default:
                     break;
@@ -1999,11 +2575,620 @@ public class OSMImporter implements Constants
         }
         finally
         {
-            endProgressMonitor();
             parser.close();
-            osmWriter.finish();
-            this.osm_dataset = osmWriter.getDatasetId();
         }
+    }
+
+    /**
+     * Applies the changes of an osmChange file to the graph of a dataset. New nodes, ways and relations are created
+     * by the writer of an import, while existing ones are changed in place. The ways and relations whose geometry
+     * depends on the changes are collected while the changes are applied, and re-encoded once at the end.
+     */
+    private class ChangeApplier
+    {
+        private final GraphDatabaseService database;
+        private final OSMLayer layer;
+        private final OSMGeometryEncoder encoder;
+        private final OSMWriter<Node> osmWriter;
+        private final boolean allPoints;
+        private final LinkedHashSet<Node> changedWays = new LinkedHashSet<Node>();
+        private final LinkedHashSet<Node> changedRelations = new LinkedHashSet<Node>();
+        private long count = 0;
+
+        private ChangeApplier( GraphDatabaseService database, OSMLayer layer, OSMWriter<Node> osmWriter,
+                boolean allPoints )
+        {
+            this.database = database;
+            this.layer = layer;
+            this.encoder = (OSMGeometryEncoder) layer.getGeometryEncoder();
+            this.osmWriter = osmWriter;
+            this.allPoints = allPoints;
+            // new ways and relations are appended to the chains of the dataset, rather than starting new ones
+            osmWriter.prev_way = lastInChain( osmWriter.osm_dataset, OSMRelation.WAYS );
+            osmWriter.prev_relation = lastInChain( osmWriter.osm_dataset, OSMRelation.RELATIONS );
+        }
+
+        /**
+         * Follow a chain of ways or relations from the dataset node to its end
+         *
+         * @return the last way or relation in the chain, or null if it is empty
+         */
+        private Node lastInChain( Node datasetNode, RelationshipType firstType )
+        {
+            Node last = null;
+            Relationship rel = datasetNode.getSingleRelationship( firstType, Direction.OUTGOING );
+            while ( rel != null )
+            {
+                last = rel.getEndNode();
+                rel = last.getSingleRelationship( OSMRelation.NEXT, Direction.OUTGOING );
+            }
+            return last;
+        }
+
+        private void apply( String action, OSMEntity entity )
+        {
+            String type = entity.type == OSMEntity.NODE ? "node" : entity.type == OSMEntity.WAY ? "way" : "relation";
+            Map<String, Object> properties = extractProperties( type, entity.attributes );
+            entity.tags.remove( "created_by" ); // redundant information
+            long osmId = Long.parseLong( properties.get( type + "_osm_id" ).toString() );
+            Node node = findOSMNode( type, osmId );
+            count++;
+            if ( action.equals( "delete" ) )
+            {
+                if ( node == null )
+                {
+                    return;
+                }
+                switch ( entity.type )
+                {
+                case OSMEntity.NODE:
+                    deleteNode( node );
+                    break;
+                case OSMEntity.WAY:
+                    deleteWay( node );
+                    break;
+                default:
+                    deleteRelation( node );
+                }
+            }
+            else if ( node == null )
+            {
+                // modifications of elements we do not have, like those outside of an extract, add them
+                create( entity, properties );
+            }
+            else if ( action.equals( "create" ) || action.equals( "modify" ) )
+            {
+                switch ( entity.type )
+                {
+                case OSMEntity.NODE:
+                    modifyNode( node, properties, entity.tags );
+                    break;
+                case OSMEntity.WAY:
+                    modifyWay( node, properties, entity.wayNodes, entity.tags );
+                    break;
+                default:
+                    modifyRelation( node, properties, entity.members, entity.tags );
+                }
+            }
+        }
+
+        private Node findOSMNode( String type, long osmId )
+        {
+            String indexName = type.equals( "node" ) ? INDEX_NAME_NODE : type.equals( "way" ) ? INDEX_NAME_WAY : type;
+            return osmWriter.getSingleNode( indexName, type + "_osm_id", osmId );
+        }
+
+        private void create( OSMEntity entity, Map<String, Object> properties )
+        {
+            switch ( entity.type )
+            {
+            case OSMEntity.NODE:
+                if ( filterEnvelope == null || filterEnvelope.contains( (Double) properties.get( "lon" ),
+                        (Double) properties.get( "lat" ) ) )
+                {
+                    osmWriter.createOSMNode( properties );
+                    osmWriter.addOSMNodeTags( allPoints, entity.tags );
+                    layer.addWay( osmWriter.currentNode, true );
+                }
+                break;
+            case OSMEntity.WAY:
+                osmWriter.createOSMWay( properties, entity.wayNodes, entity.tags );
+                layer.addWay( osmWriter.prev_way, true );
+                break;
+            default:
+                osmWriter.createOSMRelation( properties, entity.members, entity.tags );
+            }
+        }
+
+        private void modifyNode( Node node, Map<String, Object> properties, LinkedHashMap<String, Object> tags )
+        {
+            boolean moved = !properties.get( "lon" ).equals( node.getProperty( "lon", null ) )
+                            || !properties.get( "lat" ).equals( node.getProperty( "lat", null ) );
+            replaceChangeset( node, properties );
+            replaceProperties( node, properties, "node_osm_id" );
+            deleteTags( node );
+            Relationship geomRel = node.getSingleRelationship( OSMRelation.GEOM, Direction.OUTGOING );
+            if ( geomRel == null )
+            {
+                osmWriter.currentNode = node;
+                osmWriter.addOSMNodeTags( allPoints, tags );
+                layer.addWay( node, true );
+            }
+            else
+            {
+                if ( allPoints || tags.size() > 0 )
+                {
+                    double lon = (Double) node.getProperty( "lon" );
+                    double lat = (Double) node.getProperty( "lat" );
+                    Node geomNode = geomRel.getEndNode();
+                    encoder.encodeEnvelope( new Envelope( lon, lon, lat, lat ), geomNode );
+                    layer.updateGeometry( geomNode );
+                }
+                else if ( deleteGeometry( node ) )
+                {
+                    osmWriter.poiCount--;
+                }
+                osmWriter.addNodeTags( node, tags, "node" );
+            }
+            if ( moved )
+            {
+                for ( Relationship nodeRel : node.getRelationships( OSMRelation.NODE, Direction.INCOMING ) )
+                {
+                    Node proxy = nodeRel.getStartNode();
+                    for ( Relationship next : proxy.getRelationships( OSMRelation.NEXT ) )
+                    {
+                        next.setProperty( "length", length( next ) );
+                    }
+                    changeWay( findWay( proxy ) );
+                }
+                changeRelations( node );
+            }
+        }
+
+        private void modifyWay( Node way, Map<String, Object> properties, ArrayList<Long> wayNodes,
+                LinkedHashMap<String, Object> tags )
+        {
+            RoadDirection direction = osmWriter.addWayProperties( properties, tags );
+            replaceChangeset( way, properties );
+            replaceProperties( way, properties, "way_osm_id" );
+            deleteTags( way );
+            osmWriter.addNodeTags( way, tags, "way" );
+            for ( Node proxy : getProxies( way ) )
+            {
+                for ( Relationship rel : proxy.getRelationships() )
+                {
+                    rel.delete();
+                }
+                proxy.delete();
+            }
+            osmWriter.addOSMWayNodes( way, wayNodes, direction, new Envelope() );
+            changeWay( way );
+        }
+
+        private void modifyRelation( Node relation, Map<String, Object> properties,
+                ArrayList<Map<String, Object>> members, LinkedHashMap<String, Object> tags )
+        {
+            String name = (String) tags.get( "name" );
+            if ( name != null )
+            {
+                properties.put( "name", name );
+            }
+            replaceProperties( relation, properties, "relation_osm_id" );
+            deleteTags( relation );
+            osmWriter.addNodeTags( relation, tags, "relation" );
+            for ( Relationship member : relation.getRelationships( OSMRelation.MEMBER, Direction.OUTGOING ) )
+            {
+                member.delete();
+            }
+            GeometryMetaData metaGeom = osmWriter.addOSMRelationMembers( relation, members );
+            Relationship geomRel = relation.getSingleRelationship( OSMRelation.GEOM, Direction.OUTGOING );
+            if ( !metaGeom.isValid() )
+            {
+                deleteGeometry( relation );
+            }
+            else if ( geomRel == null )
+            {
+                osmWriter.addNodeGeometry( relation, metaGeom.getGeometryType(), metaGeom.getBBox(),
+                        metaGeom.getVertices() );
+            }
+            else
+            {
+                // the bounding box is re-encoded at the end, once the members are up to date
+                geomRel.getEndNode().setProperty( "gtype", metaGeom.getGeometryType() );
+                changedRelations.add( relation );
+            }
+            changeRelations( relation );
+        }
+
+        private void deleteNode( Node node )
+        {
+            for ( Relationship nodeRel : node.getRelationships( OSMRelation.NODE, Direction.INCOMING ) )
+            {
+                Node proxy = nodeRel.getStartNode();
+                changeWay( findWay( proxy ) );
+                removeProxy( proxy );
+            }
+            if ( deleteGeometry( node ) )
+            {
+                osmWriter.poiCount--;
+            }
+            deleteOSMNode( node, INDEX_NAME_NODE );
+            osmWriter.nodeCount--;
+        }
+
+        private void deleteWay( Node way )
+        {
+            Node previous = unlink( way, OSMRelation.WAYS );
+            if ( way.equals( osmWriter.prev_way ) )
+            {
+                osmWriter.prev_way = previous;
+            }
+            for ( Node proxy : getProxies( way ) )
+            {
+                for ( Relationship rel : proxy.getRelationships() )
+                {
+                    rel.delete();
+                }
+                proxy.delete();
+            }
+            deleteGeometry( way );
+            deleteOSMNode( way, INDEX_NAME_WAY );
+            osmWriter.wayCount--;
+        }
+
+        private void deleteRelation( Node relation )
+        {
+            Node previous = unlink( relation, OSMRelation.RELATIONS );
+            if ( relation.equals( osmWriter.prev_relation ) )
+            {
+                osmWriter.prev_relation = previous;
+            }
+            deleteGeometry( relation );
+            deleteOSMNode( relation, "relation" );
+            osmWriter.relationCount--;
+        }
+
+        /**
+         * Delete a node, way or relation with its tags and remaining relationships, leaving the relations it was a
+         * member of to be re-encoded
+         */
+        private void deleteOSMNode( Node node, String indexName )
+        {
+            for ( Relationship member : node.getRelationships( OSMRelation.MEMBER, Direction.INCOMING ) )
+            {
+                changedRelations.add( member.getStartNode() );
+            }
+            deleteTags( node );
+            database.index().forNodes( indexName ).remove( node );
+            for ( Relationship rel : node.getRelationships() )
+            {
+                rel.delete();
+            }
+            changedWays.remove( node );
+            changedRelations.remove( node );
+            node.delete();
+        }
+
+        /**
+         * Take a way or relation out of the chain of the dataset, linking its neighbours instead
+         *
+         * @return the way or relation before it in the chain, if any
+         */
+        private Node unlink( Node node, RelationshipType firstType )
+        {
+            Relationship in = node.getSingleRelationship( OSMRelation.NEXT, Direction.INCOMING );
+            Relationship out = node.getSingleRelationship( OSMRelation.NEXT, Direction.OUTGOING );
+            if ( in == null )
+            {
+                in = node.getSingleRelationship( firstType, Direction.INCOMING );
+            }
+            if ( in != null && out != null )
+            {
+                in.getStartNode().createRelationshipTo( out.getEndNode(), in.getType() );
+            }
+            return in != null && in.isType( OSMRelation.NEXT ) ? in.getStartNode() : null;
+        }
+
+        /**
+         * Take a proxy out of the chain of its way, linking its neighbours instead
+         */
+        private void removeProxy( Node proxy )
+        {
+            Relationship first = proxy.getSingleRelationship( OSMRelation.FIRST_NODE, Direction.INCOMING );
+            Relationship in = proxy.getSingleRelationship( OSMRelation.NEXT, Direction.INCOMING );
+            Relationship out = proxy.getSingleRelationship( OSMRelation.NEXT, Direction.OUTGOING );
+            if ( in != null && out != null )
+            {
+                Relationship next = in.getStartNode().createRelationshipTo( out.getEndNode(), OSMRelation.NEXT );
+                next.setProperty( "length", length( next ) );
+            }
+            else if ( first != null && ( in != null || out != null ) )
+            {
+                // one way streets against the direction of their nodes link them backwards
+                Node next = out != null ? out.getEndNode() : in.getStartNode();
+                first.getStartNode().createRelationshipTo( next, OSMRelation.FIRST_NODE );
+            }
+            for ( Relationship rel : proxy.getRelationships() )
+            {
+                rel.delete();
+            }
+            proxy.delete();
+        }
+
+        /**
+         * Remove the geometry of a node, way or relation from the index and delete it
+         *
+         * @return whether there was a geometry
+         */
+        private boolean deleteGeometry( Node node )
+        {
+            Relationship geomRel = node.getSingleRelationship( OSMRelation.GEOM, Direction.OUTGOING );
+            if ( geomRel == null )
+            {
+                return false;
+            }
+            Node geomNode = geomRel.getEndNode();
+            layer.removeGeometry( geomNode );
+            for ( Relationship rel : geomNode.getRelationships() )
+            {
+                rel.delete();
+            }
+            geomNode.delete();
+            return true;
+        }
+
+        private void deleteTags( Node node )
+        {
+            for ( Relationship rel : node.getRelationships( OSMRelation.TAGS, Direction.OUTGOING ) )
+            {
+                Node tagsNode = rel.getEndNode();
+                rel.delete();
+                tagsNode.delete();
+            }
+        }
+
+        private void replaceChangeset( Node node, Map<String, Object> properties )
+        {
+            Node changesetNode = osmWriter.getChangesetNode( properties );
+            Relationship rel = node.getSingleRelationship( OSMRelation.CHANGESET, Direction.OUTGOING );
+            if ( rel != null && rel.getEndNode().equals( changesetNode ) )
+            {
+                return;
+            }
+            if ( rel != null )
+            {
+                rel.delete();
+            }
+            node.createRelationshipTo( changesetNode, OSMRelation.CHANGESET );
+        }
+
+        private void replaceProperties( Node node, Map<String, Object> properties, String idKey )
+        {
+            properties.put( idKey, Long.parseLong( properties.get( idKey ).toString() ) );
+            for ( String key : new ArrayList<String>( node.getAllProperties().keySet() ) )
+            {
+                if ( !properties.containsKey( key ) )
+                {
+                    node.removeProperty( key );
+                }
+            }
+            for ( Map.Entry<String, Object> property : properties.entrySet() )
+            {
+                node.setProperty( property.getKey(), property.getValue() );
+            }
+        }
+
+        private void changeWay( Node way )
+        {
+            if ( way != null )
+            {
+                changedWays.add( way );
+            }
+        }
+
+        private void changeRelations( Node member )
+        {
+            for ( Relationship rel : member.getRelationships( OSMRelation.MEMBER, Direction.INCOMING ) )
+            {
+                changedRelations.add( rel.getStartNode() );
+            }
+        }
+
+        /**
+         * Re-encode the geometries of the changed ways and then of the changed relations, which depend on those of
+         * their members, and patch their index entries
+         */
+        private void reencode()
+        {
+            for ( Node way : changedWays )
+            {
+                reencodeWay( way );
+                changeRelations( way );
+            }
+            // relations can be members of relations too, so a changed relation changes the relations it belongs to
+            HashSet<Node> reencoded = new HashSet<Node>();
+            ArrayDeque<Node> pending = new ArrayDeque<Node>( changedRelations );
+            while ( !pending.isEmpty() )
+            {
+                Node relation = pending.poll();
+                if ( reencoded.add( relation ) && reencodeRelation( relation ) )
+                {
+                    for ( Relationship rel : relation.getRelationships( OSMRelation.MEMBER, Direction.INCOMING ) )
+                    {
+                        pending.add( rel.getStartNode() );
+                    }
+                }
+            }
+        }
+
+        private void reencodeWay( Node way )
+        {
+            List<Node> proxies = getProxies( way );
+            if ( proxies.isEmpty() )
+            {
+                deleteGeometry( way );
+                return;
+            }
+            Envelope bbox = new Envelope();
+            Node first = null;
+            Node last = null;
+            for ( Node proxy : proxies )
+            {
+                last = getPoint( proxy );
+                bbox.expandToInclude( (Double) last.getProperty( "lon" ), (Double) last.getProperty( "lat" ) );
+                if ( first == null )
+                {
+                    first = last;
+                }
+            }
+            int gtype = proxies.size() < 2 ? GTYPE_POINT : first.equals( last ) ? GTYPE_POLYGON : GTYPE_LINESTRING;
+            Relationship geomRel = way.getSingleRelationship( OSMRelation.GEOM, Direction.OUTGOING );
+            if ( geomRel == null )
+            {
+                osmWriter.addNodeGeometry( way, gtype, bbox, proxies.size() );
+                layer.addWay( way, true );
+                return;
+            }
+            Node geomNode = geomRel.getEndNode();
+            geomNode.setProperty( "gtype", gtype );
+            geomNode.setProperty( "vertices", proxies.size() );
+            encoder.encodeEnvelope( bbox, geomNode );
+            if ( OSMLayer.isValidGeometry( encoder, way, geomNode ) )
+            {
+                layer.updateGeometry( geomNode );
+            }
+            else
+            {
+                layer.removeGeometry( geomNode );
+            }
+        }
+
+        /**
+         * Re-encode the bounding box of a relation from the geometries of its members, which only relations that
+         * had a geometry before have
+         *
+         * @return whether the geometry changed
+         */
+        private boolean reencodeRelation( Node relation )
+        {
+            Relationship geomRel = relation.getSingleRelationship( OSMRelation.GEOM, Direction.OUTGOING );
+            if ( geomRel == null )
+            {
+                return false;
+            }
+            Node geomNode = geomRel.getEndNode();
+            GeometryMetaData metaGeom = new GeometryMetaData( (Integer) geomNode.getProperty( "gtype" ) );
+            for ( Relationship rel : relation.getRelationships( OSMRelation.MEMBER, Direction.OUTGOING ) )
+            {
+                Node member = rel.getEndNode();
+                if ( member.hasProperty( "node_osm_id" ) )
+                {
+                    metaGeom.expandToIncludePoint( new double[] { (Double) member.getProperty( "lon" ),
+                            (Double) member.getProperty( "lat" ) } );
+                }
+                else
+                {
+                    osmWriter.updateGeometryMetaDataFromMember( member, metaGeom, null );
+                }
+            }
+            if ( !metaGeom.getBBox().isValid() )
+            {
+                return deleteGeometry( relation );
+            }
+            double[] before = (double[]) geomNode.getProperty( PROP_BBOX, null );
+            geomNode.setProperty( "vertices", metaGeom.getVertices() );
+            encoder.encodeEnvelope( metaGeom.getBBox(), geomNode );
+            // relations are only in the index if they were added to it explicitly
+            if ( layer.getIndex().isNodeIndexed( geomNode.getId() ) )
+            {
+                layer.updateGeometry( geomNode );
+            }
+            return !Arrays.equals( before, (double[]) geomNode.getProperty( PROP_BBOX ) );
+        }
+
+        /**
+         * The proxies of the nodes of a way in order, following the chain in either direction, since one way
+         * streets against the direction of their nodes link them backwards
+         */
+        private List<Node> getProxies( Node way )
+        {
+            ArrayList<Node> proxies = new ArrayList<Node>();
+            Relationship firstRel = way.getSingleRelationship( OSMRelation.FIRST_NODE, Direction.OUTGOING );
+            Node previous = null;
+            Node proxy = firstRel == null ? null : firstRel.getEndNode();
+            while ( proxy != null )
+            {
+                proxies.add( proxy );
+                Node next = null;
+                for ( Relationship rel : proxy.getRelationships( OSMRelation.NEXT ) )
+                {
+                    Node other = rel.getOtherNode( proxy );
+                    if ( !other.equals( previous ) )
+                    {
+                        next = other;
+                    }
+                }
+                previous = proxy;
+                proxy = next;
+            }
+            return proxies;
+        }
+
+        private Node findWay( Node proxy )
+        {
+            for ( Direction direction : new Direction[] { Direction.INCOMING, Direction.OUTGOING } )
+            {
+                Node current = proxy;
+                while ( current != null )
+                {
+                    Relationship first = current.getSingleRelationship( OSMRelation.FIRST_NODE, Direction.INCOMING );
+                    if ( first != null )
+                    {
+                        return first.getStartNode();
+                    }
+                    Relationship next = current.getSingleRelationship( OSMRelation.NEXT, direction );
+                    current = next == null ? null : next.getOtherNode( current );
+                }
+            }
+            return null;
+        }
+
+        private Node getPoint( Node proxy )
+        {
+            return proxy.getSingleRelationship( OSMRelation.NODE, Direction.OUTGOING ).getEndNode();
+        }
+
+        private double length( Relationship next )
+        {
+            Node from = getPoint( next.getStartNode() );
+            Node to = getPoint( next.getEndNode() );
+            return distance( (Double) from.getProperty( "lon" ), (Double) from.getProperty( "lat" ),
+                    (Double) to.getProperty( "lon" ), (Double) to.getProperty( "lat" ) );
+        }
+    }
+
+    private static ExecutorService executor;
+
+    /**
+     * The pool of worker threads shared by all imports, for decoding PBF blobs and preparing entities. Its threads
+     * are daemons, so that an idle pool does not keep the JVM alive.
+     */
+    static synchronized ExecutorService getExecutor()
+    {
+        if ( executor == null )
+        {
+            AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread( runnable, "OSMImporter-" + threadCount.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            } );
+        }
+        return executor;
+    }
+
+    private void describeImport( OSMWriter<?> osmWriter, long startTime, long[] times )
+    {
         if (verboseLog) {
             describeTimes(startTime, times);
             osmWriter.describeMissing();
@@ -2041,6 +3226,16 @@ public class OSMImporter implements Constants
 
     private Map<String, Object> extractProperties( String name,
             XMLStreamReader parser )
+    {
+        return extractProperties( name, attributes( parser ) );
+    }
+
+    /**
+     * Convert the attributes of an element, as pairs of names and values, into properties. This is thread safe,
+     * so that the import pipeline can convert batches of elements in parallel.
+     */
+    private Map<String, Object> extractProperties( String name,
+            List<String> attributes )
     {
         // <node id="269682538" lat="56.0420950" lon="12.9693483" user="sanna"
         // uid="31450" visible="true" version="1" changeset="133823"
@@ -2050,10 +3245,10 @@ public class OSMImporter implements Constants
         // <relation id="77965" user="Grillo" uid="13957" visible="true"
         // version="24" changeset="5465617" timestamp="2010-08-11T19:25:46Z">
         LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
-        for ( int i = 0; i < parser.getAttributeCount(); i++ )
+        for ( int i = 0; i < attributes.size(); i += 2 )
         {
-            String prop = parser.getAttributeLocalName( i );
-            String value = parser.getAttributeValue( i );
+            String prop = attributes.get( i );
+            String value = attributes.get( i + 1 );
             if ( name != null && prop.equals( "id" ) )
             {
                 prop = name + "_osm_id";
@@ -2078,7 +3273,7 @@ public class OSMImporter implements Constants
             {
                 try
                 {
-                    Date timestamp = timestampFormat.parse( value );
+                    Date timestamp = timestampFormat.get().parse( value );
                     properties.put( prop, timestamp.getTime() );
                 }
                 catch ( ParseException e )
@@ -2167,8 +3362,8 @@ public class OSMImporter implements Constants
     private boolean verboseLog = true;
 
     // "2008-06-11T12:36:28Z"
-    private DateFormat timestampFormat = new SimpleDateFormat(
-            "yyyy-MM-dd'T'HH:mm:ss'Z'");
+    private static final ThreadLocal<DateFormat> timestampFormat = ThreadLocal.withInitial(
+            () -> new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss'Z'" ) );
 
     public void setDebug(boolean verbose) {
         this.debugLog = verbose;
@@ -21,13 +21,16 @@ package org.neo4j.gis.spatial.osm;
 
 import java.io.File;
 import java.util.HashMap;
+import java.util.List;
 
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.json.simple.JSONObject;
 import org.neo4j.gis.spatial.rtree.NullListener;
+import org.neo4j.gis.spatial.rtree.RTreeIndex;
 import org.neo4j.gis.spatial.Constants;
 import org.neo4j.gis.spatial.DynamicLayer;
 import org.neo4j.gis.spatial.DynamicLayerConfig;
+import org.neo4j.gis.spatial.GeometryEncoder;
 import org.neo4j.gis.spatial.SpatialDatabaseService;
 import org.neo4j.gis.spatial.SpatialDataset;
 import org.neo4j.graphdb.Direction;
@@ -96,22 +99,8 @@ public class OSMLayer extends DynamicLayer {
 		Relationship geomRel = way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
 		if (geomRel != null) {
 			Node geomNode = geomRel.getEndNode();
-			try {
-				// This is a test of the validity of the geometry, throws exception on error
-				if (verifyGeom)
-					getGeometryEncoder().decodeGeometry(geomNode);
+			if (!verifyGeom || isValidGeometry(getGeometryEncoder(), way, geomNode)) {
 				indexWriter.add(geomNode);
-			} catch (Exception e) {
-				System.err.println("Failed geometry test on node " + geomNode.getProperty("name", geomNode.toString()) + ": "
-				        + e.getMessage());
-				for (String key : geomNode.getPropertyKeys()) {
-					System.err.println("\t" + key + ": " + geomNode.getProperty(key));
-				}
-				System.err.println("For way node " + way);
-				for (String key : way.getPropertyKeys()) {
-					System.err.println("\t" + key + ": " + way.getProperty(key));
-				}
-				// e.printStackTrace(System.err);
 			}
 			return geomNode;
 		} else {
@@ -119,6 +108,56 @@ public class OSMLayer extends DynamicLayer {
 		}
 	}
 
+	/**
+	 * Add many geometry nodes to the index at once, which lets the index bulk load them
+	 */
+	public void addGeometries(List<Node> geomNodes) {
+		indexWriter.add(geomNodes);
+	}
+
+	/**
+	 * Patch the index entry of a geometry node after its envelope has been re-encoded, which the RTree does in place
+	 * where it can, instead of removing and adding the entry again.
+	 */
+	public void updateGeometry(Node geomNode) {
+		if (indexWriter instanceof RTreeIndex) {
+			((RTreeIndex) indexWriter).update(geomNode);
+		} else {
+			indexWriter.remove(geomNode.getId(), false, false);
+			indexWriter.add(geomNode);
+		}
+	}
+
+	/**
+	 * Remove a geometry node from the index, leaving the node itself to the caller
+	 */
+	public void removeGeometry(Node geomNode) {
+		indexWriter.remove(geomNode.getId(), false, false);
+	}
+
+	/**
+	 * Test the validity of the geometry of a way by decoding it with the given encoder, logging any failure. The
+	 * encoder keeps state while decoding, so readers in several threads each need their own.
+	 */
+	static boolean isValidGeometry(GeometryEncoder encoder, Node way, Node geomNode) {
+		try {
+			encoder.decodeGeometry(geomNode);
+			return true;
+		} catch (Exception e) {
+			System.err.println("Failed geometry test on node " + geomNode.getProperty("name", geomNode.toString()) + ": "
+			        + e.getMessage());
+			for (String key : geomNode.getPropertyKeys()) {
+				System.err.println("\t" + key + ": " + geomNode.getProperty(key));
+			}
+			System.err.println("For way node " + way);
+			for (String key : way.getPropertyKeys()) {
+				System.err.println("\t" + key + ": " + way.getProperty(key));
+			}
+			// e.printStackTrace(System.err);
+			return false;
+		}
+	}
+
 	/**
      * Provides a method for iterating over all nodes that represent geometries in this layer.
      * This is similar to the getAllNodes() methods from GraphDatabaseService but will only return
@@ -0,0 +1,956 @@
+/**
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.neo4j.gis.spatial.Constants;
+
+/**
+ * Reads OpenStreetMap PBF files, see http://wiki.openstreetmap.org/wiki/PBF_Format. The file is a sequence of
+ * blobs, each holding a zlib compressed protocol buffer message. The blobs are read from the file in the calling
+ * thread, and decompressed and decoded by the shared worker threads of the OSMImporter, while the calling thread
+ * passes the decoded entities of earlier blobs to the handler in file order.
+ * <p>
+ * The handler receives the same properties as the XML import extracts from the attributes of the elements, so the
+ * OSMWriter treats both formats alike: the ids, versions, changesets and user ids are strings, the timestamps are
+ * milliseconds and the coordinates are doubles. The protocol buffer messages are decoded directly, without any
+ * generated code.
+ */
+class OSMPBFReader
+{
+    /**
+     * The callbacks for the contents of the file, which are called from the thread calling read.
+     */
+    interface Handler
+    {
+        void dataset( Map<String, Object> datasetProperties, Map<String, Object> bboxProperties );
+
+        void node( Map<String, Object> nodeProperties, LinkedHashMap<String, Object> tags );
+
+        void way( Map<String, Object> wayProperties, ArrayList<Long> wayNodes, LinkedHashMap<String, Object> tags );
+
+        void relation( Map<String, Object> relationProperties, ArrayList<Map<String, Object>> members,
+                LinkedHashMap<String, Object> tags );
+
+        void progress( int percent );
+    }
+
+    private static final Set<String> SUPPORTED_FEATURES = new HashSet<>( Arrays.asList( "OsmSchema-V0.6", "DenseNodes" ) );
+    private static final String[] MEMBER_TYPES = new String[] { "node", "way", "relation" };
+    // the largest blob the format allows
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+    private final File file;
+    private final int threads;
+
+    OSMPBFReader( File file )
+    {
+        this( file, Runtime.getRuntime().availableProcessors() );
+    }
+
+    OSMPBFReader( File file, int threads )
+    {
+        this.file = file;
+        this.threads = Math.max( 1, threads );
+    }
+
+    void read( Handler handler ) throws IOException
+    {
+        long length = file.length();
+        long position = 0;
+        ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ) ) )
+        {
+            while ( true )
+            {
+                int headerLength;
+                try
+                {
+                    headerLength = in.readInt();
+                }
+                catch ( EOFException e )
+                {
+                    break;
+                }
+                if ( headerLength < 0 || headerLength > 64 * 1024 )
+                {
+                    throw new IOException( "Invalid PBF blob header length " + headerLength + " in " + file );
+                }
+                byte[] header = new byte[headerLength];
+                in.readFully( header );
+                String type = null;
+                int dataSize = -1;
+                ProtoReader reader = new ProtoReader( header );
+                while ( reader.next() )
+                {
+                    switch ( reader.field )
+                    {
+                    case 1:
+                        type = reader.string();
+                        break;
+                    case 3:
+                        dataSize = (int) reader.varint();
+                        break;
+                    default:
+                        reader.skip();
+                    }
+                }
+                if ( dataSize < 0 || dataSize > MAX_BLOB_SIZE )
+                {
+                    throw new IOException( "Invalid PBF blob size " + dataSize + " in " + file );
+                }
+                byte[] blob = new byte[dataSize];
+                in.readFully( blob );
+                position += 4 + headerLength + dataSize;
+
+                String blobType = type;
+                pending.add( OSMImporter.getExecutor().submit( () -> decodeBlock( blobType, blob ) ) );
+                // keep every worker busy, without reading ahead of the handler by more than a few blobs each
+                if ( pending.size() >= threads * 2 )
+                {
+                    handle( pending.poll(), handler );
+                }
+                handler.progress( length > 0 ? (int) ( 100 * position / length ) : 0 );
+            }
+            while ( !pending.isEmpty() )
+            {
+                handle( pending.poll(), handler );
+            }
+        }
+        finally
+        {
+            for ( Future<Block> future : pending )
+            {
+                future.cancel( true );
+            }
+        }
+    }
+
+    private void handle( Future<Block> future, Handler handler ) throws IOException
+    {
+        Block block;
+        try
+        {
+            block = future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while decoding " + file, e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( "Failed to decode " + file, e.getCause() );
+        }
+        if ( block.datasetProperties != null )
+        {
+            handler.dataset( block.datasetProperties, block.bboxProperties );
+        }
+        for ( Entity entity : block.entities )
+        {
+            switch ( entity.type )
+            {
+            case Entity.NODE:
+                handler.node( entity.properties, entity.tags );
+                break;
+            case Entity.WAY:
+                handler.way( entity.properties, entity.wayNodes, entity.tags );
+                break;
+            default:
+                handler.relation( entity.properties, entity.members, entity.tags );
+            }
+        }
+    }
+
+    private static Block decodeBlock( String type, byte[] blob ) throws IOException
+    {
+        byte[] data = null;
+        int rawSize = -1;
+        byte[] zlibData = null;
+        ProtoReader reader = new ProtoReader( blob );
+        while ( reader.next() )
+        {
+            switch ( reader.field )
+            {
+            case 1:
+                data = reader.bytes();
+                break;
+            case 2:
+                rawSize = (int) reader.varint();
+                break;
+            case 3:
+                zlibData = reader.bytes();
+                break;
+            case 4:
+            case 5:
+            case 6:
+            case 7:
+                throw new IOException( "Unsupported PBF blob compression, only raw and zlib blobs can be read" );
+            default:
+                reader.skip();
+            }
+        }
+        if ( zlibData != null )
+        {
+            data = inflate( zlibData, rawSize );
+        }
+        if ( data == null )
+        {
+            throw new IOException( "PBF blob without data" );
+        }
+        if ( "OSMHeader".equals( type ) )
+        {
+            return decodeHeader( data );
+        }
+        else if ( "OSMData".equals( type ) )
+        {
+            return new PrimitiveBlockDecoder( data ).decode();
+        }
+        // unknown blob types are to be skipped
+        return new Block();
+    }
+
+    private static byte[] inflate( byte[] compressed, int rawSize ) throws IOException
+    {
+        if ( rawSize < 0 || rawSize > MAX_BLOB_SIZE )
+        {
+            throw new IOException( "Invalid PBF blob raw size " + rawSize );
+        }
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput( compressed );
+            byte[] data = new byte[rawSize];
+            int inflated = 0;
+            while ( inflated < rawSize && !inflater.finished() )
+            {
+                int count = inflater.inflate( data, inflated, rawSize - inflated );
+                if ( count == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+                {
+                    break;
+                }
+                inflated += count;
+            }
+            if ( inflated != rawSize )
+            {
+                throw new IOException( "PBF blob inflated to " + inflated + " bytes instead of " + rawSize );
+            }
+            return data;
+        }
+        catch ( DataFormatException e )
+        {
+            throw new IOException( "Invalid zlib data in PBF blob", e );
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    private static Block decodeHeader( byte[] data ) throws IOException
+    {
+        Block block = new Block();
+        block.datasetProperties = new LinkedHashMap<>();
+        block.datasetProperties.put( "version", "0.6" );
+        ProtoReader reader = new ProtoReader( data );
+        while ( reader.next() )
+        {
+            switch ( reader.field )
+            {
+            case 1:
+                long left = 0, right = 0, top = 0, bottom = 0;
+                ProtoReader bbox = reader.message();
+                while ( bbox.next() )
+                {
+                    switch ( bbox.field )
+                    {
+                    case 1:
+                        left = bbox.sint64();
+                        break;
+                    case 2:
+                        right = bbox.sint64();
+                        break;
+                    case 3:
+                        top = bbox.sint64();
+                        break;
+                    case 4:
+                        bottom = bbox.sint64();
+                        break;
+                    default:
+                        bbox.skip();
+                    }
+                }
+                block.bboxProperties = new LinkedHashMap<>();
+                block.bboxProperties.put( "minlat", Double.toString( bottom / 1e9 ) );
+                block.bboxProperties.put( "minlon", Double.toString( left / 1e9 ) );
+                block.bboxProperties.put( "maxlat", Double.toString( top / 1e9 ) );
+                block.bboxProperties.put( "maxlon", Double.toString( right / 1e9 ) );
+                block.bboxProperties.put( "name", Constants.PROP_BBOX );
+                break;
+            case 4:
+                String feature = reader.string();
+                if ( !SUPPORTED_FEATURES.contains( feature ) )
+                {
+                    throw new IOException( "Unsupported PBF feature required: " + feature );
+                }
+                break;
+            case 16:
+                block.datasetProperties.put( "generator", reader.string() );
+                break;
+            default:
+                reader.skip();
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Decodes the groups of nodes, ways and relations of a PrimitiveBlock, whose string table and coordinate and
+     * date granularity apply to all of its groups.
+     */
+    private static class PrimitiveBlockDecoder
+    {
+        private final byte[] data;
+        private String[] strings = new String[0];
+        private long granularity = 100;
+        private long latOffset = 0;
+        private long lonOffset = 0;
+        private long dateGranularity = 1000;
+
+        private PrimitiveBlockDecoder( byte[] data )
+        {
+            this.data = data;
+        }
+
+        private Block decode() throws IOException
+        {
+            // the string table and granularities may follow the groups, so they are read first
+            List<ProtoReader> groups = new ArrayList<>();
+            ProtoReader reader = new ProtoReader( data );
+            while ( reader.next() )
+            {
+                switch ( reader.field )
+                {
+                case 1:
+                    strings = decodeStringTable( reader.message() );
+                    break;
+                case 2:
+                    groups.add( reader.message() );
+                    break;
+                case 17:
+                    granularity = reader.varint();
+                    break;
+                case 18:
+                    dateGranularity = reader.varint();
+                    break;
+                case 19:
+                    latOffset = reader.varint();
+                    break;
+                case 20:
+                    lonOffset = reader.varint();
+                    break;
+                default:
+                    reader.skip();
+                }
+            }
+            Block block = new Block();
+            for ( ProtoReader group : groups )
+            {
+                while ( group.next() )
+                {
+                    switch ( group.field )
+                    {
+                    case 1:
+                        block.entities.add( decodeNode( group.message() ) );
+                        break;
+                    case 2:
+                        decodeDenseNodes( group.message(), block.entities );
+                        break;
+                    case 3:
+                        block.entities.add( decodeWay( group.message() ) );
+                        break;
+                    case 4:
+                        block.entities.add( decodeRelation( group.message() ) );
+                        break;
+                    default:
+                        group.skip();
+                    }
+                }
+            }
+            return block;
+        }
+
+        private static String[] decodeStringTable( ProtoReader reader ) throws IOException
+        {
+            List<String> strings = new ArrayList<>();
+            while ( reader.next() )
+            {
+                if ( reader.field == 1 )
+                {
+                    strings.add( reader.string() );
+                }
+                else
+                {
+                    reader.skip();
+                }
+            }
+            return strings.toArray( new String[strings.size()] );
+        }
+
+        private double latitude( long lat )
+        {
+            return 1e-9 * ( latOffset + granularity * lat );
+        }
+
+        private double longitude( long lon )
+        {
+            return 1e-9 * ( lonOffset + granularity * lon );
+        }
+
+        private Entity decodeNode( ProtoReader reader ) throws IOException
+        {
+            Entity node = new Entity( Entity.NODE );
+            long id = 0, lat = 0, lon = 0;
+            LongList keys = new LongList();
+            LongList values = new LongList();
+            ProtoReader info = null;
+            while ( reader.next() )
+            {
+                switch ( reader.field )
+                {
+                case 1:
+                    id = reader.sint64();
+                    break;
+                case 2:
+                    reader.varints( keys );
+                    break;
+                case 3:
+                    reader.varints( values );
+                    break;
+                case 4:
+                    info = reader.message();
+                    break;
+                case 8:
+                    lat = reader.sint64();
+                    break;
+                case 9:
+                    lon = reader.sint64();
+                    break;
+                default:
+                    reader.skip();
+                }
+            }
+            node.properties.put( "node_osm_id", Long.toString( id ) );
+            node.properties.put( "lat", latitude( lat ) );
+            node.properties.put( "lon", longitude( lon ) );
+            addInfo( node.properties, info );
+            addTags( node.tags, keys, values );
+            return node;
+        }
+
+        private void decodeDenseNodes( ProtoReader reader, List<Entity> entities ) throws IOException
+        {
+            LongList ids = new LongList();
+            LongList lats = new LongList();
+            LongList lons = new LongList();
+            LongList keysValues = new LongList();
+            LongList versions = new LongList();
+            LongList timestamps = new LongList();
+            LongList changesets = new LongList();
+            LongList uids = new LongList();
+            LongList userSids = new LongList();
+            LongList visibles = new LongList();
+            while ( reader.next() )
+            {
+                switch ( reader.field )
+                {
+                case 1:
+                    reader.sint64s( ids );
+                    break;
+                case 5:
+                    ProtoReader info = reader.message();
+                    while ( info.next() )
+                    {
+                        switch ( info.field )
+                        {
+                        case 1:
+                            info.varints( versions );
+                            break;
+                        case 2:
+                            info.sint64s( timestamps );
+                            break;
+                        case 3:
+                            info.sint64s( changesets );
+                            break;
+                        case 4:
+                            info.sint64s( uids );
+                            break;
+                        case 5:
+                            info.sint64s( userSids );
+                            break;
+                        case 6:
+                            info.varints( visibles );
+                            break;
+                        default:
+                            info.skip();
+                        }
+                    }
+                    break;
+                case 8:
+                    reader.sint64s( lats );
+                    break;
+                case 9:
+                    reader.sint64s( lons );
+                    break;
+                case 10:
+                    reader.varints( keysValues );
+                    break;
+                default:
+                    reader.skip();
+                }
+            }
+            long id = 0, lat = 0, lon = 0, timestamp = 0, changeset = 0, uid = 0, userSid = 0;
+            int keyValue = 0;
+            for ( int i = 0; i < ids.size; i++ )
+            {
+                // all but the versions and visibility are delta coded
+                id += ids.values[i];
+                lat += lats.values[i];
+                lon += lons.values[i];
+                Entity node = new Entity( Entity.NODE );
+                node.properties.put( "node_osm_id", Long.toString( id ) );
+                node.properties.put( "lat", latitude( lat ) );
+                node.properties.put( "lon", longitude( lon ) );
+                if ( i < versions.size )
+                {
+                    timestamp += timestamps.values[i];
+                    changeset += changesets.values[i];
+                    uid += uids.values[i];
+                    userSid += userSids.values[i];
+                    addInfo( node.properties, versions.values[i], timestamp, changeset, uid, userSid,
+                            i >= visibles.size || visibles.values[i] != 0 );
+                }
+                else
+                {
+                    addInfo( node.properties, null );
+                }
+                while ( keyValue < keysValues.size && keysValues.values[keyValue] != 0 )
+                {
+                    node.tags.put( strings[(int) keysValues.values[keyValue]], strings[(int) keysValues.values[keyValue + 1]] );
+                    keyValue += 2;
+                }
+                // skip the terminating 0 of the tags of this node
+                keyValue++;
+                entities.add( node );
+            }
+        }
+
+        private Entity decodeWay( ProtoReader reader ) throws IOException
+        {
+            Entity way = new Entity( Entity.WAY );
+            way.wayNodes = new ArrayList<>();
+            long id = 0;
+            LongList keys = new LongList();
+            LongList values = new LongList();
+            LongList refs = new LongList();
+            ProtoReader info = null;
+            while ( reader.next() )
+            {
+                switch ( reader.field )
+                {
+                case 1:
+                    id = reader.varint();
+                    break;
+                case 2:
+                    reader.varints( keys );
+                    break;
+                case 3:
+                    reader.varints( values );
+                    break;
+                case 4:
+                    info = reader.message();
+                    break;
+                case 8:
+                    reader.sint64s( refs );
+                    break;
+                default:
+                    reader.skip();
+                }
+            }
+            way.properties.put( "way_osm_id", Long.toString( id ) );
+            addInfo( way.properties, info );
+            addTags( way.tags, keys, values );
+            long ref = 0;
+            for ( int i = 0; i < refs.size; i++ )
+            {
+                ref += refs.values[i];
+                way.wayNodes.add( ref );
+            }
+            return way;
+        }
+
+        private Entity decodeRelation( ProtoReader reader ) throws IOException
+        {
+            Entity relation = new Entity( Entity.RELATION );
+            relation.members = new ArrayList<>();
+            long id = 0;
+            LongList keys = new LongList();
+            LongList values = new LongList();
+            LongList roles = new LongList();
+            LongList memberIds = new LongList();
+            LongList types = new LongList();
+            ProtoReader info = null;
+            while ( reader.next() )
+            {
+                switch ( reader.field )
+                {
+                case 1:
+                    id = reader.varint();
+                    break;
+                case 2:
+                    reader.varints( keys );
+                    break;
+                case 3:
+                    reader.varints( values );
+                    break;
+                case 4:
+                    info = reader.message();
+                    break;
+                case 8:
+                    reader.varints( roles );
+                    break;
+                case 9:
+                    reader.sint64s( memberIds );
+                    break;
+                case 10:
+                    reader.varints( types );
+                    break;
+                default:
+                    reader.skip();
+                }
+            }
+            relation.properties.put( "relation_osm_id", Long.toString( id ) );
+            addInfo( relation.properties, info );
+            addTags( relation.tags, keys, values );
+            long memberId = 0;
+            for ( int i = 0; i < memberIds.size; i++ )
+            {
+                memberId += memberIds.values[i];
+                LinkedHashMap<String, Object> member = new LinkedHashMap<>();
+                member.put( "type", MEMBER_TYPES[(int) types.values[i]] );
+                member.put( "ref", Long.toString( memberId ) );
+                member.put( "role", strings[(int) roles.values[i]] );
+                relation.members.add( member );
+            }
+            return relation;
+        }
+
+        private void addTags( LinkedHashMap<String, Object> tags, LongList keys, LongList values )
+        {
+            for ( int i = 0; i < keys.size; i++ )
+            {
+                tags.put( strings[(int) keys.values[i]], strings[(int) values.values[i]] );
+            }
+        }
+
+        private void addInfo( Map<String, Object> properties, ProtoReader info ) throws IOException
+        {
+            if ( info == null )
+            {
+                // the writers require a changeset, so entities without metadata all share changeset 0
+                properties.put( "changeset", "0" );
+                return;
+            }
+            long version = 0, timestamp = 0, changeset = 0, uid = 0, userSid = 0;
+            boolean visible = true;
+            while ( info.next() )
+            {
+                switch ( info.field )
+                {
+                case 1:
+                    version = info.varint();
+                    break;
+                case 2:
+                    timestamp = info.varint();
+                    break;
+                case 3:
+                    changeset = info.varint();
+                    break;
+                case 4:
+                    uid = (int) info.varint();
+                    break;
+                case 5:
+                    userSid = info.varint();
+                    break;
+                case 6:
+                    visible = info.varint() != 0;
+                    break;
+                default:
+                    info.skip();
+                }
+            }
+            addInfo( properties, version, timestamp, changeset, uid, userSid, visible );
+        }
+
+        private void addInfo( Map<String, Object> properties, long version, long timestamp, long changeset, long uid,
+                long userSid, boolean visible )
+        {
+            if ( userSid > 0 )
+            {
+                properties.put( "user", strings[(int) userSid] );
+                properties.put( "uid", Long.toString( uid ) );
+            }
+            if ( !visible )
+            {
+                properties.put( "visible", false );
+            }
+            properties.put( "version", Long.toString( version ) );
+            properties.put( "changeset", Long.toString( changeset ) );
+            properties.put( "timestamp", timestamp * dateGranularity );
+        }
+    }
+
+    private static class Block
+    {
+        private Map<String, Object> datasetProperties;
+        private Map<String, Object> bboxProperties;
+        private final List<Entity> entities = new ArrayList<>();
+    }
+
+    private static class Entity
+    {
+        private static final int NODE = 0;
+        private static final int WAY = 1;
+        private static final int RELATION = 2;
+
+        private final int type;
+        private final LinkedHashMap<String, Object> properties = new LinkedHashMap<>();
+        private final LinkedHashMap<String, Object> tags = new LinkedHashMap<>();
+        private ArrayList<Long> wayNodes;
+        private ArrayList<Map<String, Object>> members;
+
+        private Entity( int type )
+        {
+            this.type = type;
+        }
+    }
+
+    private static class LongList
+    {
+        private long[] values = new long[16];
+        private int size = 0;
+
+        private void add( long value )
+        {
+            if ( size == values.length )
+            {
+                values = Arrays.copyOf( values, size * 2 );
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Reads the fields of a protocol buffer message, see https://developers.google.com/protocol-buffers/docs/encoding
+     */
+    private static class ProtoReader
+    {
+        private static final int VARINT = 0;
+        private static final int FIXED64 = 1;
+        private static final int LENGTH_DELIMITED = 2;
+        private static final int FIXED32 = 5;
+
+        private final byte[] data;
+        private int position;
+        private final int limit;
+        private int field;
+        private int wireType;
+
+        private ProtoReader( byte[] data )
+        {
+            this( data, 0, data.length );
+        }
+
+        private ProtoReader( byte[] data, int offset, int limit )
+        {
+            this.data = data;
+            this.position = offset;
+            this.limit = limit;
+        }
+
+        /**
+         * Move to the next field, returning false at the end of the message.
+         */
+        private boolean next() throws IOException
+        {
+            if ( position >= limit )
+            {
+                return false;
+            }
+            long key = varint();
+            field = (int) ( key >>> 3 );
+            wireType = (int) ( key & 7 );
+            return true;
+        }
+
+        private long varint() throws IOException
+        {
+            long value = 0;
+            for ( int shift = 0; shift < 64; shift += 7 )
+            {
+                if ( position >= limit )
+                {
+                    throw new IOException( "Truncated protocol buffer message" );
+                }
+                byte b = data[position++];
+                value |= (long) ( b & 0x7F ) << shift;
+                if ( ( b & 0x80 ) == 0 )
+                {
+                    return value;
+                }
+            }
+            throw new IOException( "Malformed protocol buffer varint" );
+        }
+
+        private long sint64() throws IOException
+        {
+            long value = varint();
+            return ( value >>> 1 ) ^ -( value & 1 );
+        }
+
+        private int length() throws IOException
+        {
+            int length = (int) varint();
+            if ( length < 0 || position + length > limit )
+            {
+                throw new IOException( "Truncated protocol buffer message" );
+            }
+            return length;
+        }
+
+        private byte[] bytes() throws IOException
+        {
+            int length = length();
+            byte[] bytes = Arrays.copyOfRange( data, position, position + length );
+            position += length;
+            return bytes;
+        }
+
+        private String string() throws IOException
+        {
+            int length = length();
+            String string = new String( data, position, length, StandardCharsets.UTF_8 );
+            position += length;
+            return string;
+        }
+
+        private ProtoReader message() throws IOException
+        {
+            int length = length();
+            ProtoReader message = new ProtoReader( data, position, position + length );
+            position += length;
+            return message;
+        }
+
+        /**
+         * Read a repeated varint field, which may be packed or not.
+         */
+        private void varints( LongList values ) throws IOException
+        {
+            if ( wireType == LENGTH_DELIMITED )
+            {
+                int length = length();
+                int end = position + length;
+                while ( position < end )
+                {
+                    values.add( varint() );
+                }
+            }
+            else
+            {
+                values.add( varint() );
+            }
+        }
+
+        /**
+         * Read a repeated zigzag encoded field, which may be packed or not.
+         */
+        private void sint64s( LongList values ) throws IOException
+        {
+            if ( wireType == LENGTH_DELIMITED )
+            {
+                int length = length();
+                int end = position + length;
+                while ( position < end )
+                {
+                    values.add( sint64() );
+                }
+            }
+            else
+            {
+                values.add( sint64() );
+            }
+        }
+
+        private void skip() throws IOException
+        {
+            switch ( wireType )
+            {
+            case VARINT:
+                varint();
+                break;
+            case FIXED64:
+                position += 8;
+                break;
+            case LENGTH_DELIMITED:
+                position += length();
+                break;
+            case FIXED32:
+                position += 4;
+                break;
+            default:
+                throw new IOException( "Unsupported protocol buffer wire type " + wireType );
+            }
+        }
+    }
+}
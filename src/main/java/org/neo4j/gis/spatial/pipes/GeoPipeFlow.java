@@ -37,6 +37,7 @@ public class GeoPipeFlow implements SpatialRecord {
 	private String id;
 	private List<SpatialDatabaseRecord> records = new ArrayList<SpatialDatabaseRecord>();
 	private Geometry geometry;
+	private boolean geometryDecoded;
 	private Envelope geometryEnvelope;
 	private Map<String,Object> properties = new HashMap<String,Object>();
 	
@@ -47,7 +48,7 @@ public class GeoPipeFlow implements SpatialRecord {
 	public GeoPipeFlow(SpatialDatabaseRecord record) {
 		this.id = Long.toString(record.getNodeId());
 		this.records.add(record);
-		this.geometry = record.getGeometry();
+		// the geometry is decoded on first use, so that filters can reject the flow by its envelope alone
 	}
 	
 	public SpatialDatabaseRecord getRecord() {
@@ -74,12 +75,16 @@ public class GeoPipeFlow implements SpatialRecord {
 	
 	@Override
 	public Geometry getGeometry() {
+		if (!geometryDecoded) {
+			geometry = getRecord().getGeometry();
+			geometryDecoded = true;
+		}
 		return geometry;
 	}
 	
 	public Envelope getEnvelope() {
 		if (geometryEnvelope == null) {
-			geometryEnvelope = geometry.getEnvelopeInternal();
+			geometryEnvelope = geometryDecoded ? geometry.getEnvelopeInternal() : getRecord().getGeometryEnvelope();
 		}
 		
 		return geometryEnvelope;
@@ -87,6 +92,7 @@ public class GeoPipeFlow implements SpatialRecord {
 	
 	public void setGeometry(Geometry geometry) {
 		this.geometry = geometry;
+		this.geometryDecoded = true;
 		this.geometryEnvelope = null;
 	}
 	
@@ -118,6 +124,8 @@ public class GeoPipeFlow implements SpatialRecord {
 		GeoPipeFlow clone = new GeoPipeFlow(id + "-" + idSuffix);
 		clone.records.addAll(records);
 		clone.geometry = geometry;
+		clone.geometryDecoded = geometryDecoded;
+		clone.geometryEnvelope = geometryEnvelope;
 		clone.getProperties().putAll(getProperties());
 		return clone;
 	}
@@ -38,7 +38,6 @@ import org.neo4j.gis.spatial.Constants;
 import org.neo4j.gis.spatial.Layer;
 import org.neo4j.gis.spatial.SpatialDatabaseRecord;
 import org.neo4j.gis.spatial.SpatialRecord;
-import org.neo4j.gis.spatial.SpatialTopologyUtils;
 import org.neo4j.gis.spatial.filter.SearchIntersectWindow;
 import org.neo4j.gis.spatial.filter.SearchRecords;
 import org.neo4j.gis.spatial.pipes.filtering.FilterCQL;
@@ -325,16 +324,21 @@ public class GeoPipeline extends Pipeline<GeoPipeFlow,GeoPipeFlow> {
     
     /**
 	 * Calculates the distance between Layer items nearest to the given point and the given point.
-	 * The search window created is based on Layer items density and it could lead to no results.
+	 * The index is first asked for the nearest items in coordinate space, and the largest orthodromic distance
+	 * to any of them is then used as the search radius, so at least numberOfItemsToFind items are returned
+	 * if the layer contains that many.
 	 * 
      * @param layer with latitude, longitude coordinates
      * @param point
-     * @param numberOfItemsToFind tries to find this number of items for comparison
+     * @param numberOfItemsToFind the minimum number of items to find for comparison
      * @return geoPipeline
      */
 	public static GeoPipeline startNearestNeighborLatLonSearch(Layer layer, Coordinate point, int numberOfItemsToFind) {
-		Envelope searchWindow = SpatialTopologyUtils.createEnvelopeForGeometryDensityEstimate(layer, point, numberOfItemsToFind);
-		return startNearestNeighborLatLonSearch(layer, point, searchWindow);
+		double maxDistanceInKm = 0.0;
+		for (SpatialDatabaseRecord record : layer.getIndex().searchNearest(point, numberOfItemsToFind)) {
+			maxDistanceInKm = Math.max(maxDistanceInKm, OrthodromicDistance.calculateDistance(point, record.getGeometry().getCoordinate()));
+		}
+		return startNearestNeighborLatLonSearch(layer, point, maxDistanceInKm);
 	}
     
 	/**
@@ -372,16 +376,16 @@ public class GeoPipeline extends Pipeline<GeoPipeFlow,GeoPipeFlow> {
 
 	/**
 	 * Calculates the distance between Layer items nearest to the given point and the given point.
-	 * The search window created is based on Layer items density and it could lead to no results.
+	 * The items are found using a k-nearest-neighbour search on the layer index, and arrive in order of increasing distance.
 	 * 
 	 * @param layer
 	 * @param point
-     * @param numberOfItemsToFind tries to find this number of items for comparison
+     * @param numberOfItemsToFind the number of nearest items to find
 	 * @return geoPipeline
 	 */
 	public static GeoPipeline startNearestNeighborSearch(Layer layer, Coordinate point, int numberOfItemsToFind) {	
-		Envelope searchWindow = SpatialTopologyUtils.createEnvelopeForGeometryDensityEstimate(layer, point, numberOfItemsToFind);
-		return startNearestNeighborSearch(layer, point, searchWindow);
+		return start(layer, layer.getIndex().searchNearest(point, numberOfItemsToFind))
+			.calculateDistance(layer.getGeometryFactory().createPoint(point));
 	}
 	
 	/**
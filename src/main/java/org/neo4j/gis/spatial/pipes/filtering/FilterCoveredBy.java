@@ -24,6 +24,8 @@ import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 
 /**
@@ -31,11 +33,11 @@ import com.vividsolutions.jts.geom.Geometry;
  */
 public class FilterCoveredBy extends AbstractFilterGeoPipe {
 
-	private Geometry other;
+	private PreparedGeometry other;
 	private Envelope otherEnvelope;
 	
 	public FilterCoveredBy(Geometry other) {
-		this.other = other;
+		this.other = PreparedGeometryFactory.prepare(other);
 		this.otherEnvelope = other.getEnvelopeInternal();
 	}
 
@@ -43,7 +45,7 @@ public class FilterCoveredBy extends AbstractFilterGeoPipe {
 	protected boolean validate(GeoPipeFlow flow) {
 		// check if every point of this geometry is a point of the other geometry
 	    return otherEnvelope.covers(flow.getEnvelope()) 
-	    		&& flow.getGeometry().coveredBy(other);		
+	    		&& other.covers(flow.getGeometry());		
 	}
 
 }
\ No newline at end of file
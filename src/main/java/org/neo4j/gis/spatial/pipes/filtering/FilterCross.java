@@ -22,6 +22,7 @@ package org.neo4j.gis.spatial.pipes.filtering;
 import org.neo4j.gis.spatial.pipes.AbstractFilterGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 
@@ -31,13 +32,16 @@ import com.vividsolutions.jts.geom.Geometry;
 public class FilterCross extends AbstractFilterGeoPipe {
 
 	private Geometry other;
+	private Envelope otherEnvelope;
 	
 	public FilterCross(Geometry other) {
 		this.other = other;
+		this.otherEnvelope = other.getEnvelopeInternal();
 	}
 
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
-		return flow.getGeometry().crosses(other);
+		return flow.getEnvelope().intersects(otherEnvelope)
+				&& flow.getGeometry().crosses(other);
 	}
 }
\ No newline at end of file
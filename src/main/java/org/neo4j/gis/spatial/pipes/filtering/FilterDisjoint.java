@@ -24,6 +24,8 @@ import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 
 /**
@@ -31,17 +33,17 @@ import com.vividsolutions.jts.geom.Geometry;
  */
 public class FilterDisjoint extends AbstractFilterGeoPipe {
 
-	private Geometry other;
+	private PreparedGeometry other;
 	private Envelope otherEnvelope;
 	
 	public FilterDisjoint(Geometry other) {
-		this.other = other;
+		this.other = PreparedGeometryFactory.prepare(other);
 		this.otherEnvelope = other.getEnvelopeInternal();
 	}
 	
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
 		return !flow.getEnvelope().intersects(otherEnvelope)
-				|| flow.getGeometry().disjoint(other);
+				|| other.disjoint(flow.getGeometry());
 	}
 }
\ No newline at end of file
@@ -22,7 +22,10 @@ package org.neo4j.gis.spatial.pipes.filtering;
 import org.neo4j.gis.spatial.pipes.AbstractFilterGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 
 /**
@@ -30,14 +33,17 @@ import com.vividsolutions.jts.geom.Geometry;
  */
 public class FilterIntersect extends AbstractFilterGeoPipe {
 
-	private Geometry geometry;
+	private PreparedGeometry geometry;
+	private Envelope envelope;
 	
 	public FilterIntersect(Geometry geometry) {
-		this.geometry = geometry;
+		this.geometry = PreparedGeometryFactory.prepare(geometry);
+		this.envelope = geometry.getEnvelopeInternal();
 	}	
 	
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
-		return geometry.intersects(flow.getGeometry());
+		return envelope.intersects(flow.getEnvelope())
+				&& geometry.intersects(flow.getGeometry());
 	}
 }
\ No newline at end of file
@@ -23,7 +23,8 @@ import org.neo4j.gis.spatial.pipes.AbstractFilterGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 import com.vividsolutions.jts.geom.Envelope;
-import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 import com.vividsolutions.jts.geom.GeometryFactory;
 
 
@@ -33,7 +34,7 @@ import com.vividsolutions.jts.geom.GeometryFactory;
 public class FilterIntersectWindow extends AbstractFilterGeoPipe {
 
 	private Envelope envelope;
-	private Geometry envelopeGeom;
+	private PreparedGeometry envelopeGeom;
 	
 	public FilterIntersectWindow(GeometryFactory geomFactory, double xmin, double ymin, double xmax, double ymax) {
 		this(geomFactory, new Envelope(xmin, xmax, ymin, ymax));
@@ -41,12 +42,17 @@ public class FilterIntersectWindow extends AbstractFilterGeoPipe {
 	
 	public FilterIntersectWindow(GeometryFactory geomFactory, Envelope envelope) {
 		this.envelope = envelope;
-		this.envelopeGeom = geomFactory.toGeometry(envelope);
+		this.envelopeGeom = PreparedGeometryFactory.prepare(geomFactory.toGeometry(envelope));
 	}	
 	
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
-		return envelope.intersects(flow.getEnvelope()) 
+		Envelope flowEnvelope = flow.getEnvelope();
+		if (envelope.contains(flowEnvelope)) {
+			// every geometry inside the window intersects it, so there is no need to decode it
+			return true;
+		}
+		return envelope.intersects(flowEnvelope)
 				&& envelopeGeom.intersects(flow.getGeometry());
 	}
 }
\ No newline at end of file
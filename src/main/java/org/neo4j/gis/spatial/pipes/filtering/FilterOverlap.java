@@ -22,6 +22,7 @@ package org.neo4j.gis.spatial.pipes.filtering;
 import org.neo4j.gis.spatial.pipes.AbstractFilterGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 
@@ -31,9 +32,11 @@ import com.vividsolutions.jts.geom.Geometry;
 public class FilterOverlap extends AbstractFilterGeoPipe {
 
 	private Geometry other;
+	private Envelope otherEnvelope;
 	
 	public FilterOverlap(Geometry other) {
 		this.other = other;
+		this.otherEnvelope = other.getEnvelopeInternal();
 	}
 
 	@Override
@@ -42,6 +45,7 @@ public class FilterOverlap extends AbstractFilterGeoPipe {
 		// they have the same dimension,
 		// and the intersection of the interiors of the two geometries has
 		// the same dimension as the geometries themselves
-		return flow.getGeometry().overlaps(other);
+		return flow.getEnvelope().intersects(otherEnvelope)
+				&& flow.getGeometry().overlaps(other);
 	}
 }
\ No newline at end of file
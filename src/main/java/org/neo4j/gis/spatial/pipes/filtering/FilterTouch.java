@@ -22,6 +22,7 @@ package org.neo4j.gis.spatial.pipes.filtering;
 import org.neo4j.gis.spatial.pipes.AbstractFilterGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 
@@ -31,14 +32,17 @@ import com.vividsolutions.jts.geom.Geometry;
 public class FilterTouch extends AbstractFilterGeoPipe {
 
 	private Geometry other;
+	private Envelope otherEnvelope;
 	
 	public FilterTouch(Geometry other) {
 		this.other = other;
+		this.otherEnvelope = other.getEnvelopeInternal();
 	}
 
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
 		// if the geometries have at least one point in common, but their interiors do not intersect
-		return flow.getGeometry().touches(other);
+		return flow.getEnvelope().intersects(otherEnvelope)
+				&& flow.getGeometry().touches(other);
 	}
 }
\ No newline at end of file
@@ -24,6 +24,8 @@ import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 
 /**
@@ -31,11 +33,11 @@ import com.vividsolutions.jts.geom.Geometry;
  */
 public class FilterWithin extends AbstractFilterGeoPipe {
 
-	private Geometry other;
+	private PreparedGeometry other;
 	private Envelope otherEnvelope;
 	
 	public FilterWithin(Geometry other) {
-		this.other = other;
+		this.other = PreparedGeometryFactory.prepare(other);
 		this.otherEnvelope = other.getEnvelopeInternal();
 	}
 
@@ -44,6 +46,6 @@ public class FilterWithin extends AbstractFilterGeoPipe {
 		// check if every point of this geometry is a point of the other geometry,
 		// and the interiors of the two geometries have at least one point in common
 		return otherEnvelope.contains(flow.getEnvelope()) 
-				&& flow.getGeometry().within(other);
+				&& other.contains(flow.getGeometry());
 	}
 }
\ No newline at end of file
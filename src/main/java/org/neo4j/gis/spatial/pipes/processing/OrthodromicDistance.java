@@ -61,17 +61,27 @@ public class OrthodromicDistance extends AbstractGeoPipe {
 		return flow;
 	}
 
+	/**
+	 * Bounding box of all points within the given distance of the reference. Based on
+	 * http://janmatuschek.de/LatitudeLongitudeBoundingCoordinates, which unlike scaling the longitude
+	 * offset by cos(lat) never excludes points on the great circle at high latitudes.
+	 */
 	public static Envelope suggestSearchWindow(Coordinate reference, double maxDistanceInKm) {
 		double lat = reference.y;
 		double lon = reference.x;
+		double angularDistance = maxDistanceInKm / earthRadiusInKm;
 		
 		// first-cut bounding box (in degrees)
-		double maxLat = lat + Math.toDegrees(maxDistanceInKm / earthRadiusInKm);
-		double minLat = lat - Math.toDegrees(maxDistanceInKm / earthRadiusInKm);
+		double maxLat = lat + Math.toDegrees(angularDistance);
+		double minLat = lat - Math.toDegrees(angularDistance);
+		double sinDeltaLon = Math.sin(angularDistance) / Math.cos(Math.toRadians(lat));
+		if (maxLat >= 90.0 || minLat <= -90.0 || sinDeltaLon >= 1.0) {
+			// a pole is within the distance, so all longitudes are included
+			return new Envelope(-180.0, 180.0, Math.max(minLat, -90.0), Math.min(maxLat, 90.0));
+		}
 		// compensate for degrees longitude getting smaller with increasing latitude
-		double maxLon = lon + Math.toDegrees(maxDistanceInKm / earthRadiusInKm / Math.cos(Math.toRadians(lat)));
-		double minLon = lon - Math.toDegrees(maxDistanceInKm / earthRadiusInKm / Math.cos(Math.toRadians(lat)));
-		return new Envelope(minLon, maxLon, minLat, maxLat);		
+		double deltaLon = Math.toDegrees(Math.asin(sinDeltaLon));
+		return new Envelope(lon - deltaLon, lon + deltaLon, minLat, maxLat);
 	}
 
 	public static double calculateDistance(Coordinate reference, Coordinate point) {
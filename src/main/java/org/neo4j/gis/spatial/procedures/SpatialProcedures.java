@@ -26,18 +26,23 @@ import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKTReader;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.json.simple.JSONObject;
 import org.neo4j.gis.spatial.*;
 import org.neo4j.gis.spatial.encoders.SimpleGraphEncoder;
 import org.neo4j.gis.spatial.encoders.SimplePointEncoder;
 import org.neo4j.gis.spatial.encoders.SimplePropertyEncoder;
+import org.neo4j.gis.spatial.index.IndexQueryStatistics;
 import org.neo4j.gis.spatial.index.LayerGeohashPointIndex;
+import org.neo4j.gis.spatial.index.LayerIndexReader;
 import org.neo4j.gis.spatial.index.LayerHilbertPointIndex;
+import org.neo4j.gis.spatial.index.LayerSpaceFillingCurvePointIndex;
 import org.neo4j.gis.spatial.index.LayerZOrderPointIndex;
 import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
 import org.neo4j.gis.spatial.osm.OSMImporter;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 import org.neo4j.gis.spatial.pipes.GeoPipeline;
 import org.neo4j.gis.spatial.rtree.ProgressLoggingListener;
+import org.neo4j.gis.spatial.rtree.RTreeIndex;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.PropertyContainer;
@@ -133,6 +138,36 @@ public class SpatialProcedures {
         }
     }
 
+    public static class IndexStatsResult {
+        public final String layer;
+        public final long queries;
+        public final long candidates;
+        public final long results;
+        public final double falsePositiveRatio;
+        public final long ranges;
+        public final long indexNodesVisited;
+        public final double meanLatencyMillis;
+        public final double p50LatencyMillis;
+        public final double p99LatencyMillis;
+        public final double maxLatencyMillis;
+        public final List<Long> latencyHistogram;
+
+        public IndexStatsResult(String layer, IndexQueryStatistics statistics) {
+            this.layer = layer;
+            this.queries = statistics.getQueries();
+            this.candidates = statistics.getCandidates();
+            this.results = statistics.getResults();
+            this.falsePositiveRatio = statistics.getFalsePositiveRatio();
+            this.ranges = statistics.getRanges();
+            this.indexNodesVisited = statistics.getIndexNodesVisited();
+            this.meanLatencyMillis = statistics.getMeanLatencyMillis();
+            this.p50LatencyMillis = statistics.getP50LatencyMillis();
+            this.p99LatencyMillis = statistics.getP99LatencyMillis();
+            this.maxLatencyMillis = statistics.getMaxLatencyMillis();
+            this.latencyHistogram = Arrays.stream(statistics.getLatencyHistogram()).boxed().collect(Collectors.toList());
+        }
+    }
+
     private static Map<String, Class> encoderClasses = new HashMap<>();
 
     static {
@@ -247,6 +282,29 @@ public class SpatialProcedures {
         }
     }
 
+    @Procedure(value="spatial.addPointLayerHilbert3D", mode=WRITE)
+    @Description("Adds a new simple point layer with longitude, latitude and altitude indexed by a 3D hilbert curve, returns the layer root node")
+    public Stream<NodeResult> addSimplePointLayerHilbert3D(
+            @Name("name") String name,
+            @Name(value = "minAltitude", defaultValue = "-1000") double minAltitude,
+            @Name(value = "maxAltitude", defaultValue = "10000") double maxAltitude,
+            @Name(value = "maxLevel", defaultValue = "12") long maxLevel) {
+        SpatialDatabaseService sdb = wrap(db);
+        Layer layer = sdb.getLayer(name);
+        if (layer == null) {
+            Map<String, Object> indexConfig = new HashMap<>();
+            indexConfig.put(LayerSpaceFillingCurvePointIndex.KEY_DIMENSIONS, 3);
+            indexConfig.put(LayerSpaceFillingCurvePointIndex.KEY_MIN_Z, minAltitude);
+            indexConfig.put(LayerSpaceFillingCurvePointIndex.KEY_MAX_Z, maxAltitude);
+            indexConfig.put(LayerSpaceFillingCurvePointIndex.KEY_MAX_LEVEL, maxLevel);
+            String encoderConfig = sdb.makeEncoderConfig(SimplePointEncoder.DEFAULT_X, SimplePointEncoder.DEFAULT_Y, Constants.PROP_BBOX, SimplePointEncoder.DEFAULT_Z);
+            return streamNode(sdb.createLayer(name, SimplePointEncoder.class, SimplePointLayer.class, LayerHilbertPointIndex.class,
+                    encoderConfig, JSONObject.toJSONString(indexConfig), DefaultGeographicCRS.WGS84_3D).getLayerNode());
+        } else {
+            throw new IllegalArgumentException("Cannot create existing layer: " + name);
+        }
+    }
+
     @Procedure(value="spatial.addPointLayerXY", mode=WRITE)
     @Description("Adds a new simple point layer with the given properties for x and y coordinates, returns the layer root node")
     public Stream<NodeResult> addSimplePointLayer(
@@ -271,18 +329,19 @@ public class SpatialProcedures {
     }
 
     @Procedure(value="spatial.addPointLayerWithConfig", mode=WRITE)
-    @Description("Adds a new simple point layer with the given configuration, returns the layer root node")
+    @Description("Adds a new simple point layer with the given encoder and index configuration, returns the layer root node")
     public Stream<NodeResult> addSimplePointLayerWithConfig(
             @Name("name") String name,
             @Name("encoderConfig") String encoderConfig,
             @Name(value = "indexType", defaultValue = RTREE_INDEX_NAME) String indexType,
-            @Name(value = "crsName", defaultValue = UNSET_CRS_NAME) String crsName) {
+            @Name(value = "crsName", defaultValue = UNSET_CRS_NAME) String crsName,
+            @Name(value = "indexConfig", defaultValue = "") String indexConfig) {
         SpatialDatabaseService sdb = wrap(db);
         Layer layer = sdb.getLayer(name);
         if (layer == null) {
             if (encoderConfig.indexOf(':') > 0) {
                 return streamNode(sdb.createLayer(name, SimplePointEncoder.class, SimplePointLayer.class,
-                        sdb.resolveIndexClass(indexType), encoderConfig,
+                        sdb.resolveIndexClass(indexType), encoderConfig, indexConfig,
                         selectCRS(hintCRSName(crsName, encoderConfig))).getLayerNode());
             } else {
                 throw new IllegalArgumentException("Cannot create layer '" + name + "': invalid encoder config '" + encoderConfig + "'");
@@ -294,12 +353,13 @@ public class SpatialProcedures {
 
     public static final String UNSET_CRS_NAME = "";
     public static final String WGS84_CRS_NAME = "wgs84";
+    public static final String WGS84_3D_CRS_NAME = "wgs84-3d";
 
     /**
-     * Currently this only supports the string 'WGS84', for the convenience of procedure users.
+     * Currently this only supports the strings 'WGS84' and 'WGS84-3D', for the convenience of procedure users.
      * This should be expanded with CRS table lookup.
      * @param name
-     * @return null or WGS84
+     * @return null, WGS84 or WGS84 with ellipsoidal height
      */
     public CoordinateReferenceSystem selectCRS(String name) {
         if (name == null) {
@@ -308,6 +368,8 @@ public class SpatialProcedures {
             switch (name.toLowerCase()) {
                 case WGS84_CRS_NAME:
                     return org.geotools.referencing.crs.DefaultGeographicCRS.WGS84;
+                case WGS84_3D_CRS_NAME:
+                    return org.geotools.referencing.crs.DefaultGeographicCRS.WGS84_3D;
                 case UNSET_CRS_NAME:
                     return null;
                 default:
@@ -417,6 +479,28 @@ public class SpatialProcedures {
         return Stream.of(new CountResult(layer.addAll(nodes)));
     }
 
+    @Procedure(value="spatial.reIndex", mode=WRITE)
+    @Description("Rebuilds the RTree index of the given layer using the build mode 'omt' or 'hilbert-packed', returns the count of indexed geometries")
+    public Stream<CountResult> reIndexLayer(
+            @Name("layerName") String name,
+            @Name(value = "buildMode", defaultValue = RTreeIndex.OMT_BUILD) String buildMode) {
+        LayerIndexReader index = getLayerOrThrow(name).getIndex();
+        if (!(index instanceof RTreeIndex)) {
+            throw new IllegalArgumentException("Layer '" + name + "' is not indexed with an RTree");
+        }
+        RTreeIndex rtree = (RTreeIndex) index;
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_BUILD_MODE, buildMode));
+        rtree.rebuild();
+        return Stream.of(new CountResult(rtree.count()));
+    }
+
+    @Procedure(value="spatial.indexStats", mode=WRITE)
+    @Description("Returns the query statistics of the index of the given layer since the database started, where bucket i of the latency histogram counts the queries that took less than 2^i microseconds")
+    public Stream<IndexStatsResult> getIndexStats(@Name("layerName") String name) {
+        Layer layer = getLayerOrThrow(name);
+        return Stream.of(new IndexStatsResult(name, IndexQueryStatistics.forLayer(db, layer.getLayerNode())));
+    }
+
     @Procedure(value="spatial.addWKT", mode=WRITE)
     @Description("Adds the given WKT string to the layer, returns the created geometry node")
     public Stream<NodeResult> addGeometryWKTToLayer(@Name("layerName") String name, @Name("geometry") String geometryWKT) throws ParseException {
@@ -489,6 +573,15 @@ public class SpatialProcedures {
         return Stream.of(new CountResult(importOSMToLayer(uri, null, 1000)));
     }
 
+    @Procedure(value="spatial.applyOSMChanges", mode=WRITE)
+    @Description("Applies the provided osmChange-file from URI to the OSM layer with the given name, returns the count of changes applied")
+    public Stream<CountResult> applyOSMChanges(
+            @Name("layerName") String name,
+            @Name("uri") String uri) throws IOException, XMLStreamException {
+        OSMImporter importer = new OSMImporter(name, new ProgressLoggingListener("Applying " + uri, log.debugLogger()));
+        return Stream.of(new CountResult(importer.applyChanges(db, uri)));
+    }
+
     private long importOSMToLayer(String osmPath, EditableLayerImpl layer, int commitInterval) throws IOException, XMLStreamException {
         if (!osmPath.toLowerCase().endsWith(".osm")) {
             // add extension
@@ -20,12 +20,17 @@
 package org.neo4j.gis.spatial.rtree;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.stream.Collectors;
 
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
+import org.neo4j.gis.spatial.index.IndexQueryStatistics;
 import org.neo4j.gis.spatial.index.SpatialIndexWriter;
+import org.neo4j.gis.spatial.index.curves.HilbertSpaceFillingCurve2D;
 import org.neo4j.gis.spatial.encoders.Configurable;
+import org.neo4j.gis.spatial.rtree.filter.SearchDistance;
 import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
 import org.neo4j.gis.spatial.rtree.filter.SearchResults;
 import org.neo4j.graphdb.Direction;
@@ -48,15 +53,27 @@ import org.neo4j.graphdb.traversal.Traverser;
 public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
     public static final String INDEX_PROP_BBOX = "bbox";
+    public static final String INDEX_PROP_CHILD_COUNT = "childCount";
+    public static final String INDEX_PROP_LEVEL = "level";
 
     public static final String KEY_SPLIT = "splitMode";
     public static final String QUADRATIC_SPLIT = "quadratic";
     public static final String GREENES_SPLIT = "greene";
+    public static final String RSTAR_SPLIT = "rstar";
 
     public static final String KEY_MAX_NODE_REFERENCES = "maxNodeReferences";
     public static final String KEY_SHOULD_MERGE_TREES = "shouldMergeTrees";
+    public static final String KEY_INDEX_SNAPSHOT = "indexSnapshot";
+    public static final String KEY_BUILD_MODE = "buildMode";
+    public static final String KEY_INSERT_BUFFER = "insertBuffer";
+    public static final String KEY_SEARCH_THREADS = "searchThreads";
+    public static final String KEY_ORDERED_SEARCH = "orderedSearch";
+    public static final String OMT_BUILD = "omt";
+    public static final String HILBERT_PACKED_BUILD = "hilbert-packed";
     public static final long MIN_MAX_NODE_REFERENCES = 10;
     public static final long MAX_MAX_NODE_REFERENCES = 1000000;
+    private static final int RSTAR_CHOOSE_CANDIDATES = 32;
+    private static final double RSTAR_REINSERT_FRACTION = 0.3;
 
 	private TreeMonitor monitor;
 
@@ -103,6 +120,11 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         config.put(KEY_SPLIT, this.splitMode);
         config.put(KEY_MAX_NODE_REFERENCES, this.maxNodeReferences);
         config.put(KEY_SHOULD_MERGE_TREES, this.shouldMergeTrees);
+        config.put(KEY_INDEX_SNAPSHOT, this.useIndexSnapshot);
+        config.put(KEY_BUILD_MODE, this.buildMode);
+        config.put(KEY_INSERT_BUFFER, this.useInsertBuffer);
+        config.put(KEY_SEARCH_THREADS, this.searchThreads);
+        config.put(KEY_ORDERED_SEARCH, this.orderedSearch);
         return JSONObject.toJSONString(config);
     }
 
@@ -114,6 +136,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
                     switch (value) {
                         case QUADRATIC_SPLIT:
                         case GREENES_SPLIT:
+                        case RSTAR_SPLIT:
                             splitMode = value;
                             break;
                         default:
@@ -133,6 +156,33 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
                 case KEY_SHOULD_MERGE_TREES:
                     this.shouldMergeTrees = Boolean.parseBoolean(config.get(key).toString());
                     break;
+                case KEY_INDEX_SNAPSHOT:
+                    this.useIndexSnapshot = Boolean.parseBoolean(config.get(key).toString());
+                    break;
+                case KEY_INSERT_BUFFER:
+                    this.useInsertBuffer = Boolean.parseBoolean(config.get(key).toString());
+                    break;
+                case KEY_SEARCH_THREADS:
+                    int threads = Integer.parseInt(config.get(key).toString());
+                    if (threads < 1) {
+                        throw new IllegalArgumentException("RTreeIndex does not allow " + key + " less than 1");
+                    }
+                    this.searchThreads = threads;
+                    break;
+                case KEY_ORDERED_SEARCH:
+                    this.orderedSearch = Boolean.parseBoolean(config.get(key).toString());
+                    break;
+                case KEY_BUILD_MODE:
+                    String buildModeValue = config.get(key).toString();
+                    switch (buildModeValue) {
+                        case OMT_BUILD:
+                        case HILBERT_PACKED_BUILD:
+                            buildMode = buildModeValue;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("No such RTreeIndex value for '" + key + "': " + buildModeValue);
+                    }
+                    break;
                 default:
                     throw new IllegalArgumentException("No such RTreeIndex configuration key: " + key);
             }
@@ -141,22 +191,59 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
 	@Override
 	public void add(Node geomNode) {
+		invalidateSnapshot();
 		// initialize the search with root
 		Node parent = getIndexRoot();
 
-		addBelow(parent, geomNode);
+		if (splitMode.equals(RSTAR_SPLIT)) {
+			// forced reinserts move entries between leaves, so R* inserts are never buffered
+			flushInsertBuffer();
+			// R* allows one forced reinsert per tree level for each inserted geometry
+			reinsertedLevels = new HashSet<>();
+			try {
+				addBelow(parent, geomNode);
+			} finally {
+				reinsertedLevels = null;
+			}
+		} else if (useInsertBuffer) {
+			addBuffered(parent, geomNode);
+		} else {
+			flushInsertBuffer();
+			addBelow(parent, geomNode);
+		}
 
 		countSaved = false;
 		totalGeometryCount++;
 	}
 
+	/**
+	 * Add the node to a leaf like addBelow, but leave the bounding box updates to the insert buffer of the current
+	 * transaction, until the leaf needs to be split. The path down to the leaf is chosen from the bounding boxes
+	 * including the geometries already in the buffer, as if they had been written.
+	 */
+	private void addBuffered(Node parent, Node geomNode) {
+		Envelope geomEnvelope = getLeafNodeEnvelope(geomNode);
+		RTreeInsertBuffer buffer = RTreeInsertBuffer.forIndex(database, getRootNode().getId());
+		List<Node> path = new ArrayList<>();
+		path.add(parent);
+		while (!nodeIsLeaf(parent)) {
+			parent = chooseSubTree(parent, geomEnvelope, buffer);
+			path.add(parent);
+		}
+		if (buffer.addReference(path, geomNode, geomEnvelope) > maxNodeReferences) {
+			buffer.flush();
+			splitAndAdjustPathBoundingBox(parent);
+		}
+	}
+
 	/**
 	 * This method will add the node somewhere below the parent.
 	 */
 	private void addBelow(Node parent, Node geomNode){
 		// choose a path down to a leaf
+		Envelope geomEnvelope = getLeafNodeEnvelope(geomNode);
 		while (!nodeIsLeaf(parent)) {
-			parent = chooseSubTree(parent, geomNode);
+			parent = chooseSubTree(parent, geomEnvelope, null);
 		}
         if (countChildren(parent, RTreeRelationshipTypes.RTREE_REFERENCE) >= maxNodeReferences) {
 			insertInLeaf(parent, geomNode);
@@ -201,20 +288,12 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	 */
 	@Override
 	public void add(List<Node> geomNodes) {
+		invalidateSnapshot();
+		flushInsertBuffer();
 
 		//If the insertion is large relative to the size of the tree, simply rebuild the whole tree.
 		if (geomNodes.size() > totalGeometryCount * 0.4) {
-            List<Node> nodesToAdd = new ArrayList<>(geomNodes.size() + totalGeometryCount);
-			for (Node n : getAllIndexedNodes()) {
-				nodesToAdd.add(n);
-			}
-			nodesToAdd.addAll(geomNodes);
-			detachGeometryNodes( false, getIndexRoot(), new NullListener() );
-			deleteTreeBelow( getIndexRoot() );
-			buildRtreeFromScratch(getIndexRoot(), decodeGeometryNodeEnvelopes(nodesToAdd), 0.7);
-			countSaved = false;
-			totalGeometryCount = nodesToAdd.size();
-            monitor.addNbrRebuilt(this);
+			rebuild(geomNodes);
 		} else {
 
 			List<NodeWithEnvelope> outliers = bulkInsertion(getIndexRoot(), getHeight(getIndexRoot(), 0), decodeGeometryNodeEnvelopes(geomNodes), 0.7);
@@ -226,6 +305,34 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		}
 	}
 
+	/**
+	 * Rebuild the whole tree from scratch, using the configured build mode. This is useful after changing the build
+	 * mode, for example to pack a layer with HILBERT_PACKED_BUILD once it has been fully loaded.
+	 */
+	public void rebuild() {
+		invalidateSnapshot();
+		flushInsertBuffer();
+		rebuild(Collections.emptyList());
+	}
+
+	private void rebuild(List<Node> geomNodes) {
+		List<Node> nodesToAdd = new ArrayList<>(geomNodes.size() + totalGeometryCount);
+		for (Node n : getAllIndexedNodes()) {
+			nodesToAdd.add(n);
+		}
+		nodesToAdd.addAll(geomNodes);
+		detachGeometryNodes( false, getIndexRoot(), new NullListener() );
+		deleteTreeBelow( getIndexRoot() );
+		if (buildMode.equals(HILBERT_PACKED_BUILD)) {
+			buildHilbertPackedTree(getIndexRoot(), decodeGeometryNodeEnvelopes(nodesToAdd));
+		} else {
+			buildRtreeFromScratch(getIndexRoot(), decodeGeometryNodeEnvelopes(nodesToAdd), 0.7);
+		}
+		countSaved = false;
+		totalGeometryCount = nodesToAdd.size();
+		monitor.addNbrRebuilt(this);
+	}
+
 	private List<NodeWithEnvelope> decodeGeometryNodeEnvelopes(List<Node> nodes) {
 		return nodes.stream().map(GeometryNodeWithEnvelope::new).collect(Collectors.toList());
 	}
@@ -252,6 +359,10 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
      * Thus the lowest level is 1.
 	 */
     int getHeight(Node rootNode, int height) {
+		Object level = rootNode.getProperty(INDEX_PROP_LEVEL, null);
+		if (level != null) {
+			return height + (Integer) level;
+		}
 		Iterator<Relationship> rels = rootNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD).iterator();
 		if (rels.hasNext()) {
 			return getHeight(rels.next().getEndNode(), height + 1);
@@ -270,23 +381,6 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         return result;
     }
 
-	private List<NodeWithEnvelope> getIndexChildren(Node rootNode, int depth) {
-		if (depth < 1) {
-			throw new IllegalArgumentException("Depths must be at least one");
-		}
-
-		List<NodeWithEnvelope> rootChildren = getIndexChildren(rootNode);
-		if (depth == 1) {
-			return rootChildren;
-		} else {
-			List<NodeWithEnvelope> result = new ArrayList<>(rootChildren.size() * 5);
-			for (NodeWithEnvelope child : rootChildren) {
-				result.addAll(getIndexChildren(child.node, depth - 1));
-			}
-			return result;
-		}
-	}
-
 	private List<NodeWithEnvelope> bulkInsertion(Node rootNode, int rootNodeHeight, final List<NodeWithEnvelope> geomNodes, final double loadingFactor) {
 		List<NodeWithEnvelope> children = getIndexChildren(rootNode);
 		if(children.isEmpty()){
@@ -367,24 +461,24 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
                 }
 
 			} else {
-                Node newRootNode = database.createNode();
-				buildRtreeFromScratch(newRootNode, cluster, loadingFactor);
-				int newHeight = getHeight(newRootNode, 0);
-				if (newHeight == 1) {
+				// the new subtree only lives in memory, and only the index nodes that are kept get written
+				Partition newTree = partitionInMemory(cluster, loadingFactor);
+				int newHeight = newTree.getHeight();
+				if (newHeight == 1 || currentRTreeHeight < 1) {
 					monitor.addCase("h_i > l_t (d==1)");
-					for (Relationship geom : newRootNode.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE)) {
-						addBelow(child.node, geom.getEndNode());
-						geom.delete();
+					for (int i = newTree.from; i < newTree.to; i++) {
+						addBelow(child.node, newTree.entries[i].node);
 					}
 				} else {
 					monitor.addCase("h_i > l_t (d>1)");
 					int insertDepth = newHeight - (currentRTreeHeight);
-					List<NodeWithEnvelope> childrenToBeInserted = getIndexChildren(newRootNode, insertDepth);
-					for (NodeWithEnvelope n : childrenToBeInserted) {
-						Relationship relationship = n.node.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHILD, Direction.INCOMING);
-						relationship.delete();
+					List<NodeWithEnvelope> childrenToBeInserted = new ArrayList<>();
+					for (Partition partition : newTree.getDescendants(insertDepth)) {
+						Node newIndexNode = database.createNode();
+						writePartition(newIndexNode, partition);
+						childrenToBeInserted.add(new NodeWithEnvelope(newIndexNode, new Envelope(partition.envelope)));
                         if (!shouldMergeTrees) {
-                            insertIndexNodeOnParent(child.node, n.node);
+                            insertIndexNodeOnParent(child.node, newIndexNode);
                         }
                     }
                     if (shouldMergeTrees) {
@@ -393,8 +487,6 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
                         monitor.afterMergeTree(child.node);
                     }
                 }
-				// todo wouldn't it be better for this temporary tree to only live in memory?
-				deleteRecursivelySubtree(newRootNode, null); // remove the buffer tree remnants
 			}
 		}
         monitor.addSplit(rootNode); // for debugging via images
@@ -451,6 +543,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		for( NodeWithEnvelope n : right){
 			n.node.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHILD,Direction.INCOMING);
 			parent.node.createRelationshipTo(n.node,RTreeRelationshipTypes.RTREE_CHILD);
+			updateChildCount(parent.node, RTreeRelationshipTypes.RTREE_CHILD, 1);
 			parent.envelope.expandToInclude(n.envelope);
 		}
 		setIndexNodeEnvelope(parent.node, parent.envelope);
@@ -473,84 +566,206 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
 	/**
      * This algorithm is based on Overlap Minimizing Top-down Bulk Loading Algorithm for R-tree by T Lee and S Lee.
-     * This is effectively a wrapper function around the function Partition which will attempt to parallelise the task.
-     * This can work better or worse since the top level may have as few as two nodes, in which case it fails is not optimal.
+     * The build runs in two phases. First the whole partition tree is computed in memory by a PartitionTask on the
+     * common ForkJoinPool, which only reads the envelopes already decoded into the NodeWithEnvelope entries, so it
+     * can run outside the current transaction. Then the index nodes are written in one pass, with their final
+     * bounding boxes, so no bounding box is read or adjusted more than once.
      * The loadingFactor must be between 0.1 and 1, this is how full each node will be, approximately.
      * Use 1 for static trees (will not be added to after build built), lower numbers if there are to be many subsequent updates.
-     * //TODO - Better parallelisation strategy.
      */
 	private void buildRtreeFromScratch(Node rootNode, final List<NodeWithEnvelope> geomNodes, double loadingFactor) {
-		partition(rootNode, geomNodes, 0, loadingFactor);
+		if (geomNodes.isEmpty()) {
+			return;
+		}
+		writePartition(rootNode, partitionInMemory(geomNodes, loadingFactor));
+		adjustPathBoundingBox(rootNode);
+	}
+
+	private Partition partitionInMemory(List<NodeWithEnvelope> geomNodes, double loadingFactor) {
+		NodeWithEnvelope[] entries = geomNodes.toArray(new NodeWithEnvelope[geomNodes.size()]);
+		return ForkJoinPool.commonPool().invoke(new PartitionTask(entries, 0, entries.length, loadingFactor));
 	}
 
 	/**
-	 * This will partition a collection of nodes under the specified index node. The nodes are clustered into one
-     * or more groups based on the loading factor, and the tree is expanded if necessary. If the nodes all fit
-     * into the parent, they are added directly, otherwise the depth is increased and partition called for each
-     * cluster at the deeper depth based on a new root node for each cluster.
+	 * An index node of a tree that has been partitioned in memory, but not yet written to the graph. Leaves refer to
+	 * a range of the shared entries array, other nodes to their child partitions.
 	 */
-	private void partition(Node indexNode, List<NodeWithEnvelope> nodes, int depth, final double loadingFactor) {
+	private static class Partition {
+		private final Envelope envelope;
+		private final NodeWithEnvelope[] entries;
+		private final int from;
+		private final int to;
+		private final List<Partition> children;
+
+		private Partition(Envelope envelope, NodeWithEnvelope[] entries, int from, int to, List<Partition> children) {
+			this.envelope = envelope;
+			this.entries = entries;
+			this.from = from;
+			this.to = to;
+			this.children = children;
+		}
 
-        // We want to split by the longest dimension to avoid degrading into extremely thin envelopes
-        int longestDimension = findLongestDimension(nodes);
+		/**
+		 * The height of this partition, using the same convention as RTreeIndex.getHeight, so a leaf has height one.
+		 */
+		private int getHeight() {
+			return children == null ? 1 : children.get(0).getHeight() + 1;
+		}
 
-        // Sort the entries by the longest dimension and then create envelopes around left and right halves
-        nodes.sort(new SingleDimensionNodeEnvelopeComparator(longestDimension));
+		private List<Partition> getDescendants(int depth) {
+			if (depth == 0) {
+				return Collections.singletonList(this);
+			}
+			List<Partition> result = new ArrayList<>();
+			if (children != null) {
+				for (Partition child : children) {
+					result.addAll(child.getDescendants(depth - 1));
+				}
+			}
+			return result;
+		}
+	}
 
-        //work out the number of times to partition it:
-		final int targetLoading = (int) Math.round(maxNodeReferences * loadingFactor);
-		int nodeCount = nodes.size();
+	/**
+	 * This will partition a range of entries into an in-memory index node. The entries are clustered into one
+     * or more groups based on the loading factor, and the tree is expanded if necessary. If the entries all fit
+     * into the node, it becomes a leaf, otherwise the range is sorted along its longest dimension, split into
+     * consecutive clusters, and each cluster is partitioned by a forked task. Tasks only ever sort and split their
+     * own range of the shared array, so they need no further synchronization.
+	 */
+	private class PartitionTask extends RecursiveTask<Partition> {
+		private final NodeWithEnvelope[] entries;
+		private final int from;
+		private final int to;
+		private final double loadingFactor;
+
+		private PartitionTask(NodeWithEnvelope[] entries, int from, int to, double loadingFactor) {
+			this.entries = entries;
+			this.from = from;
+			this.to = to;
+			this.loadingFactor = loadingFactor;
+		}
 
-		if (nodeCount <= targetLoading) {
-            // We have few enough nodes to add them directly to the current index node
-            boolean expandRootNodeBoundingBox = false;
-			for (NodeWithEnvelope n : nodes) {
-				expandRootNodeBoundingBox |= insertInLeaf(indexNode, n.node);
-			}
-			if (expandRootNodeBoundingBox) {
-				adjustPathBoundingBox(indexNode);
+		@Override
+		protected Partition compute() {
+			final int targetLoading = (int) Math.round(maxNodeReferences * loadingFactor);
+			int nodeCount = to - from;
+
+			if (nodeCount <= targetLoading) {
+				// We have few enough entries to add them directly to a leaf
+				Envelope envelope = new Envelope();
+				for (int i = from; i < to; i++) {
+					envelope.expandToInclude(entries[i].envelope);
+				}
+				return new Partition(envelope, entries, from, to, null);
 			}
-		} else {
-            // We have more geometries than can fit in the current index node - create clusters and index them
-			final int height = expectedHeight(loadingFactor, nodeCount); //exploit change of base formula
+
+			// We want to split by the longest dimension to avoid degrading into extremely thin envelopes
+			int longestDimension = findLongestDimension(Arrays.asList(entries).subList(from, to));
+			Arrays.parallelSort(entries, from, to, new SingleDimensionNodeEnvelopeComparator(longestDimension));
+
+			// We have more geometries than can fit in one index node - create clusters and index them
+			final int height = expectedHeight(loadingFactor, nodeCount);
 			final int subTreeSize = (int) Math.round(Math.pow(targetLoading, height - 1));
 			final int numberOfPartitions = (int) Math.ceil((double) nodeCount / (double) subTreeSize);
-			// - TODO change this to use the sort function above
-			List<List<NodeWithEnvelope>> partitions = partitionList(nodes, numberOfPartitions);
+			//it is critical that partitionSize is always less than the target loading.
+			final int partitionSize = (int) Math.ceil((double) nodeCount / (double) numberOfPartitions);
 
-			//recurse on each partition
-			for (List<NodeWithEnvelope> partition : partitions) {
-				Node newIndexNode = database.createNode();
-                if (partition.size() > 1) {
-                    partition(newIndexNode, partition, depth + 1, loadingFactor);
-                } else {
-                    addBelow(newIndexNode, partition.get(0).node);
-                }
-                insertIndexNodeOnParent(indexNode, newIndexNode);
+			List<PartitionTask> tasks = new ArrayList<>(numberOfPartitions);
+			for (int start = from; start < to; start += partitionSize) {
+				tasks.add(new PartitionTask(entries, start, Math.min(start + partitionSize, to), loadingFactor));
 			}
-            monitor.addSplit(indexNode);
+			invokeAll(tasks);
+
+			Envelope envelope = new Envelope();
+			List<Partition> children = new ArrayList<>(tasks.size());
+			for (PartitionTask task : tasks) {
+				Partition child = task.join();
+				envelope.expandToInclude(child.envelope);
+				children.add(child);
+			}
+			return new Partition(envelope, entries, from, to, children);
 		}
 	}
 
-	// quick dirty way to partition a set into equal sized disjoint subsets
-	// - TODO why not use list.sublist() without copying ?
+	/**
+	 * Build a static tree by sorting the entries by the Hilbert curve value of their centres, and packing them into
+	 * completely filled leaves, and the leaves and every level above them into completely filled index nodes. This is
+	 * much cheaper than the OMT build, and gives near-optimal searches for data that does not change any more, but
+	 * later inserts will immediately split the full nodes.
+	 */
+	private void buildHilbertPackedTree(Node rootNode, final List<NodeWithEnvelope> geomNodes) {
+		if (geomNodes.isEmpty()) {
+			return;
+		}
+		Envelope range = new Envelope();
+		for (NodeWithEnvelope entry : geomNodes) {
+			range.expandToInclude(entry.envelope);
+		}
+		HilbertSpaceFillingCurve2D curve = new HilbertSpaceFillingCurve2D(range);
+		NodeWithEnvelope[] entries = geomNodes.toArray(new NodeWithEnvelope[geomNodes.size()]);
+		long[] keys = new long[entries.length];
+		Integer[] order = new Integer[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			keys[i] = curve.derivedValueFor(entries[i].envelope.centre());
+			order[i] = i;
+		}
+		Arrays.parallelSort(order, Comparator.comparingLong(i -> keys[i]));
+		NodeWithEnvelope[] sorted = new NodeWithEnvelope[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			sorted[i] = entries[order[i]];
+		}
 
-	private List<List<NodeWithEnvelope>> partitionList(List<NodeWithEnvelope> nodes, int numberOfPartitions) {
-		int nodeCount = nodes.size();
-		List<List<NodeWithEnvelope>> partitions = new ArrayList<>(numberOfPartitions);
+		List<Partition> level = new ArrayList<>(sorted.length / maxNodeReferences + 1);
+		for (int from = 0; from < sorted.length; from += maxNodeReferences) {
+			int to = Math.min(from + maxNodeReferences, sorted.length);
+			Envelope envelope = new Envelope();
+			for (int i = from; i < to; i++) {
+				envelope.expandToInclude(sorted[i].envelope);
+			}
+			level.add(new Partition(envelope, sorted, from, to, null));
+		}
+		while (level.size() > 1) {
+			List<Partition> parents = new ArrayList<>(level.size() / maxNodeReferences + 1);
+			for (int from = 0; from < level.size(); from += maxNodeReferences) {
+				List<Partition> children = new ArrayList<>(level.subList(from, Math.min(from + maxNodeReferences, level.size())));
+				Envelope envelope = new Envelope();
+				for (Partition child : children) {
+					envelope.expandToInclude(child.envelope);
+				}
+				parents.add(new Partition(envelope, sorted, children.get(0).from, children.get(children.size() - 1).to, children));
+			}
+			level = parents;
+		}
+		writePartition(rootNode, level.get(0));
+		adjustPathBoundingBox(rootNode);
+	}
 
-		int partitionSize = nodeCount / numberOfPartitions; //it is critical that partitionSize is always less than the target loading.
-        if (nodeCount % numberOfPartitions > 0) {
-            partitionSize++;
-        }
-		for (int i = 0; i < numberOfPartitions; i++) {
-			partitions.add(nodes.subList(i*partitionSize,Math.min((i+1)*partitionSize,nodeCount)));
-        }
-		return partitions;
+	/**
+	 * Write an in-memory partition below the given index node, creating one new index node per child partition.
+	 */
+	private void writePartition(Node indexNode, Partition partition) {
+		if (partition.children == null) {
+			for (int i = partition.from; i < partition.to; i++) {
+				indexNode.createRelationshipTo(partition.entries[i].node, RTreeRelationshipTypes.RTREE_REFERENCE);
+			}
+		} else {
+			for (Partition child : partition.children) {
+				Node newIndexNode = database.createNode();
+				writePartition(newIndexNode, child);
+				indexNode.createRelationshipTo(newIndexNode, RTreeRelationshipTypes.RTREE_CHILD);
+			}
+			monitor.addSplit(indexNode);
+		}
+		setIndexNodeEnvelope(indexNode, partition.envelope);
+		indexNode.setProperty(INDEX_PROP_CHILD_COUNT, partition.children == null ? partition.to - partition.from : partition.children.size());
+		indexNode.setProperty(INDEX_PROP_LEVEL, partition.getHeight());
 	}
 
 	@Override
 	public void remove(long geomNodeId, boolean deleteGeomNode, boolean throwExceptionIfNotFound) {
+		invalidateSnapshot();
+		flushInsertBuffer();
 		
 		Node geomNode = null;
 		// getNodeById throws NotFoundException if node is already removed
@@ -575,6 +790,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
                 final Relationship geometryRtreeReference = geomNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING);
                 if (geometryRtreeReference != null) {
                     geometryRtreeReference.delete();
+                    updateChildCount(indexNode, RTreeRelationshipTypes.RTREE_REFERENCE, -1);
                 }
                 if (deleteGeomNode) {
                     deleteNode(geomNode);
@@ -600,16 +816,44 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         }
     }
 
+	/**
+	 * Update the entry of a geometry whose envelope has changed. While the new envelope still fits in the leaf that
+	 * holds the geometry, the entry stays where it is and only the bounding boxes on its path are tightened, which
+	 * is the common case for small edits. Otherwise the geometry is removed and inserted again, so that it moves to
+	 * the leaf chosen for its new envelope. Geometries that are not indexed yet are added.
+	 */
+	public void update(Node geomNode) {
+		invalidateSnapshot();
+		flushInsertBuffer();
+		if (isGeometryNodeIndexed(geomNode)) {
+			Node indexNode = findLeafContainingGeometryNode(geomNode);
+			if (!isIndexNodeInThisIndex(indexNode)) {
+				return;
+			}
+			Envelope leafEnvelope = getIndexNodeEnvelope(indexNode);
+			if (leafEnvelope != null && leafEnvelope.contains(getLeafNodeEnvelope(geomNode))) {
+				if (adjustParentBoundingBox(indexNode, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+					adjustPathBoundingBox(indexNode);
+				}
+				return;
+			}
+			remove(geomNode.getId(), false, false);
+		}
+		add(geomNode);
+	}
+
 	private Node deleteEmptyTreeNodes(Node indexNode, RelationshipType relType) {
 		if (countChildren(indexNode, relType) == 0) {
 			Node parent = getIndexNodeParent(indexNode);
 			if (parent != null) {
 				indexNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHILD, Direction.INCOMING).delete();
+				updateChildCount(parent, RTreeRelationshipTypes.RTREE_CHILD, -1);
 				
 				indexNode.delete();
 				return deleteEmptyTreeNodes(parent, RTreeRelationshipTypes.RTREE_CHILD);
 			} else {
-				// root
+				// root, which is a leaf again once it is empty
+				indexNode.setProperty(INDEX_PROP_LEVEL, 1);
 				return indexNode;
 			}
 		} else {
@@ -642,6 +886,8 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
 	@Override
 	public void removeAll(final boolean deleteGeomNodes, final Listener monitor) {
+		invalidateSnapshot();
+		flushInsertBuffer();
 		Node indexRoot = getIndexRoot();
 
 		detachGeometryNodes( deleteGeomNodes, indexRoot, monitor );
@@ -668,6 +914,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
 	@Override
 	public void clear(final Listener monitor) {
+		invalidateSnapshot();
 		try (Transaction tx = database.beginTx()) {
 			removeAll(false, new NullListener());
 			initIndexRoot();
@@ -679,6 +926,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	@Override
 	public Envelope getBoundingBox() {
 		try (Transaction tx = database.beginTx()) {
+			flushInsertBuffer();
 			Envelope result = getIndexNodeEnvelope(getIndexRoot());
 			tx.success();
 			return result;
@@ -693,6 +941,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
 	@Override
 	public boolean isEmpty() {
+		flushInsertBuffer();
 		Node indexRoot = getIndexRoot();
 		return !indexRoot.hasProperty(INDEX_PROP_BBOX);
 	}
@@ -706,11 +955,13 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
     }
 
 	public void warmUp() {
+		flushInsertBuffer();
 		visit(new WarmUpVisitor(), getIndexRoot());
 	}
 
 	public Iterable<Node> getAllIndexInternalNodes()
 	{
+		flushInsertBuffer();
 		TraversalDescription td = database.traversalDescription()
 				.breadthFirst()
 				.relationships( RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING )
@@ -726,9 +977,18 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	private class SearchEvaluator implements Evaluator
 	{
 		private SearchFilter filter;
+		private int depth;
 
 		public SearchEvaluator(SearchFilter filter) {
+			this(filter, 0);
+		}
+
+		/**
+		 * @param depth the depth of the start node of the traversal, for searches that start below the root
+		 */
+		public SearchEvaluator(SearchFilter filter, int depth) {
 			this.filter = filter;
+			this.depth = depth;
 		}
 
 		@Override
@@ -742,9 +1002,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
             }
             else if ( rel.isType( RTreeRelationshipTypes.RTREE_CHILD ) )
             {
-				boolean shouldContinue = filter.needsToVisit( getIndexNodeEnvelope( node ) );
-				if(shouldContinue) monitor.matchedTreeNode(path.length(), node);
-				monitor.addCase(shouldContinue ? "Index Matches" : "Index Does NOT Match");
+				boolean shouldContinue = needsToVisit( node, depth + path.length(), filter );
                 return shouldContinue ?
                        Evaluation.EXCLUDE_AND_CONTINUE :
                        Evaluation.EXCLUDE_AND_PRUNE;
@@ -752,8 +1010,10 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
             else if ( rel.isType( RTreeRelationshipTypes.RTREE_REFERENCE ) )
             {
 				boolean found = filter.geometryMatches( node );
-				monitor.addCase(found ? "Geometry Matches" : "Geometry Does NOT Match");
-                if(found) monitor.setHeight(path.length());
+				synchronized (monitor) {
+					monitor.addCase(found ? "Geometry Matches" : "Geometry Does NOT Match");
+					if(found) monitor.setHeight(depth + path.length());
+				}
                 return found ?
                        Evaluation.INCLUDE_AND_PRUNE :
                        Evaluation.EXCLUDE_AND_PRUNE;
@@ -762,21 +1022,176 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         }
     }
 
-	public SearchResults searchIndex(SearchFilter filter) {
+	public SearchResults searchIndex(SearchFilter searchFilter) {
 		try (Transaction tx = database.beginTx()) {
-			SearchEvaluator searchEvaluator = new SearchEvaluator(filter);
-			TraversalDescription td = database.traversalDescription()
-					.depthFirst()
-					.relationships( RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING )
-					.relationships( RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING )
-					.evaluator( searchEvaluator );
-            Traverser traverser = td.traverse( getIndexRoot() );
-            SearchResults results = new SearchResults( traverser.nodes() );
+			IndexQueryStatistics.Query query = getQueryStatistics().startQuery();
+			SearchFilter filter = new QueryStatisticsFilter(searchFilter, query);
+			// every search strategy visits the root without testing it against the filter
+			query.indexNodeVisited();
+			flushInsertBuffer();
+			if (useIndexSnapshot) {
+				RTreeIndexSnapshot snapshot = RTreeIndexSnapshot.getOrBuild(database, getRootNode().getId(), getIndexRoot());
+				if (snapshot != null) {
+					SearchResults results = new SearchResults(query.track(() -> snapshot.search(database, filter, monitor)));
+					tx.success();
+					return results;
+				}
+			}
+			if (searchThreads > 1 && !RTreeIndexSnapshot.hasPendingWrites(database, getRootNode().getId())) {
+				RTreeParallelSearch search = new RTreeParallelSearch(this, filter, searchThreads, orderedSearch);
+				tx.success();
+				return new SearchResults(query.track(search));
+			}
+            SearchResults results = new SearchResults( query.track( searchSubTree( getIndexRoot(), 0, filter ) ) );
             tx.success();
             return results;
 		}
 	}
 
+	public IndexQueryStatistics getQueryStatistics() {
+		return IndexQueryStatistics.forLayer(database, getRootNode());
+	}
+
+	/**
+	 * Report the index nodes and geometries tested by a search to its query statistics. All search strategies test
+	 * through the filter, so this covers the serial, parallel and snapshot searches alike.
+	 */
+	private static class QueryStatisticsFilter implements SearchFilter {
+		private final SearchFilter filter;
+		private final IndexQueryStatistics.Query query;
+
+		private QueryStatisticsFilter(SearchFilter filter, IndexQueryStatistics.Query query) {
+			this.filter = filter;
+			this.query = query;
+		}
+
+		@Override
+		public boolean needsToVisit(Envelope envelope) {
+			query.indexNodeVisited();
+			return filter.needsToVisit(envelope);
+		}
+
+		@Override
+		public boolean geometryMatches(Node geomNode) {
+			boolean matches = filter.geometryMatches(geomNode);
+			query.candidate(matches);
+			return matches;
+		}
+	}
+
+	/**
+	 * Whether the search needs to visit the children of the given index node, recording the outcome on the monitor.
+	 * Parallel searches call this from several threads.
+	 */
+	boolean needsToVisit(Node indexNode, int depth, SearchFilter filter) {
+		boolean shouldContinue = filter.needsToVisit( getIndexNodeEnvelope( indexNode ) );
+		synchronized (monitor) {
+			if(shouldContinue) monitor.matchedTreeNode(depth, indexNode);
+			monitor.addCase(shouldContinue ? "Index Matches" : "Index Does NOT Match");
+		}
+		return shouldContinue;
+	}
+
+	/**
+	 * Search the subtree below the given index node, which is assumed to match the filter already.
+	 *
+	 * @param depth the depth of the index node in the tree, where the root has depth 0
+	 */
+	Iterable<Node> searchSubTree(Node indexNode, int depth, SearchFilter filter) {
+		TraversalDescription td = database.traversalDescription()
+				.depthFirst()
+				.relationships( RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING )
+				.relationships( RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING )
+				.evaluator( new SearchEvaluator( filter, depth ) );
+		Traverser traverser = td.traverse( indexNode );
+		return traverser.nodes();
+	}
+
+	/**
+	 * Find the k geometry nodes closest to the reference of the SearchDistance, in order of increasing distance.
+	 * The tree is walked best-first, always expanding the entry with the smallest minimum distance next. Geometry
+	 * entries are first queued with the distance to their envelope, and only re-queued with their exact distance when
+	 * they reach the head of the queue, so the search stops as soon as k exact distances have been dequeued.
+	 * This is the incremental nearest neighbour algorithm of Hjaltason and Samet.
+	 */
+	public SearchResults searchNearest(SearchDistance distance, int k) {
+		List<Node> nearest = new ArrayList<>(Math.max(k, 0));
+		if (k < 1) {
+			return new SearchResults(nearest);
+		}
+		try (Transaction tx = database.beginTx()) {
+			IndexQueryStatistics.Query query = getQueryStatistics().startQuery();
+			long examined = 0;
+			flushInsertBuffer();
+			PriorityQueue<NearestCandidate> queue = new PriorityQueue<>();
+			Node indexRoot = getIndexRoot();
+			Envelope rootEnvelope = getIndexNodeEnvelope(indexRoot);
+			if (rootEnvelope != null) {
+				queue.add(new NearestCandidate(indexRoot, distance.minDistance(rootEnvelope), NearestCandidate.INDEX_NODE, 0));
+			}
+			while (!queue.isEmpty() && nearest.size() < k) {
+				NearestCandidate candidate = queue.poll();
+				switch (candidate.type) {
+					case NearestCandidate.INDEX_NODE:
+						query.indexNodeVisited();
+						monitor.matchedTreeNode(candidate.level, candidate.node);
+						monitor.addCase("Nearest Index Node Visited");
+						if (nodeIsLeaf(candidate.node)) {
+							for (Relationship rel : candidate.node.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+								Node geomNode = rel.getEndNode();
+								queue.add(new NearestCandidate(geomNode, distance.minDistance(getLeafNodeEnvelope(geomNode)), NearestCandidate.GEOMETRY_ENVELOPE, candidate.level + 1));
+							}
+						} else {
+							for (Relationship rel : candidate.node.getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+								Node child = rel.getEndNode();
+								Envelope childEnvelope = getIndexNodeEnvelope(child);
+								if (childEnvelope != null) {
+									queue.add(new NearestCandidate(child, distance.minDistance(childEnvelope), NearestCandidate.INDEX_NODE, candidate.level + 1));
+								}
+							}
+						}
+						break;
+					case NearestCandidate.GEOMETRY_ENVELOPE:
+						examined++;
+						queue.add(new NearestCandidate(candidate.node, distance.distance(candidate.node), NearestCandidate.GEOMETRY_EXACT, candidate.level));
+						break;
+					default:
+						monitor.setHeight(candidate.level);
+						nearest.add(candidate.node);
+				}
+			}
+			query.candidates(examined, nearest.size());
+			query.finish();
+			tx.success();
+		}
+		return new SearchResults(nearest);
+	}
+
+	private static class NearestCandidate implements Comparable<NearestCandidate> {
+		private static final int INDEX_NODE = 0;
+		private static final int GEOMETRY_ENVELOPE = 1;
+		private static final int GEOMETRY_EXACT = 2;
+
+		private final Node node;
+		private final double distance;
+		private final int type;
+		private final int level;
+
+		private NearestCandidate(Node node, double distance, int type, int level) {
+			this.node = node;
+			this.distance = distance;
+			this.type = type;
+			this.level = level;
+		}
+
+		@Override
+		public int compareTo(NearestCandidate other) {
+			int comparison = Double.compare(distance, other.distance);
+			// on equal distances prefer exact geometry results, so we can stop as early as possible
+			return comparison != 0 ? comparison : Integer.compare(other.type, type);
+		}
+	}
+
 	public void visit(SpatialIndexVisitor visitor, Node indexNode) {
 		if (!visitor.needsToVisit(getIndexNodeEnvelope(indexNode))) {
 			return;
@@ -856,6 +1271,14 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		}
 	}
 
+	/**
+	 * The envelope of the index node, expanded to include the geometries below it in the insert buffer, if one is given
+	 */
+	private Envelope getIndexNodeEnvelope(Node indexNode, RTreeInsertBuffer buffer) {
+		Envelope envelope = getIndexNodeEnvelope(indexNode);
+		return buffer == null ? envelope : buffer.includePending(indexNode, envelope);
+	}
+
 	private void visitInTx(SpatialIndexVisitor visitor, Long indexNodeId) {
 		Node indexNode = database.getNodeById(indexNodeId);
 		if (!visitor.needsToVisit(getIndexNodeEnvelope(indexNode))) {
@@ -910,7 +1333,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		Node layerNode = getRootNode();
 		if (!layerNode.hasRelationship(RTreeRelationshipTypes.RTREE_ROOT, Direction.OUTGOING)) {
 			// index initialization
-			Node root = database.createNode();
+			Node root = createIndexNode(1);
 			layerNode.createRelationshipTo(root, RTreeRelationshipTypes.RTREE_ROOT);
 		}
 	}
@@ -948,10 +1371,25 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	}
 
 	private boolean nodeIsLeaf(Node node) {
+		Object level = node.getProperty(INDEX_PROP_LEVEL, null);
+		if (level != null) {
+			return (Integer) level == 1;
+		}
 		return !node.hasRelationship(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);
 	}
 
-	private Node chooseSubTree(Node parentIndexNode, Node geomRootNode) {
+	/**
+	 * Choose the child of the index node to add the envelope below. The bounding boxes of the children include the
+	 * geometries in the insert buffer, if one is given.
+	 */
+	private Node chooseSubTree(Node parentIndexNode, Envelope envelope, RTreeInsertBuffer buffer) {
+		if (splitMode.equals(RSTAR_SPLIT)) {
+			Node firstChild = parentIndexNode.getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING).iterator().next().getEndNode();
+			if (nodeIsLeaf(firstChild)) {
+				return chooseLeafWithLeastOverlapEnlargement(parentIndexNode, envelope);
+			}
+		}
+
 		// children that can contain the new geometry
 		List<Node> indexNodes = new ArrayList<>();
 
@@ -959,13 +1397,13 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		Iterable<Relationship> relationships = parentIndexNode.getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);
 		for (Relationship relation : relationships) {
 			Node indexNode = relation.getEndNode();
-			if (getIndexNodeEnvelope(indexNode).contains(getLeafNodeEnvelope(geomRootNode))) {
+			if (getIndexNodeEnvelope(indexNode, buffer).contains(envelope)) {
 				indexNodes.add(indexNode);
 			}
 		}
 
 		if (indexNodes.size() > 1) {
-			return chooseIndexNodeWithSmallestArea(indexNodes);
+			return chooseIndexNodeWithSmallestArea(indexNodes, buffer);
 		} else if (indexNodes.size() == 1) {
 			return indexNodes.get(0);
 		}
@@ -975,7 +1413,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		relationships = parentIndexNode.getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);
 		for (Relationship relation : relationships) {
 			Node indexNode = relation.getEndNode();
-			double enlargementNeeded = getAreaEnlargement(indexNode, geomRootNode);
+			double enlargementNeeded = getAreaEnlargement(indexNode, envelope, buffer);
 
 			if (enlargementNeeded < minimumEnlargement) {
 				indexNodes.clear();
@@ -987,7 +1425,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		}
 
 		if (indexNodes.size() > 1) {
-			return chooseIndexNodeWithSmallestArea(indexNodes);
+			return chooseIndexNodeWithSmallestArea(indexNodes, buffer);
 		} else if (indexNodes.size() == 1) {
 			return indexNodes.get(0);
 		} else {
@@ -996,21 +1434,54 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		}
 	}
 
-	private double getAreaEnlargement(Node indexNode, Node geomRootNode) {
-		Envelope before = getIndexNodeEnvelope(indexNode);
+	private double getAreaEnlargement(Node indexNode, Envelope envelope, RTreeInsertBuffer buffer) {
+		Envelope before = getIndexNodeEnvelope(indexNode, buffer);
 
-		Envelope after = getLeafNodeEnvelope(geomRootNode);
+		Envelope after = new Envelope(envelope);
 		after.expandToInclude(before);
 
 		return getArea(after) - getArea(before);
 	}
 
-	private Node chooseIndexNodeWithSmallestArea(List<Node> indexNodes) {
+	/**
+	 * The R* choice of leaf: the child of the parent whose overlap with its siblings grows least when it is expanded
+	 * to include the new envelope, resolving ties by least area enlargement and then by smallest area. As suggested
+	 * by Beckmann et al, only the children with the least area enlargement are considered as candidates, to avoid
+	 * the quadratic cost for large nodes.
+	 */
+	private Node chooseLeafWithLeastOverlapEnlargement(Node parentIndexNode, Envelope envelope) {
+		List<NodeWithEnvelope> children = getIndexChildren(parentIndexNode);
+		children.sort(Comparator.comparingDouble(child -> getArea(createEnvelope(child.envelope, envelope)) - getArea(child.envelope)));
+
+		NodeWithEnvelope best = null;
+		double bestOverlap = Double.POSITIVE_INFINITY;
+		double bestEnlargement = Double.POSITIVE_INFINITY;
+		for (NodeWithEnvelope candidate : children.subList(0, Math.min(RSTAR_CHOOSE_CANDIDATES, children.size()))) {
+			Envelope expanded = createEnvelope(candidate.envelope, envelope);
+			double overlapEnlargement = 0;
+			for (NodeWithEnvelope sibling : children) {
+				if (sibling != candidate) {
+					overlapEnlargement += getIntersectionArea(expanded, sibling.envelope) - getIntersectionArea(candidate.envelope, sibling.envelope);
+				}
+			}
+			double enlargement = getArea(expanded) - getArea(candidate.envelope);
+			if (best == null || overlapEnlargement < bestOverlap
+					|| (overlapEnlargement == bestOverlap && (enlargement < bestEnlargement
+					|| (enlargement == bestEnlargement && getArea(candidate.envelope) < getArea(best.envelope))))) {
+				best = candidate;
+				bestOverlap = overlapEnlargement;
+				bestEnlargement = enlargement;
+			}
+		}
+		return best.node;
+	}
+
+	private Node chooseIndexNodeWithSmallestArea(List<Node> indexNodes, RTreeInsertBuffer buffer) {
 		Node result = null;
 		double smallestArea = -1;
 
 		for (Node indexNode : indexNodes) {
-			double area = getArea(getIndexNodeEnvelope(indexNode));
+			double area = getArea(getIndexNodeEnvelope(indexNode, buffer));
 			if (result == null || area < smallestArea) {
 				result = indexNode;
 				smallestArea = area;
@@ -1020,7 +1491,19 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		return result;
 	}
 
-	private int countChildren(Node indexNode, RelationshipType relationshipType) {
+	/**
+	 * The number of children of the index node. Index nodes have either index nodes or geometry nodes as children,
+	 * so the relationshipType only matters for trees written before the count was cached on the index nodes.
+	 */
+	static int countChildren(Node indexNode, RelationshipType relationshipType) {
+		Object count = indexNode.getProperty(INDEX_PROP_CHILD_COUNT, null);
+		if (count != null) {
+			return (Integer) count;
+		}
+		return scanChildren(indexNode, relationshipType);
+	}
+
+	private static int scanChildren(Node indexNode, RelationshipType relationshipType) {
 		int counter = 0;
         for (Relationship ignored : indexNode.getRelationships(relationshipType, Direction.OUTGOING)) {
             counter++;
@@ -1028,6 +1511,25 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		return counter;
 	}
 
+	/**
+	 * Update the cached child count after adding or removing children. If the count was not cached yet, it is
+	 * counted from the relationships, which already include the change.
+	 */
+	static void updateChildCount(Node indexNode, RelationshipType relationshipType, int delta) {
+		Object count = indexNode.getProperty(INDEX_PROP_CHILD_COUNT, null);
+		indexNode.setProperty(INDEX_PROP_CHILD_COUNT, count == null ? scanChildren(indexNode, relationshipType) : (Integer) count + delta);
+	}
+
+	/**
+	 * Create an index node without children at the given level, where leaves are level one.
+	 */
+	private Node createIndexNode(int level) {
+		Node indexNode = database.createNode();
+		indexNode.setProperty(INDEX_PROP_CHILD_COUNT, 0);
+		indexNode.setProperty(INDEX_PROP_LEVEL, level);
+		return indexNode;
+	}
+
 	/**
 	 * @return is enlargement needed?
 	 */
@@ -1036,9 +1538,21 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	}
 
 	private void splitAndAdjustPathBoundingBox(Node indexNode) {
-        // create a new node and distribute the entries
-        Node newIndexNode = splitMode.equals(GREENES_SPLIT) ? greenesSplit(indexNode) : quadraticSplit(indexNode);
 		Node parent = getIndexNodeParent(indexNode);
+		if (parent != null && reinsertedLevels != null && reinsertedLevels.add(getHeight(indexNode, 0))) {
+			forcedReinsert(indexNode);
+			return;
+		}
+
+        // create a new node and distribute the entries
+        Node newIndexNode;
+        if (splitMode.equals(GREENES_SPLIT)) {
+            newIndexNode = greenesSplit(indexNode);
+        } else if (splitMode.equals(RSTAR_SPLIT)) {
+            newIndexNode = rstarSplit(indexNode);
+        } else {
+            newIndexNode = quadraticSplit(indexNode);
+        }
 //        System.out.println("spitIndex " + newIndexNode.getId());
 //        System.out.println("parent " + parent.getId());
         if (parent == null) {
@@ -1074,6 +1588,145 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         }
     }
 
+    private Node rstarSplit(Node indexNode) {
+        if (nodeIsLeaf(indexNode)) {
+            return rstarSplit(indexNode, RTreeRelationshipTypes.RTREE_REFERENCE);
+        } else {
+            return rstarSplit(indexNode, RTreeRelationshipTypes.RTREE_CHILD);
+        }
+    }
+
+    /**
+     * The R* split of Beckmann et al. The split axis is the one with the smallest sum of margins over all
+     * distributions of the entries sorted by their lower and by their upper bounds. Along that axis the distribution
+     * with the least overlap between the two groups is used, resolving ties by the smallest total area. Each group
+     * gets at least 40% of the entries.
+     */
+    private Node rstarSplit(Node indexNode, RelationshipType relationshipType) {
+        // Disconnect all current children from the index and return them with their envelopes
+        List<NodeWithEnvelope> entries = extractChildNodesWithEnvelopes(indexNode, relationshipType);
+        int minEntries = Math.max(1, (int) Math.round(entries.size() * 0.4));
+
+        List<NodeWithEnvelope> bestSplitAxis = null;
+        double bestMarginSum = Double.POSITIVE_INFINITY;
+        for (int dimension = 0; dimension < entries.get(0).envelope.getDimension(); dimension++) {
+            final int d = dimension;
+            List<NodeWithEnvelope> byMin = new ArrayList<>(entries);
+            byMin.sort(Comparator.comparingDouble((NodeWithEnvelope e) -> e.envelope.getMin(d)).thenComparingDouble(e -> e.envelope.getMax(d)));
+            List<NodeWithEnvelope> byMax = new ArrayList<>(entries);
+            byMax.sort(Comparator.comparingDouble((NodeWithEnvelope e) -> e.envelope.getMax(d)).thenComparingDouble(e -> e.envelope.getMin(d)));
+            double marginSum = 0;
+            for (List<NodeWithEnvelope> sorted : Arrays.asList(byMin, byMax)) {
+                Envelope[] lower = prefixEnvelopes(sorted);
+                Envelope[] upper = suffixEnvelopes(sorted);
+                for (int k = minEntries; k <= sorted.size() - minEntries; k++) {
+                    marginSum += getMargin(lower[k - 1]) + getMargin(upper[k]);
+                }
+            }
+            if (marginSum < bestMarginSum) {
+                bestMarginSum = marginSum;
+                bestSplitAxis = byMin;
+                bestSplitAxis.addAll(byMax);
+            }
+        }
+
+        // both sortings of the chosen axis are concatenated, so choose the best distribution of either
+        List<NodeWithEnvelope> best = null;
+        int bestSplitAt = 0;
+        double bestOverlap = Double.POSITIVE_INFINITY;
+        double bestArea = Double.POSITIVE_INFINITY;
+        for (int s = 0; s < 2; s++) {
+            List<NodeWithEnvelope> sorted = bestSplitAxis.subList(s * entries.size(), (s + 1) * entries.size());
+            Envelope[] lower = prefixEnvelopes(sorted);
+            Envelope[] upper = suffixEnvelopes(sorted);
+            for (int k = minEntries; k <= sorted.size() - minEntries; k++) {
+                double overlap = getIntersectionArea(lower[k - 1], upper[k]);
+                double area = getArea(lower[k - 1]) + getArea(upper[k]);
+                if (overlap < bestOverlap || (overlap == bestOverlap && area < bestArea)) {
+                    best = sorted;
+                    bestSplitAt = k;
+                    bestOverlap = overlap;
+                    bestArea = area;
+                }
+            }
+        }
+
+        return reconnectTwoChildGroups(indexNode, best.subList(0, bestSplitAt), best.subList(bestSplitAt, best.size()), relationshipType);
+    }
+
+    /**
+     * For each position i, the envelope of the entries up to and including i.
+     */
+    private static Envelope[] prefixEnvelopes(List<NodeWithEnvelope> entries) {
+        Envelope[] result = new Envelope[entries.size()];
+        Envelope envelope = new Envelope();
+        for (int i = 0; i < entries.size(); i++) {
+            envelope.expandToInclude(entries.get(i).envelope);
+            result[i] = new Envelope(envelope);
+        }
+        return result;
+    }
+
+    /**
+     * For each position i, the envelope of the entries from i to the end.
+     */
+    private static Envelope[] suffixEnvelopes(List<NodeWithEnvelope> entries) {
+        Envelope[] result = new Envelope[entries.size()];
+        Envelope envelope = new Envelope();
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            envelope.expandToInclude(entries.get(i).envelope);
+            result[i] = new Envelope(envelope);
+        }
+        return result;
+    }
+
+    /**
+     * The R* overflow treatment: instead of splitting, remove the 30% of the entries whose centres are furthest from
+     * the centre of the index node, and insert them again at the same level, closest first. This is only done for the
+     * first overflow on each level while adding a geometry, so reinserting cannot cascade endlessly.
+     */
+    private void forcedReinsert(Node indexNode) {
+        RelationshipType relationshipType = nodeIsLeaf(indexNode) ? RTreeRelationshipTypes.RTREE_REFERENCE : RTreeRelationshipTypes.RTREE_CHILD;
+        int height = getHeight(indexNode, 0);
+        double[] centre = getIndexNodeEnvelope(indexNode).centre();
+        List<NodeWithEnvelope> entries = extractChildNodesWithEnvelopes(indexNode, relationshipType);
+        entries.sort(Comparator.comparingDouble(entry -> getCentreDistance(entry.envelope, centre)));
+        int keep = entries.size() - Math.max(1, (int) Math.round(entries.size() * RSTAR_REINSERT_FRACTION));
+
+        indexNode.removeProperty(INDEX_PROP_BBOX);
+        for (NodeWithEnvelope entry : entries.subList(0, keep)) {
+            addChild(indexNode, relationshipType, entry.node);
+        }
+        // shrink every ancestor to its children before the removed entries are reinserted from the root. This does not
+        // stop at an ancestor that is unchanged, since the entry that caused the overflow was added below the ancestors
+        // without expanding them.
+        for (Node ancestor = getIndexNodeParent(indexNode); ancestor != null; ancestor = getIndexNodeParent(ancestor)) {
+            adjustParentBoundingBox(ancestor, RTreeRelationshipTypes.RTREE_CHILD);
+        }
+
+        for (NodeWithEnvelope entry : entries.subList(keep, entries.size())) {
+            if (relationshipType == RTreeRelationshipTypes.RTREE_REFERENCE) {
+                addBelow(getIndexRoot(), entry.node);
+            } else {
+                // the entry is an index node, and must be inserted on a node at the same height as the one it came from
+                Node parent = getIndexRoot();
+                for (int parentHeight = getHeight(parent, 0); parentHeight > height; parentHeight--) {
+                    parent = chooseSubTree(parent, entry.envelope, null);
+                }
+                insertIndexNodeOnParent(parent, entry.node);
+            }
+        }
+    }
+
+    private static double getCentreDistance(Envelope envelope, double[] centre) {
+        double distance = 0;
+        for (int i = 0; i < centre.length; i++) {
+            double d = envelope.centre(i) - centre[i];
+            distance += d * d;
+        }
+        return distance;
+    }
+
     private NodeWithEnvelope[] mostDistantByDeadSpace(List<NodeWithEnvelope> entries) {
 		NodeWithEnvelope seed1 = entries.get(0);
 		NodeWithEnvelope seed2 = entries.get(0);
@@ -1119,6 +1772,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
             entries.add(new NodeWithEnvelope(node, getChildNodeEnvelope(node, relationshipType)));
             relationship.delete();
         }
+        indexNode.setProperty(INDEX_PROP_CHILD_COUNT, 0);
         return entries;
     }
 
@@ -1226,8 +1880,8 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
             addChild(indexNode, relationshipType, entry.node);
         }
 
-        // create new node from split
-        Node newIndexNode = database.createNode();
+        // create new node from split, on the same level
+        Node newIndexNode = createIndexNode(getHeight(indexNode, 0));
         for (NodeWithEnvelope entry : group2) {
             addChild(newIndexNode, relationshipType, entry.node);
         }
@@ -1236,7 +1890,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
     }
 
 	private void createNewRoot(Node oldRoot, Node newIndexNode) {
-		Node newRoot = database.createNode();
+		Node newRoot = createIndexNode(getHeight(oldRoot, 0) + 1);
 		addChild(newRoot, RTreeRelationshipTypes.RTREE_CHILD, oldRoot);
 		addChild(newRoot, RTreeRelationshipTypes.RTREE_CHILD, newIndexNode);
 
@@ -1251,6 +1905,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 			childEnvelope.getMinX(), childEnvelope.getMinY(),
 			childEnvelope.getMaxX(), childEnvelope.getMaxY()};
 		parent.createRelationshipTo(newChild, type);
+		updateChildCount(parent, type, 1);
 		return expandParentBoundingBoxAfterNewChild(parent, childBBox);
 	}
 
@@ -1366,10 +2021,25 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		// TODO why not e.getArea(); ?
 	}
 
+	private static double getIntersectionArea(Envelope e, Envelope e1) {
+		Envelope intersection = e.intersection(e1);
+		return intersection == null ? 0.0 : intersection.getArea();
+	}
+
+	private static double getMargin(Envelope e) {
+		double margin = 0.0;
+		for (int i = 0; i < e.getDimension(); i++) {
+			margin += e.getWidth(i);
+		}
+		return margin;
+	}
+
 	private void deleteTreeBelow( Node rootNode ) {
 		for ( Relationship relationship : rootNode.getRelationships( RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING )) {
 			deleteRecursivelySubtree( relationship.getEndNode(), relationship );
 		}
+		rootNode.setProperty( INDEX_PROP_CHILD_COUNT, 0 );
+		rootNode.setProperty( INDEX_PROP_LEVEL, 1 );
 	}
 
 	private void deleteRecursivelySubtree(Node node, Relationship incoming) {
@@ -1419,6 +2089,23 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		return rootNode;
 	}
 
+	/**
+	 * Drop the in-memory snapshot of this index, if any. Called before every change to the tree structure, so that
+	 * searches fall back to the graph until the change has been committed.
+	 */
+	private void invalidateSnapshot() {
+		// parallel searches also need to know about uncommitted writes, which their workers cannot see
+		RTreeIndexSnapshot.invalidate(database, getRootNode().getId(), useIndexSnapshot || searchThreads > 1);
+	}
+
+	/**
+	 * Write the bounding box updates of any geometries buffered for this index in the current transaction. Called
+	 * before every read that depends on the index node bounding boxes, and before every other change to the tree.
+	 */
+	private void flushInsertBuffer() {
+		RTreeInsertBuffer.flush(database, getRootNode().getId());
+	}
+
 	/**
 	 * Create a bounding box encompassing the two bounding boxes passed in.
 	 */
@@ -1439,7 +2126,13 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	private EnvelopeDecoder envelopeDecoder;
 	private int maxNodeReferences;
     private String splitMode = GREENES_SPLIT;
+    private Set<Integer> reinsertedLevels = null;
     private boolean shouldMergeTrees = false;
+    private boolean useIndexSnapshot = false;
+    private String buildMode = OMT_BUILD;
+    private boolean useInsertBuffer = false;
+    private int searchThreads = 1;
+    private boolean orderedSearch = true;
 
     private Node metadataNode;
 	private int totalGeometryCount = 0;
@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology," Network Engine for Objects in Lund
+ * AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
+import org.neo4j.gis.spatial.utilities.TransactionLocal;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * A read-optimized, in-memory mirror of the index nodes of an RTreeIndex. The node ids, bounding boxes and child
+ * offsets are packed into primitive arrays in breadth-first order, so that searches only read from the graph once
+ * they reach the RTREE_REFERENCE relationships of the leaves that match the filter.
+ * <p>
+ * Layers, and therefore their indexes, are re-created on every lookup, so snapshots are shared by all RTreeIndex
+ * instances for the same layer node in the same database. Every write to the index drops the shared snapshot, and
+ * the commit of the writing transaction drops it again, in case another thread built a new one from the previously
+ * committed state in the meantime. A snapshot is only shared if no such commit happened while it was being built. A
+ * thread with uncommitted writes to the index never builds a snapshot, since a rollback would leave it describing a
+ * tree that does not exist.
+ */
+class RTreeIndexSnapshot {
+
+	private static final Map<GraphDatabaseService, SnapshotRegistry> registries = new WeakHashMap<>();
+
+	private final long[] nodeIds;
+	private final double[] bboxes;
+	private final int[] firstChild;
+	private final int[] childCount;
+
+	private RTreeIndexSnapshot(long[] nodeIds, double[] bboxes, int[] firstChild, int[] childCount) {
+		this.nodeIds = nodeIds;
+		this.bboxes = bboxes;
+		this.firstChild = firstChild;
+		this.childCount = childCount;
+	}
+
+	int size() {
+		return nodeIds.length;
+	}
+
+	/**
+	 * Return the shared snapshot for the index belonging to the given layer node, building it from the graph if
+	 * necessary. Returns null if the current thread has uncommitted changes to this index.
+	 */
+	static RTreeIndexSnapshot getOrBuild(GraphDatabaseService database, long layerNodeId, Node indexRoot) {
+		SnapshotRegistry registry = registryFor(database);
+		if (registry.pendingWrites.get().contains(layerNodeId)) {
+			return null;
+		}
+		RTreeIndexSnapshot snapshot = registry.snapshots.get(layerNodeId);
+		if (snapshot == null) {
+			long version;
+			synchronized (registry) {
+				version = registry.versions.getOrDefault(layerNodeId, 0L);
+			}
+			snapshot = build(indexRoot);
+			synchronized (registry) {
+				// only share the snapshot if no commit to the index happened while it was built
+				if (registry.versions.getOrDefault(layerNodeId, 0L) == version) {
+					registry.snapshots.putIfAbsent(layerNodeId, snapshot);
+				}
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Drop the shared snapshot for the index belonging to the given layer node, and remember to drop it again when
+	 * the current transaction commits. When the writing index does not use snapshots itself, this only does any work
+	 * if some other index in the same database does, so that databases that never use snapshots do not pay for the
+	 * transaction event handler.
+	 */
+	static void invalidate(GraphDatabaseService database, long layerNodeId, boolean useSnapshots) {
+		SnapshotRegistry registry;
+		if (useSnapshots) {
+			registry = registryFor(database);
+		} else {
+			synchronized (registries) {
+				registry = registries.get(database);
+			}
+			if (registry == null) {
+				return;
+			}
+		}
+		registry.pendingWrites.get().add(layerNodeId);
+		registry.snapshots.remove(layerNodeId);
+	}
+
+	/**
+	 * Whether the current thread has uncommitted writes to the index belonging to the given layer node, as recorded
+	 * by invalidate.
+	 */
+	static boolean hasPendingWrites(GraphDatabaseService database, long layerNodeId) {
+		SnapshotRegistry registry;
+		synchronized (registries) {
+			registry = registries.get(database);
+		}
+		return registry != null && registry.pendingWrites.get().contains(layerNodeId);
+	}
+
+	private static SnapshotRegistry registryFor(GraphDatabaseService database) {
+		synchronized (registries) {
+			SnapshotRegistry registry = registries.get(database);
+			if (registry == null) {
+				registry = new SnapshotRegistry(database);
+				database.registerTransactionEventHandler(registry);
+				database.registerKernelEventHandler(registry);
+				registries.put(database, registry);
+			}
+			return registry;
+		}
+	}
+
+	private static RTreeIndexSnapshot build(Node indexRoot) {
+		List<Node> nodes = new ArrayList<>();
+		int[] firstChild = new int[16];
+		int[] childCount = new int[16];
+		nodes.add(indexRoot);
+		for (int i = 0; i < nodes.size(); i++) {
+			if (i == firstChild.length) {
+				firstChild = Arrays.copyOf(firstChild, i * 2);
+				childCount = Arrays.copyOf(childCount, i * 2);
+			}
+			firstChild[i] = nodes.size();
+			for (Relationship rel : nodes.get(i).getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+				nodes.add(rel.getEndNode());
+			}
+			childCount[i] = nodes.size() - firstChild[i];
+		}
+		long[] nodeIds = new long[nodes.size()];
+		double[] bboxes = new double[nodes.size() * 4];
+		for (int i = 0; i < nodes.size(); i++) {
+			Node node = nodes.get(i);
+			nodeIds[i] = node.getId();
+			double[] bbox = (double[]) node.getProperty(RTreeIndex.INDEX_PROP_BBOX, null);
+			if (bbox == null) {
+				// this is ok after an index node split, and for the root of an empty tree
+				Arrays.fill(bboxes, i * 4, i * 4 + 4, Double.NaN);
+			} else {
+				System.arraycopy(bbox, 0, bboxes, i * 4, 4);
+			}
+		}
+		return new RTreeIndexSnapshot(nodeIds, bboxes, Arrays.copyOf(firstChild, nodes.size()), Arrays.copyOf(childCount, nodes.size()));
+	}
+
+	private Envelope envelopeAt(int index) {
+		int offset = index * 4;
+		if (Double.isNaN(bboxes[offset])) {
+			return null;
+		}
+		// Envelope parameters: xmin, xmax, ymin, ymax
+		return new Envelope(bboxes[offset], bboxes[offset + 2], bboxes[offset + 1], bboxes[offset + 3]);
+	}
+
+	/**
+	 * Search the snapshot using the same rules as the RTreeIndex SearchEvaluator: the root is always visited, other
+	 * index nodes only if the filter needs to visit their envelope, and the geometry nodes referenced by visited
+	 * leaves are returned if they match the filter.
+	 */
+	Iterator<Node> search(GraphDatabaseService database, SearchFilter filter, TreeMonitor monitor) {
+		return new SearchIterator(database, filter, monitor);
+	}
+
+	private class SearchIterator implements Iterator<Node> {
+		private final GraphDatabaseService database;
+		private final SearchFilter filter;
+		private final TreeMonitor monitor;
+		private int[] stack = new int[64];
+		private int[] depths = new int[64];
+		private int top = 0;
+		private Iterator<Relationship> references = null;
+		private int referenceDepth = 0;
+		private Node next = null;
+
+		private SearchIterator(GraphDatabaseService database, SearchFilter filter, TreeMonitor monitor) {
+			this.database = database;
+			this.filter = filter;
+			this.monitor = monitor;
+			push(0, 0);
+			prefetch();
+		}
+
+		private void push(int index, int depth) {
+			if (top == stack.length) {
+				stack = Arrays.copyOf(stack, top * 2);
+				depths = Arrays.copyOf(depths, top * 2);
+			}
+			stack[top] = index;
+			depths[top] = depth;
+			top++;
+		}
+
+		private void prefetch() {
+			next = null;
+			while (next == null) {
+				if (references != null && references.hasNext()) {
+					Node geomNode = references.next().getEndNode();
+					boolean found = filter.geometryMatches(geomNode);
+					monitor.addCase(found ? "Geometry Matches" : "Geometry Does NOT Match");
+					if (found) {
+						monitor.setHeight(referenceDepth);
+						next = geomNode;
+					}
+				} else if (top > 0) {
+					top--;
+					int index = stack[top];
+					int depth = depths[top];
+					if (childCount[index] == 0) {
+						Node leaf = database.getNodeById(nodeIds[index]);
+						references = leaf.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING).iterator();
+						referenceDepth = depth + 1;
+					} else {
+						for (int child = firstChild[index] + childCount[index] - 1; child >= firstChild[index]; child--) {
+							boolean shouldContinue = filter.needsToVisit(envelopeAt(child));
+							if (shouldContinue) {
+								monitor.matchedTreeNode(depth + 1, database.getNodeById(nodeIds[child]));
+								push(child, depth + 1);
+							}
+							monitor.addCase(shouldContinue ? "Index Matches" : "Index Does NOT Match");
+						}
+					}
+				} else {
+					return;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Node next() {
+			Node node = next;
+			if (node == null) {
+				throw new NoSuchElementException();
+			}
+			prefetch();
+			return node;
+		}
+	}
+
+	private static class SnapshotRegistry implements TransactionEventHandler<Object>, KernelEventHandler {
+		private final GraphDatabaseService database;
+		private final Map<Long, RTreeIndexSnapshot> snapshots = new ConcurrentHashMap<>();
+		// the number of commits to each index, to detect snapshots that were built while another thread committed
+		private final Map<Long, Long> versions = new ConcurrentHashMap<>();
+		private final TransactionLocal<Set<Long>> pendingWrites;
+
+		private SnapshotRegistry(GraphDatabaseService database) {
+			this.database = database;
+			this.pendingWrites = new TransactionLocal<>(database, HashSet::new);
+		}
+
+		@Override
+		public Object beforeCommit(TransactionData data) throws Exception {
+			return null;
+		}
+
+		@Override
+		public void afterCommit(TransactionData data, Object state) {
+			Set<Long> pending = pendingWrites.get();
+			if (pending.isEmpty()) {
+				return;
+			}
+			synchronized (this) {
+				for (Long layerNodeId : pending) {
+					versions.merge(layerNodeId, 1L, Long::sum);
+					snapshots.remove(layerNodeId);
+				}
+			}
+			pending.clear();
+		}
+
+		@Override
+		public void afterRollback(TransactionData data, Object state) {
+			// the committed tree is unchanged, so snapshots built by other threads are still valid
+			pendingWrites.get().clear();
+		}
+
+		/**
+		 * Forget the database when it shuts down, since the static registries would otherwise keep it reachable through
+		 * this handler after it is gone
+		 */
+		@Override
+		public void beforeShutdown() {
+			synchronized (registries) {
+				registries.remove(database);
+			}
+			database.unregisterTransactionEventHandler(this);
+		}
+
+		@Override
+		public void kernelPanic(ErrorState error) {
+		}
+
+		@Override
+		public Object getResource() {
+			return null;
+		}
+
+		@Override
+		public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+			return ExecutionOrder.DOESNT_MATTER;
+		}
+	}
+}
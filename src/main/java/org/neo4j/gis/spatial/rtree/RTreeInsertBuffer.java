@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology," Network Engine for Objects in Lund
+ * AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.neo4j.gis.spatial.utilities.TransactionLocal;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * A write-behind buffer for single geometry inserts into the leaves of an RTreeIndex. The RTREE_REFERENCE
+ * relationships are created immediately, but the bounding boxes of the index nodes on the path from the root to each
+ * leaf are only expanded when the buffer is flushed, with one write per index node for all the geometries added below
+ * it. Until then the RTreeIndex chooses the path of the next geometry from the bounding boxes including the buffered
+ * expansions. The cached child count of each leaf is likewise kept in the buffer, and only written when it is flushed.
+ * <p>
+ * Layers, and therefore their indexes, are re-created on every lookup, so buffers are shared by all RTreeIndex
+ * instances for the same layer node in the same transaction. The RTreeIndex flushes the buffer before every read
+ * that depends on the bounding boxes and before every other change to the tree, and the buffer is flushed before
+ * the transaction commits. The buffers of a transaction that does not commit are dropped with it.
+ */
+class RTreeInsertBuffer {
+
+	private static final Map<GraphDatabaseService, BufferRegistry> registries = new WeakHashMap<>();
+
+	private final Map<Long, PendingLeaf> leaves = new HashMap<>();
+	// the expansion of the bounding box of every index node on the paths to the buffered leaves
+	private final Map<Long, PendingExpansion> expansions = new LinkedHashMap<>();
+
+	/**
+	 * Return the buffer of the current transaction for the index belonging to the given layer node.
+	 */
+	static RTreeInsertBuffer forIndex(GraphDatabaseService database, long layerNodeId) {
+		BufferRegistry registry;
+		synchronized (registries) {
+			registry = registries.get(database);
+			if (registry == null) {
+				registry = new BufferRegistry(database);
+				database.registerTransactionEventHandler(registry);
+				database.registerKernelEventHandler(registry);
+				registries.put(database, registry);
+			}
+		}
+		return registry.buffers.get().computeIfAbsent(layerNodeId, id -> new RTreeInsertBuffer());
+	}
+
+	/**
+	 * Flush the buffer of the current transaction for the index belonging to the given layer node, if there is one.
+	 */
+	static void flush(GraphDatabaseService database, long layerNodeId) {
+		BufferRegistry registry;
+		synchronized (registries) {
+			registry = registries.get(database);
+		}
+		if (registry != null) {
+			RTreeInsertBuffer buffer = registry.buffers.get().get(layerNodeId);
+			if (buffer != null) {
+				buffer.flush();
+			}
+		}
+	}
+
+	/**
+	 * Add the geometry node to the leaf at the end of the path from the root, leaving the bounding boxes of the index
+	 * nodes on the path to the next flush.
+	 *
+	 * @return the number of references of the leaf, including the new one
+	 */
+	int addReference(List<Node> path, Node geomNode, Envelope geomEnvelope) {
+		Node leaf = path.get(path.size() - 1);
+		PendingLeaf pending = leaves.computeIfAbsent(leaf.getId(), id -> new PendingLeaf(leaf));
+		leaf.createRelationshipTo(geomNode, RTreeRelationshipTypes.RTREE_REFERENCE);
+		pending.references++;
+		for (Node indexNode : path) {
+			expansions.computeIfAbsent(indexNode.getId(), id -> new PendingExpansion(indexNode)).envelope.expandToInclude(geomEnvelope);
+		}
+		return pending.references;
+	}
+
+	/**
+	 * The envelope of the index node as it will be after the next flush
+	 *
+	 * @param stored the envelope stored on the index node, or null if it has none
+	 */
+	Envelope includePending(Node indexNode, Envelope stored) {
+		PendingExpansion expansion = expansions.get(indexNode.getId());
+		if (expansion == null) {
+			return stored;
+		}
+		Envelope envelope = new Envelope(expansion.envelope);
+		if (stored != null) {
+			envelope.expandToInclude(stored);
+		}
+		return envelope;
+	}
+
+	void flush() {
+		if (leaves.isEmpty()) {
+			return;
+		}
+		for (PendingLeaf leaf : leaves.values()) {
+			leaf.node.setProperty(RTreeIndex.INDEX_PROP_CHILD_COUNT, leaf.references);
+		}
+		leaves.clear();
+		for (PendingExpansion expansion : expansions.values()) {
+			expandBoundingBox(expansion.node, expansion.envelope);
+		}
+		expansions.clear();
+	}
+
+	/**
+	 * Expand the bounding box of the index node, which is stored as the minimum of every dimension followed by the
+	 * maximum of every dimension, to include the envelope of the same dimension.
+	 */
+	private static void expandBoundingBox(Node indexNode, Envelope envelope) {
+		int dimension = envelope.getDimension();
+		double[] childBBox = new double[dimension * 2];
+		for (int i = 0; i < dimension; i++) {
+			childBBox[i] = envelope.getMin(i);
+			childBBox[i + dimension] = envelope.getMax(i);
+		}
+		double[] bbox = (double[]) indexNode.getProperty(RTreeIndex.INDEX_PROP_BBOX, null);
+		if (bbox == null) {
+			indexNode.setProperty(RTreeIndex.INDEX_PROP_BBOX, childBBox);
+			return;
+		}
+		if (bbox.length != childBBox.length) {
+			throw new IllegalArgumentException("Cannot expand the " + bbox.length / 2 + "D bounding box of index node "
+					+ indexNode.getId() + " with a " + dimension + "D envelope");
+		}
+		boolean changed = false;
+		for (int i = 0; i < dimension; i++) {
+			if (childBBox[i] < bbox[i]) {
+				bbox[i] = childBBox[i];
+				changed = true;
+			}
+			if (childBBox[i + dimension] > bbox[i + dimension]) {
+				bbox[i + dimension] = childBBox[i + dimension];
+				changed = true;
+			}
+		}
+		if (changed) {
+			indexNode.setProperty(RTreeIndex.INDEX_PROP_BBOX, bbox);
+		}
+	}
+
+	private static class PendingLeaf {
+		private final Node node;
+		private int references;
+
+		private PendingLeaf(Node node) {
+			this.node = node;
+			this.references = RTreeIndex.countChildren(node, RTreeRelationshipTypes.RTREE_REFERENCE);
+		}
+	}
+
+	private static class PendingExpansion {
+		private final Node node;
+		private final Envelope envelope = new Envelope();
+
+		private PendingExpansion(Node node) {
+			this.node = node;
+		}
+	}
+
+	private static class BufferRegistry implements TransactionEventHandler<Object>, KernelEventHandler {
+		private final GraphDatabaseService database;
+		private final TransactionLocal<Map<Long, RTreeInsertBuffer>> buffers;
+
+		private BufferRegistry(GraphDatabaseService database) {
+			this.database = database;
+			this.buffers = new TransactionLocal<>(database, HashMap::new);
+		}
+
+		@Override
+		public Object beforeCommit(TransactionData data) throws Exception {
+			Map<Long, RTreeInsertBuffer> pending = buffers.get();
+			for (RTreeInsertBuffer buffer : pending.values()) {
+				buffer.flush();
+			}
+			pending.clear();
+			return null;
+		}
+
+		@Override
+		public void afterCommit(TransactionData data, Object state) {
+		}
+
+		@Override
+		public void afterRollback(TransactionData data, Object state) {
+			buffers.get().clear();
+		}
+
+		/**
+		 * Remove the registry of a database that shuts down, which the weak map would never drop, since the registry
+		 * refers to the database
+		 */
+		@Override
+		public void beforeShutdown() {
+			synchronized (registries) {
+				registries.remove(database);
+			}
+			database.unregisterTransactionEventHandler(this);
+		}
+
+		@Override
+		public void kernelPanic(ErrorState error) {
+		}
+
+		@Override
+		public Object getResource() {
+			return null;
+		}
+
+		@Override
+		public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+			return ExecutionOrder.DOESNT_MATTER;
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology," Network Engine for Objects in Lund
+ * AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * A search of an RTreeIndex that fans the matching subtrees out to a shared pool of worker threads. The index nodes
+ * matching the filter are expanded breadth-first in the calling thread until there are enough of them to keep the
+ * requested number of workers busy, and are then divided into that many groups. Each group is searched by one worker
+ * in its own read transaction, so the geometry predicates of the filter are evaluated in parallel.
+ * <p>
+ * The workers pass each result on as soon as it is found, and the results are merged into one stream, either in the
+ * order of the serial depth-first search, or in the order in which they are found. The workers only see committed
+ * data, so the RTreeIndex only uses this search when the calling thread has no uncommitted changes to the index.
+ */
+class RTreeParallelSearch implements Iterable<Node> {
+
+	// expand the tree until there are several subtrees per worker, so that subtrees of uneven cost balance out
+	private static final int SUBTREES_PER_WORKER = 4;
+
+	// marks the end of the results of a group
+	private static final Object END = new Object();
+
+	private static final Map<Integer, ExecutorService> executors = new HashMap<>();
+
+	private final RTreeIndex index;
+	private final SearchFilter filter;
+	private final int threads;
+	private final boolean ordered;
+	private final List<List<SubTree>> groups = new ArrayList<>();
+
+	/**
+	 * Find the subtrees to search, which requires a transaction in the calling thread.
+	 */
+	RTreeParallelSearch(RTreeIndex index, SearchFilter filter, int threads, boolean ordered) {
+		this.index = index;
+		this.filter = filter;
+		this.threads = threads;
+		this.ordered = ordered;
+
+		// the root is always visited, just like in the serial search
+		List<SubTree> frontier = Collections.singletonList(new SubTree(index.getIndexRoot().getId(), 0));
+		boolean expanded = true;
+		while (expanded && frontier.size() < threads * SUBTREES_PER_WORKER) {
+			expanded = false;
+			List<SubTree> next = new ArrayList<>();
+			for (SubTree subTree : frontier) {
+				Node indexNode = index.getDatabase().getNodeById(subTree.nodeId);
+				if (!indexNode.hasRelationship(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+					next.add(subTree);
+					continue;
+				}
+				expanded = true;
+				for (Relationship rel : indexNode.getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+					Node child = rel.getEndNode();
+					if (index.needsToVisit(child, subTree.depth + 1, filter)) {
+						next.add(new SubTree(child.getId(), subTree.depth + 1));
+					}
+				}
+			}
+			frontier = next;
+		}
+
+		// contiguous groups keep the depth-first order of the subtrees
+		int groupSize = (frontier.size() + threads - 1) / threads;
+		for (int from = 0; from < frontier.size(); from += groupSize) {
+			groups.add(frontier.subList(from, Math.min(from + groupSize, frontier.size())));
+		}
+	}
+
+	@Override
+	public Iterator<Node> iterator() {
+		ExecutorService executor = getExecutor(threads);
+		// in order, each group has its own queue, which is read to its end before the next one, otherwise all groups
+		// share one queue, which is read until every group has ended
+		BlockingQueue<Object> shared = ordered ? null : new LinkedBlockingQueue<>();
+		List<BlockingQueue<Object>> queues = new ArrayList<>(groups.size());
+		List<Future<?>> futures = new ArrayList<>(groups.size());
+		for (List<SubTree> group : groups) {
+			BlockingQueue<Object> queue = ordered ? new LinkedBlockingQueue<>() : shared;
+			queues.add(queue);
+			futures.add(executor.submit(() -> searchGroup(group, queue)));
+		}
+		return new MergingIterator(queues, futures);
+	}
+
+	/**
+	 * Search the subtrees of the group, passing each result on to the queue, followed by END, or by the failure
+	 */
+	private void searchGroup(List<SubTree> group, BlockingQueue<Object> results) {
+		GraphDatabaseService database = index.getDatabase();
+		try (Transaction tx = database.beginTx()) {
+			for (SubTree subTree : group) {
+				for (Node node : index.searchSubTree(database.getNodeById(subTree.nodeId), subTree.depth, filter)) {
+					results.add(node);
+				}
+			}
+			tx.success();
+		} catch (Throwable e) {
+			results.add(new Failure(e));
+			return;
+		}
+		results.add(END);
+	}
+
+	/**
+	 * The pools are shared by all indexes with the same number of search threads, since layers and their indexes are
+	 * re-created on every lookup. Their threads are daemons, so that an idle pool does not keep the JVM alive.
+	 */
+	private static ExecutorService getExecutor(int threads) {
+		synchronized (executors) {
+			return executors.computeIfAbsent(threads, count -> {
+				AtomicInteger threadCount = new AtomicInteger();
+				return Executors.newFixedThreadPool(count, runnable -> {
+					Thread thread = new Thread(runnable, "RTreeIndex-search-" + count + "-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+			});
+		}
+	}
+
+	private static class SubTree {
+		private final long nodeId;
+		private final int depth;
+
+		private SubTree(long nodeId, int depth) {
+			this.nodeId = nodeId;
+			this.depth = depth;
+		}
+	}
+
+	private static class Failure {
+		private final Throwable cause;
+
+		private Failure(Throwable cause) {
+			this.cause = cause;
+		}
+	}
+
+	/**
+	 * Iterate over the results of the groups as the workers find them, reading the queue of each group in turn until
+	 * its END. When the groups share a queue, it is read until it has had the END of every group.
+	 */
+	private static class MergingIterator implements Iterator<Node> {
+		private final List<BlockingQueue<Object>> queues;
+		private final List<Future<?>> futures;
+		private int ended = 0;
+		private Node next;
+
+		private MergingIterator(List<BlockingQueue<Object>> queues, List<Future<?>> futures) {
+			this.queues = queues;
+			this.futures = futures;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && ended < queues.size()) {
+				Object result = take(queues.get(ended));
+				if (result == END) {
+					ended++;
+				} else if (result instanceof Failure) {
+					cancelRemaining();
+					Throwable cause = ((Failure) result).cause;
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					throw new RuntimeException("Parallel RTree search failed", cause);
+				} else {
+					next = (Node) result;
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public Node next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Node result = next;
+			next = null;
+			return result;
+		}
+
+		private Object take(BlockingQueue<Object> queue) {
+			try {
+				return queue.take();
+			} catch (InterruptedException e) {
+				cancelRemaining();
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for parallel RTree search", e);
+			}
+		}
+
+		private void cancelRemaining() {
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+			ended = queues.size();
+		}
+	}
+}
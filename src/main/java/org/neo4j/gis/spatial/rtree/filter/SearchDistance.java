@@ -0,0 +1,36 @@
+/**
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree.filter;
+
+import org.neo4j.gis.spatial.rtree.Envelope;
+import org.neo4j.graphdb.Node;
+
+/**
+ * Distance measure used by nearest neighbour searches. The index will visit index nodes in order of
+ * increasing minDistance, so this must never be larger than the distance to any geometry contained
+ * inside the index node envelope.
+ */
+public interface SearchDistance {
+
+	double minDistance(Envelope indexNodeEnvelope);
+
+	double distance(Node geomNode);
+
+}
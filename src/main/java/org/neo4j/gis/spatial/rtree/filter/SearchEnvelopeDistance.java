@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree.filter;
+
+import org.neo4j.gis.spatial.rtree.Envelope;
+import org.neo4j.gis.spatial.rtree.EnvelopeDecoder;
+import org.neo4j.graphdb.Node;
+
+/**
+ * Measure distances from a reference Envelope using only the envelopes of the index nodes and the
+ * geometry nodes. For point layers this is exact, for other geometries it is only a lower bound and
+ * subclasses should override distance(Node) to compare the actual geometries.
+ */
+public class SearchEnvelopeDistance implements SearchDistance {
+
+	protected EnvelopeDecoder decoder;
+	protected Envelope referenceEnvelope;
+
+	public SearchEnvelopeDistance(EnvelopeDecoder decoder, Envelope referenceEnvelope) {
+		this.decoder = decoder;
+		this.referenceEnvelope = referenceEnvelope;
+	}
+
+	public Envelope getReferenceEnvelope() {
+		return referenceEnvelope;
+	}
+
+	@Override
+	public double minDistance(Envelope indexNodeEnvelope) {
+		return indexNodeEnvelope.distance(referenceEnvelope);
+	}
+
+	@Override
+	public double distance(Node geomNode) {
+		return decoder.decodeEnvelope(geomNode).distance(referenceEnvelope);
+	}
+
+	@Override
+	public String toString() {
+		return "SearchEnvelopeDistance[" + referenceEnvelope + "]";
+	}
+}
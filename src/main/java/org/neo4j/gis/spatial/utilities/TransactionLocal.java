@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.utilities;
+
+import java.lang.ref.WeakReference;
+import java.util.function.Supplier;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+/**
+ * A thread local value that belongs to the top level transaction of the thread. Transaction event handlers are only
+ * called for transactions that try to commit, so state that is only cleared by a handler would outlive a transaction
+ * that is closed without success, and leak into the next transaction of the same thread. Instead the value remembers
+ * the transaction it was created in, and is replaced by a fresh one when it is read in another transaction.
+ */
+public class TransactionLocal<T> {
+
+    private final ThreadToStatementContextBridge bridge;
+    private final Supplier<T> initial;
+    private final ThreadLocal<Entry<T>> entries = new ThreadLocal<>();
+
+    public TransactionLocal(GraphDatabaseService database, Supplier<T> initial) {
+        this.bridge = bridgeFor(database);
+        this.initial = initial;
+    }
+
+    /**
+     * Return the value of the current transaction, creating it if the thread has none yet, or only has one left over
+     * from an earlier transaction.
+     */
+    public T get() {
+        Object transaction = currentTransaction(bridge);
+        Entry<T> entry = entries.get();
+        if (entry == null || entry.transaction.get() != transaction) {
+            entry = new Entry<>(transaction, initial.get());
+            entries.set(entry);
+        }
+        return entry.value;
+    }
+
+    /**
+     * Whether the calling thread already has an open transaction, so that beginTx would only join it, and other
+     * threads would not see its changes. Without access to the kernel this is not known, and it is assumed to have one.
+     */
+    public static boolean hasTransaction(GraphDatabaseService database) {
+        ThreadToStatementContextBridge bridge = bridgeFor(database);
+        return bridge == null || currentTransaction(bridge) != null;
+    }
+
+    private static ThreadToStatementContextBridge bridgeFor(GraphDatabaseService database) {
+        if (database instanceof GraphDatabaseAPI) {
+            return ((GraphDatabaseAPI) database).getDependencyResolver().resolveDependency(ThreadToStatementContextBridge.class);
+        }
+        return null;
+    }
+
+    private static Object currentTransaction(ThreadToStatementContextBridge bridge) {
+        // without access to the kernel, all transactions of the thread share one value, as with a plain ThreadLocal
+        return bridge == null ? null : bridge.getTopLevelTransactionBoundToThisThread(false);
+    }
+
+    private static class Entry<T> {
+        // weak, so that a value left over from a closed transaction does not keep the transaction reachable
+        private final WeakReference<Object> transaction;
+        private final T value;
+
+        private Entry(Object transaction, T value) {
+            this.transaction = new WeakReference<>(transaction);
+            this.value = value;
+        }
+    }
+}
@@ -27,9 +27,12 @@ import org.neo4j.gis.spatial.rtree.EnvelopeDecoder;
 import org.neo4j.gis.spatial.rtree.TreeMonitor;
 import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
 import org.neo4j.gis.spatial.rtree.filter.SearchResults;
+import org.neo4j.gis.spatial.filter.SearchGeometryDistance;
 import org.neo4j.gis.spatial.filter.SearchRecords;
 import org.neo4j.graphdb.Node;
 
+import com.vividsolutions.jts.geom.Coordinate;
+
 /**
  * @author Davide Savazzi
  */
@@ -178,4 +181,15 @@ public class FakeIndex implements LayerIndexReader, Constants {
 	public SearchRecords search(SearchFilter filter) {
 		return new SearchRecords(layer, searchIndex(filter));
 	}
+
+	@Override
+	public SearchRecords searchNearest(Coordinate point, int k) {
+		SearchGeometryDistance distance = new SearchGeometryDistance(layer, layer.getGeometryFactory().createPoint(point));
+		List<Node> nodes = new ArrayList<>();
+		for (Node node : layer.getDataset().getAllGeometryNodes()) {
+			nodes.add(node);
+		}
+		nodes.sort(Comparator.comparingDouble(distance::distance));
+		return new SearchRecords(layer, new SearchResults(nodes.subList(0, Math.min(k, nodes.size()))));
+	}
 }
@@ -97,6 +97,22 @@ public class LayersTest extends Neo4jTestCase
         assertNull( db.getLayer( layer.getName() ) );
     }
 
+    @Test
+    public void testRejectConfigurationOfNonConfigurableEncoder()
+    {
+        SpatialDatabaseService db = new SpatialDatabaseService( graphDb() );
+        try
+        {
+            db.createLayer( "test", SimpleGraphEncoder.class, EditableLayerImpl.class, null, "lon:lat" );
+            fail( "Should not create a layer with configuration for a non-configurable encoder" );
+        }
+        catch ( SpatialDatabaseException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage().contains( "non-configurable encoder" ) );
+        }
+        assertNull( db.getLayer( "test" ) );
+    }
+
     @Test
     public void testDeleteGeometry()
     {
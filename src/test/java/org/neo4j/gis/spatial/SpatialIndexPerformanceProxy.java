@@ -30,6 +30,8 @@ import org.neo4j.gis.spatial.rtree.filter.SearchResults;
 import org.neo4j.gis.spatial.filter.SearchRecords;
 import org.neo4j.graphdb.Node;
 
+import com.vividsolutions.jts.geom.Coordinate;
+
 /**
  * @author Davide Savazzi
  */
@@ -138,4 +140,13 @@ public class SpatialIndexPerformanceProxy implements LayerIndexReader {
         System.out.println("# exec time(executeSearch(" + filter + ")): " + (stop - start) + "ms");
 		return results;
 	}
+
+    @Override
+	public SearchRecords searchNearest(Coordinate point, int k) {
+        long start = System.currentTimeMillis();
+        SearchRecords results = spatialIndex.searchNearest(point, k);
+        long stop = System.currentTimeMillis();
+        System.out.println("# exec time(searchNearest(" + point + ", " + k + ")): " + (stop - start) + "ms");
+		return results;
+	}
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.index;
+
+import com.vividsolutions.jts.geom.Envelope;
+import org.junit.Test;
+import org.neo4j.gis.spatial.Constants;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SimplePointLayer;
+import org.neo4j.gis.spatial.encoders.SimplePointEncoder;
+import org.neo4j.gis.spatial.filter.SearchIntersectWindow;
+import org.neo4j.gis.spatial.rtree.RTreeRelationshipTypes;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.when;
+
+public class LayerAutoPointIndexTest extends LayerIndexTestBase {
+
+    protected Class<? extends LayerIndexReader> getIndexClass() {
+        return LayerAutoPointIndex.class;
+    }
+
+    protected SpatialIndexWriter mockLayerIndex() {
+        Layer layer = mockLayer();
+        LayerAutoPointIndex index = new LayerAutoPointIndex();
+        try (Transaction tx = graph.beginTx()) {
+            index.init(layer);
+            tx.success();
+        }
+        when(layer.getIndex()).thenReturn(index);
+        return index;
+    }
+
+    @Test
+    public void shouldRebuildIntoAnotherBackend() {
+        LayerAutoPointIndex index = (LayerAutoPointIndex) mockLayerIndex();
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                addSimplePoint(index, x, y);
+            }
+        }
+        SearchIntersectWindow window = new SearchIntersectWindow(index.getLayer(), new Envelope(1.5, 5.5, 1.5, 5.5));
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should start with the rtree", index.getBackend(), instanceOf(LayerRTreeIndex.class));
+            assertThat("Should find points in the rtree", index.searchIndex(window).count(), equalTo(16));
+            tx.success();
+        }
+        index.rebuild(LayerAutoPointIndex.HILBERT);
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should have moved to the hilbert curve", index.getBackend(), instanceOf(LayerHilbertPointIndex.class));
+            assertThat("Should find points in the hilbert curve", index.searchIndex(window).count(), equalTo(16));
+            assertThat("Should have moved all points", index.count(), equalTo(100));
+            assertThat("Should remember the backend", (String) index.getLayer().getLayerNode().getProperty(Constants.PROP_INDEX_CONFIG), containsString("\"backend\":\"hilbert\""));
+            tx.success();
+        }
+        LayerAutoPointIndex reopened = new LayerAutoPointIndex();
+        try (Transaction tx = graph.beginTx()) {
+            reopened.init(index.getLayer());
+            assertThat("Another instance should follow the rebuild", reopened.getBackendName(), equalTo(LayerAutoPointIndex.HILBERT));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldRecommendBackendForWorkload() {
+        LayerAutoPointIndex.Workload nearest = new LayerAutoPointIndex.Workload();
+        nearest.windowQueries.add(60);
+        nearest.nearestQueries.add(40);
+        assertThat("k-NN searches should move geohash to the rtree", nearest.recommend(LayerAutoPointIndex.GEOHASH), equalTo(LayerAutoPointIndex.RTREE));
+        assertThat("k-NN searches should move the hilbert curve to the rtree", nearest.recommend(LayerAutoPointIndex.HILBERT), equalTo(LayerAutoPointIndex.RTREE));
+
+        LayerAutoPointIndex.Workload writes = new LayerAutoPointIndex.Workload();
+        writes.windowQueries.add(10);
+        writes.writes.add(1000);
+        assertThat("Writes should favour the hilbert curve", writes.recommend(LayerAutoPointIndex.RTREE), equalTo(LayerAutoPointIndex.HILBERT));
+        assertThat("Writes should keep an explicit index", writes.recommend(LayerAutoPointIndex.GEOHASH), equalTo(LayerAutoPointIndex.GEOHASH));
+
+        LayerAutoPointIndex.Workload misses = new LayerAutoPointIndex.Workload();
+        misses.windowQueries.add(100);
+        misses.windowFractions.add(0.1);
+        for (int i = 0; i < 100; i++) {
+            misses.monitor.miss();
+        }
+        assertThat("Misses should move geohash to the hilbert curve", misses.recommend(LayerAutoPointIndex.GEOHASH), equalTo(LayerAutoPointIndex.HILBERT));
+        assertThat("Misses in small windows should move the hilbert curve to the rtree", misses.recommend(LayerAutoPointIndex.HILBERT), equalTo(LayerAutoPointIndex.RTREE));
+
+        misses.reset();
+        assertThat("Should keep the backend without a workload", misses.recommend(LayerAutoPointIndex.ZORDER), equalTo(LayerAutoPointIndex.ZORDER));
+    }
+
+    @Test
+    public void shouldRebuildInBackgroundWhenWorkloadFavoursAnotherBackend() throws InterruptedException {
+        SimplePointLayer layer = createAutoLayer("{\"evaluationInterval\":100}");
+        LayerAutoPointIndex index = (LayerAutoPointIndex) layer.getIndex();
+        // only writes, so the first evaluation moves the rtree to the hilbert curve, while more points are added
+        for (int i = 0; i < 400; i++) {
+            layer.add(i % 20, i / 20);
+        }
+        awaitRebuild(index);
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should have moved to the hilbert curve", index.getBackendName(), equalTo(LayerAutoPointIndex.HILBERT));
+            assertThat("Should have moved all points, including those added during the rebuild", index.count(), equalTo(400));
+            SearchIntersectWindow window = new SearchIntersectWindow(layer, new Envelope(1.5, 5.5, 1.5, 5.5));
+            assertThat("Should find points in the hilbert curve", index.searchIndex(window).count(), equalTo(16));
+            assertThat("Should have removed the old rtree", layer.getLayerNode().hasRelationship(RTreeRelationshipTypes.RTREE_ROOT, Direction.OUTGOING), equalTo(false));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldPassEachBackendOnlyItsOwnConfiguration() throws InterruptedException {
+        SimplePointLayer layer = createAutoLayer("{\"evaluationInterval\":100,\"rtree\":{\"split\":\"rstar\"},\"hilbert\":{\"maxRanges\":50}}");
+        LayerAutoPointIndex index = (LayerAutoPointIndex) layer.getIndex();
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should configure the rtree", index.getBackend().getConfiguration(), containsString("\"split\":\"rstar\""));
+            tx.success();
+        }
+        for (int i = 0; i < 100; i++) {
+            layer.add(i % 10, i / 10);
+        }
+        awaitRebuild(index);
+        assertThat("Should not have failed", index.getWorkload().failures.get(), equalTo(0));
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should have moved to the hilbert curve", index.getBackendName(), equalTo(LayerAutoPointIndex.HILBERT));
+            assertThat("Should configure the hilbert curve", index.getBackend().getConfiguration(), containsString("\"maxRanges\":50"));
+            assertThat("Should have moved all points", index.count(), equalTo(100));
+            tx.success();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectBackendConfigurationOutsideItsBackend() {
+        LayerAutoPointIndex index = new LayerAutoPointIndex();
+        index.setConfiguration("{\"split\":\"rstar\"}");
+    }
+
+    @Test
+    public void shouldKeepBackendAndBackOffAfterFailedRebuild() throws InterruptedException {
+        SimplePointLayer layer = createAutoLayer("{\"evaluationInterval\":100}");
+        LayerAutoPointIndex index = (LayerAutoPointIndex) layer.getIndex();
+        // fail the commit that switches the layer to the new backend
+        long layerNodeId = layer.getLayerNode().getId();
+        TransactionEventHandler<Void> failSwitch = new TransactionEventHandler.Adapter<Void>() {
+            @Override
+            public Void beforeCommit(TransactionData data) {
+                for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                    if (entry.entity().getId() == layerNodeId && entry.key().equals(Constants.PROP_INDEX_CONFIG)) {
+                        throw new IllegalStateException("Switching the backend failed");
+                    }
+                }
+                return null;
+            }
+        };
+        graph.registerTransactionEventHandler(failSwitch);
+        try {
+            for (int i = 0; i < 100; i++) {
+                layer.add(i % 10, i / 10);
+            }
+            awaitRebuild(index);
+            assertThat("Should count the failure", index.getWorkload().failures.get(), equalTo(1));
+            try (Transaction tx = graph.beginTx()) {
+                assertThat("Should keep the rtree", index.getBackendName(), equalTo(LayerAutoPointIndex.RTREE));
+                assertThat("Should keep all points", index.count(), equalTo(100));
+                LayerHilbertPointIndex hilbert = new LayerHilbertPointIndex();
+                hilbert.init(layer);
+                assertThat("Should have removed the partly built hilbert curve", hilbert.getAllIndexedNodes().iterator().hasNext(), equalTo(false));
+                tx.success();
+            }
+            for (int i = 0; i < 199; i++) {
+                layer.add(i % 10, i / 10);
+            }
+            assertThat("Should wait twice as long before trying again", index.getWorkload().rebuilding.get(), equalTo(false));
+            assertThat("Should not have tried again", index.getWorkload().failures.get(), equalTo(1));
+            layer.add(0.5, 0.5);
+            awaitRebuild(index);
+            assertThat("Should have tried again", index.getWorkload().failures.get(), equalTo(2));
+        } finally {
+            graph.unregisterTransactionEventHandler(failSwitch);
+        }
+    }
+
+    private SimplePointLayer createAutoLayer(String indexConfig) {
+        return (SimplePointLayer) spatial.createLayer("auto", SimplePointEncoder.class, SimplePointLayer.class,
+                LayerAutoPointIndex.class, null, indexConfig, DefaultGeographicCRS.WGS84);
+    }
+
+    private static void awaitRebuild(LayerAutoPointIndex index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60000;
+        while (index.getWorkload().rebuilding.get()) {
+            assertThat("Rebuild should finish in time", System.currentTimeMillis() < deadline, equalTo(true));
+            Thread.sleep(10);
+        }
+    }
+}
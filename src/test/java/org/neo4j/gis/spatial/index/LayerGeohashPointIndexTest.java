@@ -19,9 +19,24 @@
  */
 package org.neo4j.gis.spatial.index;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import org.junit.Test;
 import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.filter.SearchIntersectWindow;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
 
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.mockito.Mockito.when;
 
 public class LayerGeohashPointIndexTest extends LayerIndexTestBase {
@@ -40,4 +55,108 @@ public class LayerGeohashPointIndexTest extends LayerIndexTestBase {
         when(layer.getIndex()).thenReturn(index);
         return index;
     }
+
+    @Test
+    public void shouldCoverBoundaryStraddlingSearchWithFineCells() {
+        LayerGeohashPointIndex index = (LayerGeohashPointIndex) mockLayerIndex();
+        index.configure(Collections.singletonMap(LayerGeohashPointIndex.KEY_MAX_CELLS, 16));
+        addSimplePoint(index, -0.001, -0.001);
+        addSimplePoint(index, 0.001, 0.001);
+        addSimplePoint(index, 0.001, -0.001);
+        addSimplePoint(index, 0.1, 0.1);
+        addSimplePoint(index, 10.0, 10.0);
+        SearchIntersectWindow window = new SearchIntersectWindow(index.getLayer(), new Envelope(-0.01, 0.01, -0.01, 0.01));
+        String[] cells = index.queryStringFor(window).split(" OR ");
+        assertThat("Should use at most the configured number of cells", cells.length, lessThanOrEqualTo(16));
+        for (String cell : cells) {
+            assertThat("Should not degrade to a short prefix: " + cell, cell.length(), greaterThan("geohash:".length() + 4));
+        }
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should find points on all sides of the equator and prime meridian", index.searchIndex(window).count(), equalTo(3));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldMaintainIndexStatistics() {
+        LayerGeohashPointIndex index = (LayerGeohashPointIndex) mockLayerIndex();
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("New index should be empty", index.isEmpty(), equalTo(true));
+            assertThat("New index should have no bounding box", index.getBoundingBox(), nullValue());
+            tx.success();
+        }
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                addSimplePoint(index, x, y);
+            }
+        }
+        Node first;
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should count all points", index.count(), equalTo(100));
+            assertThat("Should not be empty", index.isEmpty(), equalTo(false));
+            org.neo4j.gis.spatial.rtree.Envelope bbox = index.getBoundingBox();
+            assertThat("Should track the bounding box", new double[]{bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(), bbox.getMaxY()}, equalTo(new double[]{0, 0, 9, 9}));
+            assertThat("Should estimate count of all points", index.estimateCount(new org.neo4j.gis.spatial.rtree.Envelope(-180, 180, -90, 90)), closeTo(100.0, 0.001));
+            assertThat("Should estimate no points far away", index.estimateCount(new org.neo4j.gis.spatial.rtree.Envelope(-180, -90, -90, 90)), closeTo(0.0, 0.0));
+            first = index.getAllIndexedNodes().iterator().next();
+            assertThat("Should find indexed node", index.isNodeIndexed(first.getId()), equalTo(true));
+            tx.success();
+        }
+        index.remove(first.getId(), false, true);
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should count removal", index.count(), equalTo(99));
+            assertThat("Should not find removed node", index.isNodeIndexed(first.getId()), equalTo(false));
+            tx.success();
+        }
+        index.remove(first.getId(), false, true);
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should not count removal of a node that is not indexed", index.count(), equalTo(99));
+            tx.success();
+        }
+        index.removeAll(false, null);
+        try (Transaction tx = graph.beginTx()) {
+            index.init(index.getLayer());
+            assertThat("Should be empty after removing all", index.isEmpty(), equalTo(true));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldNotWriteMetadataNodeWhenReadingStatistics() {
+        LayerGeohashPointIndex index = (LayerGeohashPointIndex) mockLayerIndex();
+        addSimplePoint(index, 1, 1);
+        Node metadataNode;
+        try (Transaction tx = graph.beginTx()) {
+            metadataNode = index.getLayer().getLayerNode().getSingleRelationship(ExplicitIndexBackedPointIndex.ExplicitIndexRelationshipTypes.INDEX_METADATA, Direction.OUTGOING).getEndNode();
+            assertThat("Should store the histogram extent when creating the statistics", metadataNode.hasProperty(PointIndexStatistics.PROP_HISTOGRAM_EXTENT), equalTo(true));
+            // as left by an older version, which did not store one
+            metadataNode.removeProperty(PointIndexStatistics.PROP_HISTOGRAM_EXTENT);
+            tx.success();
+        }
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should count the point", index.count(), equalTo(1));
+            assertThat("Should have a bounding box", index.getBoundingBox(), notNullValue());
+            assertThat("Should not write the histogram extent when reading", metadataNode.hasProperty(PointIndexStatistics.PROP_HISTOGRAM_EXTENT), equalTo(false));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldNotWriteStatisticsOfRolledBackTransaction() {
+        LayerGeohashPointIndex index = (LayerGeohashPointIndex) mockLayerIndex();
+        addSimplePoint(index, 1, 1);
+        try (Transaction tx = graph.beginTx()) {
+            Node geomNode = graph.createNode();
+            encoder.encodeGeometry(geometryFactory.createPoint(new Coordinate(50, 50)), geomNode);
+            index.add(geomNode);
+            // closed without success, so the transaction event handlers are never called
+        }
+        addSimplePoint(index, 2, 2);
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should not count rolled back point", index.count(), equalTo(2));
+            org.neo4j.gis.spatial.rtree.Envelope bbox = index.getBoundingBox();
+            assertThat("Should not grow the bounding box for rolled back point", new double[]{bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(), bbox.getMaxY()}, equalTo(new double[]{1, 1, 2, 2}));
+            tx.success();
+        }
+    }
 }
@@ -19,9 +19,25 @@
  */
 package org.neo4j.gis.spatial.index;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import org.junit.Test;
 import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SpatialDatabaseRecord;
+import org.neo4j.gis.spatial.filter.SearchIntersectWindow;
+import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.Mockito.when;
 
 public class LayerHilbertPointIndexTest extends LayerIndexTestBase {
@@ -40,4 +56,149 @@ public class LayerHilbertPointIndexTest extends LayerIndexTestBase {
         when(layer.getIndex()).thenReturn(index);
         return index;
     }
+
+    @Test
+    public void shouldSearchSortedStoreLikeExplicitIndex() {
+        LayerSpaceFillingCurvePointIndex index = (LayerSpaceFillingCurvePointIndex) mockLayerIndex();
+        index.configure(Collections.singletonMap(LayerSpaceFillingCurvePointIndex.KEY_SORTED_STORE, true));
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                addSimplePoint(index, x, y);
+            }
+        }
+        SearchIntersectWindow window = new SearchIntersectWindow(index.getLayer(), new Envelope(1.5, 5.5, 1.5, 5.5));
+        Node removed;
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should find points from the sorted store", index.searchIndex(window).count(), equalTo(16));
+            removed = index.searchIndex(window).iterator().next();
+            tx.success();
+        }
+        index.remove(removed.getId(), false, true);
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should not find removed point", index.searchIndex(window).count(), equalTo(15));
+            // uncommitted writes are not in the store, so this search falls back to the explicit index
+            Node added = graph.createNode();
+            encoder.encodeGeometry(geometryFactory.createPoint(new Coordinate(3.5, 3.5)), added);
+            index.add(added);
+            assertThat("Should find uncommitted point", index.searchIndex(window).count(), equalTo(16));
+            tx.success();
+        }
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should find committed point in the sorted store", index.searchIndex(window).count(), equalTo(16));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldNotApplyRolledBackWritesToSortedStore() {
+        LayerSpaceFillingCurvePointIndex index = (LayerSpaceFillingCurvePointIndex) mockLayerIndex();
+        index.configure(Collections.singletonMap(LayerSpaceFillingCurvePointIndex.KEY_SORTED_STORE, true));
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                addSimplePoint(index, x, y);
+            }
+        }
+        SearchIntersectWindow window = new SearchIntersectWindow(index.getLayer(), new Envelope(1.5, 5.5, 1.5, 5.5));
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should find points from the sorted store", index.searchIndex(window).count(), equalTo(16));
+            tx.success();
+        }
+        try (Transaction tx = graph.beginTx()) {
+            Node added = graph.createNode();
+            encoder.encodeGeometry(geometryFactory.createPoint(new Coordinate(3.5, 3.5)), added);
+            index.add(added);
+            // closed without success, so the transaction event handlers are never called
+        }
+        addSimplePoint(index, 20, 20);
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should not find rolled back point in the sorted store", index.searchIndex(window).count(), equalTo(16));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldIndexAltitudeWith3DCurve() {
+        encoder.setConfiguration("longitude:latitude:bbox:altitude");
+        LayerSpaceFillingCurvePointIndex index = (LayerSpaceFillingCurvePointIndex) mockLayerIndex();
+        Map<String, Object> config = new HashMap<>();
+        config.put(LayerSpaceFillingCurvePointIndex.KEY_DIMENSIONS, 3);
+        config.put(LayerSpaceFillingCurvePointIndex.KEY_MIN_Z, 0.0);
+        config.put(LayerSpaceFillingCurvePointIndex.KEY_MAX_Z, 1000.0);
+        config.put(LayerSpaceFillingCurvePointIndex.KEY_MAX_LEVEL, 16);
+        index.configure(config);
+        Node low, high;
+        try (Transaction tx = graph.beginTx()) {
+            low = graph.createNode();
+            encoder.encodeGeometry(geometryFactory.createPoint(new Coordinate(15.2, 60.1, 100.0)), low);
+            index.add(low);
+            high = graph.createNode();
+            encoder.encodeGeometry(geometryFactory.createPoint(new Coordinate(15.2, 60.1, 900.0)), high);
+            index.add(high);
+            assertThat("Should encode altitude in the curve value", index.getIndexValueFor(low).equals(index.getIndexValueFor(high)), equalTo(false));
+            tx.success();
+        }
+        SearchIntersectWindow window = new SearchIntersectWindow(index.getLayer(), new Envelope(15.0, 15.5, 60.0, 60.5));
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should find points at all altitudes", index.searchIndex(window).count(), equalTo(2));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldAddLargeListsInBulk() {
+        LayerSpaceFillingCurvePointIndex index = (LayerSpaceFillingCurvePointIndex) mockLayerIndex();
+        try (Transaction tx = graph.beginTx()) {
+            List<Node> nodes = new ArrayList<>();
+            for (int x = 0; x < 50; x++) {
+                for (int y = 0; y < 50; y++) {
+                    Node node = graph.createNode();
+                    encoder.encodeGeometry(geometryFactory.createPoint(new Coordinate(x, y)), node);
+                    nodes.add(node);
+                }
+            }
+            index.add(nodes);
+            assertThat("Should count uncommitted bulk added points", index.count(), equalTo(2500));
+            tx.success();
+        }
+        SearchIntersectWindow window = new SearchIntersectWindow(index.getLayer(), new Envelope(9.5, 19.5, 9.5, 19.5));
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should find bulk added points", index.searchIndex(window).count(), equalTo(100));
+            assertThat("Should count bulk added points", index.count(), equalTo(2500));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldFindNearestByScanningGrowingSquares() {
+        LayerSpaceFillingCurvePointIndex index = (LayerSpaceFillingCurvePointIndex) mockLayerIndex();
+        List<Coordinate> coordinates = new ArrayList<>();
+        try (Transaction tx = graph.beginTx()) {
+            List<Node> nodes = new ArrayList<>();
+            for (int x = 0; x < 50; x++) {
+                for (int y = 0; y < 50; y++) {
+                    Node node = graph.createNode();
+                    encoder.encodeGeometry(geometryFactory.createPoint(new Coordinate(x, y)), node);
+                    nodes.add(node);
+                    coordinates.add(new Coordinate(x, y));
+                }
+            }
+            index.add(nodes);
+            tx.success();
+        }
+        Coordinate reference = new Coordinate(20.3, 30.6);
+        coordinates.sort(Comparator.comparingDouble(reference::distance));
+        try (Transaction tx = graph.beginTx()) {
+            List<Coordinate> found = new ArrayList<>();
+            for (SpatialDatabaseRecord record : index.searchNearest(reference, 10)) {
+                found.add(record.getGeometry().getCoordinate());
+            }
+            assertThat("Should find the requested number of points", found.size(), equalTo(10));
+            for (int i = 0; i < found.size(); i++) {
+                assertThat("Should find points in order of distance", found.get(i).distance(reference), closeTo(coordinates.get(i).distance(reference), 0.000001));
+            }
+            assertThat("Should only examine points near the reference", index.getQueryStatistics().getCandidates() < 250, equalTo(true));
+            assertThat("Should find all points when asking for more than exist", index.searchNearest(new Coordinate(-100, -50), 3000).count(), equalTo(2500));
+            tx.success();
+        }
+    }
 }
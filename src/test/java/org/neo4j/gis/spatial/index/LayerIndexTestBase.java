@@ -166,6 +166,30 @@ public abstract class LayerIndexTestBase {
         }
     }
 
+    @Test
+    public void shouldFindNearestNodesInOrderOfDistance() {
+        SimplePointLayer layer = spatial.createSimplePointLayer("test", getIndexClass());
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                layer.add(x, y);
+            }
+        }
+        Coordinate reference = new Coordinate(2.2, 3.1);
+        try (Transaction tx = graph.beginTx()) {
+            List<Coordinate> found = new ArrayList<>();
+            for (SpatialDatabaseRecord record : layer.getIndex().searchNearest(reference, 5)) {
+                found.add(record.getGeometry().getCoordinate());
+            }
+            assertThat("Should find exactly the requested number of geometries", found.size(), equalTo(5));
+            assertThat("Should find the closest geometry first", found.get(0), equalTo(new Coordinate(2, 3)));
+            for (int i = 1; i < found.size(); i++) {
+                assertThat("Results should be ordered by distance", found.get(i - 1).distance(reference) <= found.get(i).distance(reference), is(true));
+            }
+            assertThat("Should find all geometries when asking for more than exist", layer.getIndex().searchNearest(reference, 1000).count(), equalTo(100));
+            tx.success();
+        }
+    }
+
     private Polygon makeTestPolygonInSquare(GeometryFactory geometryFactory, int length) {
         if (length < 4) {
             throw new IllegalArgumentException("Cannot create letter C in square smaller than 4x4");
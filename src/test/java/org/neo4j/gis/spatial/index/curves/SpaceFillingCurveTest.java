@@ -12,6 +12,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
@@ -320,6 +321,29 @@ public class SpaceFillingCurveTest
         }
     }
 
+    @Test
+    public void shouldCoalesce2DHilbertSearchTilesWithinTraversalLimits()
+    {
+        Envelope envelope = new Envelope( -8, 8, -8, 8 );
+        HilbertSpaceFillingCurve2D curve = new HilbertSpaceFillingCurve2D( envelope, 8 );
+        Envelope search = new Envelope( -5.3, 6.1, -7.2, 3.4 );
+        List<SpaceFillingCurve.LongRange> exact = curve.getTilesIntersectingEnvelope( search );
+        assertThat( "Should need many ranges for an exact search", exact.size(), greaterThan( 10 ) );
+
+        List<SpaceFillingCurve.LongRange> fewRanges = curve.getTilesIntersectingEnvelope( search, new SpaceFillingCurve.TraversalConfiguration( Integer.MAX_VALUE, 10, 0.0 ) );
+        assertThat( fewRanges.size(), equalTo( 10 ) );
+        assertCoversRanges( fewRanges, exact );
+
+        List<SpaceFillingCurve.LongRange> shallow = curve.getTilesIntersectingEnvelope( search, new SpaceFillingCurve.TraversalConfiguration( 3, Integer.MAX_VALUE, 0.0 ) );
+        assertThat( shallow.size(), lessThan( exact.size() ) );
+        assertCoversRanges( shallow, exact );
+
+        List<SpaceFillingCurve.LongRange> imprecise = curve.getTilesIntersectingEnvelope( search, new SpaceFillingCurve.TraversalConfiguration( Integer.MAX_VALUE, Integer.MAX_VALUE, 0.1 ) );
+        assertThat( imprecise.size(), lessThan( exact.size() ) );
+        assertCoversRanges( imprecise, exact );
+        assertThat( "Should stay within the false positive ratio", (double) countTiles( imprecise ), lessThanOrEqualTo( countTiles( exact ) * 1.1 ) );
+    }
+
     //
     // Set of tests for 3D HilbertCurve at various levels
     //
@@ -607,6 +631,56 @@ public class SpaceFillingCurveTest
         }
     }
 
+    @Test
+    public void shouldEncodeAndDecodeLikeCurveRuleWalk()
+    {
+        int level2D = HilbertSpaceFillingCurve2D.MAX_LEVEL;
+        int level3D = HilbertSpaceFillingCurve3D.MAX_LEVEL;
+        Envelope envelope2D = new Envelope( 0, 1L << level2D, 0, 1L << level2D );
+        Envelope envelope3D = new Envelope( new double[]{0, 0, 0}, new double[]{1L << level3D, 1L << level3D, 1L << level3D} );
+        shouldEncodeAndDecodeLikeCurveRuleWalk( new HilbertSpaceFillingCurve2D( envelope2D, level2D ) );
+        shouldEncodeAndDecodeLikeCurveRuleWalk( new ZOrderSpaceFillingCurve2D( envelope2D, level2D ) );
+        shouldEncodeAndDecodeLikeCurveRuleWalk( new HilbertSpaceFillingCurve3D( envelope3D, level3D ) );
+        for ( int level = 1; level < 6; level++ )
+        {
+            shouldEncodeAndDecodeLikeCurveRuleWalk( new HilbertSpaceFillingCurve2D( new Envelope( 0, 1 << level, 0, 1 << level ), level ) );
+            shouldEncodeAndDecodeLikeCurveRuleWalk(
+                    new HilbertSpaceFillingCurve3D( new Envelope( new double[]{0, 0, 0}, new double[]{1 << level, 1 << level, 1 << level} ), level ) );
+        }
+    }
+
+    private void shouldEncodeAndDecodeLikeCurveRuleWalk( SpaceFillingCurve curve )
+    {
+        Random random = new Random( 42 );
+        int nbrDim = curve.getRange().getDimension();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            long[] normalized = new long[nbrDim];
+            double[] coord = new double[nbrDim];
+            for ( int dim = 0; dim < nbrDim; dim++ )
+            {
+                normalized[dim] = (random.nextLong() >>> 1) % curve.getWidth();
+                coord[dim] = normalized[dim] + 0.5;
+            }
+            // walk the curve rules one level at a time
+            long expected = 0;
+            SpaceFillingCurve.CurveRule rule = curve.rootCurve();
+            for ( int bit = curve.getMaxLevel() - 1; bit >= 0; bit-- )
+            {
+                int npoint = 0;
+                for ( long value : normalized )
+                {
+                    npoint = npoint << 1 | (int) (value >> bit & 1);
+                }
+                int index = rule.indexForNPoint( npoint );
+                expected = expected << nbrDim | index;
+                rule = rule.childAt( index );
+            }
+            assertThat( "Should encode " + Arrays.toString( normalized ), curve.derivedValueFor( coord ), equalTo( expected ) );
+            assertThat( "Should decode " + expected, curve.normalizedCoordinateFor( expected, curve.getMaxLevel() ), equalTo( normalized ) );
+        }
+    }
+
     private void shouldNeverStepMoreThanDistanceOne( SpaceFillingCurve curve, int level, int badnessThresholdPercentage )
     {
         int badCount = 0;
@@ -686,6 +760,29 @@ public class SpaceFillingCurveTest
         }
     }
 
+    private void assertCoversRanges( List<SpaceFillingCurve.LongRange> coarse, List<SpaceFillingCurve.LongRange> exact )
+    {
+        for ( SpaceFillingCurve.LongRange range : exact )
+        {
+            boolean covered = false;
+            for ( SpaceFillingCurve.LongRange candidate : coarse )
+            {
+                covered |= candidate.min <= range.min && range.max <= candidate.max;
+            }
+            assertThat( "Range " + range + " should be covered by " + coarse, covered, is( true ) );
+        }
+    }
+
+    private long countTiles( List<SpaceFillingCurve.LongRange> ranges )
+    {
+        long count = 0;
+        for ( SpaceFillingCurve.LongRange range : ranges )
+        {
+            count += range.max - range.min + 1;
+        }
+        return count;
+    }
+
     private void assertTiles( List<SpaceFillingCurve.LongRange> results, SpaceFillingCurve.LongRange... expected )
     {
         assertThat( "Result differ: " + results + " != " + Arrays.toString( expected ), results.size(), equalTo( expected.length ) );
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import com.vividsolutions.jts.geom.Envelope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.fail;
+
+/**
+ * The import pipeline of {@link OSMImporter}, which parses the file in one thread, prepares batches of 1000 entities
+ * in the worker pool and writes them to the graph in the calling thread.
+ */
+public class ImportPipelineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GraphDatabaseService db;
+
+    @Before
+    public void setup() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+    }
+
+    @After
+    public void teardown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldWriteNodesWaysAndRelationsInFileOrderAcrossBatches() throws Exception {
+        int nodes = 2500;
+        int ways = 1500;
+        int relations = 1200;
+        StringBuilder xml = new StringBuilder(header());
+        for (int id = 1; id <= nodes; id++) {
+            xml.append(node(id, 56.0 + id / 100000.0, 13.0 + id / 100000.0));
+        }
+        for (int id = 1; id <= ways; id++) {
+            xml.append("  <way id='").append(id).append("' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'>\n");
+            xml.append("    <nd ref='").append(id).append("'/><nd ref='").append(id + 1).append("'/>\n");
+            xml.append("    <tag k='highway' v='residential'/>\n");
+            xml.append("  </way>\n");
+        }
+        for (int id = 1; id <= relations; id++) {
+            xml.append("  <relation id='").append(id).append("' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'>\n");
+            xml.append("    <member type='way' ref='").append(id).append("' role='outer'/>\n");
+            xml.append("  </relation>\n");
+        }
+        xml.append("</osm>\n");
+
+        OSMImporter importer = new OSMImporter("test");
+        importer.setVerbose(false);
+        importer.importFile(db, write("test.osm", xml.toString()), 1000, false);
+
+        try (Transaction tx = db.beginTx()) {
+            // every entity is written after those before it in the file, so the graph ids follow the file order
+            long last = -1;
+            for (int id = 1; id <= nodes; id++) {
+                Node node = db.index().forNodes("node").get("node_osm_id", (long) id).getSingle();
+                assertThat(node.getId(), greaterThan(last));
+                last = node.getId();
+            }
+            for (int id = 1; id <= ways; id++) {
+                Node way = db.index().forNodes("node").get("way_osm_id", (long) id).getSingle();
+                assertThat(way.getId(), greaterThan(last));
+                last = way.getId();
+                // the nodes of the way were there when it was written
+                Node geomNode = way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+                assertThat(geomNode.getProperty("vertices"), equalTo(2));
+            }
+            for (int id = 1; id <= relations; id++) {
+                Node relation = db.index().forNodes("relation").get("relation_osm_id", (long) id).getSingle();
+                assertThat(relation.getId(), greaterThan(last));
+                last = relation.getId();
+                Relationship member = relation.getSingleRelationship(OSMRelation.MEMBER, Direction.OUTGOING);
+                assertThat(member.getEndNode().getProperty("way_osm_id"), equalTo((long) id));
+            }
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldExcludeNodesOutsideFilterEnvelope() throws Exception {
+        String xml = header() +
+                node(1, 56.0, 13.0) +
+                node(2, 56.1, 13.1) +
+                node(3, 58.0, 13.0) +
+                node(4, 56.0, 15.0) +
+                "  <way id='100' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'>\n" +
+                "    <nd ref='1'/><nd ref='2'/>\n" +
+                "  </way>\n" +
+                "</osm>\n";
+
+        OSMImporter importer = new OSMImporter("test", null, new Envelope(12.5, 13.5, 55.5, 56.5));
+        importer.setVerbose(false);
+        importer.importFile(db, write("test.osm", xml), 1000, false);
+        importer.reIndex(db, 1000);
+
+        try (Transaction tx = db.beginTx()) {
+            assertThat(db.index().forNodes("node").get("node_osm_id", 1L).getSingle(), notNullValue());
+            assertThat(db.index().forNodes("node").get("node_osm_id", 2L).getSingle(), notNullValue());
+            assertThat(db.index().forNodes("node").get("node_osm_id", 3L).getSingle(), nullValue());
+            assertThat(db.index().forNodes("node").get("node_osm_id", 4L).getSingle(), nullValue());
+            // the way over the included nodes is still written after the excluded ones
+            Node way = db.index().forNodes("node").get("way_osm_id", 100L).getSingle();
+            Node geomNode = way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+            assertThat(geomNode.getProperty("vertices"), equalTo(2));
+            assertThat(new SpatialDatabaseService(db).getLayer("test").getIndex().count(), equalTo(1));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldSurfaceMalformedXMLAfterEarlierBatches() throws Exception {
+        StringBuilder xml = new StringBuilder(header());
+        for (int id = 1; id <= 1500; id++) {
+            xml.append(node(id, 56.0, 13.0));
+        }
+        // a node that is never closed
+        xml.append("  <node id='1501' lat='56.0' lon='13.0'>\n</osm>\n");
+
+        OSMImporter importer = new OSMImporter("test");
+        importer.setVerbose(false);
+        try {
+            importer.importFile(db, write("test.osm", xml.toString()), 1000, false);
+            fail("Expected the malformed file to fail the import");
+        } catch (XMLStreamException e) {
+            // the parser error reaches the caller as it is, rather than wrapped by the pipeline
+        }
+    }
+
+    @Test
+    public void shouldImportPBFThroughPipeline() throws Exception {
+        // each block has two nodes, a way and a relation, so that the file spans several batches
+        int blocks = 600;
+        File file = folder.newFile("test.osm.pbf");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            OSMPBFReaderTest.writeBlob(out, "OSMHeader", OSMPBFReaderTest.header(), true);
+            for (int block = 0; block < blocks; block++) {
+                OSMPBFReaderTest.writeBlob(out, "OSMData", OSMPBFReaderTest.primitiveBlock(block * 100L), block % 2 == 0);
+            }
+        }
+
+        OSMImporter importer = new OSMImporter("test");
+        importer.setVerbose(false);
+        importer.importFile(db, file.getAbsolutePath(), 1000, false);
+
+        try (Transaction tx = db.beginTx()) {
+            int nodes = 0;
+            int ways = 0;
+            int relations = 0;
+            for (Node node : db.getAllNodes()) {
+                if (node.hasProperty("node_osm_id")) nodes++;
+                if (node.hasProperty("way_osm_id")) ways++;
+                if (node.hasProperty("relation_osm_id")) {
+                    relations++;
+                    int members = 0;
+                    for (Relationship member : node.getRelationships(OSMRelation.MEMBER, Direction.OUTGOING)) {
+                        members++;
+                    }
+                    assertThat(members, equalTo(2));
+                }
+            }
+            assertThat(nodes, equalTo(2 * blocks));
+            assertThat(ways, equalTo(blocks));
+            assertThat(relations, equalTo(blocks));
+            Node last = db.index().forNodes("node").get("way_osm_id", (blocks - 1) * 100L + 10).getSingle();
+            Node first = db.index().forNodes("node").get("way_osm_id", 10L).getSingle();
+            assertThat(first.getId(), lessThan(last.getId()));
+            tx.success();
+        }
+    }
+
+    private static String header() {
+        return "<?xml version='1.0' encoding='UTF-8'?>\n<osm version='0.6' generator='test'>\n";
+    }
+
+    private static String node(long id, double lat, double lon) {
+        return "  <node id='" + id + "' lat='" + lat + "' lon='" + lon + "' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'/>\n";
+    }
+
+    private String write(String name, String content) throws IOException {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file.getAbsolutePath();
+    }
+}
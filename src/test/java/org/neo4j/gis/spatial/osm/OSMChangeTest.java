@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.gis.spatial.Constants;
+import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class OSMChangeTest {
+
+    private static final String OSM = "<?xml version='1.0' encoding='UTF-8'?>\n" +
+            "<osm version='0.6' generator='test'>\n" +
+            "  <node id='1' lat='56.0' lon='13.0' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'/>\n" +
+            "  <node id='2' lat='56.1' lon='13.1' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'/>\n" +
+            "  <node id='3' lat='56.2' lon='13.2' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'>\n" +
+            "    <tag k='amenity' v='cafe'/>\n" +
+            "  </node>\n" +
+            "  <way id='100' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'>\n" +
+            "    <nd ref='1'/><nd ref='2'/>\n" +
+            "    <tag k='highway' v='residential'/>\n" +
+            "  </way>\n" +
+            "</osm>\n";
+
+    private static final String OSC = "<?xml version='1.0' encoding='UTF-8'?>\n" +
+            "<osmChange version='0.6' generator='test'>\n" +
+            "  <modify>\n" +
+            "    <node id='2' lat='56.5' lon='13.5' user='b' uid='2' version='2' changeset='11' timestamp='2017-01-02T00:00:00Z'/>\n" +
+            "  </modify>\n" +
+            "  <create>\n" +
+            "    <node id='4' lat='57.0' lon='14.0' user='b' uid='2' version='1' changeset='11' timestamp='2017-01-02T00:00:00Z'/>\n" +
+            "    <way id='101' user='b' uid='2' version='1' changeset='11' timestamp='2017-01-02T00:00:00Z'>\n" +
+            "      <nd ref='2'/><nd ref='4'/>\n" +
+            "    </way>\n" +
+            "  </create>\n" +
+            "  <delete>\n" +
+            "    <node id='3' user='b' uid='2' version='2' changeset='11' timestamp='2017-01-02T00:00:00Z'/>\n" +
+            "  </delete>\n" +
+            "</osmChange>\n";
+
+    // two ways that share node 4, a relation with the first way and a relation with the second way and its last node
+    private static final String OSM_WITH_RELATIONS = "<?xml version='1.0' encoding='UTF-8'?>\n" +
+            "<osm version='0.6' generator='test'>\n" +
+            "  <node id='1' lat='56.0' lon='13.0' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'/>\n" +
+            "  <node id='2' lat='56.1' lon='13.1' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'/>\n" +
+            "  <node id='3' lat='56.2' lon='13.2' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'/>\n" +
+            "  <node id='4' lat='56.3' lon='13.3' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'/>\n" +
+            "  <node id='5' lat='56.4' lon='13.4' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'/>\n" +
+            "  <node id='6' lat='56.5' lon='13.5' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'/>\n" +
+            "  <way id='100' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'>\n" +
+            "    <nd ref='1'/><nd ref='2'/><nd ref='3'/><nd ref='4'/>\n" +
+            "    <tag k='highway' v='residential'/>\n" +
+            "  </way>\n" +
+            "  <way id='101' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'>\n" +
+            "    <nd ref='4'/><nd ref='5'/><nd ref='6'/>\n" +
+            "    <tag k='highway' v='residential'/>\n" +
+            "  </way>\n" +
+            "  <relation id='200' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'>\n" +
+            "    <member type='way' ref='100' role='outer'/>\n" +
+            "    <tag k='type' v='route'/>\n" +
+            "  </relation>\n" +
+            "  <relation id='201' user='a' uid='1' version='1' changeset='10' timestamp='2017-01-01T00:00:00Z'>\n" +
+            "    <member type='way' ref='101' role=''/><member type='node' ref='6' role='stop'/>\n" +
+            "    <tag k='type' v='route'/>\n" +
+            "  </relation>\n" +
+            "</osm>\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GraphDatabaseService db;
+
+    @Before
+    public void setup() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+    }
+
+    @After
+    public void teardown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldApplyChangesToImportedDataset() throws Exception {
+        OSMImporter importer = new OSMImporter("test");
+        importer.setVerbose(false);
+        importer.importFile(db, write("test.osm", OSM), 1000, false);
+        importer.reIndex(db, 1000);
+
+        long changes = importer.applyChanges(db, write("test.osc", OSC));
+        assertThat(changes, equalTo(4L));
+
+        try (Transaction tx = db.beginTx()) {
+            OSMLayer layer = (OSMLayer) new SpatialDatabaseService(db).getLayer("test");
+            // the way over the moved node is re-encoded, and its index entry patched
+            Node way = db.index().forNodes("node").get("way_osm_id", 100L).getSingle();
+            Node geomNode = way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+            assertThat(((double[]) geomNode.getProperty(Constants.PROP_BBOX))[1], equalTo(13.5));
+            assertThat(((double[]) geomNode.getProperty(Constants.PROP_BBOX))[3], equalTo(56.5));
+            assertThat(layer.getIndex().isNodeIndexed(geomNode.getId()), equalTo(true));
+
+            // the new way links to the existing node and is indexed
+            Node created = db.index().forNodes("node").get("way_osm_id", 101L).getSingle();
+            Node createdGeom = created.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+            assertThat(createdGeom.getProperty("vertices"), equalTo(2));
+            assertThat(layer.getIndex().isNodeIndexed(createdGeom.getId()), equalTo(true));
+
+            // the deleted point of interest is gone from the graph and the index
+            assertThat(db.index().forNodes("node").get("node_osm_id", 3L).getSingle(), nullValue());
+            assertThat(layer.getIndex().count(), equalTo(2));
+
+            // the created way is appended to the chain of ways of the dataset, instead of starting another one
+            assertThat(count(datasetNode().getRelationships(OSMRelation.WAYS, Direction.OUTGOING)), equalTo(1));
+            assertThat(chain(OSMRelation.WAYS, "way_osm_id"), equalTo(Arrays.asList(100L, 101L)));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldModifyNodesOfWay() throws Exception {
+        OSMImporter importer = importWithRelations();
+        long changes = importer.applyChanges(db, write("test.osc", "<?xml version='1.0' encoding='UTF-8'?>\n" +
+                "<osmChange version='0.6' generator='test'>\n" +
+                "  <modify>\n" +
+                "    <way id='100' user='b' uid='2' version='2' changeset='11' timestamp='2017-01-02T00:00:00Z'>\n" +
+                "      <nd ref='1'/><nd ref='2'/><nd ref='3'/><nd ref='4'/><nd ref='5'/>\n" +
+                "      <tag k='highway' v='residential'/>\n" +
+                "    </way>\n" +
+                "  </modify>\n" +
+                "</osmChange>\n"));
+        assertThat(changes, equalTo(1L));
+
+        try (Transaction tx = db.beginTx()) {
+            OSMLayer layer = (OSMLayer) new SpatialDatabaseService(db).getLayer("test");
+            Node geomNode = geometry("node", "way_osm_id", 100L);
+            assertThat(geomNode.getProperty("vertices"), equalTo(5));
+            assertThat(bbox(geomNode), equalTo(new double[]{13.0, 13.4, 56.0, 56.4}));
+            assertThat(layer.getIndex().isNodeIndexed(geomNode.getId()), equalTo(true));
+            assertThat(wayPoints(100L), equalTo(Arrays.asList(1L, 2L, 3L, 4L, 5L)));
+            // the relation with the way as member grows with it
+            assertThat(bbox(geometry("relation", "relation_osm_id", 200L)), equalTo(new double[]{13.0, 13.4, 56.0, 56.4}));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldRemoveDeletedNodesFromWays() throws Exception {
+        OSMImporter importer = importWithRelations();
+        // node 2 is in the middle of way 100, and node 4 both ends way 100 and starts way 101
+        importer.applyChanges(db, write("test.osc", "<?xml version='1.0' encoding='UTF-8'?>\n" +
+                "<osmChange version='0.6' generator='test'>\n" +
+                "  <delete>\n" +
+                "    <node id='2' user='b' uid='2' version='2' changeset='11' timestamp='2017-01-02T00:00:00Z'/>\n" +
+                "    <node id='4' user='b' uid='2' version='2' changeset='11' timestamp='2017-01-02T00:00:00Z'/>\n" +
+                "  </delete>\n" +
+                "</osmChange>\n"));
+
+        try (Transaction tx = db.beginTx()) {
+            assertThat(wayPoints(100L), equalTo(Arrays.asList(1L, 3L)));
+            assertThat(wayPoints(101L), equalTo(Arrays.asList(5L, 6L)));
+            assertThat(geometry("node", "way_osm_id", 100L).getProperty("vertices"), equalTo(2));
+            assertThat(bbox(geometry("node", "way_osm_id", 100L)), equalTo(new double[]{13.0, 13.2, 56.0, 56.2}));
+            assertThat(bbox(geometry("node", "way_osm_id", 101L)), equalTo(new double[]{13.4, 13.5, 56.4, 56.5}));
+            assertThat(bbox(geometry("relation", "relation_osm_id", 200L)), equalTo(new double[]{13.0, 13.2, 56.0, 56.2}));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldDeleteWay() throws Exception {
+        OSMImporter importer = importWithRelations();
+        long geomNodeId;
+        try (Transaction tx = db.beginTx()) {
+            geomNodeId = geometry("node", "way_osm_id", 100L).getId();
+            tx.success();
+        }
+        importer.applyChanges(db, write("test.osc", "<?xml version='1.0' encoding='UTF-8'?>\n" +
+                "<osmChange version='0.6' generator='test'>\n" +
+                "  <delete>\n" +
+                "    <way id='100' user='b' uid='2' version='2' changeset='11' timestamp='2017-01-02T00:00:00Z'/>\n" +
+                "  </delete>\n" +
+                "  <create>\n" +
+                "    <way id='102' user='b' uid='2' version='1' changeset='11' timestamp='2017-01-02T00:00:00Z'>\n" +
+                "      <nd ref='1'/><nd ref='2'/>\n" +
+                "    </way>\n" +
+                "  </create>\n" +
+                "</osmChange>\n"));
+
+        try (Transaction tx = db.beginTx()) {
+            OSMLayer layer = (OSMLayer) new SpatialDatabaseService(db).getLayer("test");
+            assertThat(db.index().forNodes("node").get("way_osm_id", 100L).getSingle(), nullValue());
+            for (Node indexed : layer.getIndex().getAllIndexedNodes()) {
+                assertThat(indexed.getId() == geomNodeId, equalTo(false));
+            }
+            // the first way is taken out of the chain, and the created way appended to what is left of it
+            assertThat(count(datasetNode().getRelationships(OSMRelation.WAYS, Direction.OUTGOING)), equalTo(1));
+            assertThat(chain(OSMRelation.WAYS, "way_osm_id"), equalTo(Arrays.asList(101L, 102L)));
+            // the relation has no members left, so it has no geometry either
+            Node relation = db.index().forNodes("relation").get("relation_osm_id", 200L).getSingle();
+            assertThat(count(relation.getRelationships(OSMRelation.MEMBER, Direction.OUTGOING)), equalTo(0));
+            assertThat(relation.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING), nullValue());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldModifyAndDeleteRelations() throws Exception {
+        OSMImporter importer = importWithRelations();
+        importer.applyChanges(db, write("test.osc", "<?xml version='1.0' encoding='UTF-8'?>\n" +
+                "<osmChange version='0.6' generator='test'>\n" +
+                "  <modify>\n" +
+                "    <relation id='200' user='b' uid='2' version='2' changeset='11' timestamp='2017-01-02T00:00:00Z'>\n" +
+                "      <member type='way' ref='101' role='outer'/>\n" +
+                "      <tag k='type' v='route'/>\n" +
+                "    </relation>\n" +
+                "  </modify>\n" +
+                "  <delete>\n" +
+                "    <relation id='201' user='b' uid='2' version='2' changeset='11' timestamp='2017-01-02T00:00:00Z'/>\n" +
+                "  </delete>\n" +
+                "  <create>\n" +
+                "    <relation id='202' user='b' uid='2' version='1' changeset='11' timestamp='2017-01-02T00:00:00Z'>\n" +
+                "      <member type='way' ref='100' role='outer'/>\n" +
+                "    </relation>\n" +
+                "  </create>\n" +
+                "</osmChange>\n"));
+
+        try (Transaction tx = db.beginTx()) {
+            Node relation = db.index().forNodes("relation").get("relation_osm_id", 200L).getSingle();
+            Relationship member = relation.getSingleRelationship(OSMRelation.MEMBER, Direction.OUTGOING);
+            assertThat(member.getEndNode().getProperty("way_osm_id"), equalTo(101L));
+            assertThat(member.getProperty("role"), equalTo("outer"));
+            assertThat(bbox(geometry("relation", "relation_osm_id", 200L)), equalTo(new double[]{13.3, 13.5, 56.3, 56.5}));
+            assertThat(db.index().forNodes("relation").get("relation_osm_id", 201L).getSingle(), nullValue());
+            // no members are left pointing at the deleted relation's members
+            Node node6 = db.index().forNodes("node").get("node_osm_id", 6L).getSingle();
+            assertThat(count(node6.getRelationships(OSMRelation.MEMBER, Direction.INCOMING)), equalTo(0));
+            assertThat(count(datasetNode().getRelationships(OSMRelation.RELATIONS, Direction.OUTGOING)), equalTo(1));
+            assertThat(chain(OSMRelation.RELATIONS, "relation_osm_id"), equalTo(Arrays.asList(200L, 202L)));
+            tx.success();
+        }
+    }
+
+    private OSMImporter importWithRelations() throws Exception {
+        OSMImporter importer = new OSMImporter("test");
+        importer.setVerbose(false);
+        importer.importFile(db, write("test.osm", OSM_WITH_RELATIONS), 1000, false);
+        importer.reIndex(db, 1000);
+        return importer;
+    }
+
+    private Node datasetNode() {
+        for (Node node : db.getAllNodes()) {
+            if (node.hasRelationship(Direction.OUTGOING, OSMRelation.WAYS, OSMRelation.RELATIONS)) {
+                return node;
+            }
+        }
+        throw new IllegalStateException("No dataset imported");
+    }
+
+    /**
+     * The OSM ids of the ways or relations in the chain of the dataset, in the order of the chain
+     */
+    private List<Long> chain(RelationshipType firstType, String idKey) {
+        List<Long> ids = new ArrayList<>();
+        Relationship rel = datasetNode().getSingleRelationship(firstType, Direction.OUTGOING);
+        while (rel != null) {
+            ids.add((Long) rel.getEndNode().getProperty(idKey));
+            rel = rel.getEndNode().getSingleRelationship(OSMRelation.NEXT, Direction.OUTGOING);
+        }
+        return ids;
+    }
+
+    /**
+     * The OSM ids of the nodes of a way, following its proxies
+     */
+    private List<Long> wayPoints(long wayId) {
+        List<Long> ids = new ArrayList<>();
+        Node way = db.index().forNodes("node").get("way_osm_id", wayId).getSingle();
+        Relationship rel = way.getSingleRelationship(OSMRelation.FIRST_NODE, Direction.OUTGOING);
+        while (rel != null) {
+            Node proxy = rel.getEndNode();
+            ids.add((Long) proxy.getSingleRelationship(OSMRelation.NODE, Direction.OUTGOING).getEndNode().getProperty("node_osm_id"));
+            rel = proxy.getSingleRelationship(OSMRelation.NEXT, Direction.OUTGOING);
+        }
+        return ids;
+    }
+
+    private Node geometry(String index, String idKey, long osmId) {
+        Node node = db.index().forNodes(index).get(idKey, osmId).getSingle();
+        return node.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+    }
+
+    private static double[] bbox(Node geomNode) {
+        return (double[]) geomNode.getProperty(Constants.PROP_BBOX);
+    }
+
+    private static int count(Iterable<?> items) {
+        int count = 0;
+        for (Object ignored : items) {
+            count++;
+        }
+        return count;
+    }
+
+    private String write(String name, String content) throws IOException {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file.getAbsolutePath();
+    }
+}
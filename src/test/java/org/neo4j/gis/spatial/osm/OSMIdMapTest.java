@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class OSMIdMapTest {
+
+    @Test
+    public void shouldFindIdsAddedInOrderAcrossPages() {
+        try (OSMIdMap ids = new OSMIdMap("test")) {
+            int count = 3 * (1 << 20) / 2;
+            for (long osmId = 0; osmId < count; osmId++) {
+                ids.put(osmId * 3 + 1, osmId);
+            }
+            assertThat(ids.size(), equalTo((long) count));
+            assertThat(ids.get(1), equalTo(0L));
+            assertThat(ids.get(3L * count - 2), equalTo((long) count - 1));
+            assertThat(ids.get(2), equalTo(-1L));
+            assertThat(ids.get(3L * count + 1), equalTo(-1L));
+            Random random = new Random(42);
+            for (int i = 0; i < 10000; i++) {
+                long osmId = random.nextInt(count);
+                assertThat(ids.get(osmId * 3 + 1), equalTo(osmId));
+            }
+        }
+    }
+
+    @Test
+    public void shouldFindIdsAddedOutOfOrder() {
+        try (OSMIdMap ids = new OSMIdMap("test")) {
+            Random random = new Random(42);
+            long[] osmIds = new long[10000];
+            for (int i = 0; i < osmIds.length; i++) {
+                osmIds[i] = random.nextLong() >>> 8;
+                ids.put(osmIds[i], i);
+            }
+            for (int i = 0; i < osmIds.length; i++) {
+                assertThat(ids.get(osmIds[i]), equalTo((long) i));
+            }
+            ids.put(1L << 60, 10000);
+            assertThat(ids.get(1L << 60), equalTo(10000L));
+            assertThat(ids.get(osmIds[0]), equalTo(0L));
+        }
+    }
+
+    @Test
+    public void shouldReplaceRepeatedId() {
+        try (OSMIdMap ids = new OSMIdMap("test")) {
+            ids.put(5, 1);
+            ids.put(5, 2);
+            assertThat(ids.size(), equalTo(1L));
+            assertThat(ids.get(5), equalTo(2L));
+        }
+    }
+
+    @Test
+    public void shouldFindIdsAfterOverflowIsMerged() {
+        try (OSMIdMap ids = new OSMIdMap("test")) {
+            // even ids in order, then odd ids and replacements of even ids out of order, interleaved with lookups
+            int count = 3 * OSMIdMap.OVERFLOW_SIZE;
+            for (long osmId = 0; osmId < count; osmId += 2) {
+                ids.put(osmId, osmId);
+            }
+            for (long osmId = count - 1; osmId > 0; osmId -= 2) {
+                ids.put(osmId, osmId);
+                ids.put(osmId - 1, -osmId);
+                assertThat(ids.get(osmId), equalTo(osmId));
+                assertThat(ids.get(osmId - 1), equalTo(-osmId));
+            }
+            assertThat(ids.size(), equalTo((long) count));
+            for (long osmId = 0; osmId < count; osmId++) {
+                assertThat(ids.get(osmId), equalTo(osmId % 2 == 1 ? osmId : -(osmId + 1)));
+            }
+            assertThat(ids.get(count), equalTo(-1L));
+            ids.put(count, count);
+            assertThat(ids.get(count), equalTo((long) count));
+        }
+    }
+
+    @Test
+    public void shouldDeleteFileOnClose() {
+        OSMIdMap ids = new OSMIdMap("test");
+        ids.put(1, 1);
+        File file = ids.getFile();
+        assertThat(file.exists(), equalTo(true));
+        ids.close();
+        assertThat(file.exists(), equalTo(false));
+    }
+}
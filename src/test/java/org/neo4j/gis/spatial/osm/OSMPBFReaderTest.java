@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.gis.spatial.rtree.Envelope;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+
+public class OSMPBFReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldReadDenseNodesWaysAndRelations() throws IOException {
+        File file = folder.newFile("test.osm.pbf");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            writeBlob(out, "OSMHeader", header(), true);
+            // several data blobs, so that they are decoded in parallel and must be handled in order
+            for (int block = 0; block < 10; block++) {
+                writeBlob(out, "OSMData", primitiveBlock(block * 100), block % 2 == 0);
+            }
+        }
+
+        RecordingHandler handler = new RecordingHandler();
+        new OSMPBFReader(file, 4).read(handler);
+
+        assertThat(handler.dataset.get("generator"), equalTo("test"));
+        assertThat(handler.bbox.get("minlon"), equalTo("12.0"));
+        assertThat(handler.bbox.get("maxlat"), equalTo("56.5"));
+        assertThat(handler.nodes.size(), equalTo(20));
+        assertThat(handler.ways.size(), equalTo(10));
+        assertThat(handler.relations.size(), equalTo(10));
+
+        Map<String, Object> first = handler.nodes.get(0);
+        assertThat(first.get("node_osm_id"), equalTo("1"));
+        assertThat((Double) first.get("lat"), closeTo(56.04, 1e-7));
+        assertThat((Double) first.get("lon"), closeTo(12.97, 1e-7));
+        assertThat(first.get("version"), equalTo("3"));
+        assertThat(first.get("changeset"), equalTo("1000"));
+        assertThat(first.get("timestamp"), equalTo(1500000000000L));
+        assertThat(first.get("user"), equalTo("mapper"));
+        assertThat(first.get("uid"), equalTo("42"));
+        assertThat(handler.nodeTags.get(0).get("amenity"), equalTo("cafe"));
+
+        Map<String, Object> second = handler.nodes.get(1);
+        assertThat(second.get("node_osm_id"), equalTo("2"));
+        assertThat((Double) second.get("lat"), closeTo(56.05, 1e-7));
+        assertThat(second.get("changeset"), equalTo("1001"));
+        assertThat(handler.nodeTags.get(1).size(), equalTo(0));
+
+        assertThat(handler.nodes.get(19).get("node_osm_id"), equalTo("902"));
+        assertThat(handler.ways.get(0).get("way_osm_id"), equalTo("10"));
+        assertThat(handler.wayNodes.get(0), equalTo(Arrays.asList(1L, 2L, 1L)));
+        assertThat(handler.wayTags.get(0).get("highway"), equalTo("residential"));
+        assertThat(handler.ways.get(9).get("way_osm_id"), equalTo("910"));
+        assertThat(handler.wayNodes.get(9), equalTo(Arrays.asList(901L, 902L, 901L)));
+        // without metadata the writer still needs a changeset
+        assertThat(handler.ways.get(0).get("changeset"), equalTo("0"));
+
+        assertThat(handler.relations.get(0).get("relation_osm_id"), equalTo("20"));
+        List<Map<String, Object>> members = handler.members.get(0);
+        assertThat(members.size(), equalTo(2));
+        assertThat(members.get(0).get("type"), equalTo("way"));
+        assertThat(members.get(0).get("ref"), equalTo("10"));
+        assertThat(members.get(0).get("role"), equalTo("outer"));
+        assertThat(members.get(1).get("type"), equalTo("node"));
+        assertThat(members.get(1).get("ref"), equalTo("1"));
+        assertThat(members.get(1).get("role"), equalTo(""));
+        assertThat(handler.progress, equalTo(100));
+    }
+
+    @Test
+    public void shouldImportTheSameGraphFromXMLAndPBF() throws Exception {
+        File pbf = folder.newFile("test.osm.pbf");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(pbf))) {
+            writeBlob(out, "OSMHeader", header(), true);
+            writeBlob(out, "OSMData", primitiveBlock(0), true);
+            writeBlob(out, "OSMData", primitiveBlock(100), false);
+        }
+        File xml = folder.newFile("test.osm");
+        StringBuilder content = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n<osm version='0.6' generator='test'>\n");
+        content.append("  <bounds minlat='55.5' minlon='12.0' maxlat='56.5' maxlon='13.0'/>\n");
+        content.append(xmlBlock(0)).append(xmlBlock(100)).append("</osm>\n");
+        Files.write(xml.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+
+        ImportedGraph fromXML = importGraph(xml);
+        ImportedGraph fromPBF = importGraph(pbf);
+
+        assertThat(fromXML.nodes, equalTo(4));
+        assertThat(fromXML.ways, equalTo(2));
+        assertThat(fromXML.relations, equalTo(2));
+        assertThat(fromPBF.nodes, equalTo(fromXML.nodes));
+        assertThat(fromPBF.ways, equalTo(fromXML.ways));
+        assertThat(fromPBF.relations, equalTo(fromXML.relations));
+        assertThat(fromPBF.indexed, equalTo(fromXML.indexed));
+        for (int i = 0; i < 4; i++) {
+            assertThat(fromPBF.bbox[i], closeTo(fromXML.bbox[i], 1e-7));
+        }
+    }
+
+    /**
+     * The XML for the content of {@link #primitiveBlock(long)}
+     */
+    private static String xmlBlock(long offset) {
+        return "  <node id='" + (1 + offset) + "' lat='56.04' lon='12.97' user='mapper' uid='42' version='3' changeset='1000' timestamp='2017-07-14T02:40:00Z'>\n" +
+                "    <tag k='amenity' v='cafe'/>\n" +
+                "  </node>\n" +
+                "  <node id='" + (2 + offset) + "' lat='56.05' lon='12.97' user='mapper' uid='42' version='1' changeset='1001' timestamp='2017-07-14T02:40:00Z'/>\n" +
+                "  <way id='" + (10 + offset) + "' changeset='0'>\n" +
+                "    <nd ref='" + (1 + offset) + "'/><nd ref='" + (2 + offset) + "'/><nd ref='" + (1 + offset) + "'/>\n" +
+                "    <tag k='highway' v='residential'/>\n" +
+                "  </way>\n" +
+                "  <relation id='" + (20 + offset) + "' changeset='0'>\n" +
+                "    <member type='way' ref='" + (10 + offset) + "' role='outer'/>\n" +
+                "    <member type='node' ref='" + (1 + offset) + "' role=''/>\n" +
+                "  </relation>\n";
+    }
+
+    private ImportedGraph importGraph(File file) throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        try {
+            OSMImporter importer = new OSMImporter("test");
+            importer.setVerbose(false);
+            importer.importFile(db, file.getAbsolutePath(), 1000, false);
+            importer.reIndex(db, 1000);
+            ImportedGraph graph = new ImportedGraph();
+            try (Transaction tx = db.beginTx()) {
+                for (Node node : db.getAllNodes()) {
+                    if (node.hasProperty("node_osm_id")) graph.nodes++;
+                    if (node.hasProperty("way_osm_id")) graph.ways++;
+                    if (node.hasProperty("relation_osm_id")) graph.relations++;
+                }
+                Layer layer = new SpatialDatabaseService(db).getLayer("test");
+                graph.indexed = layer.getIndex().count();
+                Envelope bbox = layer.getIndex().getBoundingBox();
+                graph.bbox = new double[]{bbox.getMinX(), bbox.getMaxX(), bbox.getMinY(), bbox.getMaxY()};
+                tx.success();
+            }
+            return graph;
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    private static class ImportedGraph {
+        private int nodes;
+        private int ways;
+        private int relations;
+        private int indexed;
+        private double[] bbox;
+    }
+
+    static byte[] header() {
+        ProtoWriter bbox = new ProtoWriter()
+                .sint64(1, 12000000000L).sint64(2, 13000000000L)
+                .sint64(3, 56500000000L).sint64(4, 55500000000L);
+        return new ProtoWriter()
+                .message(1, bbox)
+                .string(4, "OsmSchema-V0.6")
+                .string(4, "DenseNodes")
+                .string(16, "test")
+                .bytes();
+    }
+
+    /**
+     * Two dense nodes, a closed way over them and a relation with the way and a node as members, with all ids
+     * offset by the given amount
+     */
+    static byte[] primitiveBlock(long offset) {
+        ProtoWriter strings = new ProtoWriter()
+                .string(1, "").string(1, "amenity").string(1, "cafe").string(1, "mapper")
+                .string(1, "highway").string(1, "residential").string(1, "outer");
+        ProtoWriter denseInfo = new ProtoWriter()
+                .packedVarints(1, 3, 1)
+                .packedSint64s(2, 1500000000L, 0)
+                .packedSint64s(3, 1000, 1)
+                .packedSint64s(4, 42, 0)
+                .packedSint64s(5, 3, 0);
+        ProtoWriter dense = new ProtoWriter()
+                .packedSint64s(1, 1 + offset, 1)
+                .message(5, denseInfo)
+                .packedSint64s(8, 560400000, 100000)
+                .packedSint64s(9, 129700000, 0)
+                .packedVarints(10, 1, 2, 0, 0);
+        ProtoWriter way = new ProtoWriter()
+                .varint(1, 10 + offset)
+                .packedVarints(2, 4)
+                .packedVarints(3, 5)
+                .packedSint64s(8, 1 + offset, 1, -1);
+        ProtoWriter relation = new ProtoWriter()
+                .varint(1, 20 + offset)
+                .packedVarints(8, 6, 0)
+                .packedSint64s(9, 10 + offset, -9)
+                .packedVarints(10, 1, 0);
+        return new ProtoWriter()
+                .message(1, strings)
+                .message(2, new ProtoWriter().message(2, dense))
+                .message(2, new ProtoWriter().message(3, way))
+                .message(2, new ProtoWriter().message(4, relation))
+                .bytes();
+    }
+
+    static void writeBlob(DataOutputStream out, String type, byte[] data, boolean compress) throws IOException {
+        ProtoWriter blob = new ProtoWriter();
+        if (compress) {
+            Deflater deflater = new Deflater();
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[data.length + 64];
+            int length = deflater.deflate(buffer);
+            deflater.end();
+            blob.varint(2, data.length).bytes(3, Arrays.copyOf(buffer, length));
+        } else {
+            blob.bytes(1, data);
+        }
+        byte[] blobBytes = blob.bytes();
+        byte[] header = new ProtoWriter().string(1, type).varint(3, blobBytes.length).bytes();
+        out.writeInt(header.length);
+        out.write(header);
+        out.write(blobBytes);
+    }
+
+    private static class RecordingHandler implements OSMPBFReader.Handler {
+        private Map<String, Object> dataset;
+        private Map<String, Object> bbox;
+        private final List<Map<String, Object>> nodes = new ArrayList<>();
+        private final List<Map<String, Object>> nodeTags = new ArrayList<>();
+        private final List<Map<String, Object>> ways = new ArrayList<>();
+        private final List<List<Long>> wayNodes = new ArrayList<>();
+        private final List<Map<String, Object>> wayTags = new ArrayList<>();
+        private final List<Map<String, Object>> relations = new ArrayList<>();
+        private final List<List<Map<String, Object>>> members = new ArrayList<>();
+        private int progress;
+
+        @Override
+        public void dataset(Map<String, Object> datasetProperties, Map<String, Object> bboxProperties) {
+            dataset = datasetProperties;
+            bbox = bboxProperties;
+        }
+
+        @Override
+        public void node(Map<String, Object> nodeProperties, LinkedHashMap<String, Object> tags) {
+            nodes.add(nodeProperties);
+            nodeTags.add(tags);
+        }
+
+        @Override
+        public void way(Map<String, Object> wayProperties, ArrayList<Long> nodes, LinkedHashMap<String, Object> tags) {
+            ways.add(wayProperties);
+            wayNodes.add(nodes);
+            wayTags.add(tags);
+        }
+
+        @Override
+        public void relation(Map<String, Object> relationProperties, ArrayList<Map<String, Object>> relationMembers, LinkedHashMap<String, Object> tags) {
+            relations.add(relationProperties);
+            members.add(relationMembers);
+        }
+
+        @Override
+        public void progress(int percent) {
+            progress = percent;
+        }
+    }
+
+    /**
+     * Just enough of a protocol buffer encoder to write the messages of a PBF file
+     */
+    private static class ProtoWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private static void writeVarint(ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private ProtoWriter key(int field, int wireType) {
+            writeVarint(out, ((long) field << 3) | wireType);
+            return this;
+        }
+
+        ProtoWriter varint(int field, long value) {
+            key(field, 0);
+            writeVarint(out, value);
+            return this;
+        }
+
+        ProtoWriter sint64(int field, long value) {
+            return varint(field, zigzag(value));
+        }
+
+        ProtoWriter bytes(int field, byte[] value) {
+            key(field, 2);
+            writeVarint(out, value.length);
+            out.write(value, 0, value.length);
+            return this;
+        }
+
+        ProtoWriter string(int field, String value) {
+            return bytes(field, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        ProtoWriter message(int field, ProtoWriter message) {
+            return bytes(field, message.bytes());
+        }
+
+        ProtoWriter packedVarints(int field, long... values) {
+            ByteArrayOutputStream packed = new ByteArrayOutputStream();
+            for (long value : values) {
+                writeVarint(packed, value);
+            }
+            return bytes(field, packed.toByteArray());
+        }
+
+        ProtoWriter packedSint64s(int field, long... values) {
+            long[] encoded = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                encoded[i] = zigzag(values[i]);
+            }
+            return packedVarints(field, encoded);
+        }
+
+        byte[] bytes() {
+            return out.toByteArray();
+        }
+    }
+}
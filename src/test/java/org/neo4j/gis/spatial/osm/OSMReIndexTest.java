@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.gis.spatial.rtree.Envelope;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class OSMReIndexTest {
+
+    // every changeset has two points of interest and a way between them
+    private static final int CHANGESETS = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GraphDatabaseService db;
+    private OSMImporter importer;
+
+    @Before
+    public void setup() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        StringBuilder xml = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n<osm version='0.6' generator='test'>\n");
+        for (int changeset = 1; changeset <= CHANGESETS; changeset++) {
+            for (int id = 2 * changeset - 1; id <= 2 * changeset; id++) {
+                xml.append("  <node id='").append(id).append("' lat='").append(56.0 + id / 100.0).append("' lon='").append(13.0 + id / 200.0)
+                        .append("' user='a' uid='1' version='1' changeset='").append(changeset).append("' timestamp='2017-01-01T00:00:00Z'>\n");
+                xml.append("    <tag k='amenity' v='cafe'/>\n");
+                xml.append("  </node>\n");
+            }
+        }
+        for (int changeset = 1; changeset <= CHANGESETS; changeset++) {
+            xml.append("  <way id='").append(changeset).append("' user='a' uid='1' version='1' changeset='").append(changeset)
+                    .append("' timestamp='2017-01-01T00:00:00Z'>\n");
+            xml.append("    <nd ref='").append(2 * changeset - 1).append("'/><nd ref='").append(2 * changeset).append("'/>\n");
+            xml.append("    <tag k='highway' v='residential'/>\n");
+            xml.append("  </way>\n");
+        }
+        xml.append("</osm>\n");
+        importer = new OSMImporter("test");
+        importer.setVerbose(false);
+        importer.importFile(db, write("test.osm", xml.toString()), 1000, false);
+    }
+
+    @After
+    public void teardown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldResumeFailedReIndexWithSameResult() {
+        // fail the commit of the second batch, after the first one was committed with its checkpoint
+        TransactionEventHandler<Object> failing = new TransactionEventHandler.Adapter<Object>() {
+            private int checkpoints = 0;
+
+            @Override
+            public Object beforeCommit(TransactionData data) {
+                for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                    if (entry.key().equals(OSMImporter.PROP_REINDEX_CHECKPOINT) && ++checkpoints == 2) {
+                        throw new IllegalStateException("Failing the second re-index batch");
+                    }
+                }
+                return null;
+            }
+        };
+        db.registerTransactionEventHandler(failing);
+        try {
+            importer.reIndex(db, 5);
+            fail("Expected the re-index to fail");
+        } catch (RuntimeException e) {
+            // the first batch stays indexed
+        } finally {
+            db.unregisterTransactionEventHandler(failing);
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertThat(datasetNode().hasProperty(OSMImporter.PROP_REINDEX_CHECKPOINT), equalTo(true));
+            assertThat(layer().getIndex().count(), equalTo(15));
+            tx.success();
+        }
+
+        assertThat(importer.reIndex(db, 5), equalTo((long) CHANGESETS));
+        IndexState resumed = indexState();
+
+        // without a checkpoint the next re-index starts over from an empty index
+        assertThat(importer.reIndex(db, 5), equalTo((long) CHANGESETS));
+        IndexState clean = indexState();
+
+        assertThat(resumed.nodeIds.size(), equalTo(3 * CHANGESETS));
+        assertThat(resumed.nodeIds, equalTo(clean.nodeIds));
+        assertThat(resumed.count, equalTo(clean.count));
+        assertThat(resumed.bbox, equalTo(clean.bbox));
+    }
+
+    @Test
+    public void shouldReIndexWithinOpenTransaction() {
+        importer.reIndex(db, 1000);
+        IndexState clean = indexState();
+
+        try (Transaction tx = db.beginTx()) {
+            // the batches only join the outer transaction, so the changesets are read in this thread
+            assertThat(importer.reIndex(db, 5), equalTo((long) CHANGESETS));
+            tx.success();
+        }
+        IndexState nested = indexState();
+
+        assertThat(nested.nodeIds.size(), equalTo(3 * CHANGESETS));
+        assertThat(nested.nodeIds, equalTo(clean.nodeIds));
+        assertThat(nested.count, equalTo(clean.count));
+        assertThat(nested.bbox, equalTo(clean.bbox));
+        try (Transaction tx = db.beginTx()) {
+            assertThat(datasetNode().hasProperty(OSMImporter.PROP_REINDEX_CHECKPOINT), equalTo(false));
+            tx.success();
+        }
+    }
+
+    private Node datasetNode() {
+        for (Node node : db.getAllNodes()) {
+            if (node.hasRelationship(OSMRelation.WAYS, Direction.OUTGOING)) {
+                return node;
+            }
+        }
+        throw new IllegalStateException("No dataset imported");
+    }
+
+    private Layer layer() {
+        return new SpatialDatabaseService(db).getLayer("test");
+    }
+
+    private IndexState indexState() {
+        try (Transaction tx = db.beginTx()) {
+            IndexState state = new IndexState();
+            for (Node node : layer().getIndex().getAllIndexedNodes()) {
+                state.nodeIds.add(node.getId());
+            }
+            state.count = layer().getIndex().count();
+            Envelope bbox = layer().getIndex().getBoundingBox();
+            state.bbox = bbox.getMinX() + "," + bbox.getMaxX() + "," + bbox.getMinY() + "," + bbox.getMaxY();
+            tx.success();
+            return state;
+        }
+    }
+
+    private static class IndexState {
+        private final Set<Long> nodeIds = new HashSet<>();
+        private int count;
+        private String bbox;
+    }
+
+    private String write(String name, String content) throws IOException {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file.getAbsolutePath();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.pipes;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+import org.geotools.referencing.crs.DefaultEngineeringCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.gis.spatial.EditableLayerImpl;
+import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Every spatial predicate against a reference square, for geometries that lie inside it, inside it along its edge,
+ * on its boundary, partially over it, across it, next to it and away from it. The envelope checks of the filters must
+ * never reject a geometry that the predicate accepts.
+ */
+public class FilterPredicatesTest {
+
+    private static final String REFERENCE = "POLYGON ((0 0, 0 10, 10 10, 10 0, 0 0))";
+
+    private GraphDatabaseService db;
+    private EditableLayerImpl layer;
+    private Geometry reference;
+
+    @Before
+    public void setup() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        try (Transaction tx = db.beginTx()) {
+            layer = (EditableLayerImpl) new SpatialDatabaseService(db).getOrCreateEditableLayer("predicates");
+            layer.setExtraPropertyNames(new String[]{"name"});
+            layer.setCoordinateReferenceSystem(DefaultEngineeringCRS.GENERIC_2D);
+            WKTReader reader = new WKTReader(layer.getGeometryFactory());
+            add(reader, "contained", "POLYGON ((2 2, 2 4, 4 4, 4 2, 2 2))");
+            add(reader, "inner edge", "POLYGON ((0 0, 0 2, 2 2, 2 0, 0 0))");
+            add(reader, "on boundary", "LINESTRING (0 6, 0 8)");
+            add(reader, "overlapping", "POLYGON ((8 8, 8 12, 12 12, 12 8, 8 8))");
+            add(reader, "crossing", "LINESTRING (5 5, 15 5)");
+            add(reader, "touching", "POLYGON ((10 2, 10 4, 12 4, 12 2, 10 2))");
+            add(reader, "disjoint", "POLYGON ((20 20, 20 22, 22 22, 22 20, 20 20))");
+            reference = reader.read(REFERENCE);
+            tx.success();
+        }
+    }
+
+    @After
+    public void teardown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldFilterWithin() {
+        Set<String> expected = names("contained", "inner edge");
+        assertEquals(expected, names(() -> GeoPipeline.start(layer).withinFilter(reference)));
+        assertEquals(expected, names(() -> GeoPipeline.startWithinSearch(layer, reference)));
+    }
+
+    @Test
+    public void shouldFilterCoveredBy() {
+        Set<String> expected = names("contained", "inner edge", "on boundary");
+        assertEquals(expected, names(() -> GeoPipeline.start(layer).coveredByFilter(reference)));
+        assertEquals(expected, names(() -> GeoPipeline.startCoveredBySearch(layer, reference)));
+    }
+
+    @Test
+    public void shouldFilterTouch() {
+        Set<String> expected = names("on boundary", "touching");
+        assertEquals(expected, names(() -> GeoPipeline.start(layer).touchFilter(reference)));
+        assertEquals(expected, names(() -> GeoPipeline.startTouchSearch(layer, reference)));
+    }
+
+    @Test
+    public void shouldFilterOverlap() {
+        Set<String> expected = names("overlapping");
+        assertEquals(expected, names(() -> GeoPipeline.start(layer).overlapFilter(reference)));
+        assertEquals(expected, names(() -> GeoPipeline.startOverlapSearch(layer, reference)));
+    }
+
+    @Test
+    public void shouldFilterCross() {
+        Set<String> expected = names("crossing");
+        assertEquals(expected, names(() -> GeoPipeline.start(layer).crossFilter(reference)));
+        assertEquals(expected, names(() -> GeoPipeline.startCrossSearch(layer, reference)));
+    }
+
+    @Test
+    public void shouldFilterDisjoint() {
+        assertEquals(names("disjoint"), names(() -> GeoPipeline.start(layer).disjointFilter(reference)));
+    }
+
+    @Test
+    public void shouldFilterIntersect() {
+        Set<String> expected = names("contained", "inner edge", "on boundary", "overlapping", "crossing", "touching");
+        assertEquals(expected, names(() -> GeoPipeline.start(layer).intersectionFilter(reference)));
+        assertEquals(expected, names(() -> GeoPipeline.startIntersectSearch(layer, reference)));
+    }
+
+    @Test
+    public void shouldFilterIntersectWindow() {
+        Envelope window = reference.getEnvelopeInternal();
+        Set<String> expected = names("contained", "inner edge", "on boundary", "overlapping", "crossing", "touching");
+        assertEquals(expected, names(() -> GeoPipeline.start(layer).windowIntersectionFilter(window)));
+        assertEquals(expected, names(() -> GeoPipeline.startIntersectWindowSearch(layer, window)));
+    }
+
+    private void add(WKTReader reader, String name, String wkt) throws Exception {
+        layer.add(reader.read(wkt), new String[]{"name"}, new Object[]{name});
+    }
+
+    private Set<String> names(Supplier<GeoPipeline> pipeline) {
+        Set<String> names = new HashSet<>();
+        try (Transaction tx = db.beginTx()) {
+            for (GeoPipeFlow flow : pipeline.get().copyDatabaseRecordProperties()) {
+                names.add((String) flow.getProperties().get("name"));
+            }
+            tx.success();
+        }
+        return names;
+    }
+
+    private static Set<String> names(String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+}
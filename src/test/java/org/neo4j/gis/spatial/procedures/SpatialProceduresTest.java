@@ -28,7 +28,11 @@ import org.neo4j.kernel.impl.proc.Procedures;
 import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
 
@@ -37,6 +41,7 @@ import static junit.framework.TestCase.assertFalse;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -154,6 +159,51 @@ public class SpatialProceduresTest {
         testCall(db, "CALL spatial.withinDistance('geom',{lon:15.0,lat:60.0},100)", r -> assertEquals(node, r.get("node")));
     }
 
+    @Test
+    public void index_stats_after_search_bbox_hilbert() {
+        execute("CALL spatial.addPointLayerHilbert('geom')");
+        execute("CREATE (n:Node {latitude:60.1,longitude:15.2}) WITH n CALL spatial.addNode('geom',n) YIELD node RETURN node");
+        execute("CREATE (n:Node {latitude:60.25,longitude:15.35}) WITH n CALL spatial.addNode('geom',n) YIELD node RETURN node");
+        testCallCount(db, "CALL spatial.bbox('geom',{lon:15.0,lat:60.0},{lon:15.3, lat:60.2})", null, 1);
+        testCall(db, "CALL spatial.indexStats('geom')", r -> {
+            assertEquals("geom", r.get("layer"));
+            assertEquals(1L, r.get("queries"));
+            assertEquals(1L, r.get("results"));
+            assertThat("Should have examined the result", (Long) r.get("candidates"), greaterThanOrEqualTo(1L));
+            assertThat("Should have issued curve ranges", (Long) r.get("ranges"), greaterThanOrEqualTo(1L));
+            assertEquals(1L - (Long) r.get("results") / (double) (Long) r.get("candidates"), (Double) r.get("falsePositiveRatio"), 0.000001);
+            assertEquals(1L, ((List<Long>) r.get("latencyHistogram")).stream().mapToLong(Long::longValue).sum());
+        });
+    }
+
+    @Test
+    public void index_stats_after_search_bbox_rtree() {
+        execute("CALL spatial.addPointLayerXY('geom','lon','lat')");
+        execute("CREATE (n:Node {lat:60.1,lon:15.2}) WITH n CALL spatial.addNode('geom',n) YIELD node RETURN node");
+        testCallCount(db, "CALL spatial.bbox('geom',{lon:15.0,lat:60.0},{lon:15.3, lat:60.2})", null, 1);
+        testCall(db, "CALL spatial.indexStats('geom')", r -> {
+            assertEquals(1L, r.get("queries"));
+            assertEquals(1L, r.get("candidates"));
+            assertEquals(1L, r.get("results"));
+            assertThat("Should have visited the root", (Long) r.get("indexNodesVisited"), greaterThanOrEqualTo(1L));
+        });
+    }
+
+    @Test
+    public void remove_layer_unregisters_index_stats() throws Exception {
+        execute("CALL spatial.addPointLayerXY('geom','lon','lat')");
+        execute("CREATE (n:Node {lat:60.1,lon:15.2}) WITH n CALL spatial.addNode('geom',n) YIELD node RETURN node");
+        testCallCount(db, "CALL spatial.bbox('geom',{lon:15.0,lat:60.0},{lon:15.3, lat:60.2})", null, 1);
+        ResourceIterator<Object> ids = db.execute("MATCH (n) WHERE n.layer = 'geom' RETURN id(n) AS id").columnAs("id");
+        long layerNodeId = (Long) ids.next();
+        ids.close();
+        ObjectName pattern = new ObjectName("org.neo4j.gis.spatial:type=IndexQueryStatistics,layer=" + layerNodeId + ",*");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(1, server.queryNames(pattern, null).size());
+        execute("CALL spatial.removeLayer('geom')");
+        assertEquals(0, server.queryNames(pattern, null).size());
+    }
+
     @Test
     // This tests issue https://github.com/neo4j-contrib/spatial/issues/298
     public void add_node_point_layer_and_search_multiple_points_precision() {
@@ -358,6 +408,16 @@ public class SpatialProceduresTest {
         testCall(db, "CALL spatial.addPointLayerHilbert('geom')", (r) -> assertEquals("geom", (dump((Node) r.get("node"))).getProperty("layer")));
     }
 
+    @Test
+    public void create_a_pointlayer_with_hilbert3d() {
+        testCall(db, "CALL spatial.addPointLayerHilbert3D('geom')", (r) -> assertEquals("geom", (dump((Node) r.get("node"))).getProperty("layer")));
+    }
+
+    @Test
+    public void create_a_pointlayer_with_hilbert_index_config() {
+        testCall(db, "CALL spatial.addPointLayerWithConfig('geom','lon:lat','hilbert','wgs84','{\"maxLevel\":16}')", (r) -> assertEquals("{\"maxLevel\":16}", (dump((Node) r.get("node"))).getProperty("index_config")));
+    }
+
     @Test
     public void create_and_delete_a_pointlayer_with_rtree() {
         testCall(db, "CALL spatial.addPointLayer('geom')", (r) -> assertEquals("geom", (dump((Node) r.get("node"))).getProperty("layer")));
@@ -572,6 +632,15 @@ public class SpatialProceduresTest {
         testCall(db, "CALL spatial.withinDistance('geom',{lon:15.0,lat:60.0},100)", r -> assertEquals(node, r.get("node")));
     }
 
+    @Test
+    public void testBBoxNodeHilbert3D() throws Exception {
+        execute("CALL spatial.addPointLayerHilbert3D('geom')");
+        execute("CREATE (n:Node {latitude:60.1,longitude:15.2,altitude:120.0}) WITH n CALL spatial.addNode('geom',n) YIELD node RETURN node");
+        execute("CREATE (n:Node {latitude:60.1,longitude:15.2}) WITH n CALL spatial.addNode('geom',n) YIELD node RETURN node");
+        execute("CREATE (n:Node {latitude:61.1,longitude:15.2,altitude:120.0}) WITH n CALL spatial.addNode('geom',n) YIELD node RETURN node");
+        testCallCount(db, "CALL spatial.bbox('geom',{lon:15.0,lat:60.0},{lon:15.3, lat:60.2})", null, 2);
+    }
+
     @Test
     public void testDistanceNodeHilbert() throws Exception {
         execute("CALL spatial.addPointLayerHilbert('geom')");
@@ -645,6 +714,21 @@ public class SpatialProceduresTest {
         testCountQuery("addNode", query, count, "count(node)", map("count", count));
     }
 
+    @Test
+    public void reindex_layer_with_hilbert_packed_rtree() throws Exception {
+        int count = 1000;
+        execute("CALL spatial.addLayer('poi','SimplePoint','')");
+        String query = "UNWIND range(1,{count}) as i\n" +
+                "CREATE (n:Point {latitude:(56.0+toFloat(i)/100.0),longitude:(12.0+toFloat(i)/100.0)})\n" +
+                "WITH collect(n) as points\n" +
+                "CALL spatial.addNodes('poi',points) YIELD count\n" +
+                "RETURN count";
+        testCountQuery("addNodes", query, count, "count", map("count", count));
+        testCall(db, "CALL spatial.reIndex('poi','hilbert-packed')", r -> assertEquals((long) count, r.get("count")));
+        testCallCount(db, "CALL spatial.bbox('poi',{longitude:12.0,latitude:56.0},{longitude:13.005, latitude:57.005})", null, 100);
+        testCallFails(db, "CALL spatial.reIndex('poi','unknown')", null, "No such RTreeIndex value for 'buildMode': unknown");
+    }
+
     @Test
     public void import_shapefile() throws Exception {
         testCountQuery("importShapefile", "CALL spatial.importShapefile('shp/highway.shp')", 143, "count", null);
@@ -25,8 +25,14 @@ import org.geotools.data.neo4j.Neo4jFeatureBuilder;
 import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.gis.spatial.Constants;
+import org.neo4j.gis.spatial.RTreeTestUtils;
 import org.neo4j.gis.spatial.encoders.SimplePointEncoder;
+import org.neo4j.gis.spatial.rtree.filter.SearchCoveredByEnvelope;
+import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.test.TestGraphDatabaseFactory;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -34,6 +40,20 @@ import org.opengis.feature.simple.SimpleFeatureType;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class RTreeTests {
 
@@ -83,6 +103,461 @@ public class RTreeTests {
         }
     }
 
+    @Test
+    public void shouldSearchIndexSnapshotLikeGraph() {
+        Random random = new Random(42);
+        addRandomPoints(random, 500);
+        SearchFilter filter = new SearchCoveredByEnvelope(rtree.getEnvelopeDecoder(), new Envelope(0.2, 0.6, 0.3, 0.7));
+        Set<Long> expected = searchNodeIds(filter);
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_INDEX_SNAPSHOT, true));
+        assertEquals(expected, searchNodeIds(filter));
+
+        // writes must invalidate the snapshot, including the index node splits they cause
+        addRandomPoints(random, 500);
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_INDEX_SNAPSHOT, false));
+        expected = searchNodeIds(filter);
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_INDEX_SNAPSHOT, true));
+        assertEquals(expected, searchNodeIds(filter));
+    }
+
+    @Test
+    public void shouldUseIndexSnapshotAgainAfterRolledBackWrite() {
+        addRandomPoints(new Random(42), 100);
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_INDEX_SNAPSHOT, true));
+        long layerNodeId;
+        try (Transaction tx = db.beginTx()) {
+            layerNodeId = rtree.getIndexRoot().getSingleRelationship(RTreeRelationshipTypes.RTREE_ROOT, Direction.INCOMING).getStartNode().getId();
+            rtree.add(createPoint(0.5, 0.5));
+            assertTrue(RTreeIndexSnapshot.hasPendingWrites(db, layerNodeId));
+            // closed without success, so the transaction event handlers are never called
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertFalse(RTreeIndexSnapshot.hasPendingWrites(db, layerNodeId));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldBulkLoadBalancedTree() {
+        Random random = new Random(42);
+        List<Node> nodes = new ArrayList<>();
+        Set<Long> expected = new HashSet<>();
+        Envelope window = new Envelope(0.2, 0.6, 0.3, 0.7);
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 10000; i++) {
+                Node node = createPoint(random.nextDouble(), random.nextDouble());
+                nodes.add(node);
+                if (window.contains(rtree.getLeafNodeEnvelope(node))) {
+                    expected.add(node.getId());
+                }
+            }
+            rtree.add(nodes);
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            Map<Long, Long> heights = new RTreeTestUtils(rtree).get_height_map(db, rtree.getIndexRoot());
+            assertEquals(1, heights.size());
+            assertEquals(10000L, heights.values().iterator().next().longValue());
+            tx.success();
+        }
+        assertEquals(expected, searchNodeIds(new SearchCoveredByEnvelope(rtree.getEnvelopeDecoder(), window)));
+    }
+
+    @Test
+    public void shouldBulkInsertIntoExistingTree() {
+        Random random = new Random(42);
+        Set<Long> expected = new HashSet<>();
+        Envelope window = new Envelope(0.2, 0.6, 0.3, 0.7);
+        for (int batch : new int[]{10000, 3000, 1000}) {
+            try (Transaction tx = db.beginTx()) {
+                List<Node> nodes = new ArrayList<>();
+                for (int i = 0; i < batch; i++) {
+                    Node node = createPoint(random.nextDouble(), random.nextDouble());
+                    nodes.add(node);
+                    if (window.contains(rtree.getLeafNodeEnvelope(node))) {
+                        expected.add(node.getId());
+                    }
+                }
+                rtree.add(nodes);
+                tx.success();
+            }
+        }
+        try (Transaction tx = db.beginTx()) {
+            int indexed = 0;
+            for (Node ignored : rtree.getAllIndexedNodes()) {
+                indexed++;
+            }
+            assertEquals(14000, indexed);
+            tx.success();
+        }
+        assertEquals(expected, searchNodeIds(new SearchCoveredByEnvelope(rtree.getEnvelopeDecoder(), window)));
+    }
+
+    @Test
+    public void shouldInsertIndividuallyWithRStarSplit() {
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_SPLIT, RTreeIndex.RSTAR_SPLIT));
+        Random random = new Random(42);
+        Set<Long> expected = new HashSet<>();
+        Envelope window = new Envelope(0.2, 0.6, 0.3, 0.7);
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 3000; i++) {
+                Node node = createPoint(random.nextDouble(), random.nextDouble());
+                rtree.add(node);
+                if (window.contains(rtree.getLeafNodeEnvelope(node))) {
+                    expected.add(node.getId());
+                }
+            }
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            Map<Long, Long> heights = new RTreeTestUtils(rtree).get_height_map(db, rtree.getIndexRoot());
+            assertEquals(1, heights.size());
+            assertEquals(3000L, heights.values().iterator().next().longValue());
+            tx.success();
+        }
+        assertEquals(expected, searchNodeIds(new SearchCoveredByEnvelope(rtree.getEnvelopeDecoder(), window)));
+    }
+
+    @Test
+    public void shouldBufferIndividualInserts() {
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_INSERT_BUFFER, true));
+        Random random = new Random(42);
+        Set<Long> expected = new HashSet<>();
+        Envelope window = new Envelope(0.2, 0.6, 0.3, 0.7);
+        SearchFilter filter = new SearchCoveredByEnvelope(rtree.getEnvelopeDecoder(), window);
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 1000; i++) {
+                Node node = createPoint(random.nextDouble(), random.nextDouble());
+                rtree.add(node);
+                if (window.contains(rtree.getLeafNodeEnvelope(node))) {
+                    expected.add(node.getId());
+                }
+            }
+            // searches in the same transaction flush the buffer first
+            assertEquals(expected, searchNodeIds(filter));
+            for (int i = 0; i < 2000; i++) {
+                Node node = createPoint(random.nextDouble(), random.nextDouble());
+                rtree.add(node);
+                if (window.contains(rtree.getLeafNodeEnvelope(node))) {
+                    expected.add(node.getId());
+                }
+            }
+            tx.success();
+        }
+        assertEquals(expected, searchNodeIds(filter));
+        try (Transaction tx = db.beginTx()) {
+            Map<Long, Long> heights = new RTreeTestUtils(rtree).get_height_map(db, rtree.getIndexRoot());
+            assertEquals(1, heights.size());
+            assertEquals(3000L, heights.values().iterator().next().longValue());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldKeepBoundingBoxesTightAfterForcedReinserts() {
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_SPLIT, RTreeIndex.RSTAR_SPLIT));
+        addRandomPoints(new Random(42), 3000);
+        try (Transaction tx = db.beginTx()) {
+            assertTightBoundingBoxes(rtree.getIndexRoot());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldChooseSameLeavesForBufferedInserts() {
+        TestRTreeIndex buffered;
+        try (Transaction tx = db.beginTx()) {
+            buffered = new TestRTreeIndex(db);
+            tx.success();
+        }
+        buffered.configure(Collections.singletonMap(RTreeIndex.KEY_INSERT_BUFFER, true));
+        Random random = new Random(42);
+        List<Node> points = new ArrayList<>();
+        List<Node> bufferedPoints = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 1000; i++) {
+                double x = random.nextDouble();
+                double y = random.nextDouble();
+                Node point = createPoint(x, y);
+                rtree.add(point);
+                points.add(point);
+                Node bufferedPoint = createPoint(x, y);
+                buffered.add(bufferedPoint);
+                bufferedPoints.add(bufferedPoint);
+            }
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            // the buffered descent sees the bounding boxes as they would have been written, so the trees are the same
+            assertEquals(leafGroups(points), leafGroups(bufferedPoints));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldDropBufferedInsertsOfRolledBackTransaction() {
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_INSERT_BUFFER, true));
+        addRandomPoints(new Random(42), 100);
+        try (Transaction tx = db.beginTx()) {
+            rtree.add(createPoint(5.0, 5.0));
+            // closed without success, so the transaction event handlers are never called
+        }
+        try (Transaction tx = db.beginTx()) {
+            rtree.add(createPoint(0.5, 0.5));
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            // layers open a new index on every lookup, so count with one that did not see the rolled back insert
+            RTreeIndex reopened = new RTreeIndex();
+            reopened.init(db, rtree.getIndexRoot().getSingleRelationship(RTreeRelationshipTypes.RTREE_ROOT, Direction.INCOMING).getStartNode(), new SimplePointEncoder());
+            assertEquals(101, reopened.count());
+            Envelope bbox = reopened.getBoundingBox();
+            assertTrue(bbox.getMaxX() <= 1.0);
+            assertTrue(bbox.getMaxY() <= 1.0);
+            assertCachedChildCounts(rtree.getIndexRoot());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldTightenLeafWhenUpdatedGeometryStaysInsideIt() {
+        List<Node> points = addRandomPointNodes(new Random(42), 200);
+        try (Transaction tx = db.beginTx()) {
+            Node edge = points.get(0);
+            double otherMaxX = Double.NEGATIVE_INFINITY;
+            for (Node point : points) {
+                if (rtree.getLeafNodeEnvelope(point).getMaxX() > rtree.getLeafNodeEnvelope(edge).getMaxX()) {
+                    edge = point;
+                }
+            }
+            for (Node point : points) {
+                if (!point.equals(edge)) {
+                    otherMaxX = Math.max(otherMaxX, rtree.getLeafNodeEnvelope(point).getMaxX());
+                }
+            }
+            Node leaf = edge.getSingleRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).getStartNode();
+            Envelope leafEnvelope = rtree.getIndexNodeEnvelope(leaf);
+            double x = leafEnvelope.centre(0);
+            double y = leafEnvelope.centre(1);
+            edge.setProperty(RTreeIndex.INDEX_PROP_BBOX, new double[]{x, y, x, y});
+            rtree.update(edge);
+
+            // the geometry stays in its leaf, whose bounding box and those above it shrink to their children
+            assertEquals(leaf, edge.getSingleRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).getStartNode());
+            double leafMaxX = Double.NEGATIVE_INFINITY;
+            for (Relationship rel : leaf.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+                leafMaxX = Math.max(leafMaxX, rtree.getLeafNodeEnvelope(rel.getEndNode()).getMaxX());
+            }
+            assertEquals(leafMaxX, rtree.getIndexNodeEnvelope(leaf).getMaxX(), 0.0);
+            assertTrue(rtree.getIndexNodeEnvelope(leaf).getMaxX() < leafEnvelope.getMaxX());
+            assertEquals(otherMaxX, rtree.getBoundingBox().getMaxX(), 0.0);
+            assertEquals(200, rtree.count());
+            assertCachedChildCounts(rtree.getIndexRoot());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldReinsertUpdatedGeometryThatLeavesItsLeaf() {
+        List<Node> points = addRandomPointNodes(new Random(42), 200);
+        Node moved = points.get(100);
+        Envelope before;
+        try (Transaction tx = db.beginTx()) {
+            before = rtree.getLeafNodeEnvelope(moved);
+            moved.setProperty(RTreeIndex.INDEX_PROP_BBOX, new double[]{5.0, 5.0, 5.0, 5.0});
+            rtree.update(moved);
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            Node leaf = moved.getSingleRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).getStartNode();
+            assertTrue(rtree.getIndexNodeEnvelope(leaf).contains(new Envelope(new double[]{5.0, 5.0})));
+            assertEquals(5.0, rtree.getBoundingBox().getMaxX(), 0.0);
+            assertEquals(200, rtree.count());
+            assertCachedChildCounts(rtree.getIndexRoot());
+            tx.success();
+        }
+        Envelope around = new Envelope(4.9, 5.1, 4.9, 5.1);
+        assertEquals(Collections.singleton(moved.getId()), searchNodeIds(new SearchCoveredByEnvelope(rtree.getEnvelopeDecoder(), around)));
+        assertFalse(searchNodeIds(new SearchCoveredByEnvelope(rtree.getEnvelopeDecoder(), before)).contains(moved.getId()));
+    }
+
+    @Test
+    public void shouldCacheChildCountsAndLevels() {
+        Random random = new Random(42);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 2000; i++) {
+                Node node = createPoint(random.nextDouble(), random.nextDouble());
+                rtree.add(node);
+                points.add(node);
+            }
+            for (int i = 0; i < points.size(); i += 3) {
+                rtree.remove(points.get(i).getId(), false, true);
+            }
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertCachedChildCounts(rtree.getIndexRoot());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldSearchInParallelLikeSerial() {
+        addRandomPoints(new Random(42), 5000);
+        SearchFilter filter = new SearchCoveredByEnvelope(rtree.getEnvelopeDecoder(), new Envelope(0.1, 0.8, 0.2, 0.9));
+        List<Long> serial = searchNodeIdsInOrder(filter);
+
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_SEARCH_THREADS, 4));
+        assertEquals(serial, searchNodeIdsInOrder(filter));
+
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_ORDERED_SEARCH, false));
+        assertEquals(new HashSet<>(serial), searchNodeIds(filter));
+        assertEquals(serial.size(), searchNodeIds(filter).size());
+    }
+
+    @Test(timeout = 60000)
+    public void shouldStreamParallelSearchResultsOnConfiguredThreads() throws InterruptedException {
+        addRandomPoints(new Random(42), 5000);
+        SearchFilter window = new SearchCoveredByEnvelope(rtree.getEnvelopeDecoder(), new Envelope(0.1, 0.8, 0.2, 0.9));
+        Set<Long> expected = searchNodeIds(window);
+
+        // every worker stops after its first match until released, so results must be passed on before a group ends
+        CountDownLatch release = new CountDownLatch(1);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        SearchFilter blocking = new SearchFilter() {
+            @Override
+            public boolean needsToVisit(Envelope envelope) {
+                return window.needsToVisit(envelope);
+            }
+
+            @Override
+            public boolean geometryMatches(Node geomNode) {
+                boolean matches = window.geometryMatches(geomNode);
+                if (matches && !threads.add(Thread.currentThread().getName())) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return matches;
+            }
+        };
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_SEARCH_THREADS, 2));
+        Set<Long> found = new HashSet<>();
+        try (Transaction tx = db.beginTx()) {
+            Iterator<Node> results = rtree.searchIndex(blocking).iterator();
+            found.add(results.next().getId());
+            release.countDown();
+            while (results.hasNext()) {
+                found.add(results.next().getId());
+            }
+            tx.success();
+        }
+        assertEquals(expected, found);
+        assertEquals(2, threads.size());
+        for (String thread : threads) {
+            assertTrue(thread, thread.startsWith("RTreeIndex-search-2-"));
+        }
+    }
+
+    private List<Long> searchNodeIdsInOrder(SearchFilter filter) {
+        List<Long> ids = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            for (Node node : rtree.searchIndex(filter)) {
+                ids.add(node.getId());
+            }
+            tx.success();
+        }
+        return ids;
+    }
+
+    private int assertCachedChildCounts(Node indexNode) {
+        int children = 0;
+        int level = 1;
+        for (Relationship rel : indexNode.getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+            level = assertCachedChildCounts(rel.getEndNode()) + 1;
+            children++;
+        }
+        for (Relationship ignored : indexNode.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+            children++;
+        }
+        assertEquals(children, indexNode.getProperty(RTreeIndex.INDEX_PROP_CHILD_COUNT));
+        assertEquals(level, indexNode.getProperty(RTreeIndex.INDEX_PROP_LEVEL));
+        return level;
+    }
+
+    /**
+     * Check that the bounding box of every index node is exactly that of its children, and return it
+     */
+    private Envelope assertTightBoundingBoxes(Node indexNode) {
+        Envelope children = new Envelope();
+        for (Relationship rel : indexNode.getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+            children.expandToInclude(assertTightBoundingBoxes(rel.getEndNode()));
+        }
+        for (Relationship rel : indexNode.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+            children.expandToInclude(rtree.getLeafNodeEnvelope(rel.getEndNode()));
+        }
+        Envelope bbox = rtree.getIndexNodeEnvelope(indexNode);
+        assertEquals(children.getMinX(), bbox.getMinX(), 0.0);
+        assertEquals(children.getMinY(), bbox.getMinY(), 0.0);
+        assertEquals(children.getMaxX(), bbox.getMaxX(), 0.0);
+        assertEquals(children.getMaxY(), bbox.getMaxY(), 0.0);
+        return bbox;
+    }
+
+    /**
+     * The positions in the list of the points that share a leaf, for each leaf
+     */
+    private Set<Set<Integer>> leafGroups(List<Node> points) {
+        Map<Long, Set<Integer>> leaves = new HashMap<>();
+        for (int i = 0; i < points.size(); i++) {
+            Node leaf = points.get(i).getSingleRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).getStartNode();
+            leaves.computeIfAbsent(leaf.getId(), id -> new HashSet<>()).add(i);
+        }
+        return new HashSet<>(leaves.values());
+    }
+
+    private Node createPoint(double x, double y) {
+        Node node = db.createNode();
+        node.setProperty(RTreeIndex.INDEX_PROP_BBOX, new double[]{x, y, x, y});
+        return node;
+    }
+
+    private void addRandomPoints(Random random, int count) {
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < count; i++) {
+                rtree.add(createPoint(random.nextDouble(), random.nextDouble()));
+            }
+            tx.success();
+        }
+    }
+
+    private List<Node> addRandomPointNodes(Random random, int count) {
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < count; i++) {
+                Node node = createPoint(random.nextDouble(), random.nextDouble());
+                rtree.add(node);
+                points.add(node);
+            }
+            tx.success();
+        }
+        return points;
+    }
+
+    private Set<Long> searchNodeIds(SearchFilter filter) {
+        Set<Long> ids = new HashSet<>();
+        try (Transaction tx = db.beginTx()) {
+            for (Node node : rtree.searchIndex(filter)) {
+                ids.add(node.getId());
+            }
+            tx.success();
+        }
+        return ids;
+    }
+
     private RTreeIndex.NodeWithEnvelope createSimpleRTree(double minx, double maxx, int depth) {
         double[] min = new double[]{minx, minx};
         double[] max = new double[]{maxx, maxx};